@@ -177,23 +177,7 @@ public class ACLAugment {
    * @return ACL element string in scheme:id:permissions format.
    */
   public String getStringFromACL() {
-    String returnACL = getScheme() + ":" + getId() + ":";
-    if (this.hasCreate()) {
-      returnACL += "c";
-    }
-    if (this.hasDelete()) {
-      returnACL += "d";
-    }
-    if (this.hasRead()) {
-      returnACL += "r";
-    }
-    if (this.hasWrite()) {
-      returnACL += "w";
-    }
-    if (this.hasAdmin()) {
-      returnACL += "a";
-    }
-    return returnACL;
+    return ZKACLEntry.toACLString(this.acl);
   }
 
   /**
@@ -216,15 +200,13 @@ public class ACLAugment {
    * @return Comma separated string of ACL entries
    */
   public static String generateACLStringList(List<ACL> aclList) {
-    StringBuffer outputBuf = new StringBuffer();
+    StringBuilder outputBuf = new StringBuilder();
     Iterator<ACL> iterator = aclList.iterator();
 
     while (iterator.hasNext()) {
-      ACLAugment tempACL = new ACLAugment(iterator.next());
+      outputBuf.append(ZKACLEntry.toACLString(iterator.next()));
       if (iterator.hasNext()) {
-        outputBuf.append(tempACL.getStringFromACL() + ", ");
-      } else {
-        outputBuf.append(tempACL.getStringFromACL());
+        outputBuf.append(", ");
       }
     }
     return outputBuf.toString();
@@ -8,19 +8,75 @@
 */
 package ch.cern;
 
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import org.apache.commons.collections4.Equator;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.zookeeper.data.ACL;
 import inet.ipaddr.AddressStringException;
 import inet.ipaddr.IPAddress;
 import inet.ipaddr.IPAddressString;
 
 /**
  * Equator used for logical matching of ACLs.
+ *
+ * <p>Satisfaction results are cached per (query ACL, znode ACL entry) pair, as the same few
+ * entries are compared at every znode, and the addresses of ip scheme IDs are parsed once.
+ * Both caches hold at most the number of entries given at construction, pairs seen after
+ * that being compared without caching.</p>
  */
 public class ACLAugmentSatisfyEquator implements Equator<ACLAugment> {
+  private static Logger logger = LogManager.getLogger(ACLAugmentSatisfyEquator.class);
+
+  private int maxCachedResults;
+  private Map<SatisfyKey, Boolean> results = new ConcurrentHashMap<SatisfyKey, Boolean>();
+  // Parsed address of ip scheme IDs, empty for addresses without network prefix
+  private Map<String, Optional<IPAddress>> subnets = new ConcurrentHashMap<String, Optional<IPAddress>>();
+  private Map<String, IPAddress> addresses = new ConcurrentHashMap<String, IPAddress>();
+  private LongAdder hits = new LongAdder();
+  private LongAdder misses = new LongAdder();
+
+  /**
+   * Create an equator caching up to {@link ZKPolicyDefs.ACLDictionary#MAX_SATISFY_RESULTS} results.
+   */
+  public ACLAugmentSatisfyEquator() {
+    this(ZKPolicyDefs.ACLDictionary.MAX_SATISFY_RESULTS);
+  }
+
+  /**
+   * Create an equator with a bounded cache.
+   *
+   * @param maxCachedResults Maximum number of cached results and parsed addresses, 0 to disable caching
+   */
+  public ACLAugmentSatisfyEquator(int maxCachedResults) {
+    this.maxCachedResults = maxCachedResults;
+  }
 
   // Check if o2 ACL logically satisfies o1 ACL
   @Override
   public boolean equate(ACLAugment o1, ACLAugment o2) {
+    if (this.maxCachedResults <= 0) {
+      return this.satisfies(o1, o2);
+    }
+    SatisfyKey key = new SatisfyKey(o1.getACL(), o2.getACL());
+    Boolean result = this.results.get(key);
+    if (result != null) {
+      this.hits.increment();
+      return result;
+    }
+    this.misses.increment();
+    result = this.satisfies(o1, o2);
+    if (this.results.size() < this.maxCachedResults) {
+      this.results.put(key, result);
+    }
+    return result;
+  }
+
+  private boolean satisfies(ACLAugment o1, ACLAugment o2) {
     boolean check_id;
     boolean check_scheme;
     boolean check_perms;
@@ -32,20 +88,12 @@ public class ACLAugmentSatisfyEquator implements Equator<ACLAugment> {
       check_id = true;
     } else if (o1.getScheme().equals("ip") && o2.getScheme().equals("ip")) {
       check_scheme = true;
-      IPAddressString addrStringOperand2 = new IPAddressString(o2.getId());
-      try {
-        IPAddress addrOperand2 = addrStringOperand2.getAddress();
-        Integer prefix = addrOperand2.getNetworkPrefixLength();
-        if (prefix == null) {
-          // o2 is not a subnet address
-          check_id = o1.getId().equals(o2.getId());
-        } else {
-          IPAddressString addrStringOperand1 = new IPAddressString(o1.getId());
-          IPAddress addrOperand1 = addrStringOperand1.toAddress();
-          check_id = addrOperand2.contains(addrOperand1);
-        }
-      } catch (AddressStringException e) {
-        throw new IllegalArgumentException(e.getMessage());
+      Optional<IPAddress> subnet = this.getSubnet(o2.getId());
+      if (!subnet.isPresent()) {
+        // o2 is not a subnet address
+        check_id = o1.getId().equals(o2.getId());
+      } else {
+        check_id = subnet.get().contains(this.getAddress(o1.getId()));
       }
     } else {
       check_scheme = o1.getScheme().equals(o2.getScheme());
@@ -54,9 +102,100 @@ public class ACLAugmentSatisfyEquator implements Equator<ACLAugment> {
     return check_scheme && check_id && check_perms;
   }
 
+  /**
+   * Parse the address of an ip scheme ID granting access to a subnet.
+   *
+   * @param id ip scheme ID
+   * @return Subnet address, or empty if the ID has no network prefix
+   */
+  private Optional<IPAddress> getSubnet(String id) {
+    Optional<IPAddress> subnet = this.subnets.get(id);
+    if (subnet == null) {
+      IPAddress address = this.parseAddress(id);
+      subnet = address.getNetworkPrefixLength() == null ? Optional.empty() : Optional.of(address);
+      if (this.subnets.size() < this.maxCachedResults) {
+        this.subnets.put(id, subnet);
+      }
+    }
+    return subnet;
+  }
+
+  private IPAddress getAddress(String id) {
+    IPAddress address = this.addresses.get(id);
+    if (address == null) {
+      address = this.parseAddress(id);
+      if (this.addresses.size() < this.maxCachedResults) {
+        this.addresses.put(id, address);
+      }
+    }
+    return address;
+  }
+
+  private IPAddress parseAddress(String id) {
+    try {
+      return new IPAddressString(id).toAddress();
+    } catch (AddressStringException e) {
+      throw new IllegalArgumentException(e.getMessage());
+    }
+  }
+
+  /**
+   * Get the number of comparisons answered from the cache.
+   *
+   * @return Number of cache hits
+   */
+  public long getHitCount() {
+    return this.hits.sum();
+  }
+
+  /**
+   * Get the number of comparisons computed and added to the cache when not full.
+   *
+   * @return Number of cache misses
+   */
+  public long getMissCount() {
+    return this.misses.sum();
+  }
+
+  /**
+   * Log the cache hit and miss counts at debug level.
+   *
+   * @param queryName Name of the query using the equator
+   */
+  public void logStatistics(String queryName) {
+    logger.debug("{} satisfaction cache: {} hits, {} misses, {} cached results", queryName, this.getHitCount(),
+        this.getMissCount(), this.results.size());
+  }
+
   @Override
   public int hash(ACLAugment o1) {
     return o1.hashCode();
   }
 
-}
\ No newline at end of file
+  /**
+   * Cache key of a comparison.
+   */
+  private static final class SatisfyKey {
+    private final ACL queryACL;
+    private final ACL znodeACL;
+
+    SatisfyKey(ACL queryACL, ACL znodeACL) {
+      this.queryACL = queryACL;
+      this.znodeACL = znodeACL;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof SatisfyKey)) {
+        return false;
+      }
+      SatisfyKey otherKey = (SatisfyKey) other;
+      return this.queryACL.equals(otherKey.queryACL) && this.znodeACL.equals(otherKey.znodeACL);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(this.queryACL, this.znodeACL);
+    }
+  }
+}
@@ -0,0 +1,204 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.zookeeper.data.ACL;
+
+/**
+ * Dictionary of the distinct ACL lists read from the znode tree.
+ *
+ * <p>On real ensembles a handful of ACL lists repeat across most znodes. Interning a list
+ * returns a single shared immutable instance per distinct list, numbered with a small integer
+ * ID. Lists holding the same ACL entries in a different order also share a canonical ID,
+ * assigned to their sorted form, so that results of queries that do not depend on the order
+ * of the entries can be memoised per canonical ID instead of computed for every znode.</p>
+ *
+ * <p>The entries of the interned lists are {@link ZKACLEntry} instances, a single instance being
+ * shared by all the lists holding the same entry.</p>
+ *
+ * <p>At most {@link ZKPolicyDefs.ACLDictionary#MAX_INTERNED_LISTS} lists are interned; lists
+ * seen after that are returned as they are and evaluated as before.</p>
+ */
+public class ZKACLDictionary {
+  private static final ZKACLDictionary DEFAULT = new ZKACLDictionary(ZKPolicyDefs.ACLDictionary.MAX_INTERNED_LISTS);
+
+  // Order of the entries of the canonical form of an ACL list
+  private static final Comparator<ACL> CANONICAL_ORDER = Comparator
+      .comparing((ACL acl) -> acl.getId().getScheme())
+      .thenComparing(acl -> acl.getId().getId())
+      .thenComparingInt(ACL::getPerms);
+
+  private int maxLists;
+  private Map<List<ACL>, InternedList> lists = new ConcurrentHashMap<List<ACL>, InternedList>();
+  // Guarded by the dictionary lock
+  private Map<List<ACL>, Integer> canonicalIds = new HashMap<List<ACL>, Integer>();
+  private Map<ACL, ZKACLEntry> entries = new HashMap<ACL, ZKACLEntry>();
+  private Map<String, String> strings = new HashMap<String, String>();
+
+  /**
+   * Create an empty dictionary.
+   *
+   * @param maxLists Maximum number of interned lists
+   */
+  ZKACLDictionary(int maxLists) {
+    this.maxLists = maxLists;
+  }
+
+  /**
+   * Get the dictionary shared by all traversals.
+   *
+   * @return Shared dictionary
+   */
+  public static ZKACLDictionary getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Get the shared instance of an ACL list.
+   *
+   * @param aclList ACL list
+   * @return Interned immutable list equal to aclList, or aclList itself if null or if the
+   *         dictionary is full
+   */
+  public List<ACL> intern(List<ACL> aclList) {
+    if (aclList == null || this.contains(aclList)) {
+      return aclList;
+    }
+    InternedList interned = this.lists.get(aclList);
+    if (interned != null) {
+      return interned;
+    }
+    synchronized (this) {
+      interned = this.lists.get(aclList);
+      if (interned != null) {
+        return interned;
+      }
+      if (this.lists.size() >= this.maxLists) {
+        return aclList;
+      }
+      ACL[] entries = new ACL[aclList.size()];
+      for (int i = 0; i < entries.length; i++) {
+        entries[i] = this.internEntry(aclList.get(i));
+      }
+      List<ACL> canonical = new ArrayList<ACL>(Arrays.asList(entries));
+      canonical.sort(CANONICAL_ORDER);
+      Integer canonicalId = this.canonicalIds.get(canonical);
+      if (canonicalId == null) {
+        canonicalId = this.canonicalIds.size();
+        this.canonicalIds.put(canonical, canonicalId);
+      }
+      interned = new InternedList(this, entries, this.lists.size(), canonicalId);
+      this.lists.put(interned, interned);
+      return interned;
+    }
+  }
+
+  /**
+   * Get the shared instance of an ACL entry, copied as Jute records are mutable.
+   */
+  private ZKACLEntry internEntry(ACL acl) {
+    ZKACLEntry entry = this.entries.get(acl);
+    if (entry == null) {
+      entry = new ZKACLEntry(acl.getPerms(), this.internString(acl.getId().getScheme()),
+          this.internString(acl.getId().getId()));
+      this.entries.put(entry, entry);
+    }
+    return entry;
+  }
+
+  private String internString(String value) {
+    String interned = this.strings.putIfAbsent(value, value);
+    return interned == null ? value : interned;
+  }
+
+  /**
+   * Get the ID of an ACL list interned by this dictionary.
+   *
+   * @param aclList ACL list
+   * @return ID of the list, or -1 if the list was not returned by {@link #intern(List)}
+   */
+  public int getId(List<ACL> aclList) {
+    return this.contains(aclList) ? ((InternedList) aclList).id : -1;
+  }
+
+  /**
+   * Get the canonical ID of an ACL list interned by this dictionary, shared by all interned
+   * lists holding the same entries in any order.
+   *
+   * @param aclList ACL list
+   * @return Canonical ID of the list, or -1 if the list was not returned by {@link #intern(List)}
+   */
+  public int getCanonicalId(List<ACL> aclList) {
+    return this.contains(aclList) ? ((InternedList) aclList).canonicalId : -1;
+  }
+
+  /**
+   * Get the number of interned lists.
+   *
+   * @return Number of distinct ACL lists
+   */
+  public int size() {
+    return this.lists.size();
+  }
+
+  private boolean contains(List<ACL> aclList) {
+    return aclList instanceof InternedList && ((InternedList) aclList).dictionary == this;
+  }
+
+  /**
+   * Immutable ACL list returned by the dictionary.
+   */
+  private static final class InternedList extends AbstractList<ACL> implements RandomAccess {
+    private final ZKACLDictionary dictionary;
+    private final ACL[] entries;
+    private final int id;
+    private final int canonicalId;
+    private final int hashCode;
+
+    InternedList(ZKACLDictionary dictionary, ACL[] entries, int id, int canonicalId) {
+      this.dictionary = dictionary;
+      this.entries = entries;
+      this.id = id;
+      this.canonicalId = canonicalId;
+      this.hashCode = Arrays.asList(entries).hashCode();
+    }
+
+    @Override
+    public ACL get(int index) {
+      return this.entries[index];
+    }
+
+    @Override
+    public int size() {
+      return this.entries.length;
+    }
+
+    @Override
+    public int hashCode() {
+      return this.hashCode;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (other instanceof InternedList && ((InternedList) other).dictionary == this.dictionary) {
+        return other == this;
+      }
+      return super.equals(other);
+    }
+  }
+}
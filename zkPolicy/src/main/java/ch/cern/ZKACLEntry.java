@@ -0,0 +1,128 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Id;
+
+/**
+ * Immutable ACL entry shared by all the ACL lists interned by a {@link ZKACLDictionary}.
+ *
+ * <p>Each distinct entry is held once, with interned scheme and ID strings, the permission
+ * bitmask of the ACL and its hash code. The scheme:id:permissions string of the entry is built
+ * the first time it is needed and then reused, so that the queries and reports formatting the
+ * entries of every znode do not allocate it again for each znode.</p>
+ */
+public final class ZKACLEntry extends ACL {
+  private final int hashCode;
+  private volatile String aclString;
+
+  /**
+   * Create a shared entry.
+   *
+   * @param perms  Permission bitmask
+   * @param scheme Interned scheme
+   * @param id     Interned ID
+   */
+  ZKACLEntry(int perms, String scheme, String id) {
+    super(perms, new SharedId(scheme, id));
+    this.hashCode = super.hashCode();
+  }
+
+  @Override
+  public void setPerms(int perms) {
+    throw new UnsupportedOperationException("Shared ACL entries are immutable");
+  }
+
+  @Override
+  public void setId(Id id) {
+    throw new UnsupportedOperationException("Shared ACL entries are immutable");
+  }
+
+  @Override
+  public int hashCode() {
+    return this.hashCode;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    return other == this || super.equals(other);
+  }
+
+  /**
+   * Get the entry in scheme:id:permissions format, built once.
+   *
+   * @return ACL entry string
+   */
+  public String toACLString() {
+    String result = this.aclString;
+    if (result == null) {
+      result = format(this);
+      this.aclString = result;
+    }
+    return result;
+  }
+
+  /**
+   * Get an ACL entry in scheme:id:permissions format, reusing the string of shared entries.
+   *
+   * @param acl ACL entry
+   * @return ACL entry string
+   */
+  public static String toACLString(ACL acl) {
+    if (acl instanceof ZKACLEntry) {
+      return ((ZKACLEntry) acl).toACLString();
+    }
+    return format(acl);
+  }
+
+  private static String format(ACL acl) {
+    String scheme = acl.getId().getScheme();
+    String id = acl.getId().getId();
+    StringBuilder builder = new StringBuilder(scheme.length() + id.length() + 7);
+    builder.append(scheme).append(':').append(id).append(':');
+    int perms = acl.getPerms();
+    if ((perms & ZooDefs.Perms.CREATE) != 0) {
+      builder.append('c');
+    }
+    if ((perms & ZooDefs.Perms.DELETE) != 0) {
+      builder.append('d');
+    }
+    if ((perms & ZooDefs.Perms.READ) != 0) {
+      builder.append('r');
+    }
+    if ((perms & ZooDefs.Perms.WRITE) != 0) {
+      builder.append('w');
+    }
+    if ((perms & ZooDefs.Perms.ADMIN) != 0) {
+      builder.append('a');
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Immutable ID of a shared entry.
+   */
+  private static final class SharedId extends Id {
+    SharedId(String scheme, String id) {
+      super(scheme, id);
+    }
+
+    @Override
+    public void setScheme(String scheme) {
+      throw new UnsupportedOperationException("Shared ACL entries are immutable");
+    }
+
+    @Override
+    public void setId(String id) {
+      throw new UnsupportedOperationException("Shared ACL entries are immutable");
+    }
+  }
+}
@@ -14,24 +14,24 @@ import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import org.apache.zookeeper.KeeperException;
-import org.apache.zookeeper.KeeperException.NoAuthException;
 import org.apache.zookeeper.client.FourLetterWordMain;
 import org.apache.zookeeper.common.X509Exception.SSLContextException;
-import org.apache.zookeeper.data.ACL;
 
 public class ZKAudit {
-  private ZKClient zk;
+  private ZKTreeSource zk;
   private ZKAuditSet zkAuditSet;
   private Hashtable<String, List<ZKQueryElement>> rootPathGroups;
   private Hashtable<String, List<ZKCheckElement>> rootPathCheckGroups;
   Hashtable<Integer, List<String>> queriesOutput = null;
   Hashtable<Integer, List<String>> checksOutput = null;
+  List<String> aclOverviewOutput = null;
+  private boolean queriesExecuted = false;
+  private boolean checksExecuted = false;
 
   /**
    * Get a set of unique root paths defined by the user for each query.
@@ -62,14 +62,14 @@ public class ZKAudit {
   /**
    * Construct ZKAudit object for audit reports generation.
    * 
-   * @param zk              ZooKeeper Client connected to a ZooKeeper Server
+   * @param zk              ZooKeeper client or offline source of the znode tree
    * @param auditConfigFile File that defines the queries to be executed for this
    *                        particular audit report
    * @throws JsonParseException
    * @throws JsonMappingException
    * @throws IOException
    */
-  public ZKAudit(ZKClient zk, File auditConfigFile) throws JsonParseException, JsonMappingException, IOException {
+  public ZKAudit(ZKTreeSource zk, File auditConfigFile) throws JsonParseException, JsonMappingException, IOException {
     this.zk = zk;
     this.rootPathGroups = new Hashtable<String, List<ZKQueryElement>>();
     this.rootPathCheckGroups = new Hashtable<String, List<ZKCheckElement>>();
@@ -89,11 +89,19 @@ public class ZKAudit {
    * @return LIst of znodes and their respective ACL
    * @throws KeeperException
    * @throws InterruptedException
+   * @throws NoSuchFieldException
+   * @throws SecurityException
+   * @throws IllegalArgumentException
+   * @throws IllegalAccessException
    */
-  public String getACLOverview() throws KeeperException, InterruptedException {
+  public String getACLOverview() throws KeeperException, InterruptedException, NoSuchFieldException, SecurityException,
+      IllegalArgumentException, IllegalAccessException {
+    if (this.aclOverviewOutput == null) {
+      this.executeAudit(false, false, true);
+    }
     List<String> output = new ArrayList<String>();
     output.add("Permission overview for ZooKeeper Tree\n");
-    this.getACLHeaderInner("/", output);
+    output.addAll(this.aclOverviewOutput);
     return String.join("\n", output) + "\n";
   }
 
@@ -108,6 +116,9 @@ public class ZKAudit {
    */
   public String getFourLetterWordOverview()
       throws KeeperException, InterruptedException, IOException, SSLContextException {
+    if (this.zk.getClient() == null) {
+      return "Four Letter Words overview is not available for offline sources\n";
+    }
     List<String> enabledOutput = new ArrayList<String>();
     List<String> disabledOutput = new ArrayList<String>();
     List<String> unknownOutput = new ArrayList<String>();
@@ -151,7 +162,8 @@ public class ZKAudit {
     int count = 0;
     while (true) {
       try {
-        return FourLetterWordMain.send4LetterWord(this.zk.getHost(), this.zk.getPort(), command, false, timeOut);
+        ZKClient client = this.zk.getClient();
+        return FourLetterWordMain.send4LetterWord(client.getHost(), client.getPort(), command, false, timeOut);
       } catch (IOException e) {
         // handle exception
         if (++count == tryNum)
@@ -161,48 +173,42 @@ public class ZKAudit {
   }
 
   /**
-   * Execute queries defined by the user in groups by their root path for optimal
-   * execution.
-   * 
-   * @throws JsonParseException
-   * @throws JsonMappingException
-   * @throws IOException
+   * Execute the requested audit sections in a single traversal of the union of their
+   * root paths. Sections already executed are not executed again.
+   *
+   * @param includeQueries     Execute the queries defined in the audit configuration
+   * @param includeChecks      Execute the checks defined in the audit configuration
+   * @param includeACLOverview Generate the ACL overview of the full znode tree
+   * @throws KeeperException
+   * @throws InterruptedException
    * @throws NoSuchFieldException
    * @throws SecurityException
    * @throws IllegalArgumentException
    * @throws IllegalAccessException
-   * @throws NoSuchMethodException
-   * @throws InvocationTargetException
-   * @throws KeeperException
-   * @throws InterruptedException
    */
-  private void executeRootGroupQueries() throws JsonParseException, JsonMappingException, IOException,
-      NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException, NoSuchMethodException,
-      InvocationTargetException, KeeperException, InterruptedException {
-
-    ZKTree zkTree = new ZKTree(zk);
-
-    this.groupQueriesByRootPath();
-
-    for (String rootPath : this.getRootPathKeys()) {
-      List<ZKQueryElement> currentBatch = this.rootPathGroups.get(rootPath);
-      // Execute one for each batch of rootPaths
-      zkTree.queryFind(rootPath, currentBatch, queriesOutput);
+  public void executeAudit(boolean includeQueries, boolean includeChecks, boolean includeACLOverview)
+      throws KeeperException, InterruptedException, NoSuchFieldException, SecurityException, IllegalArgumentException,
+      IllegalAccessException {
+    ZKAuditPlanner planner = new ZKAuditPlanner(this.zk);
+
+    if (includeQueries && this.zkAuditSet.getQueries() != null && !this.queriesExecuted) {
+      this.groupQueriesByRootPath();
+      planner.addQueries(this.zkAuditSet.getQueries(), this.queriesOutput);
+      this.queriesExecuted = true;
     }
-  }
 
-  private void executeRootGroupChecks() throws JsonParseException, JsonMappingException, IOException,
-      NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException, NoSuchMethodException,
-      InvocationTargetException, KeeperException, InterruptedException {
-
-    ZKCheck zkCheck = new ZKCheck(this.zk);
-    this.groupChecksByRootPath();
+    if (includeChecks && this.zkAuditSet.getChecks() != null && !this.checksExecuted) {
+      this.groupChecksByRootPath();
+      planner.addChecks(this.zkAuditSet.getChecks(), this.checksOutput);
+      this.checksExecuted = true;
+    }
 
-    for (String rootPath : this.getRootPathCheckKeys()) {
-      List<ZKCheckElement> currentBatch = this.rootPathCheckGroups.get(rootPath);
-      // Execute one for each batch of rootPaths
-      zkCheck.check(rootPath, currentBatch, checksOutput);
+    if (includeACLOverview && this.aclOverviewOutput == null) {
+      this.aclOverviewOutput = new ArrayList<String>();
+      planner.addACLOverview(this.aclOverviewOutput);
     }
+
+    planner.execute();
   }
 
   /**
@@ -229,7 +235,7 @@ public class ZKAudit {
 
     // Parse output buffers for queries
     if (zkAuditSet.getQueries() != null) {
-      this.executeRootGroupQueries();
+      this.executeAudit(true, false, false);
       for (ZKQueryElement queryElement : zkAuditSet.getQueries()) {
         outputBuf.append("\nQuery: " + queryElement.getName() + "\n");
         outputBuf.append("Root Path: " + queryElement.getRootPath() + "\n");
@@ -273,7 +279,7 @@ public class ZKAudit {
 
     // Parse output buffers for checks
     if (zkAuditSet.getChecks() != null) {
-      this.executeRootGroupChecks();
+      this.executeAudit(false, true, false);
       for (ZKCheckElement checkElement : zkAuditSet.getChecks()) {
         outputBuf.append("\nCheck: " + checkElement.getTitle() + "\n");
         outputBuf.append("Root Path: " + checkElement.getRootPath() + "\n");
@@ -316,52 +322,6 @@ public class ZKAudit {
     return outputBuf.toString();
   }
 
-  /**
-   * Recursively parse the znode tree for ACL overview generation.
-   * 
-   * @param path   Starting path for recursive traversal
-   * @param output Output buffer
-   * @throws KeeperException
-   * @throws InterruptedException
-   */
-  private void getACLHeaderInner(String path, List<String> output) throws KeeperException, InterruptedException {
-    List<ACL> acl;
-    List<String> children = null;
-    try {
-      acl = this.zk.getACL(path, null);
-      children = this.zk.getChildren(path, null);
-    } catch (NoAuthException e) {
-      output.add("Warning: No READ permission for " + path + ", skipping this subtree");
-      return;
-    }
-    // Add information for this znode in for path - ACL
-    StringBuffer aclOutput = new StringBuffer();
-    List<ACLAugment> aclAugmentList = ACLAugment.generateACLAugmentList(acl);
-
-    Iterator<ACLAugment> aclAugmentIterator = aclAugmentList.iterator();
-    while (aclAugmentIterator.hasNext()) {
-      ACLAugment aclAugment = aclAugmentIterator.next();
-      aclOutput.append(aclAugment.getStringFromACL());
-      if (aclAugmentIterator.hasNext()) {
-        aclOutput.append(", ");
-      }
-    }
-
-    output.add(path + " - " + aclOutput.toString());
-
-    Collections.sort(children);
-
-    if (path.equals("/")) {
-      path = "";
-    }
-
-    Iterator<String> iterator = children.iterator();
-    while (iterator.hasNext()) {
-      String child = iterator.next();
-      this.getACLHeaderInner(path + "/" + child, output);
-    }
-  }
-
   /**
    * Group queries based on their root path for optimal performance.
    * 
@@ -39,7 +39,7 @@ public class ZKAuditCli implements Runnable {
   File auditConfigFile;
 
   ZKConfig config;
-  ZKClient zk;
+  ZKTreeSource zk;
 
   @Override
   public void run() {
@@ -50,12 +50,15 @@ public class ZKAuditCli implements Runnable {
 
       config = new ZKConfig(parent.configFile);
 
-      try (ZKClient zk = new ZKClient(config)) {
+      try (ZKTreeSource zk = parent.openTreeSource(config)) {
         this.zk = zk;
         zkAudit = new ZKAudit(zk, this.auditConfigFile);
 
         ZKAuditSet.ZKPolicyReportSections sections = zkAudit.getZkAuditSet().getSections();
 
+        // Single traversal for all sections that walk the znode tree
+        zkAudit.executeAudit(sections.isQueryResults(), sections.isCheckResults(), sections.isAclOverview());
+
         if (sections.isGeneralInformation()) {
           outputString += this.addZKHeader();
           outputString += ZKPolicyDefs.TerminalConstants.sectionSeparator;
@@ -114,7 +117,12 @@ public class ZKAuditCli implements Runnable {
 
     headerOut += "Report results for file: " + auditConfigFile.getCanonicalPath() + "\n";
 
-    headerOut += "Connected to ZooKeeper server: " + this.zk.getHost() + ":" + this.zk.getPort() + "\n";
+    if (this.zk.getClient() != null) {
+      ZKClient client = this.zk.getClient();
+      headerOut += "Connected to ZooKeeper server: " + client.getHost() + ":" + client.getPort() + "\n";
+    } else {
+      headerOut += "Offline source: " + this.zk + "\n";
+    }
     return headerOut;
   }
 }
\ No newline at end of file
@@ -0,0 +1,442 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.NoAuthException;
+import org.apache.zookeeper.data.ACL;
+
+/**
+ * Execution planner that evaluates the queries, checks and ACL overview of an audit
+ * report in a single traversal of the znode tree.
+ *
+ * <p>Every consumer is attached to its root path. The planner walks the union of the
+ * requested root paths once, activating consumers when their root path is reached and
+ * passing the children, ACL and parent ACL of each znode to all active consumers.
+ * The output of each consumer is identical to the output of a dedicated traversal.</p>
+ */
+public class ZKAuditPlanner {
+  private static Logger logger = LogManager.getLogger(ZKAuditPlanner.class);
+
+  private ZKTreeSource zk;
+  private ZKDefaultQuery defaultQueries = new ZKDefaultQuery();
+  private TreeMap<String, List<Consumer>> pendingRoots = new TreeMap<String, List<Consumer>>();
+  private List<Pattern> checkPathPatterns = new ArrayList<Pattern>();
+  private List<ZKCompiledQuery> compiledQueries = new ArrayList<ZKCompiledQuery>();
+  private ZKPathPatternIndex checkPathIndex;
+  private String matchedPath;
+  private BitSet matchedChecks;
+  private ZKTraversal traversal;
+  private long visitedZnodes = 0;
+  private long prunedSubtrees = 0;
+
+  public ZKAuditPlanner(ZKTreeSource zk) {
+    this.zk = zk;
+  }
+
+  /**
+   * Get the number of znodes fetched during the last execution.
+   *
+   * @return Number of visited znodes
+   */
+  public long getVisitedZnodes() {
+    return this.visitedZnodes;
+  }
+
+  /**
+   * Get the number of subtrees skipped during the last execution because no consumer could
+   * match any of their znodes.
+   *
+   * @return Number of pruned subtrees
+   */
+  public long getPrunedSubtrees() {
+    return this.prunedSubtrees;
+  }
+
+  /**
+   * Register queries returning the list of matching znode paths.
+   *
+   * @param queryElements Queries to be executed, with their query implementation set
+   * @param queriesOutput Output buffers for each query
+   */
+  public void addQueries(List<ZKQueryElement> queryElements, Hashtable<Integer, List<String>> queriesOutput) {
+    for (ZKQueryElement queryElement : queryElements) {
+      List<String> output = queriesOutput.get(queryElement.hashCode());
+      if (this.isValidRootPath(queryElement.getRootPath(), output)) {
+        this.addConsumer(new QueryConsumer(queryElement, output));
+      }
+    }
+  }
+
+  /**
+   * Register checks of znode ACLs against ACL definitions.
+   *
+   * @param checkElements Checks to be executed
+   * @param checksOutput  Output buffers for each check
+   */
+  public void addChecks(List<ZKCheckElement> checkElements, Hashtable<Integer, List<String>> checksOutput) {
+    for (ZKCheckElement checkElement : checkElements) {
+      List<String> output = checksOutput.get(checkElement.hashCode());
+      if (this.isValidRootPath(checkElement.getRootPath(), output)) {
+        this.addConsumer(new CheckConsumer(checkElement, output));
+      } else {
+        checkElement.$status = false;
+      }
+    }
+  }
+
+  /**
+   * Register the generation of the path - ACL list for the full znode tree.
+   *
+   * @param output Output buffer for the ACL overview lines
+   */
+  public void addACLOverview(List<String> output) {
+    this.addConsumer(new ACLOverviewConsumer(output));
+  }
+
+  /**
+   * Walk the union of the registered root paths once, feeding every registered consumer.
+   *
+   * @throws KeeperException
+   * @throws InterruptedException
+   * @throws NoSuchFieldException
+   * @throws SecurityException
+   * @throws IllegalArgumentException
+   * @throws IllegalAccessException
+   */
+  public void execute() throws KeeperException, InterruptedException, NoSuchFieldException, SecurityException,
+      IllegalArgumentException, IllegalAccessException {
+    this.visitedZnodes = 0;
+    this.checkPathIndex = new ZKPathPatternIndex(this.checkPathPatterns);
+    this.prunedSubtrees = 0;
+    try (ZKTraversal traversal = new ZKTraversal(this.zk)) {
+      this.traversal = traversal;
+      traversal.setSubtreeFilter(this.createSubtreeFilter());
+      this.startPendingRoots(null);
+      this.prunedSubtrees = traversal.getPrunedCount();
+    } finally {
+      this.traversal = null;
+    }
+    logger.info("Audit traversal visited " + this.visitedZnodes + " znodes, pruned " + this.prunedSubtrees
+        + " subtrees");
+    this.compiledQueries.forEach(ZKCompiledQuery::logStatistics);
+    this.compiledQueries.clear();
+  }
+
+  /**
+   * Create the filter of the subtrees to be traversed. A subtree is traversed if it contains
+   * a root path or if a registered consumer may match one of its znodes.
+   *
+   * @return Predicate on the path of child znodes
+   */
+  private Predicate<String> createSubtreeFilter() {
+    TreeSet<String> rootPaths = new TreeSet<String>(this.pendingRoots.keySet());
+    List<Consumer> consumers = new ArrayList<Consumer>();
+    boolean hasChecks = false;
+    for (List<Consumer> rootConsumers : this.pendingRoots.values()) {
+      for (Consumer consumer : rootConsumers) {
+        if (consumer instanceof CheckConsumer) {
+          hasChecks = true;
+        } else {
+          consumers.add(consumer);
+        }
+      }
+    }
+    ZKPathPatternIndex checkIndex = hasChecks ? this.checkPathIndex : null;
+
+    return path -> {
+      String rootPath = rootPaths.ceiling(path + "/");
+      if (rootPaths.contains(path) || rootPath != null && rootPath.startsWith(path + "/")) {
+        return true;
+      }
+      if (checkIndex != null && checkIndex.mayMatchSubtree(path)) {
+        return true;
+      }
+      for (Consumer consumer : consumers) {
+        if (consumer.mayMatchSubtree(path)) {
+          return true;
+        }
+      }
+      return false;
+    };
+  }
+
+  private boolean isValidRootPath(String rootPath, List<String> output) {
+    try {
+      if (this.zk.exists(rootPath, null) == null) {
+        output.add("The path " + rootPath + " does not exist.");
+        return false;
+      }
+    } catch (IllegalArgumentException e) {
+      output.add("Invalid rootpath " + rootPath + " : " + e.getMessage());
+      return false;
+    } catch (KeeperException | InterruptedException e) {
+      output.add("The path " + rootPath + " could not be validated: " + e.getMessage());
+      return false;
+    }
+    return true;
+  }
+
+  private void addConsumer(Consumer consumer) {
+    List<Consumer> consumers = this.pendingRoots.get(consumer.rootPath);
+    if (consumers == null) {
+      consumers = new ArrayList<Consumer>();
+      this.pendingRoots.put(consumer.rootPath, consumers);
+    }
+    consumers.add(consumer);
+  }
+
+  /**
+   * Start walks for the outermost pending root paths under a znode, or for all of them if
+   * the znode path is null. Nested root paths are activated while walking.
+   *
+   * @param path Path of a znode whose subtree could not be walked
+   */
+  private void startPendingRoots(String path) throws KeeperException, InterruptedException, NoSuchFieldException,
+      SecurityException, IllegalArgumentException, IllegalAccessException {
+    List<String> roots = new ArrayList<String>();
+    for (String rootPath : this.pendingRoots.keySet()) {
+      if (path != null && !isDescendant(rootPath, path)) {
+        continue;
+      }
+      if (roots.isEmpty() || !isDescendant(rootPath, roots.get(roots.size() - 1))) {
+        roots.add(rootPath);
+      }
+    }
+
+    for (String rootPath : roots) {
+      this.walk(this.traversal.start(rootPath), null, new ArrayList<Consumer>());
+    }
+  }
+
+  private void walk(ZKTraversalNode node, List<ACL> parentACLList, List<Consumer> inherited)
+      throws KeeperException, InterruptedException, NoSuchFieldException, SecurityException, IllegalArgumentException,
+      IllegalAccessException {
+    String path = node.getPath();
+    List<Consumer> active = inherited;
+    List<Consumer> starting = this.pendingRoots.remove(path);
+    if (starting != null) {
+      active = new ArrayList<Consumer>(inherited);
+      active.addAll(starting);
+    }
+
+    this.visitedZnodes++;
+    List<ZKTraversalNode> children = null;
+    List<ACL> znodeACLList = null;
+    try {
+      children = node.getChildNodes();
+      znodeACLList = node.getACL();
+    } catch (NoAuthException e) {
+      logger.info("WARNING: No READ permission for " + path + ", skipping subtree");
+    }
+
+    List<Consumer> descending = new ArrayList<Consumer>(active.size());
+    for (Consumer consumer : active) {
+      List<ACL> consumerParentACL = consumer.rootPath.equals(path) ? null : parentACLList;
+      if (consumer.visit(path, znodeACLList, consumerParentACL, children != null)) {
+        descending.add(consumer);
+      }
+    }
+
+    if (children == null) {
+      // Consumers rooted under an unreadable znode start their own walk
+      this.startPendingRoots(path);
+      return;
+    }
+
+    if (descending.isEmpty() && !this.hasPendingRootsUnder(path)) {
+      return;
+    }
+
+    for (ZKTraversalNode child : children) {
+      this.walk(child, znodeACLList, descending);
+    }
+  }
+
+  /**
+   * Check whether a path matches the path pattern of a registered check. The path is
+   * matched against the patterns of all checks once and the result is shared by the
+   * check consumers visiting the same znode.
+   *
+   * @param checkIndex Registration index of the check
+   * @param path       Znode path
+   * @return True if the path matches the path pattern of the check
+   */
+  private boolean matchesCheckPath(int checkIndex, String path) {
+    if (!path.equals(this.matchedPath)) {
+      this.matchedChecks = this.checkPathIndex.match(path);
+      this.matchedPath = path;
+    }
+    return this.matchedChecks.get(checkIndex);
+  }
+
+  private boolean hasPendingRootsUnder(String path) {
+    String prefix = path.equals("/") ? "/" : path + "/";
+    String rootPath = this.pendingRoots.ceilingKey(prefix);
+    return rootPath != null && rootPath.startsWith(prefix);
+  }
+
+  private static boolean isDescendant(String path, String ancestor) {
+    if (ancestor.equals("/")) {
+      return true;
+    }
+    return path.startsWith(ancestor + "/");
+  }
+
+  /**
+   * Report element fed with the znodes of the subtree under its root path.
+   */
+  private abstract static class Consumer {
+    String rootPath;
+
+    Consumer(String rootPath) {
+      this.rootPath = rootPath;
+    }
+
+    /**
+     * Process a znode of the subtree.
+     *
+     * @param path             Znode path
+     * @param znodeACLList     Znode ACL or null if not readable
+     * @param parentACLList    Parent znode ACL or null for the root path
+     * @param childrenReadable Whether the children of the znode could be read
+     * @return True if the consumer needs the children of this znode
+     */
+    abstract boolean visit(String path, List<ACL> znodeACLList, List<ACL> parentACLList, boolean childrenReadable)
+        throws NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException;
+
+    /**
+     * Check whether the consumer may output a znode of a subtree, based on the path only.
+     * Called from the ZooKeeper event thread.
+     *
+     * @param path Subtree root path
+     * @return False if the consumer never outputs a znode of the subtree
+     */
+    boolean mayMatchSubtree(String path) {
+      return true;
+    }
+  }
+
+  /**
+   * Query consumer with find output, as produced by ZKTree.queryFind.
+   */
+  private class QueryConsumer extends Consumer {
+    private ZKCompiledQuery query;
+    private List<String> output;
+    private boolean parentYesChildNo;
+
+    QueryConsumer(ZKQueryElement queryElement, List<String> output) {
+      super(queryElement.getRootPath());
+      this.query = queryElement.compile();
+      ZKAuditPlanner.this.compiledQueries.add(this.query);
+      this.output = output;
+      this.parentYesChildNo = queryElement.getName().equals("parentYesChildNo");
+    }
+
+    @Override
+    boolean visit(String path, List<ACL> znodeACLList, List<ACL> parentACLList, boolean childrenReadable)
+        throws NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
+      if (!childrenReadable || znodeACLList == null) {
+        this.output.add("WARNING: No READ permission for " + path + ", skipping subtree");
+        return false;
+      }
+
+      if (this.parentYesChildNo) {
+        if (parentACLList != null && !this.query.query(znodeACLList, parentACLList, path, ZKAuditPlanner.this.zk)) {
+          this.output.add(path);
+        }
+      } else if (this.query.query(znodeACLList, null, path, ZKAuditPlanner.this.zk)) {
+        this.output.add(path);
+      }
+      return true;
+    }
+
+    @Override
+    boolean mayMatchSubtree(String path) {
+      return this.query.mayMatchSubtree(path);
+    }
+  }
+
+  /**
+   * Check consumer, as executed by ZKCheck.check.
+   */
+  private class CheckConsumer extends Consumer {
+    private ZKCheckElement checkElement;
+    private List<String> output;
+    private int checkIndex;
+    private ZKCompiledQuery checkQuery;
+
+    CheckConsumer(ZKCheckElement checkElement, List<String> output) {
+      super(checkElement.getRootPath());
+      this.checkElement = checkElement;
+      this.output = output;
+      this.checkIndex = ZKAuditPlanner.this.checkPathPatterns.size();
+      ZKAuditPlanner.this.checkPathPatterns.add(checkElement.getCompiledPathPattern());
+      ZKQuery query;
+      if (Boolean.TRUE.equals(checkElement.getNegate())) {
+        query = ZKAuditPlanner.this.defaultQueries.noSatisfyACL;
+      } else {
+        query = ZKAuditPlanner.this.defaultQueries.exactACL;
+      }
+      this.checkQuery = query.compile(checkElement.getAcls());
+      ZKAuditPlanner.this.compiledQueries.add(this.checkQuery);
+    }
+
+    @Override
+    boolean visit(String path, List<ACL> znodeACLList, List<ACL> parentACLList, boolean childrenReadable)
+        throws NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
+      if (ZKAuditPlanner.this.matchesCheckPath(this.checkIndex, path)) {
+        if (this.checkQuery.query(znodeACLList, null, path, ZKAuditPlanner.this.zk)) {
+          this.output.add(path + " : " + "PASS");
+        } else {
+          // Check if there was permission for this subtree
+          if (znodeACLList == null) {
+            this.output.add(path + " : " + "FAIL (No permission for subtree)");
+          } else {
+            this.output.add(path + " : " + "FAIL (actual: " + ACLAugment.generateACLStringList(znodeACLList) + ")");
+          }
+          this.checkElement.$status = false;
+        }
+      }
+      return childrenReadable;
+    }
+  }
+
+  /**
+   * Path - ACL overview consumer, as produced by ZKAudit.getACLOverview.
+   */
+  private static class ACLOverviewConsumer extends Consumer {
+    private List<String> output;
+
+    ACLOverviewConsumer(List<String> output) {
+      super("/");
+      this.output = output;
+    }
+
+    @Override
+    boolean visit(String path, List<ACL> znodeACLList, List<ACL> parentACLList, boolean childrenReadable) {
+      if (!childrenReadable || znodeACLList == null) {
+        this.output.add("Warning: No READ permission for " + path + ", skipping this subtree");
+        return false;
+      }
+      this.output.add(path + " - " + ACLAugment.generateACLStringList(znodeACLList));
+      return true;
+    }
+  }
+}
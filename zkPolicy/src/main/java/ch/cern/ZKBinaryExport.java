@@ -0,0 +1,411 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Id;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Compact binary export format.
+ *
+ * <p>The file starts with a magic number and a version, followed by one record per znode in
+ * pre-order. A znode record holds the last element of its path (the full path for the root),
+ * its stat, ACL, raw data and number of children, whose records follow. Integers are written
+ * as variable length quantities. Path elements, ACL schemes and ids, and whole ACL lists are
+ * written once and then referenced through tables that the writer and the reader fill in the
+ * same order. The file can be framed with gzip, which the reader detects.</p>
+ */
+public class ZKBinaryExport {
+  static final byte[] MAGIC = { 'Z', 'K', 'P', 'B' };
+  static final int VERSION = 1;
+  static final int TABLE_LIMIT = 1 << 20;
+
+  private static final int RECORD_NODE = 1;
+  private static final int RECORD_UNREADABLE = 2;
+
+  private ZKBinaryExport() {
+  }
+
+  /**
+   * Znode record read from a binary export.
+   */
+  public static class Node {
+    private String name;
+    private byte[] data;
+    private List<ACL> acl;
+    private Stat stat;
+    private int childCount;
+
+    /**
+     * Get the last element of the znode path, or the full path for the exported root.
+     *
+     * @return Znode name
+     */
+    public String getName() {
+      return this.name;
+    }
+
+    /**
+     * Get the znode data.
+     *
+     * @return Znode data, null if the znode had no data
+     */
+    public byte[] getData() {
+      return this.data;
+    }
+
+    /**
+     * Get the znode ACL. The returned list is shared by the znodes with the same ACL.
+     *
+     * @return ACL list
+     */
+    public List<ACL> getAcl() {
+      return this.acl;
+    }
+
+    public Stat getStat() {
+      return this.stat;
+    }
+
+    /**
+     * Get the number of children records following this record.
+     *
+     * @return Number of children, -1 if the children were not readable during export
+     */
+    public int getChildCount() {
+      return this.childCount;
+    }
+  }
+
+  /**
+   * Write a binary export file.
+   */
+  public static class Writer implements Closeable {
+    private DataOutputStream output;
+    private Map<String, Integer> strings = new HashMap<String, Integer>();
+    private Map<List<ACL>, Integer> aclLists = new HashMap<List<ACL>, Integer>();
+
+    /**
+     * Open a binary export file for writing.
+     *
+     * @param outputFile Output file path
+     * @param compress   Frame the file with gzip
+     * @throws IOException
+     */
+    public Writer(File outputFile, boolean compress) throws IOException {
+      OutputStream stream = new FileOutputStream(outputFile);
+      try {
+        if (compress) {
+          stream = new GZIPOutputStream(stream, 1 << 16);
+        }
+        this.output = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+        this.output.write(MAGIC);
+        this.writeVarLong(VERSION);
+      } catch (IOException e) {
+        stream.close();
+        throw e;
+      }
+    }
+
+    /**
+     * Write a znode record.
+     *
+     * @param name       Last element of the znode path, full path for the root
+     * @param data       Znode data
+     * @param acl        Znode ACL
+     * @param stat       Znode stat
+     * @param childCount Number of children records that will follow, -1 if not readable
+     * @throws IOException
+     */
+    public void writeNode(String name, byte[] data, List<ACL> acl, Stat stat, int childCount) throws IOException {
+      this.output.write(RECORD_NODE);
+      this.writeString(name);
+      this.writeStat(stat);
+      this.writeACL(acl);
+      if (data == null) {
+        this.writeVarLong(0);
+      } else {
+        this.writeVarLong(data.length + 1L);
+        this.output.write(data);
+      }
+      this.writeVarLong(childCount + 1L);
+    }
+
+    /**
+     * Write the record of a znode that could not be read.
+     *
+     * @throws IOException
+     */
+    public void writeUnreadableNode() throws IOException {
+      this.output.write(RECORD_UNREADABLE);
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.output.close();
+    }
+
+    private void writeStat(Stat stat) throws IOException {
+      this.writeSignedVarLong(stat.getCzxid());
+      this.writeSignedVarLong(stat.getMzxid());
+      this.writeSignedVarLong(stat.getCtime());
+      this.writeSignedVarLong(stat.getMtime());
+      this.writeSignedVarLong(stat.getVersion());
+      this.writeSignedVarLong(stat.getCversion());
+      this.writeSignedVarLong(stat.getAversion());
+      this.writeSignedVarLong(stat.getEphemeralOwner());
+      this.writeSignedVarLong(stat.getDataLength());
+      this.writeSignedVarLong(stat.getNumChildren());
+      this.writeSignedVarLong(stat.getPzxid());
+    }
+
+    /**
+     * Write a reference to a known ACL list, or 0 followed by the ACL entries.
+     */
+    private void writeACL(List<ACL> acl) throws IOException {
+      Integer index = this.aclLists.get(acl);
+      if (index != null) {
+        this.writeVarLong(index);
+        return;
+      }
+      this.writeVarLong(0);
+      this.writeVarLong(acl.size());
+      for (ACL entry : acl) {
+        this.writeVarLong(entry.getPerms());
+        this.writeString(entry.getId().getScheme());
+        this.writeString(entry.getId().getId());
+      }
+      if (this.aclLists.size() < TABLE_LIMIT) {
+        this.aclLists.put(new ArrayList<ACL>(acl), this.aclLists.size() + 1);
+      }
+    }
+
+    /**
+     * Write a reference to a known string, or 0 followed by the UTF-8 string.
+     */
+    private void writeString(String value) throws IOException {
+      Integer index = this.strings.get(value);
+      if (index != null) {
+        this.writeVarLong(index);
+        return;
+      }
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      this.writeVarLong(0);
+      this.writeVarLong(bytes.length);
+      this.output.write(bytes);
+      if (this.strings.size() < TABLE_LIMIT) {
+        this.strings.put(value, this.strings.size() + 1);
+      }
+    }
+
+    private void writeSignedVarLong(long value) throws IOException {
+      this.writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    private void writeVarLong(long value) throws IOException {
+      long remaining = value;
+      while ((remaining & ~0x7FL) != 0) {
+        this.output.write((int) ((remaining & 0x7F) | 0x80));
+        remaining >>>= 7;
+      }
+      this.output.write((int) remaining);
+    }
+  }
+
+  /**
+   * Read a binary export file, one znode record at a time.
+   */
+  public static class Reader implements Closeable {
+    private DataInputStream input;
+    private List<String> strings = new ArrayList<String>();
+    private List<List<ACL>> aclLists = new ArrayList<List<ACL>>();
+
+    /**
+     * Open a binary export file for reading.
+     *
+     * @param inputFile Binary export file, optionally gzip framed
+     * @throws IOException
+     */
+    public Reader(File inputFile) throws IOException {
+      this.input = new DataInputStream(open(inputFile));
+      try {
+        if (!hasMagic(this.input)) {
+          throw new IOException(inputFile + " is not a binary export file");
+        }
+        long version = this.readVarLong();
+        if (version != VERSION) {
+          throw new IOException("Unsupported binary export version " + version + " in " + inputFile);
+        }
+      } catch (IOException e) {
+        this.input.close();
+        throw e;
+      }
+    }
+
+    /**
+     * Check if a file is a binary export, plain or gzip framed.
+     *
+     * @param inputFile File to be checked
+     * @return True if the file is a binary export
+     * @throws IOException
+     */
+    public static boolean isBinaryExport(File inputFile) throws IOException {
+      try (DataInputStream stream = new DataInputStream(open(inputFile))) {
+        return hasMagic(stream);
+      }
+    }
+
+    /**
+     * Read the next znode record.
+     *
+     * @return Znode record or null if the znode was not readable during export
+     * @throws IOException
+     */
+    public Node readNode() throws IOException {
+      int record = this.input.read();
+      if (record == RECORD_UNREADABLE) {
+        return null;
+      } else if (record != RECORD_NODE) {
+        throw new IOException("Corrupted binary export, unexpected record type " + record);
+      }
+      Node node = new Node();
+      node.name = this.readString();
+      node.stat = this.readStat();
+      node.acl = this.readACL();
+      long dataLength = this.readVarLong();
+      if (dataLength > 0) {
+        node.data = new byte[(int) (dataLength - 1)];
+        this.input.readFully(node.data);
+      }
+      node.childCount = (int) (this.readVarLong() - 1);
+      return node;
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.input.close();
+    }
+
+    /**
+     * Open a file, decompressing it if it is gzip framed.
+     */
+    private static InputStream open(File inputFile) throws IOException {
+      InputStream stream = new BufferedInputStream(new FileInputStream(inputFile), 1 << 16);
+      stream.mark(2);
+      int first = stream.read();
+      int second = stream.read();
+      stream.reset();
+      if (first == (GZIPInputStream.GZIP_MAGIC & 0xFF) && second == (GZIPInputStream.GZIP_MAGIC >> 8)) {
+        try {
+          return new BufferedInputStream(new GZIPInputStream(stream, 1 << 16), 1 << 16);
+        } catch (IOException e) {
+          stream.close();
+          throw e;
+        }
+      }
+      return stream;
+    }
+
+    private static boolean hasMagic(DataInputStream stream) throws IOException {
+      byte[] magic = new byte[MAGIC.length];
+      try {
+        stream.readFully(magic);
+      } catch (EOFException e) {
+        return false;
+      }
+      return Arrays.equals(magic, MAGIC);
+    }
+
+    private Stat readStat() throws IOException {
+      Stat stat = new Stat();
+      stat.setCzxid(this.readSignedVarLong());
+      stat.setMzxid(this.readSignedVarLong());
+      stat.setCtime(this.readSignedVarLong());
+      stat.setMtime(this.readSignedVarLong());
+      stat.setVersion((int) this.readSignedVarLong());
+      stat.setCversion((int) this.readSignedVarLong());
+      stat.setAversion((int) this.readSignedVarLong());
+      stat.setEphemeralOwner(this.readSignedVarLong());
+      stat.setDataLength((int) this.readSignedVarLong());
+      stat.setNumChildren((int) this.readSignedVarLong());
+      stat.setPzxid(this.readSignedVarLong());
+      return stat;
+    }
+
+    private List<ACL> readACL() throws IOException {
+      int index = (int) this.readVarLong();
+      if (index > 0) {
+        return this.aclLists.get(index - 1);
+      }
+      int size = (int) this.readVarLong();
+      List<ACL> acl = new ArrayList<ACL>(size);
+      for (int i = 0; i < size; i++) {
+        int perms = (int) this.readVarLong();
+        String scheme = this.readString();
+        acl.add(new ACL(perms, new Id(scheme, this.readString())));
+      }
+      if (this.aclLists.size() < TABLE_LIMIT) {
+        this.aclLists.add(acl);
+      }
+      return acl;
+    }
+
+    private String readString() throws IOException {
+      int index = (int) this.readVarLong();
+      if (index > 0) {
+        return this.strings.get(index - 1);
+      }
+      byte[] bytes = new byte[(int) this.readVarLong()];
+      this.input.readFully(bytes);
+      String value = new String(bytes, StandardCharsets.UTF_8);
+      if (this.strings.size() < TABLE_LIMIT) {
+        this.strings.add(value);
+      }
+      return value;
+    }
+
+    private long readSignedVarLong() throws IOException {
+      long value = this.readVarLong();
+      return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long readVarLong() throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int current = this.input.readUnsignedByte();
+        value |= (long) (current & 0x7F) << shift;
+        if ((current & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IOException("Corrupted binary export, variable length integer too long");
+    }
+  }
+}
@@ -10,12 +10,11 @@ package ch.cern;
 
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.BitSet;
 import java.util.Hashtable;
 import java.util.List;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.KeeperException.NoAuthException;
@@ -26,11 +25,11 @@ import org.apache.zookeeper.data.ACL;
  * pattern) against a specific ACL definition.
  */
 public class ZKCheck {
-  private ZKClient zk;
+  private ZKTreeSource zk;
   private ZKDefaultQuery defaultQueries = new ZKDefaultQuery();
   private static Logger logger = LogManager.getLogger(ZKCheck.class);
 
-  public ZKCheck(ZKClient zk) {
+  public ZKCheck(ZKTreeSource zk) {
     this.zk = zk;
   }
 
@@ -78,63 +77,79 @@ public class ZKCheck {
     }
 
     if (checkElements.size() > 0) {
-      this.checkIntPreOrder(rootPath, checkElements, checksOutput);
+      List<ZKCompiledQuery> checkQueries = new ArrayList<ZKCompiledQuery>(checkElements.size());
+      List<Pattern> pathPatterns = new ArrayList<Pattern>(checkElements.size());
+      for (ZKCheckElement zkCheckElement : checkElements) {
+        checkQueries.add(this.compileCheckQuery(zkCheckElement));
+        pathPatterns.add(zkCheckElement.getCompiledPathPattern());
+      }
+      ZKPathPatternIndex pathIndex = new ZKPathPatternIndex(pathPatterns);
+      try (ZKTraversal traversal = new ZKTraversal(this.zk);
+          ZKSubtreeExecutor executor = ZKSubtreeExecutor.create(this.zk)) {
+        // Skip subtrees where no path pattern can match
+        traversal.setSubtreeFilter(pathIndex::mayMatchSubtree);
+        this.checkIntPreOrder(traversal.start(rootPath), checkElements, checkQueries, pathIndex, checksOutput,
+            executor);
+        logger.info("Check pruned " + traversal.getPrunedCount() + " subtrees that cannot match");
+      }
+      checkQueries.forEach(ZKCompiledQuery::logStatistics);
+    }
+  }
+
+  /**
+   * Compile the query executed on znodes matching the path pattern of a check.
+   *
+   * @param zkCheckElement Check element
+   * @return Exact ACL query, or no satisfy ACL query if the check is negated
+   */
+  private ZKCompiledQuery compileCheckQuery(ZKCheckElement zkCheckElement) {
+    ZKQuery checkQuery;
+    if (Boolean.TRUE.equals(zkCheckElement.getNegate())) {
+      checkQuery = defaultQueries.noSatisfyACL;
+    } else {
+      checkQuery = defaultQueries.exactACL;
     }
+    return checkQuery.compile(zkCheckElement.getAcls());
   }
 
-  private void checkIntPreOrder(String path, List<ZKCheckElement> checkElements,
-      Hashtable<Integer, List<String>> checksOutput) throws KeeperException, InterruptedException, NoSuchFieldException,
-      SecurityException, IllegalArgumentException, IllegalAccessException {
+  private void checkIntPreOrder(ZKTraversalNode node, List<ZKCheckElement> checkElements,
+      List<ZKCompiledQuery> checkQueries, ZKPathPatternIndex pathIndex, Hashtable<Integer, List<String>> checksOutput,
+      ZKSubtreeExecutor executor) throws KeeperException, InterruptedException {
 
-    List<String> children = null;
+    String path = node.getPath();
+    List<ZKTraversalNode> children = null;
     List<ACL> znodeACLList = null;
 
     try {
-      children = this.zk.getChildren(path, null);
-      znodeACLList = this.zk.getACL(path, null);
+      children = node.getChildNodes();
+      znodeACLList = node.getACL();
     } catch (NoAuthException e) {
       logger.info("WARNING: No READ permission for " + path + ", skipping subtree");
     }
 
-    for (ZKCheckElement zkCheckElement : checkElements) {
-      // First check if check element's path pattern satisfies the current one
-      Pattern pathPatternRegex = Pattern.compile(zkCheckElement.getPathPattern());
-      Matcher currentMatcher = pathPatternRegex.matcher(path);
-      if (currentMatcher.matches()) {
-        // If the path name matches check whether negate is enabled and execute query
-
-        ZKQuery checkQuery;
-        if (zkCheckElement.getNegate()) {
-          checkQuery = defaultQueries.noSatisfyACL;
-        } else {
-          checkQuery = defaultQueries.exactACL;
-        }
-
-        if (checkQuery.query(znodeACLList, null, path, zk, zkCheckElement.getAcls())) {
-          checksOutput.get(zkCheckElement.hashCode()).add(path + " : " + "PASS");
+    // Match the path against the path patterns of all checks at once
+    BitSet matchingChecks = pathIndex.match(path);
+    for (int i = matchingChecks.nextSetBit(0); i >= 0; i = matchingChecks.nextSetBit(i + 1)) {
+      ZKCheckElement zkCheckElement = checkElements.get(i);
+      // If the path name matches execute the query of the check
+      if (checkQueries.get(i).query(znodeACLList, null, path, zk)) {
+        checksOutput.get(zkCheckElement.hashCode()).add(path + " : " + "PASS");
+      } else {
+        // Check if there was permission for this subtree
+        if (znodeACLList == null) {
+          checksOutput.get(zkCheckElement.hashCode()).add(path + " : " + "FAIL (No permission for subtree)");
         } else {
-          // Check if there was permission for this subtree
-          if (znodeACLList == null) {
-            checksOutput.get(zkCheckElement.hashCode()).add(path + " : " + "FAIL (No permission for subtree)");
-          } else {
-            checksOutput.get(zkCheckElement.hashCode()).add(path + " : " + "FAIL (actual: " + ACLAugment.generateACLStringList(znodeACLList)+ ")");
-          }
-          zkCheckElement.$status = false;
+          checksOutput.get(zkCheckElement.hashCode()).add(path + " : " + "FAIL (actual: " + ACLAugment.generateACLStringList(znodeACLList)+ ")");
         }
+        zkCheckElement.$status = false;
       }
     }
 
-    if (path.equals("/")) {
-      path = "";
-    }
-
     if (children == null) {
       return;
     } else {
-      Collections.sort(children);
-      for (String child : children) {
-        this.checkIntPreOrder(path + "/" + child, checkElements, checksOutput);
-      }
+      executor.walkChildren(children, checksOutput, (child, isLast, output) -> this.checkIntPreOrder(child,
+          checkElements, checkQueries, pathIndex, output, executor));
     }
   }
 }
\ No newline at end of file
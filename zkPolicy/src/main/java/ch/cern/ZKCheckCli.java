@@ -53,7 +53,7 @@ public class ZKCheckCli implements Runnable {
     }
 
     if (config != null) {
-      try (ZKClient zk = new ZKClient(config)) {
+      try (ZKTreeSource zk = parent.openTreeSource(config)) {
         StringBuffer outputBuf = new StringBuffer();
 
         ZKCheckElement checkElement = new ZKCheckElement(null, this.rootPath, this.pathPattern, this.negate, this.checkACLs);
@@ -10,6 +10,7 @@ package ch.cern;
 
 import java.util.Iterator;
 import java.util.List;
+import java.util.regex.Pattern;
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.EqualsAndHashCode;
@@ -37,6 +38,24 @@ public class ZKCheckElement {
   @SuppressWarnings("checkstyle:membername")
   public boolean $status = true;
 
+  @SuppressWarnings("checkstyle:membername")
+  private Pattern $compiledPathPattern;
+
+  /**
+   * Get the compiled path pattern of the check. The pattern is compiled once and can be
+   * shared between threads.
+   *
+   * @return Compiled path pattern
+   */
+  public Pattern getCompiledPathPattern() {
+    Pattern compiled = this.$compiledPathPattern;
+    if (compiled == null || !compiled.pattern().equals(this.pathPattern)) {
+      compiled = Pattern.compile(this.pathPattern);
+      this.$compiledPathPattern = compiled;
+    }
+    return compiled;
+  }
+
   /**
    * Generate a human readable description of the check.
    * 
@@ -10,6 +10,7 @@ package ch.cern;
 
 import java.io.IOException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.zookeeper.WatchedEvent;
@@ -21,7 +22,7 @@ import org.apache.logging.log4j.Logger;
 /**
  * Class used to establish connectivity with ZooKeeper server.
  */
-public class ZKClient extends ZooKeeper {
+public class ZKClient extends ZooKeeper implements ZKTreeSource {
   private Logger logger = LogManager.getLogger(ZKClient.class.getName());
   private String host;
   private int port;
@@ -52,15 +53,9 @@ public class ZKClient extends ZooKeeper {
    * @throws IOException
    */
   public ZKClient(String connectString, int sessionTimeout) throws IOException {
-    super(connectString, sessionTimeout, new Watcher() {
-
-      @Override
-      public void process(WatchedEvent event) {
-
-      }
-    });
+    super(connectString, sessionTimeout, new ConnectionStateWatcher(connectString));
     logger.info("Connecting to {} ...", connectString);
-    waitUntilConnected(this);
+    waitUntilConnected(this, connectString);
     logger.info("Connection to {} complete", connectString);
   }
 
@@ -71,14 +66,9 @@ public class ZKClient extends ZooKeeper {
    * @throws IOException
    */
   public ZKClient(ZKConfig config) throws IOException {
-    super(config.getZkServers(), config.getTimeout(), new Watcher() {
-
-      @Override
-      public void process(WatchedEvent event) {
-      }
-    });
+    super(config.getZkServers(), config.getTimeout(), new ConnectionStateWatcher(config.getZkServers()));
     logger.debug("Connecting to one of {} ...", config.getZkServers());
-    waitUntilConnected(this);
+    waitUntilConnected(this, config.getZkServers());
     this.zkpConfig = config;
     // Get host and port connected from ZooKeeper tostring
     // Extract host and port
@@ -91,15 +81,64 @@ public class ZKClient extends ZooKeeper {
     logger.debug("Connection to {} complete", this.host + ":" + this.port);
   }
 
-  private static void waitUntilConnected(ZooKeeper zooKeeper) {
+  @Override
+  public ZKClient getClient() {
+    return this;
+  }
+
+  /**
+   * Wait until the client is connected, or until it can no longer connect because it was
+   * closed or its authentication failed.
+   */
+  private static void waitUntilConnected(ZooKeeper zooKeeper, String connectString) throws IOException {
     CountDownLatch connectedLatch = new CountDownLatch(1);
     Watcher watcher = new ZKPolicyUtils.ConnectedWatcher(connectedLatch);
     zooKeeper.register(watcher);
-    if (States.CONNECTING == zooKeeper.getState()) {
-      try {
-        connectedLatch.await();
-      } catch (InterruptedException e) {
-        throw new IllegalStateException(e);
+    try {
+      while (!zooKeeper.getState().isConnected()) {
+        if (!zooKeeper.getState().isAlive()) {
+          throw new IOException("Failed to connect to " + connectString + ": " + zooKeeper.getState());
+        }
+        connectedLatch.await(100, TimeUnit.MILLISECONDS);
+      }
+    } catch (InterruptedException e) {
+      throw new IllegalStateException(e);
+    } finally {
+      // Log the state changes of the session from now on
+      zooKeeper.register(new ConnectionStateWatcher(connectString));
+    }
+  }
+
+  /**
+   * Default watcher logging the changes of the connection state. The ZooKeeper client
+   * reconnects by itself after a disconnection, rotating through the servers of the connect
+   * string, while an expired session requires a new client.
+   */
+  static class ConnectionStateWatcher implements Watcher {
+    private static Logger stateLogger = LogManager.getLogger(ZKClient.class.getName());
+    private String connectString;
+
+    ConnectionStateWatcher(String connectString) {
+      this.connectString = connectString;
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+      if (event.getType() != Event.EventType.None) {
+        return;
+      }
+      switch (event.getState()) {
+        case Disconnected:
+          stateLogger.warn("Disconnected from {}, reconnecting", this.connectString);
+          break;
+        case SyncConnected:
+          stateLogger.info("Connected to {}", this.connectString);
+          break;
+        case Expired:
+          stateLogger.error("Session to {} expired", this.connectString);
+          break;
+        default:
+          stateLogger.debug("Connection to {}: {}", this.connectString, event.getState());
       }
     }
   }
@@ -0,0 +1,163 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Pool of ZooKeeper sessions reading the znode tree in parallel.
+ *
+ * <p>Session i is first connected to server i of the connection string, modulo the number of
+ * servers, so that the read load of a traversal is spread across the ensemble members instead
+ * of going through the request pipeline of a single server. A {@link ZKTraversal} over the pool
+ * hands out whole subtrees to the sessions, moving a subtree to the least loaded session when
+ * the session of its parent falls behind. The server of the new session is synced first, so
+ * that it is not behind the server the parent was read from.</p>
+ *
+ * <p>Each session survives connection losses and session expirations like a
+ * {@link ZKReconnectingSource}. A session opened again after an expiration connects to any
+ * server of the connection string.</p>
+ */
+public class ZKClientPool implements ZKTreeSource {
+  private static Logger logger = LogManager.getLogger(ZKClientPool.class);
+
+  private ZKConfig config;
+  private List<ZKTreeSource> sessions;
+
+  /**
+   * Open the sessions of the pool.
+   *
+   * @param config   Configuration instance
+   * @param poolSize Number of sessions
+   * @throws IOException
+   */
+  public ZKClientPool(ZKConfig config, int poolSize) throws IOException {
+    this.config = config;
+    List<String> servers = getServers(config.getZkServers());
+    List<ZKTreeSource> opened = new ArrayList<ZKTreeSource>(poolSize);
+    try {
+      for (int i = 0; i < Math.max(poolSize, 1); i++) {
+        ZKConfig memberConfig = withServers(config, servers.get(i % servers.size()));
+        logger.debug("Opening session {} of the pool to {}", i, memberConfig.getZkServers());
+        opened.add(new ZKReconnectingSource(config, new ZKClient(memberConfig)));
+      }
+    } catch (IOException | IllegalStateException e) {
+      closeAll(opened);
+      throw e;
+    }
+    this.sessions = Collections.unmodifiableList(opened);
+  }
+
+  /**
+   * Split a connection string into single server connection strings, each keeping the chroot
+   * suffix of the connection string.
+   *
+   * @param connectString Connection string in format host1:port1,...,hostN:portN[/chroot]
+   * @return Connection string of each server
+   */
+  static List<String> getServers(String connectString) {
+    String hosts = connectString;
+    String chroot = "";
+    int chrootIndex = connectString.indexOf('/');
+    if (chrootIndex >= 0) {
+      hosts = connectString.substring(0, chrootIndex);
+      chroot = connectString.substring(chrootIndex);
+    }
+    List<String> servers = new ArrayList<String>();
+    for (String host : hosts.split(",")) {
+      if (!host.trim().isEmpty()) {
+        servers.add(host.trim() + chroot);
+      }
+    }
+    return servers;
+  }
+
+  private static ZKConfig withServers(ZKConfig config, String zkServers) {
+    return new ZKConfig(zkServers, config.getTimeout(), config.getMatchColor(), config.getMismatchColor(),
+        config.getJaas(), config.getMaxInFlight(), config.getEnforceBatchSize(), config.getSessionPoolSize(),
+        config.getTraversalThreads(), config.getEvaluationThreads());
+  }
+
+  @Override
+  public ZKConfig getZKPConfig() {
+    return this.config;
+  }
+
+  @Override
+  public ZKClient getClient() {
+    return this.sessions.get(0).getClient();
+  }
+
+  @Override
+  public List<ZKTreeSource> getSessions() {
+    return this.sessions;
+  }
+
+  @Override
+  public Stat exists(String path, Watcher watcher) throws KeeperException, InterruptedException {
+    return this.sessions.get(0).exists(path, watcher);
+  }
+
+  @Override
+  public void getChildren(String path, boolean watch, AsyncCallback.Children2Callback cb, Object ctx) {
+    this.getSession(path).getChildren(path, watch, cb, ctx);
+  }
+
+  @Override
+  public void getACL(String path, Stat stat, AsyncCallback.ACLCallback cb, Object ctx) {
+    this.getSession(path).getACL(path, stat, cb, ctx);
+  }
+
+  @Override
+  public void getData(String path, boolean watch, AsyncCallback.DataCallback cb, Object ctx) {
+    this.getSession(path).getData(path, watch, cb, ctx);
+  }
+
+  @Override
+  public void sync(String path, AsyncCallback.VoidCallback cb, Object ctx) {
+    this.getSession(path).sync(path, cb, ctx);
+  }
+
+  @Override
+  public void close() throws InterruptedException {
+    closeAll(this.sessions);
+  }
+
+  @Override
+  public String toString() {
+    return this.sessions.toString();
+  }
+
+  /**
+   * Select the session of a request sent outside a traversal, every request for the same znode
+   * going through the same session.
+   */
+  private ZKTreeSource getSession(String path) {
+    return this.sessions.get(Math.floorMod(path.hashCode(), this.sessions.size()));
+  }
+
+  private static void closeAll(List<ZKTreeSource> sessions) {
+    for (ZKTreeSource session : sessions) {
+      try {
+        session.close();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
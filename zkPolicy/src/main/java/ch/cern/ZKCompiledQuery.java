@@ -0,0 +1,38 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.util.List;
+import org.apache.zookeeper.data.ACL;
+
+/**
+ * Query bound to its arguments, as returned by {@link ZKQuery#compile(List)}.
+ */
+@FunctionalInterface
+public interface ZKCompiledQuery {
+  boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKTreeSource zk);
+
+  /**
+   * Check whether the query may match a znode or one of its descendants, based on the
+   * path only. Used to prune subtrees of the traversal that can never match.
+   *
+   * @param path Znode path
+   * @return False if no znode of the subtree can match
+   */
+  default boolean mayMatchSubtree(String path) {
+    return true;
+  }
+
+  /**
+   * Log the statistics gathered while executing the query, at debug level. Called once the
+   * traversal executing the query is done.
+   */
+  default void logStatistics() {
+  }
+}
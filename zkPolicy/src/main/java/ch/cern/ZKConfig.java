@@ -38,6 +38,26 @@ public class ZKConfig {
   private String matchColor;
   private String mismatchColor;
   private String jaas;
+  private int maxInFlight = ZKPolicyDefs.Traversal.DEFAULT_MAX_IN_FLIGHT;
+  private int enforceBatchSize = ZKPolicyDefs.Enforcement.DEFAULT_BATCH_SIZE;
+  private int sessionPoolSize = ZKPolicyDefs.Traversal.DEFAULT_SESSION_POOL_SIZE;
+  private int traversalThreads = ZKPolicyDefs.Traversal.DEFAULT_THREADS;
+  private int evaluationThreads = ZKPolicyDefs.Traversal.DEFAULT_EVALUATION_THREADS;
+
+  /**
+   * Construct ZKConfig with the default traversal and enforcement tuning parameters.
+   *
+   * @param zkServers     Connection string in format host1:port1,...,hostN:portN
+   * @param timeout       Session timeout in milliseconds
+   * @param matchColor    Color for query matching znodes
+   * @param mismatchColor Color for query mismatching znodes
+   * @param jaas          JAAS configuration file path
+   */
+  protected ZKConfig(String zkServers, int timeout, String matchColor, String mismatchColor, String jaas) {
+    this(zkServers, timeout, matchColor, mismatchColor, jaas, ZKPolicyDefs.Traversal.DEFAULT_MAX_IN_FLIGHT,
+        ZKPolicyDefs.Enforcement.DEFAULT_BATCH_SIZE, ZKPolicyDefs.Traversal.DEFAULT_SESSION_POOL_SIZE,
+        ZKPolicyDefs.Traversal.DEFAULT_THREADS, ZKPolicyDefs.Traversal.DEFAULT_EVALUATION_THREADS);
+  }
 
   /**
    * Construct ZKConfig using configuration YAML file.
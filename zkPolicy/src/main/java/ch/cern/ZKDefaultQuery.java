@@ -10,12 +10,14 @@ package ch.cern;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.collections4.IterableUtils;
+import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.data.ACL;
 import ch.cern.ZKPolicyDefs.Queries;
 
@@ -60,28 +62,30 @@ public class ZKDefaultQuery {
       return Queries.EXACT_ACL_DESCRIPTION;
     }
 
-    public boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKClient zk, List<String> queryACLs) {
-      // If the two provided lists do not have the same length, we are sure that the
-      // query should fail
-      if (aclList == null || aclList.size() != queryACLs.size()) {
-        return false;
-      }
-
-      List<ACLAugment> aclListAugment = ACLAugment.generateACLAugmentList(aclList);
+    public boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKTreeSource zk, List<String> queryACLs) {
+      return this.compile(queryACLs).query(aclList, parentAclList, path, zk);
+    }
 
-      // Get sublist removing the first argument (name of query)
-      List<String> queryACLsSub = queryACLs;
-      List<ACLAugment> queryACLString = new ArrayList<ACLAugment>();
-      for (String queryACL : queryACLsSub) {
-        ACLAugment tempACLAugment = new ACLAugment(queryACL);
-        queryACLString.add(tempACLAugment);
+    @Override
+    public ZKCompiledQuery compile(List<String> queryACLs) {
+      List<ACL> queryACLList = new ArrayList<ACL>();
+      for (String queryACL : queryACLs) {
+        queryACLList.add(new ACLAugment(queryACL).getACL());
       }
 
-      if (aclListAugment.containsAll(queryACLString)) {
-        return true;
-      } else {
-        return false;
-      }
+      return (aclList, parentAclList, path, zk) -> {
+        // If the two provided lists do not have the same length, we are sure that the
+        // query should fail
+        if (aclList == null || aclList.size() != queryACLList.size()) {
+          return false;
+        }
+        return aclList.containsAll(queryACLList);
+      };
+    }
+
+    @Override
+    public boolean dependsOnACLOnly() {
+      return true;
     }
   }
 
@@ -93,15 +97,26 @@ public class ZKDefaultQuery {
       return Queries.NO_ACL_DESCRIPTION;
     }
 
-    public boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKClient zk, List<String> queryACLs) {
-      for (ACL aclElement : aclList) {
-        ACLAugment aclAugment = new ACLAugment(aclElement);
-        if (aclAugment.getScheme().equals("world") && aclAugment.getId().equals("anyone") && aclAugment.hasCreate()
-            && aclAugment.hasWrite() && aclAugment.hasAdmin() && aclAugment.hasRead() && aclAugment.hasDelete()) {
-          return true;
+    public boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKTreeSource zk, List<String> queryACLs) {
+      return this.compile(queryACLs).query(aclList, parentAclList, path, zk);
+    }
+
+    @Override
+    public ZKCompiledQuery compile(List<String> queryACLs) {
+      return (aclList, parentAclList, path, zk) -> {
+        for (ACL aclElement : aclList) {
+          if ((aclElement.getPerms() & ZooDefs.Perms.ALL) == ZooDefs.Perms.ALL
+              && aclElement.getId().getScheme().equals("world") && aclElement.getId().getId().equals("anyone")) {
+            return true;
+          }
         }
-      }
-      return false;
+        return false;
+      };
+    }
+
+    @Override
+    public boolean dependsOnACLOnly() {
+      return true;
     }
   }
 
@@ -113,19 +128,28 @@ public class ZKDefaultQuery {
       return Queries.SATISFY_ACL_DESCRIPTION;
     }
 
-    public boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKClient zk, List<String> queryACLs) {
-      List<ACLAugment> aclListAugment = ACLAugment.generateACLAugmentList(aclList);
+    public boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKTreeSource zk, List<String> queryACLs) {
+      return this.compile(queryACLs).query(aclList, parentAclList, path, zk);
+    }
 
-      // queryACL list
-      for (String queryACLString : queryACLs) {
-        ACLAugment temp = new ACLAugment(queryACLString);
-        if (IterableUtils.contains(aclListAugment, temp, new ACLAugmentSatisfyEquator())) {
-          continue;
-        } else {
-          return false;
+    @Override
+    public ZKCompiledQuery compile(List<String> queryACLs) {
+      List<ACLAugment> queryACLList = parseACLAugmentList(queryACLs);
+      ACLAugmentSatisfyEquator equator = new ACLAugmentSatisfyEquator();
+
+      return new SatisfyQuery("satisfyACL", equator, (aclList, parentAclList, path, zk) -> {
+        List<ACLAugment> aclListAugment = ACLAugment.generateACLAugmentList(aclList);
+        for (ACLAugment queryACL : queryACLList) {
+          if (!IterableUtils.contains(aclListAugment, queryACL, equator)) {
+            return false;
+          }
         }
-      }
+        return true;
+      });
+    }
 
+    @Override
+    public boolean dependsOnACLOnly() {
       return true;
     }
   }
@@ -138,24 +162,35 @@ public class ZKDefaultQuery {
       return Queries.NO_SATISFY_ACL_DESCRIPTION;
     }
 
-    public boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKClient zk, List<String> queryACLs) {
-      if (aclList == null) {
-        return false;
-      }
-      List<ACLAugment> aclListAugment = ACLAugment.generateACLAugmentList(aclList);
-
-      // queryACL list
-      for (String queryACLString : queryACLs) {
-        ACLAugment temp = new ACLAugment(queryACLString);
-        if (IterableUtils.contains(aclListAugment, temp, new ACLAugmentSatisfyEquator())) {
-          continue;
-        } else {
-          return true;
+    public boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKTreeSource zk, List<String> queryACLs) {
+      return this.compile(queryACLs).query(aclList, parentAclList, path, zk);
+    }
+
+    @Override
+    public ZKCompiledQuery compile(List<String> queryACLs) {
+      List<ACLAugment> queryACLList = parseACLAugmentList(queryACLs);
+      ACLAugmentSatisfyEquator equator = new ACLAugmentSatisfyEquator();
+
+      return new SatisfyQuery("noSatisfyACL", equator, (aclList, parentAclList, path, zk) -> {
+        if (aclList == null) {
+          return false;
         }
-      }
-      return false;
+        List<ACLAugment> aclListAugment = ACLAugment.generateACLAugmentList(aclList);
+        for (ACLAugment queryACL : queryACLList) {
+          if (!IterableUtils.contains(aclListAugment, queryACL, equator)) {
+            return true;
+          }
+        }
+        return false;
+      });
+    }
+
+    @Override
+    public boolean dependsOnACLOnly() {
+      return true;
     }
   }
+
   /**
    * Match znodes with ACL not equal to their parent's ACL.
    */
@@ -164,7 +199,7 @@ public class ZKDefaultQuery {
       return Queries.PARENT_YES_CHILD_NO_DESCRIPTION;
     }
 
-    public boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKClient zk, List<String> queryACLs) {
+    public boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKTreeSource zk, List<String> queryACLs) {
       List<ACLAugment> myACLsAugment = null;
       List<ACLAugment> parentACLsAugment = null;
       myACLsAugment = ACLAugment.generateACLAugmentList(aclList);
@@ -175,6 +210,11 @@ public class ZKDefaultQuery {
       }
       return false;
     }
+
+    @Override
+    public boolean dependsOnACLOnly() {
+      return true;
+    }
   }
 
   /**
@@ -185,7 +225,7 @@ public class ZKDefaultQuery {
       return Queries.DUPLICATE_ACL_DESCRIPTION;
     }
 
-    public boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKClient zk, List<String> queryACLs) {
+    public boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKTreeSource zk, List<String> queryACLs) {
       HashSet<ACLAugment> unique = new HashSet<ACLAugment>();
 
       for (ACL aclElement : aclList) {
@@ -196,6 +236,11 @@ public class ZKDefaultQuery {
       }
       return false;
     }
+
+    @Override
+    public boolean dependsOnACLOnly() {
+      return true;
+    }
   }
 
   /**
@@ -206,27 +251,14 @@ public class ZKDefaultQuery {
       return Queries.REGEX_MATCH_ACL_DESCRIPTION;
     }
 
-    public boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKClient zk,
+    public boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKTreeSource zk,
         List<String> queryACLRegexList) {
-      List<Pattern> queryPatternList = ZKPattern.createRegexPatternList(queryACLRegexList);
-
-      int queryListSentinel = queryPatternList.size();
-      for (ACL aclElement : aclList) {
-        ACLAugment currentACLAugment = new ACLAugment(aclElement);
-        String currentACLString = currentACLAugment.getStringFromACL();
+      return this.compile(queryACLRegexList).query(aclList, parentAclList, path, zk);
+    }
 
-        for (Pattern pattern : queryPatternList) {
-          Matcher currentMatcher = pattern.matcher(currentACLString);
-          if (currentMatcher.matches()) {
-            queryListSentinel--;
-          }
-          // If all regular expressions where matched, we can return true
-          if (queryListSentinel == 0) {
-            return true;
-          }
-        }
-      }
-      return false;
+    @Override
+    public ZKCompiledQuery compile(List<String> queryACLRegexList) {
+      return compileACLPatternQuery(ZKPattern.createRegexPatternList(queryACLRegexList));
     }
   }
 
@@ -238,27 +270,14 @@ public class ZKDefaultQuery {
       return Queries.GLOB_MATCH_ACL_DESCRIPTION;
     }
 
-    public boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKClient zk,
+    public boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKTreeSource zk,
         List<String> queryACLGlobList) {
-      List<Pattern> queryPatternList = ZKPattern.createGlobPatternList(queryACLGlobList);
-
-      int queryListSentinel = queryPatternList.size();
-      for (ACL aclElement : aclList) {
-        ACLAugment currentACLAugment = new ACLAugment(aclElement);
-        String currentACLString = currentACLAugment.getStringFromACL();
+      return this.compile(queryACLGlobList).query(aclList, parentAclList, path, zk);
+    }
 
-        for (Pattern pattern : queryPatternList) {
-          Matcher currentMatcher = pattern.matcher(currentACLString);
-          if (currentMatcher.matches()) {
-            queryListSentinel--;
-          }
-          // If all regular expressions where matched, we can return true
-          if (queryListSentinel == 0) {
-            return true;
-          }
-        }
-      }
-      return false;
+    @Override
+    public ZKCompiledQuery compile(List<String> queryACLGlobList) {
+      return compileACLPatternQuery(ZKPattern.createGlobPatternList(queryACLGlobList));
     }
   }
 
@@ -271,15 +290,14 @@ public class ZKDefaultQuery {
     }
 
     // We expect only one glob expression to check for path match
-    public boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKClient zk,
+    public boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKTreeSource zk,
         List<String> queryPathGlobList) {
-      List<Pattern> queryPatternList = ZKPattern.createGlobPatternList(queryPathGlobList);
+      return this.compile(queryPathGlobList).query(aclList, parentAclList, path, zk);
+    }
 
-      Matcher pathMatcher = queryPatternList.get(0).matcher(path);
-      if (pathMatcher.matches()) {
-        return true;
-      }
-      return false;
+    @Override
+    public ZKCompiledQuery compile(List<String> queryPathGlobList) {
+      return compilePathPatternQuery(ZKPattern.createGlobPatternList(queryPathGlobList));
     }
   }
 
@@ -292,15 +310,110 @@ public class ZKDefaultQuery {
     }
 
     // We do expect only one glob expression to check for path match
-    public boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKClient zk,
+    public boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKTreeSource zk,
         List<String> queryPathRegexList) {
-      List<Pattern> queryPatternList = ZKPattern.createRegexPatternList(queryPathRegexList);
-      Matcher pathMatcher = queryPatternList.get(0).matcher(path);
-      if (pathMatcher.matches()) {
-        return true;
+      return this.compile(queryPathRegexList).query(aclList, parentAclList, path, zk);
+    }
+
+    @Override
+    public ZKCompiledQuery compile(List<String> queryPathRegexList) {
+      return compilePathPatternQuery(ZKPattern.createRegexPatternList(queryPathRegexList));
+    }
+  }
+
+  private static List<ACLAugment> parseACLAugmentList(List<String> aclStringList) {
+    List<ACLAugment> aclAugmentList = new ArrayList<ACLAugment>();
+    for (String aclString : aclStringList) {
+      aclAugmentList.add(new ACLAugment(aclString));
+    }
+    return aclAugmentList;
+  }
+
+  /**
+   * Compile a query matching znodes with every pattern matching at least one ACL entry.
+   *
+   * @param queryPatternList Compiled ACL patterns
+   * @return Compiled query
+   */
+  private static ZKCompiledQuery compileACLPatternQuery(List<Pattern> queryPatternList) {
+    return (aclList, parentAclList, path, zk) -> {
+      int queryListSentinel = queryPatternList.size();
+      for (ACL aclElement : aclList) {
+        String currentACLString = ZKACLEntry.toACLString(aclElement);
+
+        for (Pattern pattern : queryPatternList) {
+          Matcher currentMatcher = pattern.matcher(currentACLString);
+          if (currentMatcher.matches()) {
+            queryListSentinel--;
+          }
+          // If all regular expressions where matched, we can return true
+          if (queryListSentinel == 0) {
+            return true;
+          }
+        }
       }
       return false;
+    };
+  }
+
+  /**
+   * Compile a query matching znodes with path matching the first pattern.
+   *
+   * @param queryPatternList Compiled path patterns
+   * @return Compiled query
+   */
+  private static ZKCompiledQuery compilePathPatternQuery(List<Pattern> queryPatternList) {
+    if (queryPatternList.isEmpty()) {
+      return (aclList, parentAclList, path, zk) -> queryPatternList.get(0).matcher(path).matches();
+    }
+    return new PathPatternQuery(queryPatternList.get(0));
+  }
+
+  /**
+   * Compiled path pattern query, pruning the subtrees whose paths can never match.
+   */
+  private static class PathPatternQuery implements ZKCompiledQuery {
+    private Pattern pattern;
+    private ZKPathPatternIndex index;
+
+    PathPatternQuery(Pattern pattern) {
+      this.pattern = pattern;
+      this.index = new ZKPathPatternIndex(Collections.singletonList(pattern));
+    }
+
+    @Override
+    public boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKTreeSource zk) {
+      return this.pattern.matcher(path).matches();
+    }
+
+    @Override
+    public boolean mayMatchSubtree(String path) {
+      return this.index.mayMatchSubtree(path);
     }
   }
 
-}
\ No newline at end of file
+  /**
+   * Compiled satisfaction query, logging the cache statistics of its equator.
+   */
+  private static class SatisfyQuery implements ZKCompiledQuery {
+    private String name;
+    private ACLAugmentSatisfyEquator equator;
+    private ZKCompiledQuery query;
+
+    SatisfyQuery(String name, ACLAugmentSatisfyEquator equator, ZKCompiledQuery query) {
+      this.name = name;
+      this.equator = equator;
+      this.query = query;
+    }
+
+    @Override
+    public boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKTreeSource zk) {
+      return this.query.query(aclList, parentAclList, path, zk);
+    }
+
+    @Override
+    public void logStatistics() {
+      this.equator.logStatistics(this.name);
+    }
+  }
+}
@@ -0,0 +1,244 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.DataTree;
+
+/**
+ * Offline source of the znode tree, made of a delta file written by an incremental export
+ * merged onto the source the delta was computed against.
+ *
+ * <p>The delta file holds the znodes whose stat changed since the baseline, without their data
+ * if it did not change, and the paths of the deleted subtrees. It is loaded in memory, the
+ * unchanged znodes and data being read from the baseline source.</p>
+ */
+public class ZKDeltaSource extends ZKOfflineSource {
+  private static Logger logger = LogManager.getLogger(ZKDeltaSource.class);
+
+  private ZKOfflineSource baseline;
+  private File deltaFile;
+  private Map<String, DeltaNode> nodes = new HashMap<String, DeltaNode>();
+  private Map<String, Set<String>> addedChildren = new HashMap<String, Set<String>>();
+  private Set<String> deleted = new HashSet<String>();
+
+  /**
+   * Merge a delta file onto its baseline.
+   *
+   * @param config    Configuration instance
+   * @param baseline  Source the delta was computed against, closed with this source
+   * @param deltaFile JSON or YAML file written by an incremental export
+   * @throws IOException
+   */
+  public ZKDeltaSource(ZKConfig config, ZKOfflineSource baseline, File deltaFile) throws IOException {
+    super(config);
+    this.baseline = baseline;
+    this.deltaFile = deltaFile;
+    try (JsonParser parser = ZKExportFileSource.createParser(deltaFile)) {
+      this.parseDelta(parser);
+    }
+    logger.info("Loaded {} changed znodes and {} deleted subtrees from delta file {}", this.nodes.size(),
+        this.deleted.size(), deltaFile);
+  }
+
+  /**
+   * Open an export file with the delta files of the following incremental exports merged onto it.
+   *
+   * @param config     Configuration instance
+   * @param exportFile File written by a full export
+   * @param deltaFiles Files written by incremental exports, in the order they were written
+   * @return Source of the merged znode tree
+   * @throws IOException
+   */
+  public static ZKOfflineSource open(ZKConfig config, File exportFile, List<File> deltaFiles) throws IOException {
+    ZKOfflineSource source = new ZKExportFileSource(config, exportFile);
+    if (deltaFiles != null) {
+      for (File deltaFile : deltaFiles) {
+        try {
+          source = new ZKDeltaSource(config, source, deltaFile);
+        } catch (IOException | RuntimeException e) {
+          closeQuietly(source);
+          throw e;
+        }
+      }
+    }
+    return source;
+  }
+
+  @Override
+  protected Stat getStat(String path) throws KeeperException {
+    this.checkNotDeleted(path);
+    DeltaNode node = this.nodes.get(path);
+    if (node != null) {
+      Stat stat = new Stat();
+      copyStat(node.stat, stat);
+      return stat;
+    }
+    return this.baseline.getStat(path);
+  }
+
+  @Override
+  protected List<String> getChildren(String path, Stat stat) throws KeeperException {
+    this.checkNotDeleted(path);
+    DeltaNode node = this.nodes.get(path);
+    Set<String> children = new TreeSet<String>();
+    try {
+      children.addAll(this.baseline.getChildren(path, stat));
+    } catch (KeeperException.NoNodeException e) {
+      if (node == null) {
+        throw e;
+      }
+    }
+    String prefix = path.equals("/") ? "/" : path + "/";
+    children.removeIf(child -> this.deleted.contains(prefix + child));
+    children.addAll(this.addedChildren.getOrDefault(path, new HashSet<String>()));
+    if (node != null) {
+      copyStat(node.stat, stat);
+    }
+    return new ArrayList<String>(children);
+  }
+
+  @Override
+  protected List<ACL> getACL(String path, Stat stat) throws KeeperException {
+    this.checkNotDeleted(path);
+    DeltaNode node = this.nodes.get(path);
+    if (node == null) {
+      return this.baseline.getACL(path, stat);
+    }
+    copyStat(node.stat, stat);
+    return new ArrayList<ACL>(node.acl);
+  }
+
+  @Override
+  protected byte[] getData(String path, Stat stat) throws KeeperException {
+    this.checkNotDeleted(path);
+    DeltaNode node = this.nodes.get(path);
+    if (node == null) {
+      return this.baseline.getData(path, stat);
+    }
+    byte[] data = node.dataChanged ? node.data : this.baseline.getData(path, null);
+    copyStat(node.stat, stat);
+    return data;
+  }
+
+  @Override
+  protected void release() {
+    closeQuietly(this.baseline);
+  }
+
+  @Override
+  public String toString() {
+    return this.baseline + " + " + this.deltaFile;
+  }
+
+  private static void closeQuietly(ZKOfflineSource source) {
+    try {
+      source.close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void copyStat(Stat from, Stat to) {
+    if (to != null) {
+      DataTree.copyStat(from, to);
+    }
+  }
+
+  /**
+   * Fail with NoNode if the znode or one of its ancestors was deleted.
+   */
+  private void checkNotDeleted(String path) throws KeeperException {
+    if (this.deleted.isEmpty()) {
+      return;
+    }
+    String current = path;
+    while (current.length() > 1) {
+      if (this.deleted.contains(current)) {
+        throw KeeperException.create(KeeperException.Code.NONODE, path);
+      }
+      current = current.substring(0, Math.max(current.lastIndexOf('/'), 1));
+    }
+  }
+
+  private void parseDelta(JsonParser parser) throws IOException {
+    Map<List<ACL>, List<ACL>> aclLists = new HashMap<List<ACL>, List<ACL>>();
+    if (parser.nextToken() != JsonToken.START_OBJECT) {
+      throw new IOException(this.deltaFile + " is not a delta file");
+    }
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      parser.nextToken();
+      if (field.equals("nodes") && parser.currentToken() == JsonToken.START_ARRAY) {
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+          this.parseNode(parser, aclLists);
+        }
+      } else if (field.equals("deleted") && parser.currentToken() == JsonToken.START_ARRAY) {
+        while (parser.nextToken() == JsonToken.VALUE_STRING) {
+          this.deleted.add(parser.getText());
+        }
+      } else {
+        parser.skipChildren();
+      }
+    }
+  }
+
+  private void parseNode(JsonParser parser, Map<List<ACL>, List<ACL>> aclLists) throws IOException {
+    DeltaNode node = new DeltaNode();
+    String path = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      JsonToken value = parser.nextToken();
+      if (field.equals("path")) {
+        path = parser.getText();
+      } else if (field.equals("data")) {
+        node.dataChanged = true;
+        node.data = value == JsonToken.VALUE_NULL ? null : ZKExportFileSource.parseData(parser);
+      } else if (field.equals("acl") && value == JsonToken.START_ARRAY) {
+        node.acl = ZKExportFileSource.parseACL(parser, aclLists);
+      } else if (field.equals("stat") && value == JsonToken.START_OBJECT) {
+        node.stat = ZKExportFileSource.parseStat(parser);
+      } else {
+        parser.skipChildren();
+      }
+    }
+    if (path == null || node.acl == null || node.stat == null) {
+      throw new IOException("Incomplete znode in delta file " + this.deltaFile);
+    }
+
+    this.nodes.put(path, node);
+    if (!path.equals("/")) {
+      int separator = path.lastIndexOf('/');
+      String parent = separator == 0 ? "/" : path.substring(0, separator);
+      this.addedChildren.computeIfAbsent(parent, key -> new HashSet<String>()).add(path.substring(separator + 1));
+    }
+  }
+
+  private static class DeltaNode {
+    private byte[] data;
+    private boolean dataChanged = false;
+    private List<ACL> acl;
+    private Stat stat;
+  }
+}
@@ -9,10 +9,12 @@
 package ch.cern;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.data.ACL;
 
@@ -20,16 +22,51 @@ public class ZKEnforce {
   private ZKClient zk;
   private ZKDefaultQuery zkDefaultQuery = new ZKDefaultQuery();
   private ZKRollbackSet rollbackSet = new ZKRollbackSet();
+  private File rollbackStateFile = null;
+  private boolean compareAndSet = false;
+  private ZKEnforceCheckpoint checkpoint = null;
+  private ZKRollbackJournal journal = null;
+  private int uncheckpointedCount = 0;
+  private long lastCheckpoint = 0;
+  private static Logger logger = LogManager.getLogger(ZKEnforce.class);
 
   public ZKEnforce(ZKClient zk) {
     this.zk = zk;
   }
 
+  /**
+   * Construct ZKEnforce journaling the pre-enforce ACL of each altered znode to a rollback
+   * state file. Successive enforcements with the same file append to it.
+   *
+   * @param zk                ZooKeeper client
+   * @param rollbackStateFile Rollback state file
+   */
   public ZKEnforce(ZKClient zk, File rollbackStateFile) {
     this.zk = zk;
+    this.rollbackStateFile = rollbackStateFile;
     this.rollbackSet.setOutputFile(rollbackStateFile);
   }
 
+  /**
+   * Enable compare-and-set enforcement. ACLs are set only if they were not modified since
+   * they were read, otherwise the query is re-evaluated on the current ACL.
+   *
+   * @param compareAndSet Use the ACL version read along with the ACL when setting the new ACL
+   */
+  public void setCompareAndSet(boolean compareAndSet) {
+    this.compareAndSet = compareAndSet;
+  }
+
+  /**
+   * Record the progress of the enforcement in a checkpoint, and skip the policies and znodes
+   * the checkpoint records as processed. Requires a rollback state file.
+   *
+   * @param checkpoint Checkpoint of the enforcement
+   */
+  public void setCheckpoint(ZKEnforceCheckpoint checkpoint) {
+    this.checkpoint = checkpoint;
+  }
+
   /**
    * Execute the query in dry-run mode returning the znodes to be altered from
    * normal execution.
@@ -54,8 +91,13 @@ public class ZKEnforce {
       return;
     }
     ZKDefaultQuery zkDefaultQuery = new ZKDefaultQuery();
-    ZKQuery query = zkDefaultQuery.getValueOf(queryElement.getName());
-    enforceInnerDry(queryElement.getRootPath(), query, queryElement.getArgs());
+    ZKCompiledQuery query = zkDefaultQuery.getValueOf(queryElement.getName()).compile(queryElement.getArgs());
+    try (ZKTraversal traversal = new ZKTraversal(this.zk)) {
+      traversal.setSubtreeFilter(query::mayMatchSubtree);
+      enforceInnerDry(traversal.start(queryElement.getRootPath()), query);
+      logger.info("Enforce pruned " + traversal.getPrunedCount() + " subtrees that cannot match");
+    }
+    query.logStatistics();
   }
 
   /**
@@ -70,10 +112,11 @@ public class ZKEnforce {
    * @throws InterruptedException
    * @throws KeeperException
    * @throws NoSuchFieldException
+   * @throws IOException               Failure to journal the rollback state
    */
   public void enforce(ZKEnforcePolicyElement policy)
       throws NoSuchMethodException, SecurityException, IllegalAccessException, IllegalArgumentException,
-      InvocationTargetException, InterruptedException, KeeperException, NoSuchFieldException {
+      InvocationTargetException, InterruptedException, KeeperException, NoSuchFieldException, IOException {
 
     ZKQueryElement queryElement = policy.getQuery();
     if (this.zk.exists(queryElement.getRootPath(), null) == null) {
@@ -84,76 +127,193 @@ public class ZKEnforce {
     for (String policyACLString : policy.getAcls()) {
       policiesACL.add(new ACLAugment(policyACLString).getACL());
     }
-    ZKQuery query = this.zkDefaultQuery.getValueOf(queryElement.getName());
-    enforceInner(policiesACL, queryElement.getRootPath(), query, queryElement.getArgs(), policy.isAppend());
-    this.rollbackSet.exportToYAML();
+    if (this.checkpoint != null) {
+      String fingerprint = ZKEnforceCheckpoint.fingerprint(policy);
+      if (this.checkpoint.skipCompleted(fingerprint)) {
+        System.out.println("Skipping policy completed before the interruption: " + queryElement.getName() + " on "
+            + queryElement.getRootPath());
+        return;
+      }
+      this.checkpoint.begin(fingerprint, this.rollbackStateFile);
+    }
+    ZKCompiledQuery query = this.zkDefaultQuery.getValueOf(queryElement.getName()).compile(queryElement.getArgs());
+    ZKEnforceBatcher batcher = new ZKEnforceBatcher(this.zk, this.rollbackSet, this.getBatchSize());
+    if (this.compareAndSet) {
+      batcher.setReevaluator(new ZKEnforceBatcher.ACLReevaluator() {
+        @Override
+        public List<ACL> reevaluate(String path, List<ACL> currentACL) {
+          if (!query.query(currentACL, null, path, ZKEnforce.this.zk)) {
+            return null;
+          }
+          return ZKEnforce.generateNewACL(policiesACL, currentACL, policy.isAppend());
+        }
+      });
+    }
+    this.journal = this.openJournal();
+    this.rollbackSet.setJournal(this.journal);
+    this.uncheckpointedCount = 0;
+    this.lastCheckpoint = System.currentTimeMillis();
+    try (ZKTraversal traversal = new ZKTraversal(this.zk)) {
+      traversal.setSubtreeFilter(path -> !this.isSubtreeProcessed(path) && query.mayMatchSubtree(path));
+      enforceInner(policiesACL, traversal.start(queryElement.getRootPath()), query, policy.isAppend(), batcher);
+      logger.info("Enforce pruned " + traversal.getPrunedCount() + " subtrees that cannot match or were processed");
+      query.logStatistics();
+      if (this.checkpoint != null) {
+        batcher.flush();
+        this.syncJournal();
+        this.checkpoint.complete();
+      }
+    } finally {
+      try {
+        // Wait for submitted batches so that their rollback entries are journaled
+        batcher.flush();
+      } finally {
+        this.rollbackSet.setJournal(null);
+        if (this.journal != null) {
+          this.journal.close();
+          this.journal = null;
+        }
+      }
+    }
   }
 
-  private void enforceInnerDry(String path, ZKQuery query, List<String> queryACLs)
+  private void enforceInnerDry(ZKTraversalNode node, ZKCompiledQuery query)
       throws InterruptedException, KeeperException {
     // Apply regex to path
+    String path = node.getPath();
     List<ACL> znodeACLList = null;
-    List<String> children = null;
+    List<ZKTraversalNode> children = null;
 
     // If the current user does not have READ permission for this znode, he cannot
     // getACL or ls so just skip it
     try {
-      znodeACLList = this.zk.getACL(path, null);
-      children = this.zk.getChildren(path, null);
+      znodeACLList = node.getACL();
+      children = node.getChildNodes();
     } catch (KeeperException e) {
       System.out.println("WARNING: No READ permission for " + path + ", skipping subtree");
       return;
     }
 
-    if (query.query(znodeACLList, null, path, zk, queryACLs)) {
+    if (query.query(znodeACLList, null, path, zk)) {
       System.out.println(path);
     }
 
-    if (path.equals("/")) {
-      path = "";
+    for (ZKTraversalNode child : children) {
+      this.enforceInnerDry(child, query);
     }
-    Collections.sort(children);
-    for (String child : children) {
-      this.enforceInnerDry(path + "/" + child, query, queryACLs);
+  }
+
+  private int getBatchSize() {
+    if (this.zk.getZKPConfig() == null) {
+      return ZKPolicyDefs.Enforcement.DEFAULT_BATCH_SIZE;
     }
+    return this.zk.getZKPConfig().getEnforceBatchSize();
   }
 
-  private void enforceInner(List<ACL> policies, String path, ZKQuery query, List<String> queryACLs, boolean append)
-      throws KeeperException, InterruptedException {
+  /**
+   * Generate the ACL to be set on a znode matching the policy query.
+   *
+   * @param policies     Policy ACL
+   * @param znodeACLList Current ACL of the znode
+   * @param append       Append the policy ACL to the current ACL instead of replacing it
+   * @return New ACL of the znode
+   */
+  static List<ACL> generateNewACL(List<ACL> policies, List<ACL> znodeACLList, boolean append) {
+    List<ACL> newACLList = new ArrayList<ACL>();
+    if (append) {
+      newACLList.addAll(znodeACLList);
+    }
+
+    for (ACL policyACL : policies) {
+      newACLList.add(policyACL);
+    }
+    return newACLList;
+  }
+
+  private void enforceInner(List<ACL> policies, ZKTraversalNode node, ZKCompiledQuery query, boolean append,
+      ZKEnforceBatcher batcher) throws KeeperException, InterruptedException, IOException {
     // Apply regex to path
+    String path = node.getPath();
     List<ACL> znodeACLList = null;
-    List<String> children = null;
-    List<ACL> newACLList = new ArrayList<ACL>();
+    List<ZKTraversalNode> children = null;
 
     // If the current user does not have READ permission for this znode, he cannot
     // getACL or ls so just skip it
     try {
-      znodeACLList = this.zk.getACL(path, null);
-      children = this.zk.getChildren(path, null);
+      znodeACLList = node.getACL();
+      children = node.getChildNodes();
     } catch (KeeperException e) {
       System.out.println("WARNING: No READ permission for " + path + ", skipping subtree");
       return;
     }
 
-    if (query.query(znodeACLList, null, path, zk, queryACLs)) {
-      if (append) {
-        newACLList.addAll(znodeACLList);
-      }
+    boolean processed = this.checkpoint != null && this.checkpoint.isProcessed(path);
+    if (!processed && query.query(znodeACLList, null, path, zk)) {
+      List<ACL> newACLList = generateNewACL(policies, znodeACLList, append);
+      int aclVersion = this.compareAndSet ? node.getACLVersion() : -1;
+      batcher.add(path, znodeACLList, newACLList, aclVersion);
+    }
+    this.saveCheckpoint(path, batcher);
 
-      for (ACL policyACL : policies) {
-        newACLList.add(policyACL);
-      }
-      // get here -P acls to add
-      this.zk.setACL(path, newACLList, -1);
-      rollbackSet.getElements().add(new ZKRollbackElement(path, znodeACLList));
+    for (ZKTraversalNode child : children) {
+      this.enforceInner(policies, child, query, append, batcher);
+    }
+  }
+
+  private boolean isSubtreeProcessed(String path) {
+    return this.checkpoint != null && this.checkpoint.isSubtreeProcessed(path);
+  }
+
+  /**
+   * Checkpoint the enforcement after a processed znode, every
+   * {@link ZKPolicyDefs.Enforcement#CHECKPOINT_INTERVAL} znodes or
+   * {@link ZKPolicyDefs.Enforcement#CHECKPOINT_INTERVAL_MS} milliseconds.
+   *
+   * @param path    Path of the processed znode
+   * @param batcher Batcher the znode operation was added to
+   * @throws InterruptedException
+   * @throws IOException
+   */
+  private void saveCheckpoint(String path, ZKEnforceBatcher batcher) throws InterruptedException, IOException {
+    if (this.checkpoint == null || !this.checkpoint.isResumeLimitPassed(path)) {
+      return;
+    }
+    this.uncheckpointedCount++;
+    if (this.uncheckpointedCount < ZKPolicyDefs.Enforcement.CHECKPOINT_INTERVAL
+        && System.currentTimeMillis() - this.lastCheckpoint < ZKPolicyDefs.Enforcement.CHECKPOINT_INTERVAL_MS) {
+      return;
+    }
+    // The path is recorded once every operation queued up to it is committed and journaled
+    batcher.flush();
+    this.syncJournal();
+    this.checkpoint.save(path, this.journal == null ? 0 : this.journal.getPosition());
+    this.uncheckpointedCount = 0;
+    this.lastCheckpoint = System.currentTimeMillis();
+  }
+
+  private void syncJournal() throws IOException {
+    if (this.journal != null) {
+      this.journal.sync();
     }
+  }
 
-    if (path.equals("/")) {
-      path = "";
+  /**
+   * Open the rollback journal. A file that cannot be written is reported and the rollback
+   * state is then only kept in memory, without aborting the enforcement. When resuming, the
+   * entry cut by the interruption is removed by {@link ZKRollbackJournal} before the entries
+   * of the resumed run are appended; the complete entries after the checkpoint are kept, as
+   * their ACLs were applied.
+   */
+  private ZKRollbackJournal openJournal() {
+    if (this.rollbackStateFile == null) {
+      return null;
     }
-    Collections.sort(children);
-    for (String child : children) {
-      this.enforceInner(policies, path + "/" + child, query, queryACLs, append);
+    try {
+      return new ZKRollbackJournal(this.rollbackStateFile);
+    } catch (IOException e) {
+      System.out.println(e.toString());
+      logger.error("Exception occurred!", e);
+      return null;
     }
   }
 }
\ No newline at end of file
@@ -0,0 +1,317 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Groups the setACL operations of an enforcement into batches of asynchronous requests.
+ *
+ * <p>ZooKeeper multi transactions do not support setACL operations, so each batch is sent as
+ * a pipeline of asynchronous setACL requests, keeping a bounded number of batches in flight
+ * while the znode tree is still being traversed. Rollback entries of a batch are added to the
+ * rollback set, or appended to its journal, once all its requests have returned, with the ACL
+ * version set by the enforcement so that a rollback can detect later modifications. The
+ * journal is synced to disk after each batch. Operations
+ * that failed because of a connection problem are retried one by one, so that a failing
+ * znode does not prevent the enforcement on the rest of the batch.</p>
+ *
+ * <p>Operations added with an ACL version are compare-and-set updates. If the ACL of the znode
+ * was modified after it was read, the ACL is read again and passed to the reevaluator, which
+ * decides whether the znode still needs to be updated and computes the new ACL.</p>
+ */
+public class ZKEnforceBatcher {
+  private ZKClient zk;
+  private ZKRollbackSet rollbackSet;
+  private int batchSize;
+  private int maxBatchesInFlight;
+  private Semaphore inFlight;
+  private List<BatchEntry> currentBatch = new ArrayList<BatchEntry>();
+  private ConcurrentLinkedQueue<List<BatchEntry>> results = new ConcurrentLinkedQueue<List<BatchEntry>>();
+  private long enforcedCount = 0;
+  private long failedCount = 0;
+  private ACLReevaluator reevaluator = null;
+
+  /**
+   * Re-evaluation of a compare-and-set update whose znode ACL was concurrently modified.
+   */
+  public interface ACLReevaluator {
+    /**
+     * Compute the ACL to set based on the current ACL of the znode.
+     *
+     * @param path       Znode path
+     * @param currentACL Current ACL of the znode
+     * @return New ACL or null if the znode must not be updated anymore
+     */
+    List<ACL> reevaluate(String path, List<ACL> currentACL);
+  }
+
+  /**
+   * Create a batcher recording committed operations in the rollback set.
+   *
+   * @param zk          ZooKeeper client used for the setACL requests
+   * @param rollbackSet Rollback set to add the pre-enforce ACL of committed znodes to
+   * @param batchSize   Maximum number of setACL operations per batch
+   */
+  public ZKEnforceBatcher(ZKClient zk, ZKRollbackSet rollbackSet, int batchSize) {
+    if (batchSize < 1) {
+      batchSize = ZKPolicyDefs.Enforcement.DEFAULT_BATCH_SIZE;
+    }
+    this.zk = zk;
+    this.rollbackSet = rollbackSet;
+    this.batchSize = batchSize;
+    this.maxBatchesInFlight = ZKPolicyDefs.Enforcement.MAX_BATCHES_IN_FLIGHT;
+    this.inFlight = new Semaphore(this.maxBatchesInFlight);
+  }
+
+  /**
+   * Get the number of znodes whose ACL was successfully set.
+   *
+   * @return Number of enforced znodes
+   */
+  public long getEnforcedCount() {
+    return this.enforcedCount;
+  }
+
+  /**
+   * Get the number of znodes whose ACL could not be set.
+   *
+   * @return Number of failed znodes
+   */
+  public long getFailedCount() {
+    return this.failedCount;
+  }
+
+  /**
+   * Set the reevaluator of compare-and-set updates failing because of a concurrent ACL change.
+   * Without reevaluator the same ACL is set on the current ACL version.
+   *
+   * @param reevaluator Reevaluator of the query and new ACL
+   */
+  public void setReevaluator(ACLReevaluator reevaluator) {
+    this.reevaluator = reevaluator;
+  }
+
+  /**
+   * Send the next setACL requests with another client, such as a client with a new session.
+   * Must be called after {@link #flush()}.
+   *
+   * @param zk ZooKeeper client used for the setACL requests
+   */
+  public void setClient(ZKClient zk) {
+    this.zk = zk;
+  }
+
+  /**
+   * Queue the setACL operation of a znode, submitting the current batch if it is full.
+   *
+   * @param path        Znode path
+   * @param previousACL ACL of the znode before enforcing, stored for rollback
+   * @param newACL      ACL to be set
+   * @throws InterruptedException
+   */
+  public void add(String path, List<ACL> previousACL, List<ACL> newACL) throws InterruptedException {
+    this.add(path, previousACL, newACL, -1);
+  }
+
+  /**
+   * Queue the compare-and-set operation of a znode, submitting the current batch if it is full.
+   *
+   * @param path        Znode path
+   * @param previousACL ACL of the znode before enforcing, stored for rollback
+   * @param newACL      ACL to be set
+   * @param aclVersion  ACL version previousACL was read with, -1 to set the ACL unconditionally
+   * @throws InterruptedException
+   */
+  public void add(String path, List<ACL> previousACL, List<ACL> newACL, int aclVersion) throws InterruptedException {
+    this.currentBatch.add(new BatchEntry(path, previousACL, newACL, aclVersion));
+    if (this.currentBatch.size() >= this.batchSize) {
+      this.submit();
+    }
+  }
+
+  /**
+   * Submit the pending operations and wait until every submitted batch is processed.
+   *
+   * @throws InterruptedException
+   */
+  public void flush() throws InterruptedException {
+    if (!this.currentBatch.isEmpty()) {
+      this.submit();
+    }
+    this.inFlight.acquire(this.maxBatchesInFlight);
+    this.inFlight.release(this.maxBatchesInFlight);
+    this.processResults();
+  }
+
+  private void submit() throws InterruptedException {
+    this.inFlight.acquire();
+    // Results are processed in the caller thread, retries must not block the event thread
+    this.processResults();
+
+    List<BatchEntry> batch = this.currentBatch;
+    this.currentBatch = new ArrayList<BatchEntry>();
+    AtomicInteger outstanding = new AtomicInteger(batch.size());
+    for (BatchEntry entry : batch) {
+      this.zk.setACL(entry.path, entry.newACL, entry.aclVersion, new AsyncCallback.StatCallback() {
+        @Override
+        public void processResult(int rc, String path, Object ctx, Stat stat) {
+          entry.rc = rc;
+          if (stat != null) {
+            entry.enforcedAversion = stat.getAversion();
+          }
+          if (outstanding.decrementAndGet() == 0) {
+            ZKEnforceBatcher.this.results.add(batch);
+            ZKEnforceBatcher.this.inFlight.release();
+          }
+        }
+      }, null);
+    }
+  }
+
+  private void processResults() throws InterruptedException {
+    List<BatchEntry> batch = this.results.poll();
+    while (batch != null) {
+      for (BatchEntry entry : batch) {
+        if (entry.rc == KeeperException.Code.OK.intValue()) {
+          this.commit(entry);
+        } else if (entry.rc == KeeperException.Code.BADVERSION.intValue() && entry.aclVersion != -1) {
+          this.reevaluate(entry, false);
+        } else {
+          this.retry(entry);
+        }
+      }
+      this.syncRollbackState();
+      batch = this.results.poll();
+    }
+  }
+
+  private void commit(BatchEntry entry) {
+    try {
+      this.rollbackSet.add(new ZKRollbackElement(entry.path, entry.previousACL, entry.enforcedAversion));
+    } catch (IOException e) {
+      // Enforcing without recording the rollback state must not go on
+      throw new UncheckedIOException("Failed to record the rollback state of " + entry.path, e);
+    }
+    this.enforcedCount++;
+  }
+
+  /**
+   * Write the rollback entries of a processed batch to disk, so that an interruption of the
+   * enforcement loses no entry of an applied setACL.
+   */
+  private void syncRollbackState() {
+    try {
+      this.rollbackSet.sync();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to sync the rollback state", e);
+    }
+  }
+
+  /**
+   * Retry a failed operation synchronously if it failed because of a connection problem.
+   *
+   * @param entry Failed operation
+   * @throws InterruptedException
+   */
+  private void retry(BatchEntry entry) throws InterruptedException {
+    KeeperException.Code code = KeeperException.Code.get(entry.rc);
+    if (code == KeeperException.Code.CONNECTIONLOSS || code == KeeperException.Code.OPERATIONTIMEOUT) {
+      try {
+        entry.enforcedAversion = this.zk.setACL(entry.path, entry.newACL, entry.aclVersion).getAversion();
+        this.commit(entry);
+        return;
+      } catch (KeeperException.BadVersionException e) {
+        // The first attempt may have been applied before the connection was lost
+        if (entry.aclVersion != -1) {
+          this.reevaluate(entry, true);
+          return;
+        }
+        code = e.code();
+      } catch (KeeperException e) {
+        code = e.code();
+      }
+    }
+    this.fail(entry, code);
+  }
+
+  /**
+   * Re-read the ACL of a znode modified since it was read and re-apply the compare-and-set
+   * update if the reevaluator still requires it.
+   *
+   * @param entry        Operation that failed with BadVersion
+   * @param mayBeApplied Whether the operation is a retry whose first attempt may have been applied
+   * @throws InterruptedException
+   */
+  private void reevaluate(BatchEntry entry, boolean mayBeApplied) throws InterruptedException {
+    for (int attempt = 0; attempt < ZKPolicyDefs.Enforcement.MAX_CAS_ATTEMPTS; attempt++) {
+      Stat stat = new Stat();
+      try {
+        List<ACL> currentACL = this.zk.getACL(entry.path, stat);
+        if (mayBeApplied && attempt == 0 && stat.getAversion() == entry.aclVersion + 1
+            && entry.newACL.equals(currentACL)) {
+          // Our own update, the ACL read before it is the one to restore on rollback
+          entry.enforcedAversion = stat.getAversion();
+          this.commit(entry);
+          return;
+        }
+        List<ACL> newACL = entry.newACL;
+        if (this.reevaluator != null) {
+          newACL = this.reevaluator.reevaluate(entry.path, currentACL);
+        }
+        if (newACL == null) {
+          // The znode does not match the policy query anymore
+          return;
+        }
+        entry.enforcedAversion = this.zk.setACL(entry.path, newACL, stat.getAversion()).getAversion();
+        entry.previousACL = currentACL;
+        entry.newACL = newACL;
+        this.commit(entry);
+        return;
+      } catch (KeeperException.BadVersionException e) {
+        continue;
+      } catch (KeeperException e) {
+        this.fail(entry, e.code());
+        return;
+      }
+    }
+    this.fail(entry, KeeperException.Code.BADVERSION);
+  }
+
+  private void fail(BatchEntry entry, KeeperException.Code code) {
+    System.out.println("WARNING: Failed to enforce policy on " + entry.path + ": " + code);
+    this.failedCount++;
+  }
+
+  private static class BatchEntry {
+    private String path;
+    private List<ACL> previousACL;
+    private List<ACL> newACL;
+    private int aclVersion;
+    private volatile int rc;
+    private volatile Integer enforcedAversion;
+
+    BatchEntry(String path, List<ACL> previousACL, List<ACL> newACL, int aclVersion) {
+      this.path = path;
+      this.previousACL = previousACL;
+      this.newACL = newACL;
+      this.aclVersion = aclVersion;
+    }
+  }
+}
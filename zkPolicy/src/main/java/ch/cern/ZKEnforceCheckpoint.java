@@ -0,0 +1,309 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Progress of an enforcement, stored next to its rollback state file so that an interrupted
+ * enforcement can be resumed.
+ *
+ * <p>The checkpoint holds the fingerprints of the completed policies and, for the policy being
+ * enforced, the last znode processed in sorted pre-order together with the size of the rollback
+ * journal at that point. It is only written once every operation queued before that znode was
+ * committed and journaled, so that resuming after the checkpoint repeats no committed
+ * operation, except the ones journaled after the checkpoint, which are read back from the
+ * journal and skipped.</p>
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+public class ZKEnforceCheckpoint {
+  static final String FILE_SUFFIX = ".checkpoint";
+
+  private List<String> completedPolicies = new ArrayList<String>();
+  private String policy;
+  private String path;
+  private long journalOffset;
+  // Ignore chekstyle violation because lombok uses `$` prefix
+  // to indicate member fields to be ignored from code generation.
+  @SuppressWarnings("checkstyle:membername")
+  private File $file;
+  @SuppressWarnings("checkstyle:membername")
+  private List<String> $resumablePolicies = new ArrayList<String>();
+  @SuppressWarnings("checkstyle:membername")
+  private String[] $resumePath;
+  @SuppressWarnings("checkstyle:membername")
+  private String[] $resumeLimit;
+  @SuppressWarnings("checkstyle:membername")
+  private Set<String> $journaledPaths = Collections.emptySet();
+
+  /**
+   * Get the checkpoint file of a rollback state file.
+   *
+   * @param rollbackStateFile Rollback state file of the enforcement
+   * @return Checkpoint file
+   */
+  public static File getCheckpointFile(File rollbackStateFile) {
+    return new File(rollbackStateFile.getPath() + FILE_SUFFIX);
+  }
+
+  /**
+   * Start a new checkpoint for an enforcement, discarding a previous checkpoint.
+   *
+   * @param rollbackStateFile Rollback state file of the enforcement
+   * @return Empty checkpoint
+   */
+  public static ZKEnforceCheckpoint create(File rollbackStateFile) {
+    ZKEnforceCheckpoint checkpoint = new ZKEnforceCheckpoint();
+    checkpoint.$file = getCheckpointFile(rollbackStateFile);
+    return checkpoint;
+  }
+
+  /**
+   * Load the checkpoint of an interrupted enforcement to resume it.
+   *
+   * @param rollbackStateFile Rollback state file of the interrupted enforcement
+   * @return Checkpoint, empty if the enforcement did not write one
+   * @throws IOException
+   */
+  public static ZKEnforceCheckpoint load(File rollbackStateFile) throws IOException {
+    File file = getCheckpointFile(rollbackStateFile);
+    if (!file.exists()) {
+      return create(rollbackStateFile);
+    }
+    ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
+    ZKEnforceCheckpoint checkpoint = mapper.readValue(file, ZKEnforceCheckpoint.class);
+    checkpoint.$file = file;
+    checkpoint.$resumablePolicies = new ArrayList<String>(checkpoint.completedPolicies);
+    return checkpoint;
+  }
+
+  /**
+   * Compute the fingerprint of a policy, changing with its query and ACLs.
+   *
+   * @param policy Enforce policy
+   * @return Hexadecimal SHA-256 digest of the policy definition
+   */
+  public static String fingerprint(ZKEnforcePolicyElement policy) {
+    ZKQueryElement query = policy.getQuery();
+    String definition = query.getName() + "\n" + query.getRootPath() + "\n" + query.getArgs() + "\n"
+        + policy.getAcls() + "\n" + policy.isAppend();
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest.digest(definition.getBytes(StandardCharsets.UTF_8))) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform implements SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Check whether a policy was completed by the interrupted enforcement. Each completed policy
+   * is matched once, so that a policy listed twice is only skipped as many times as it was
+   * completed.
+   *
+   * @param fingerprint Policy fingerprint
+   * @return True if the policy must be skipped
+   */
+  public boolean skipCompleted(String fingerprint) {
+    return this.$resumablePolicies.remove(fingerprint);
+  }
+
+  /**
+   * Start the enforcement of a policy. If the interrupted enforcement stopped in the same
+   * policy, the znodes up to its last checkpoint and the znodes journaled after it are skipped.
+   *
+   * @param fingerprint       Policy fingerprint
+   * @param rollbackStateFile Rollback journal of the enforcement
+   * @throws IOException
+   */
+  public void begin(String fingerprint, File rollbackStateFile) throws IOException {
+    this.$resumePath = null;
+    this.$resumeLimit = null;
+    this.$journaledPaths = Collections.emptySet();
+    if (fingerprint.equals(this.policy) && this.path != null) {
+      this.$resumePath = split(this.path);
+      this.$resumeLimit = this.$resumePath;
+      // The offset is 0 if the rollback state could not be journaled
+      if (this.journalOffset > 0 && rollbackStateFile.length() > this.journalOffset) {
+        this.$journaledPaths = ZKRollbackJournal.readPathsFrom(rollbackStateFile, this.journalOffset);
+        for (String journaledPath : this.$journaledPaths) {
+          String[] components = split(journaledPath);
+          if (comparePreOrder(components, this.$resumeLimit) > 0) {
+            this.$resumeLimit = components;
+          }
+        }
+      }
+    } else {
+      this.path = null;
+      this.journalOffset = 0;
+    }
+    this.policy = fingerprint;
+  }
+
+  /**
+   * Check whether the enforcement resumes after a previously processed znode.
+   *
+   * @return True if znodes are skipped
+   */
+  public boolean resumesAfterCheckpoint() {
+    return this.$resumePath != null;
+  }
+
+  /**
+   * Check whether a znode follows every znode processed by the interrupted enforcement, which
+   * is required to save a new checkpoint. Otherwise, the znodes processed after the previous
+   * checkpoint would be forgotten.
+   *
+   * @param znodePath Znode path
+   * @return True if a checkpoint can be saved after the znode
+   */
+  public boolean isResumeLimitPassed(String znodePath) {
+    return this.$resumeLimit == null || comparePreOrder(split(znodePath), this.$resumeLimit) > 0;
+  }
+
+  /**
+   * Check whether the ACL of a znode was already processed by the interrupted enforcement.
+   *
+   * @param znodePath Znode path
+   * @return True if the znode must not be enforced again
+   */
+  public boolean isProcessed(String znodePath) {
+    if (this.$resumePath == null) {
+      return false;
+    }
+    return comparePreOrder(split(znodePath), this.$resumePath) <= 0 || this.$journaledPaths.contains(znodePath);
+  }
+
+  /**
+   * Check whether a whole subtree was processed by the interrupted enforcement, which is the
+   * case of the subtrees preceding the checkpoint in pre-order that do not contain it.
+   *
+   * @param znodePath Subtree root path
+   * @return True if the subtree can be skipped
+   */
+  public boolean isSubtreeProcessed(String znodePath) {
+    if (this.$resumePath == null) {
+      return false;
+    }
+    String[] components = split(znodePath);
+    if (comparePreOrder(components, this.$resumePath) >= 0) {
+      return false;
+    }
+    // An ancestor of the checkpoint precedes it but has unprocessed descendants
+    if (components.length >= this.$resumePath.length) {
+      return true;
+    }
+    for (int i = 0; i < components.length; i++) {
+      if (!components[i].equals(this.$resumePath[i])) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Record that the znodes up to a path in sorted pre-order were processed and write the
+   * checkpoint. Must only be called once their operations are committed and journaled.
+   *
+   * @param znodePath     Last processed znode
+   * @param journalOffset Size of the synced rollback journal
+   * @throws IOException
+   */
+  public void save(String znodePath, long journalOffset) throws IOException {
+    this.path = znodePath;
+    this.journalOffset = journalOffset;
+    this.write();
+  }
+
+  /**
+   * Record that the current policy was completed and write the checkpoint.
+   *
+   * @throws IOException
+   */
+  public void complete() throws IOException {
+    this.completedPolicies.add(this.policy);
+    this.policy = null;
+    this.path = null;
+    this.journalOffset = 0;
+    this.$resumePath = null;
+    this.$resumeLimit = null;
+    this.$journaledPaths = Collections.emptySet();
+    this.write();
+  }
+
+  /**
+   * Delete the checkpoint once the whole enforcement is completed.
+   *
+   * @throws IOException
+   */
+  public void delete() throws IOException {
+    Files.deleteIfExists(this.$file.toPath());
+  }
+
+  private void write() throws IOException {
+    File tmpFile = new File(this.$file.getPath() + ".tmp");
+    ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
+    ByteBuffer content = ByteBuffer.wrap(mapper.writeValueAsBytes(this));
+    try (FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (content.hasRemaining()) {
+        channel.write(content);
+      }
+      // The content must be on disk before the rename, which may reach the disk first
+      channel.force(true);
+    }
+    Files.move(tmpFile.toPath(), this.$file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static String[] split(String znodePath) {
+    if (znodePath.equals("/")) {
+      return new String[0];
+    }
+    return znodePath.substring(1).split("/");
+  }
+
+  /**
+   * Compare two paths in the pre-order of a traversal visiting children sorted by name.
+   */
+  static int comparePreOrder(String[] first, String[] second) {
+    int length = Math.min(first.length, second.length);
+    for (int i = 0; i < length; i++) {
+      int cmp = first[i].compareTo(second[i]);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return Integer.compare(first.length, second.length);
+  }
+}
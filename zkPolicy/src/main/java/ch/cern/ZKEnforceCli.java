@@ -75,6 +75,15 @@ public class ZKEnforceCli implements Runnable {
   @Option(names = { "-d", "--dry-run" }, required = false, description = Enforce.DRY_RUN_DESCRIPTION)
   boolean dryRun = false;
 
+  @Option(names = { "-C", "--compare-and-set" }, required = false, description = Enforce.COMPARE_AND_SET_DESCRIPTION)
+  boolean compareAndSet = false;
+
+  @Option(names = { "-R", "--resume" }, required = false, description = Enforce.RESUME_DESCRIPTION)
+  boolean resume = false;
+
+  private ZKEnforceCheckpoint checkpoint = null;
+  private boolean failed = false;
+
   @ArgGroup(exclusive = true, multiplicity = "1")
   Exclusive exclusive;
 
@@ -91,6 +100,10 @@ public class ZKEnforceCli implements Runnable {
 
   @Override
   public void run() {
+    if (this.resume && this.rollbackStateFile == null) {
+      System.out.println(Enforce.RESUME_WITHOUT_ROLLBACK_MESSAGE);
+      return;
+    }
     try {
       if (this.exclusive.fileEnforceGroup == null && this.exclusive.serviceEnforceGroup == null) {
         this.cliEnforce();
@@ -103,12 +116,31 @@ public class ZKEnforceCli implements Runnable {
           this.cliEnforceFromFile(policiesFile);
         }
       }
+      // A completed enforcement cannot be resumed
+      if (this.checkpoint != null && !this.failed) {
+        this.checkpoint.delete();
+      }
     } catch (Exception e) {
       System.out.println(e.toString());
       logger.error("Exception occurred!", e);
     }
   }
 
+  /**
+   * Get the checkpoint of the enforcement, loading the one of the interrupted enforcement
+   * when resuming.
+   *
+   * @return Enforcement checkpoint
+   * @throws IOException
+   */
+  private ZKEnforceCheckpoint getCheckpoint() throws IOException {
+    if (this.checkpoint == null) {
+      this.checkpoint = this.resume ? ZKEnforceCheckpoint.load(this.rollbackStateFile)
+          : ZKEnforceCheckpoint.create(this.rollbackStateFile);
+    }
+    return this.checkpoint;
+  }
+
   /**
    * Enforce policy passed through CLI when using the --policy flag.
    * 
@@ -143,12 +175,16 @@ public class ZKEnforceCli implements Runnable {
           this.rollbackStateFile = new File("/opt/zkpolicy/rollback/ROLLBACK_STATE_" + dtf.format(now) + ".yml");
         }
         ZKEnforce zkEnforce = new ZKEnforce(zk, this.rollbackStateFile);
+        zkEnforce.setCompareAndSet(this.compareAndSet);
+        zkEnforce.setCheckpoint(this.getCheckpoint());
         zkEnforce.enforce(policy);
       }
     } catch (NoSuchMethodException | NoSuchFieldException e) {
+      this.failed = true;
       System.out.println("No such method: " + this.exclusive.cliEnforceGroup.queryName);
       System.out.println("Please consult the list of default queries using query -h");
     } catch (Exception e) {
+      this.failed = true;
       System.out.println(e.toString());
       logger.error("Exception occurred!", e);
     }
@@ -186,10 +222,13 @@ public class ZKEnforceCli implements Runnable {
             this.rollbackStateFile = new File("/opt/zkpolicy/rollback/ROLLBACK_STATE_" + dtf.format(now) + ".yml");
           }
           ZKEnforce zkEnforce = new ZKEnforce(zk, this.rollbackStateFile);
+          zkEnforce.setCompareAndSet(this.compareAndSet);
+          zkEnforce.setCheckpoint(this.getCheckpoint());
           zkEnforce.enforce(policy);
         }
       }
     } catch (Exception e) {
+      this.failed = true;
       System.out.println(e.toString());
       logger.error("Exception occurred!", e);
     }
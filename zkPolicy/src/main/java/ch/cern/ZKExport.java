@@ -8,14 +8,20 @@
 */
 package ch.cern;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import lombok.Getter;
+import lombok.Setter;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.KeeperException.NoAuthException;
 import org.apache.zookeeper.data.ACL;
@@ -29,53 +35,82 @@ import org.apache.logging.log4j.Logger;
 public class ZKExport {
   private static Logger logger = LogManager.getLogger(ZKExport.class);
 
-  private ZKClient zk;
-  private ZKTreeNode znodeRoot;
+  private ZKTreeSource zk;
+  /**
+   * Write the znode data of JSON and YAML exports as base64 instead of an array of bytes.
+   */
+  @Getter
+  @Setter
+  private boolean base64Data = false;
+  /**
+   * Frame binary exports with gzip.
+   */
+  @Getter
+  @Setter
+  private boolean compress = false;
 
-  public ZKExport(ZKClient zk) {
+  public ZKExport(ZKTreeSource zk) {
     this.zk = zk;
-    this.znodeRoot = new ZKTreeNode();
   }
 
   /**
    * Export a znode subtree to certain output format.
-   * 
+   *
+   * <p>Each znode is written as soon as it is fetched, so that only the znodes on the current
+   * path are held in memory. JSON and YAML exports follow the nested {@link ZKTreeNode} schema,
+   * binary exports the {@link ZKBinaryExport} format.</p>
+   *
    * @param rootPath    Path to start recursively exporting znodes
    * @param format      Export format
    * @param compactMode Enable minified mode for export file
    * @param outputFile  Output file path
    */
   public void export(String rootPath, ZKPolicyDefs.ExportFormats format, boolean compactMode, File outputFile) {
-    try {
-      this.toTreeStruct(rootPath, znodeRoot);
+    try (NodeWriter writer = this.createWriter(format, compactMode, outputFile);
+        ZKTraversal traversal = new ZKTraversal(this.zk, true)) {
+      this.writeNode(traversal.start(rootPath), writer);
     } catch (Exception e) {
+      // The znodes exported so far are kept, closing the writer ends the open objects
       System.out.println(e.toString());
       logger.error("Exception occurred!", e);
     }
-
-    switch (format) {
-      case json:
-        this.exportToJSON(outputFile, compactMode);
-        break;
-      case yaml:
-        this.exportToYAML(outputFile);
-        break;
-      default:
-        break;
-    }
   }
 
   /**
-   * Export znode subtree to JSON.
+   * Export the changes of a znode subtree since a baseline, in JSON or YAML format.
+   *
+   * <p>The ACL and stat of every znode are read, but data is only fetched for znodes whose mzxid
+   * changed and children only for znodes whose child set changed. The delta file lists the
+   * znodes whose stat differs from the baseline, without data if it did not change, and the
+   * paths of the deleted subtrees. It can be merged onto the baseline with {@link ZKDeltaSource}.</p>
+   *
+   * @param rootPath    Path to start recursively exporting znodes
+   * @param format      Export format, json or yaml
+   * @param compactMode Enable minified mode for export file
+   * @param outputFile  Output file path
+   * @param baseline    Source of the tree as it was exported previously
    */
-  private void exportToJSON(File outputFile, boolean compactMode) {
-    try {
-      ObjectMapper mapper = new ObjectMapper(new JsonFactory());
-      if (compactMode) {
-        mapper.writeValue(outputFile, znodeRoot);
-      } else {
-        mapper.writerWithDefaultPrettyPrinter().writeValue(outputFile, znodeRoot);
+  public void exportDelta(String rootPath, ZKPolicyDefs.ExportFormats format, boolean compactMode, File outputFile,
+      ZKOfflineSource baseline) {
+    ObjectMapper mapper = new ObjectMapper(format == ZKPolicyDefs.ExportFormats.yaml ? new YAMLFactory() : new JsonFactory());
+    ZKTraversal.Baseline baselineView = baseline.asBaseline();
+    List<String> deleted = new ArrayList<String>();
+    try (JsonGenerator generator = mapper.getFactory().createGenerator(outputFile, JsonEncoding.UTF8);
+        ZKTraversal traversal = new ZKTraversal(this.zk, true)) {
+      if (format == ZKPolicyDefs.ExportFormats.json && !compactMode) {
+        generator.useDefaultPrettyPrinter();
       }
+      traversal.setBaseline(baselineView);
+      generator.writeStartObject();
+      generator.writeStringField("path", rootPath);
+      generator.writeFieldName("nodes");
+      generator.writeStartArray();
+      final long changed = this.writeDeltaNode(traversal.start(rootPath), baselineView, generator, deleted);
+      generator.writeEndArray();
+      generator.writeObjectField("deleted", deleted);
+      generator.writeEndObject();
+      logger.info("Exported {} changed znodes and {} deleted subtrees, data of {} znodes and children of {} znodes "
+          + "unchanged", changed, deleted.size(), traversal.getUnchangedDataCount(), traversal.getUnchangedChildrenCount());
     } catch (Exception e) {
       System.out.println(e.toString());
       logger.error("Exception occurred!", e);
@@ -83,65 +118,236 @@ public class ZKExport {
   }
 
   /**
-   * Export znode subtree to YAML.
+   * Recursive function that writes the changes of a znode and its subtree.
+   *
+   * @return Number of changed znodes written
    */
-  private void exportToYAML(File outputFile) {
+  private long writeDeltaNode(ZKTraversalNode node, ZKTraversal.Baseline baseline, JsonGenerator generator,
+      List<String> deleted) throws KeeperException, InterruptedException, IOException {
+    byte[] data;
+    List<ACL> acl;
+    Stat stat;
     try {
-      ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
-      mapper.writeValue(outputFile, znodeRoot);
-    } catch (Exception e) {
-      System.out.println(e.toString());
-      logger.error("Exception occurred!", e);
+      data = node.getData();
+      acl = node.getACL();
+      stat = node.getStat();
+    } catch (NoAuthException e) {
+      return 0;
+    }
+
+    Stat baselineStat = baseline.getStat(node.getPath());
+    long changed = 0;
+    if (!stat.equals(baselineStat)) {
+      generator.writeStartObject();
+      generator.writeStringField("path", node.getPath());
+      if (!node.isDataUnchanged()) {
+        generator.writeFieldName("data");
+        JsonNodeWriter.writeData(generator, data, this.base64Data);
+      }
+      generator.writeObjectField("acl", acl);
+      generator.writeObjectField("stat", stat);
+      generator.writeEndObject();
+      changed++;
+    }
+
+    List<ZKTraversalNode> children;
+    try {
+      children = node.getChildNodes();
+    } catch (NoAuthException e) {
+      return changed;
+    }
+    if (baselineStat != null && !node.isChildrenUnchanged()) {
+      List<String> baselineChildren = baseline.getChildren(node.getPath());
+      if (baselineChildren != null) {
+        Set<String> currentChildren = new HashSet<String>(node.getChildren());
+        String prefix = node.getPath().equals("/") ? "/" : node.getPath() + "/";
+        for (String child : baselineChildren) {
+          if (!currentChildren.contains(child)) {
+            deleted.add(prefix + child);
+          }
+        }
+      }
+    }
+    for (ZKTraversalNode child : children) {
+      changed += this.writeDeltaNode(child, baseline, generator, deleted);
+    }
+    return changed;
+  }
+
+  private NodeWriter createWriter(ZKPolicyDefs.ExportFormats format, boolean compactMode, File outputFile)
+      throws IOException {
+    switch (format) {
+      case yaml:
+        return new JsonNodeWriter(new ObjectMapper(new YAMLFactory()), false, this.base64Data, outputFile);
+      case binary:
+        return new BinaryNodeWriter(new ZKBinaryExport.Writer(outputFile, this.compress));
+      case json:
+      default:
+        return new JsonNodeWriter(new ObjectMapper(new JsonFactory()), !compactMode, this.base64Data, outputFile);
     }
   }
 
   /**
-   * Recursive function that constructs the full ZNode tree.
+   * Recursive function that writes a znode and its subtree.
    */
-  private void toTreeStruct(String path, ZKTreeNode currentNode) throws KeeperException, InterruptedException {
+  private void writeNode(ZKTraversalNode node, NodeWriter writer)
+      throws KeeperException, InterruptedException, IOException {
     byte[] data;
     List<ACL> acl;
-    Stat stat = new Stat();
+    Stat stat;
     try {
-      data = this.zk.getData(path, null, stat); // fill the stat afterwards
-      acl = this.zk.getACL(path, null);
+      data = node.getData();
+      acl = node.getACL();
+      stat = node.getStat();
     } catch (NoAuthException e) {
+      writer.writeUnreadableNode();
       return;
     }
-    List<Byte> byteData = new ArrayList<Byte>();
-    if (data != null) {
-      for (byte dataItem : data) {
-        byteData.add(dataItem);
+
+    List<ZKTraversalNode> children = null;
+    try {
+      children = node.getChildNodes();
+    } catch (NoAuthException e) {
+      children = null;
+    }
+
+    writer.startNode(node.getPath(), data, acl, stat, children == null ? -1 : children.size());
+    if (children != null) {
+      for (ZKTraversalNode child : children) {
+        this.writeNode(child, writer);
       }
     }
+    writer.endNode(stat, children != null);
+  }
 
-    currentNode.setData(byteData);
-    currentNode.setPath(path);
-    currentNode.setAcl(acl);
-    currentNode.setStat(stat);
+  /**
+   * Output of the export, receiving the znodes in pre-order.
+   */
+  private interface NodeWriter extends Closeable {
+    /**
+     * Write a znode, before its children.
+     *
+     * @param childCount Number of children, -1 if the children are not readable
+     */
+    void startNode(String path, byte[] data, List<ACL> acl, Stat stat, int childCount) throws IOException;
 
-    List<String> children = null;
-    try {
-      children = this.zk.getChildren(path, null);
-    } catch (NoAuthException e) {
-      return;
+    /**
+     * End a znode, after its children.
+     */
+    void endNode(Stat stat, boolean childrenReadable) throws IOException;
+
+    /**
+     * Write a znode that could not be read.
+     */
+    void writeUnreadableNode() throws IOException;
+  }
+
+  /**
+   * Writer of the nested JSON and YAML schema.
+   */
+  private static class JsonNodeWriter implements NodeWriter {
+    private JsonGenerator generator;
+    private boolean base64Data;
+
+    JsonNodeWriter(ObjectMapper mapper, boolean prettyPrint, boolean base64Data, File outputFile) throws IOException {
+      this.generator = mapper.getFactory().createGenerator(outputFile, JsonEncoding.UTF8);
+      if (prettyPrint) {
+        this.generator.useDefaultPrettyPrinter();
+      }
+      this.base64Data = base64Data;
+    }
+
+    @Override
+    public void startNode(String path, byte[] data, List<ACL> acl, Stat stat, int childCount) throws IOException {
+      this.generator.writeStartObject();
+      this.generator.writeStringField("path", path);
+      this.generator.writeFieldName("data");
+      writeData(this.generator, data, this.base64Data);
+      this.generator.writeObjectField("acl", acl);
+      if (childCount < 0) {
+        this.generator.writeNullField("children");
+      } else {
+        this.generator.writeFieldName("children");
+        this.generator.writeStartArray();
+      }
+    }
+
+    static void writeData(JsonGenerator generator, byte[] data, boolean base64Data) throws IOException {
+      if (base64Data) {
+        // Null data is written as null, so that it reads back distinct from empty data
+        if (data == null) {
+          generator.writeNull();
+        } else {
+          generator.writeBinary(data);
+        }
+        return;
+      }
+      generator.writeStartArray();
+      if (data != null) {
+        for (byte dataItem : data) {
+          generator.writeNumber(dataItem);
+        }
+      }
+      generator.writeEndArray();
     }
 
-    Collections.sort(children);
+    @Override
+    public void endNode(Stat stat, boolean childrenReadable) throws IOException {
+      if (childrenReadable) {
+        this.generator.writeEndArray();
+      }
+      this.generator.writeObjectField("stat", stat);
+      this.generator.writeEndObject();
+    }
 
-    if (path.equals("/")) {
-      path = "";
+    @Override
+    public void writeUnreadableNode() throws IOException {
+      this.generator.writeStartObject();
+      this.generator.writeNullField("path");
+      this.generator.writeNullField("data");
+      this.generator.writeNullField("acl");
+      this.generator.writeNullField("children");
+      this.generator.writeNullField("stat");
+      this.generator.writeEndObject();
     }
 
-    Iterator<String> iterator = children.iterator();
-    List<ZKTreeNode> childrenList = new ArrayList<ZKTreeNode>();
-    while (iterator.hasNext()) {
-      String child = iterator.next();
-      ZKTreeNode childNode = new ZKTreeNode();
-      this.toTreeStruct(path + "/" + child, childNode);
-      childrenList.add(childNode);
+    @Override
+    public void close() throws IOException {
+      this.generator.close();
     }
-    currentNode.setChildren(childrenList);
   }
 
-}
\ No newline at end of file
+  /**
+   * Writer of the binary format, where znodes are named by the last element of their path.
+   */
+  private static class BinaryNodeWriter implements NodeWriter {
+    private ZKBinaryExport.Writer writer;
+    private boolean rootWritten = false;
+
+    BinaryNodeWriter(ZKBinaryExport.Writer writer) {
+      this.writer = writer;
+    }
+
+    @Override
+    public void startNode(String path, byte[] data, List<ACL> acl, Stat stat, int childCount) throws IOException {
+      String name = this.rootWritten ? path.substring(path.lastIndexOf('/') + 1) : path;
+      this.rootWritten = true;
+      this.writer.writeNode(name, data, acl, stat, childCount);
+    }
+
+    @Override
+    public void endNode(Stat stat, boolean childrenReadable) {
+    }
+
+    @Override
+    public void writeUnreadableNode() throws IOException {
+      this.rootWritten = true;
+      this.writer.writeUnreadableNode();
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.writer.close();
+    }
+  }
+}
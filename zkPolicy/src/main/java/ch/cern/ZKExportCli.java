@@ -9,6 +9,7 @@
 package ch.cern;
 
 import java.io.File;
+import java.util.List;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.ParentCommand;
@@ -26,6 +27,15 @@ public class ZKExportCli implements Runnable {
   @Option(names = { "-C", "--compact" }, description = Export.COMPACT_DESCRIPTION)
   Boolean compactMode = false;
 
+  @Option(names = { "-B", "--base64-data" }, description = Export.BASE64_DATA_DESCRIPTION)
+  Boolean base64Data = false;
+
+  @Option(names = { "-z", "--gzip" }, description = Export.GZIP_DESCRIPTION)
+  Boolean compress = false;
+
+  @Option(names = { "--baseline" }, arity = "1..*", description = Export.BASELINE_DESCRIPTION)
+  List<File> baselineFiles;
+
   @Option(names = { "-o", "--output" }, required = true, description = Export.OUTPUT_DESCRIPTION)
   File outputFile = new File(Export.OUTPUT_DEFAULT);
 
@@ -41,9 +51,20 @@ public class ZKExportCli implements Runnable {
       System.out.println(e.toString());
     }
     if (config != null) {
-      try (ZKClient zk = new ZKClient(config)) {
+      try (ZKTreeSource zk = parent.openTreeSource(config)) {
         ZKExport zkExport = new ZKExport(zk);
-        zkExport.export(rootPath, format, compactMode, outputFile);
+        zkExport.setBase64Data(base64Data);
+        zkExport.setCompress(compress);
+        if (baselineFiles == null) {
+          zkExport.export(rootPath, format, compactMode, outputFile);
+        } else if (format == ZKPolicyDefs.ExportFormats.binary) {
+          System.out.println("Incremental exports are only available in json and yaml formats");
+        } else {
+          try (ZKOfflineSource baseline = ZKDeltaSource.open(config, baselineFiles.get(0),
+              baselineFiles.subList(1, baselineFiles.size()))) {
+            zkExport.exportDelta(rootPath, format, compactMode, outputFile, baseline);
+          }
+        }
       } catch (Exception e) {
         System.out.println(e.toString());
       }
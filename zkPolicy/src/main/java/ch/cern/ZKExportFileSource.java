@@ -0,0 +1,536 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Id;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Offline source of the znode tree, read from a file written by {@link ZKExport}.
+ *
+ * <p>The export file is read once, with the Jackson streaming parser for JSON and YAML or
+ * record by record for binary exports, the format being detected from the file content. Only the tree structure, the ACL and the stat of each
+ * znode are kept in memory, with identical ACL lists shared between znodes. The data of
+ * the znodes, which makes up most of an export, is spilled to a temporary file and read
+ * back on demand, so exports larger than the heap can be queried many times without
+ * reconnecting to ZooKeeper.</p>
+ */
+public class ZKExportFileSource extends ZKOfflineSource {
+  private static Logger logger = LogManager.getLogger(ZKExportFileSource.class);
+
+  private File exportFile;
+  private IndexedNode root;
+  private String rootPath;
+  private Map<List<ACL>, List<ACL>> aclLists = new HashMap<List<ACL>, List<ACL>>();
+  private File dataFile;
+  private RandomAccessFile dataReader;
+  private long nodeCount = 0;
+  private long skippedCount = 0;
+
+  /**
+   * Read the znode tree of an export file.
+   *
+   * @param config     Configuration instance
+   * @param exportFile JSON, YAML or binary file written by the export command
+   * @throws IOException
+   */
+  public ZKExportFileSource(ZKConfig config, File exportFile) throws IOException {
+    super(config);
+    this.exportFile = exportFile;
+    this.dataFile = File.createTempFile("zkpolicy-export-data", ".tmp");
+    this.dataFile.deleteOnExit();
+    try {
+      try (OutputStream dataWriter = new BufferedOutputStream(new FileOutputStream(this.dataFile))) {
+        DataSpill spill = new DataSpill(dataWriter);
+        if (ZKBinaryExport.Reader.isBinaryExport(exportFile)) {
+          try (ZKBinaryExport.Reader reader = new ZKBinaryExport.Reader(exportFile)) {
+            this.root = this.readNode(reader, spill);
+          }
+        } else {
+          try (JsonParser parser = createParser(exportFile)) {
+            parser.nextToken();
+            this.root = this.parseNode(parser, spill);
+          }
+        }
+      }
+      if (this.root == null) {
+        throw new IOException("Export file " + exportFile + " does not contain a readable root znode");
+      }
+      this.rootPath = this.root.name;
+      this.dataReader = new RandomAccessFile(this.dataFile, "r");
+    } catch (IOException | RuntimeException e) {
+      this.release();
+      throw e;
+    }
+    logger.info("Loaded {} znodes from export file {}", this.nodeCount, exportFile);
+    if (this.skippedCount > 0) {
+      logger.warn("Export file {} contains {} znodes that were not readable during export", exportFile,
+          this.skippedCount);
+    }
+  }
+
+  /**
+   * Get the number of znodes read from the export file.
+   *
+   * @return Number of znodes
+   */
+  public long getNodeCount() {
+    return this.nodeCount;
+  }
+
+  /**
+   * Get the path of the exported subtree root.
+   *
+   * @return Root path
+   */
+  public String getRootPath() {
+    return this.rootPath;
+  }
+
+  @Override
+  protected Stat getStat(String path) throws KeeperException {
+    return copyStat(this.lookup(path));
+  }
+
+  @Override
+  protected List<String> getChildren(String path, Stat stat) throws KeeperException {
+    IndexedNode node = this.lookup(path);
+    if (node.children == null) {
+      throw KeeperException.create(KeeperException.Code.NOAUTH, path);
+    }
+    copyStat(node, stat);
+    List<String> children = new ArrayList<String>(node.children.length);
+    for (IndexedNode child : node.children) {
+      children.add(child.name);
+    }
+    return children;
+  }
+
+  @Override
+  protected List<ACL> getACL(String path, Stat stat) throws KeeperException {
+    IndexedNode node = this.lookup(path);
+    copyStat(node, stat);
+    return new ArrayList<ACL>(node.acl);
+  }
+
+  @Override
+  protected byte[] getData(String path, Stat stat) throws KeeperException {
+    IndexedNode node = this.lookup(path);
+    copyStat(node, stat);
+    if (node.dataLength < 0) {
+      return null;
+    }
+    byte[] data = new byte[node.dataLength];
+    try {
+      synchronized (this.dataReader) {
+        this.dataReader.seek(node.dataOffset);
+        this.dataReader.readFully(data);
+      }
+    } catch (IOException e) {
+      logger.error("Data of " + path + " could not be read", e);
+      throw KeeperException.create(KeeperException.Code.SYSTEMERROR, path);
+    }
+    return data;
+  }
+
+  @Override
+  protected void release() {
+    try {
+      if (this.dataReader != null) {
+        this.dataReader.close();
+      }
+    } catch (IOException e) {
+      logger.warn("Spilled export data could not be closed", e);
+    }
+    if (!this.dataFile.delete()) {
+      logger.warn("Spilled export data {} could not be deleted", this.dataFile);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return this.exportFile + " (" + this.rootPath + ")";
+  }
+
+  /**
+   * Find the indexed znode of a path.
+   */
+  private IndexedNode lookup(String path) throws KeeperException {
+    IndexedNode node;
+    String relativePath;
+    if (path.equals(this.rootPath)) {
+      return this.root;
+    } else if (this.rootPath.equals("/") && path.startsWith("/")) {
+      relativePath = path.substring(1);
+    } else if (path.startsWith(this.rootPath + "/")) {
+      relativePath = path.substring(this.rootPath.length() + 1);
+    } else {
+      throw KeeperException.create(KeeperException.Code.NONODE, path);
+    }
+
+    node = this.root;
+    for (String name : relativePath.split("/", -1)) {
+      int index = node.children == null ? -1 : findChild(node.children, name);
+      if (index < 0) {
+        throw KeeperException.create(KeeperException.Code.NONODE, path);
+      }
+      node = node.children[index];
+    }
+    return node;
+  }
+
+  /**
+   * Find a child by name in children sorted by name.
+   *
+   * @return Index of the child, or -1 if there is no child with this name
+   */
+  private static int findChild(IndexedNode[] children, String name) {
+    int low = 0;
+    int high = children.length - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int comparison = children[middle].name.compareTo(name);
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  private static Stat copyStat(IndexedNode node) {
+    Stat stat = new Stat();
+    copyStat(node, stat);
+    return stat;
+  }
+
+  private static void copyStat(IndexedNode node, Stat stat) {
+    if (stat != null && node.stat != null) {
+      stat.setCzxid(node.stat.getCzxid());
+      stat.setMzxid(node.stat.getMzxid());
+      stat.setCtime(node.stat.getCtime());
+      stat.setMtime(node.stat.getMtime());
+      stat.setVersion(node.stat.getVersion());
+      stat.setCversion(node.stat.getCversion());
+      stat.setAversion(node.stat.getAversion());
+      stat.setEphemeralOwner(node.stat.getEphemeralOwner());
+      stat.setDataLength(node.stat.getDataLength());
+      stat.setNumChildren(node.stat.getNumChildren());
+      stat.setPzxid(node.stat.getPzxid());
+    }
+  }
+
+  /**
+   * Create a streaming parser for the export file, detecting YAML from its first character.
+   */
+  static JsonParser createParser(File exportFile) throws IOException {
+    InputStream input = new BufferedInputStream(new FileInputStream(exportFile));
+    input.mark(1);
+    int first = input.read();
+    while (first != -1 && Character.isWhitespace(first)) {
+      input.mark(1);
+      first = input.read();
+    }
+    input.reset();
+    if (first == '{') {
+      return new JsonFactory().createParser(input);
+    }
+    return new YAMLFactory().createParser(input);
+  }
+
+  /**
+   * Parse the znode object the parser is positioned at, including its subtree.
+   *
+   * @return Indexed znode or null if the znode was not readable during export
+   */
+  private IndexedNode parseNode(JsonParser parser, DataSpill spill) throws IOException {
+    if (parser.currentToken() != JsonToken.START_OBJECT) {
+      parser.skipChildren();
+      return null;
+    }
+    IndexedNode node = new IndexedNode();
+    String path = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      JsonToken value = parser.nextToken();
+      if (value == JsonToken.VALUE_NULL) {
+        continue;
+      }
+      switch (field) {
+        case "path":
+          path = parser.getText();
+          break;
+        case "data":
+          node.dataOffset = spill.offset;
+          if (value == JsonToken.START_ARRAY) {
+            node.dataLength = spill.copyArray(parser);
+          } else {
+            // Base64 encoded data
+            node.dataLength = spill.write(parser.getBinaryValue());
+          }
+          break;
+        case "acl":
+          node.acl = parseACL(parser, this.aclLists);
+          break;
+        case "children":
+          node.children = this.parseChildren(parser, spill);
+          break;
+        case "stat":
+          node.stat = parseStat(parser);
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+
+    if (path == null) {
+      this.skippedCount++;
+      return null;
+    }
+    this.nodeCount++;
+    node.name = path;
+    if (node.acl == null) {
+      node.acl = Collections.emptyList();
+    }
+    return node;
+  }
+
+  /**
+   * Read the binary record of a znode, followed by the records of its subtree.
+   *
+   * @return Indexed znode or null if the znode was not readable during export
+   */
+  private IndexedNode readNode(ZKBinaryExport.Reader reader, DataSpill spill) throws IOException {
+    ZKBinaryExport.Node record = reader.readNode();
+    if (record == null) {
+      this.skippedCount++;
+      return null;
+    }
+    this.nodeCount++;
+    IndexedNode node = new IndexedNode();
+    node.name = record.getName();
+    node.stat = record.getStat();
+    node.acl = this.aclLists.computeIfAbsent(record.getAcl(), Collections::unmodifiableList);
+    node.dataOffset = spill.offset;
+    node.dataLength = record.getData() == null ? -1 : spill.write(record.getData());
+    if (record.getChildCount() >= 0) {
+      List<IndexedNode> children = new ArrayList<IndexedNode>(record.getChildCount());
+      for (int i = 0; i < record.getChildCount(); i++) {
+        IndexedNode child = this.readNode(reader, spill);
+        if (child != null) {
+          children.add(child);
+        }
+      }
+      node.children = children.toArray(new IndexedNode[children.size()]);
+      Arrays.sort(node.children, IndexedNode.NODE_ORDER);
+    }
+    return node;
+  }
+
+  private IndexedNode[] parseChildren(JsonParser parser, DataSpill spill) throws IOException {
+    List<IndexedNode> children = new ArrayList<IndexedNode>();
+    while (parser.nextToken() != JsonToken.END_ARRAY) {
+      IndexedNode child = this.parseNode(parser, spill);
+      if (child != null) {
+        child.name = child.name.substring(child.name.lastIndexOf('/') + 1);
+        children.add(child);
+      }
+    }
+    IndexedNode[] toReturn = children.toArray(new IndexedNode[children.size()]);
+    Arrays.sort(toReturn, IndexedNode.NODE_ORDER);
+    return toReturn;
+  }
+
+  /**
+   * Parse the ACL list the parser is positioned at, sharing identical lists.
+   *
+   * @param aclLists ACL lists already parsed
+   */
+  static List<ACL> parseACL(JsonParser parser, Map<List<ACL>, List<ACL>> aclLists) throws IOException {
+    List<ACL> acl = new ArrayList<ACL>();
+    while (parser.nextToken() == JsonToken.START_OBJECT) {
+      ACL entry = new ACL();
+      Id id = new Id();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        parser.nextToken();
+        if (field.equals("perms")) {
+          entry.setPerms(parser.getIntValue());
+        } else if (field.equals("id") && parser.currentToken() == JsonToken.START_OBJECT) {
+          while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String idField = parser.getCurrentName();
+            parser.nextToken();
+            if (idField.equals("scheme")) {
+              id.setScheme(parser.getText());
+            } else if (idField.equals("id")) {
+              id.setId(parser.getText());
+            } else {
+              parser.skipChildren();
+            }
+          }
+        } else {
+          parser.skipChildren();
+        }
+      }
+      entry.setId(id);
+      acl.add(entry);
+    }
+    // Most znodes share a few ACL lists
+    List<ACL> shared = aclLists.get(acl);
+    if (shared == null) {
+      shared = Collections.unmodifiableList(acl);
+      aclLists.put(acl, shared);
+    }
+    return shared;
+  }
+
+  /**
+   * Parse the znode data the parser is positioned at, an array of bytes, a base64 string or null.
+   */
+  static byte[] parseData(JsonParser parser) throws IOException {
+    if (parser.currentToken() == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    if (parser.currentToken() != JsonToken.START_ARRAY) {
+      return parser.getBinaryValue();
+    }
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    while (parser.nextToken() != JsonToken.END_ARRAY) {
+      data.write(parser.getIntValue());
+    }
+    return data.toByteArray();
+  }
+
+  static Stat parseStat(JsonParser parser) throws IOException {
+    Stat stat = new Stat();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      parser.nextToken();
+      switch (field) {
+        case "czxid":
+          stat.setCzxid(parser.getLongValue());
+          break;
+        case "mzxid":
+          stat.setMzxid(parser.getLongValue());
+          break;
+        case "ctime":
+          stat.setCtime(parser.getLongValue());
+          break;
+        case "mtime":
+          stat.setMtime(parser.getLongValue());
+          break;
+        case "version":
+          stat.setVersion(parser.getIntValue());
+          break;
+        case "cversion":
+          stat.setCversion(parser.getIntValue());
+          break;
+        case "aversion":
+          stat.setAversion(parser.getIntValue());
+          break;
+        case "ephemeralOwner":
+          stat.setEphemeralOwner(parser.getLongValue());
+          break;
+        case "dataLength":
+          stat.setDataLength(parser.getIntValue());
+          break;
+        case "numChildren":
+          stat.setNumChildren(parser.getIntValue());
+          break;
+        case "pzxid":
+          stat.setPzxid(parser.getLongValue());
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+    return stat;
+  }
+
+  /**
+   * Temporary file receiving the data of the znodes.
+   */
+  private static class DataSpill {
+    private OutputStream output;
+    private long offset = 0;
+
+    DataSpill(OutputStream output) {
+      this.output = output;
+    }
+
+    /**
+     * Copy the byte array the parser is positioned at.
+     *
+     * @return Number of bytes copied
+     */
+    int copyArray(JsonParser parser) throws IOException {
+      int length = 0;
+      while (parser.nextToken() != JsonToken.END_ARRAY) {
+        this.output.write(parser.getIntValue());
+        length++;
+      }
+      this.offset += length;
+      return length;
+    }
+
+    /**
+     * Copy a byte array.
+     *
+     * @return Number of bytes copied
+     */
+    int write(byte[] data) throws IOException {
+      this.output.write(data);
+      this.offset += data.length;
+      return data.length;
+    }
+  }
+
+  /**
+   * Znode of the export file, without its data.
+   */
+  private static class IndexedNode {
+    private static final Comparator<IndexedNode> NODE_ORDER = (a, b) -> a.name.compareTo(b.name);
+
+    private String name;
+    private IndexedNode[] children;
+    private List<ACL> acl;
+    private Stat stat;
+    private long dataOffset;
+    // -1 for null data
+    private int dataLength = -1;
+  }
+}
@@ -0,0 +1,439 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.InvalidACLException;
+import org.apache.zookeeper.KeeperException.NoAuthException;
+import org.apache.zookeeper.KeeperException.NodeExistsException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Recreate a znode subtree, read from a tree source such as an export file, on a ZooKeeper
+ * ensemble.
+ *
+ * <p>Znodes are created in pre-order with their data and ACL, grouped in multi transactions.
+ * A bounded number of transactions is kept in flight on the single session of the client,
+ * whose requests ZooKeeper applies in order, so that parents are always created before their
+ * children. A transaction fails as a whole, typically when one of its znodes already exists,
+ * so the znodes of failed transactions are created again one by one once the pipeline is
+ * drained, existing znodes being left untouched.</p>
+ *
+ * <p>The exported ACL of a znode may not grant the importer the CREATE permission, as with
+ * read-only parents, so znodes with children are created with an ACL granting only CREATE and
+ * ADMIN to the importer, and their exported ACL is set once the whole subtree is created,
+ * children before their parents, even if the import fails. Such an ACL requires an
+ * authenticated session, without one znodes with children are created with their exported
+ * ACL.</p>
+ */
+public class ZKImport {
+  private static Logger logger = LogManager.getLogger(ZKImport.class);
+  // ACL of the znodes with children until their exported ACL is set, granted to the importer only
+  private static final List<ACL> PARENT_CREATE_ACL = Collections
+      .singletonList(new ACL(ZooDefs.Perms.CREATE | ZooDefs.Perms.ADMIN, ZooDefs.Ids.AUTH_IDS));
+
+  private ZKClient zk;
+  private int batchSize;
+  private int maxBatchesInFlight;
+  private Semaphore inFlight;
+  private List<CreateEntry> currentBatch = new ArrayList<CreateEntry>();
+  private int currentBatchBytes = 0;
+  private long batchCount = 0;
+  private ConcurrentLinkedQueue<Batch> failedBatches = new ConcurrentLinkedQueue<Batch>();
+  // Znodes with children in post-order, whose exported ACL is set after the import
+  private List<CreateEntry> parentEntries = new ArrayList<CreateEntry>();
+  // Znodes with children whose subtree is being imported, deepest first
+  private Deque<CreateEntry> openParents = new ArrayDeque<CreateEntry>();
+  // Whether the ensemble accepted or rejected PARENT_CREATE_ACL, neither until it is checked
+  private boolean parentACLAccepted = false;
+  private boolean parentACLRejected = false;
+  private AtomicLong createdCount = new AtomicLong();
+  private long existingCount = 0;
+  private long ephemeralCount = 0;
+  private long failedCount = 0;
+
+  /**
+   * Create an importer sending multi transactions to the target ensemble.
+   *
+   * @param zk                 ZooKeeper client connected to the target ensemble
+   * @param batchSize          Maximum number of znodes created per multi transaction
+   * @param maxBatchesInFlight Maximum number of multi transactions sent without waiting for their result
+   */
+  public ZKImport(ZKClient zk, int batchSize, int maxBatchesInFlight) {
+    if (batchSize < 1) {
+      batchSize = ZKPolicyDefs.Import.DEFAULT_BATCH_SIZE;
+    }
+    if (maxBatchesInFlight < 1) {
+      maxBatchesInFlight = ZKPolicyDefs.Import.DEFAULT_MAX_BATCHES_IN_FLIGHT;
+    }
+    this.zk = zk;
+    this.batchSize = batchSize;
+    this.maxBatchesInFlight = maxBatchesInFlight;
+    this.inFlight = new Semaphore(maxBatchesInFlight);
+  }
+
+  /**
+   * Get the number of znodes created on the target ensemble.
+   *
+   * @return Number of created znodes
+   */
+  public long getCreatedCount() {
+    return this.createdCount.get();
+  }
+
+  /**
+   * Get the number of znodes that already existed on the target ensemble and were left untouched.
+   *
+   * @return Number of existing znodes
+   */
+  public long getExistingCount() {
+    return this.existingCount;
+  }
+
+  /**
+   * Get the number of ephemeral znodes of the source, which are not imported.
+   *
+   * @return Number of ephemeral znodes
+   */
+  public long getEphemeralCount() {
+    return this.ephemeralCount;
+  }
+
+  /**
+   * Get the number of znodes that could not be created.
+   *
+   * @return Number of failed znodes
+   */
+  public long getFailedCount() {
+    return this.failedCount;
+  }
+
+  /**
+   * Import the subtree of a source to the target ensemble.
+   *
+   * @param source     Source of the znodes to be imported
+   * @param rootPath   Root path of the subtree in the source
+   * @param targetPath Path of the imported subtree root on the target ensemble, null to keep the source paths
+   * @throws KeeperException
+   * @throws InterruptedException
+   */
+  public void importTree(ZKTreeSource source, String rootPath, String targetPath)
+      throws KeeperException, InterruptedException {
+    String target = targetPath == null ? rootPath : targetPath;
+    try {
+      try (ZKTraversal traversal = new ZKTraversal(source, true)) {
+        ZKTraversalNode root = traversal.start(rootPath);
+        if (this.zk.exists(target, null) != null) {
+          this.existingCount++;
+          this.importChildren(root, rootPath, target);
+        } else {
+          this.importNode(root, rootPath, target);
+        }
+        this.flush();
+      }
+      this.retryFailedBatches();
+    } finally {
+      // Do not leave the created parents with the temporary ACL if the import fails
+      this.setParentACLs();
+    }
+    logger.info("Imported {} znodes to {}, {} already existing, {} ephemeral skipped, {} failed", this.createdCount,
+        target, this.existingCount, this.ephemeralCount, this.failedCount);
+  }
+
+  /**
+   * Recursive function that queues the creation of a znode and its subtree.
+   */
+  private void importNode(ZKTraversalNode node, String rootPath, String targetPath)
+      throws KeeperException, InterruptedException {
+    byte[] data;
+    List<ACL> acl;
+    Stat stat;
+    try {
+      data = node.getData();
+      acl = node.getACL();
+      stat = node.getStat();
+    } catch (NoAuthException e) {
+      System.out.println("WARNING: No READ permission for " + node.getPath() + ", skipping subtree");
+      return;
+    }
+    if (stat.getEphemeralOwner() != 0) {
+      // Ephemeral znodes belong to the sessions of the source ensemble
+      this.ephemeralCount++;
+      return;
+    }
+
+    String path = this.toTargetPath(node.getPath(), rootPath, targetPath);
+    if (stat.getNumChildren() == 0) {
+      this.add(new CreateEntry(path, data, acl, null));
+      return;
+    }
+    this.openParents.push(this.addParent(path, data, acl));
+    this.importChildren(node, rootPath, targetPath);
+    this.parentEntries.add(this.openParents.pop());
+  }
+
+  /**
+   * Queue the creation of a znode with children, with the temporary ACL if the ensemble accepts it.
+   */
+  private CreateEntry addParent(String path, byte[] data, List<ACL> acl) throws KeeperException, InterruptedException {
+    CreateEntry entry;
+    if (this.parentACLAccepted) {
+      entry = new CreateEntry(path, data, PARENT_CREATE_ACL, acl);
+    } else if (this.parentACLRejected) {
+      entry = new CreateEntry(path, data, acl, null);
+    } else {
+      return this.checkParentACL(path, data, acl);
+    }
+    this.add(entry);
+    return entry;
+  }
+
+  /**
+   * Create a znode with children synchronously with the temporary ACL, to find out whether the
+   * ensemble accepts it. The auth scheme of the ACL is rejected for unauthenticated sessions.
+   */
+  private CreateEntry checkParentACL(String path, byte[] data, List<ACL> acl)
+      throws KeeperException, InterruptedException {
+    // The parent of the znode must be created first
+    this.flush();
+    this.retryFailedBatches();
+    CreateEntry entry = new CreateEntry(path, data, PARENT_CREATE_ACL, acl);
+    try {
+      this.zk.create(path, data, PARENT_CREATE_ACL, CreateMode.PERSISTENT);
+      entry.created = true;
+      this.createdCount.incrementAndGet();
+      this.parentACLAccepted = true;
+    } catch (InvalidACLException e) {
+      System.out.println("WARNING: The session is not authenticated, znodes with children are created with their"
+          + " exported ACL and children of read-only parents cannot be imported");
+      this.parentACLRejected = true;
+      entry = new CreateEntry(path, data, acl, null);
+      this.add(entry);
+    } catch (NodeExistsException e) {
+      this.existingCount++;
+    } catch (KeeperException e) {
+      System.out.println("WARNING: Failed to import " + path + ": " + e.code());
+      this.failedCount++;
+    }
+    return entry;
+  }
+
+  private void importChildren(ZKTraversalNode node, String rootPath, String targetPath)
+      throws KeeperException, InterruptedException {
+    List<ZKTraversalNode> children;
+    try {
+      children = node.getChildNodes();
+    } catch (NoAuthException e) {
+      System.out.println("WARNING: No READ permission for " + node.getPath() + ", skipping subtree");
+      return;
+    }
+    for (ZKTraversalNode child : children) {
+      this.importNode(child, rootPath, targetPath);
+    }
+  }
+
+  /**
+   * Replace the root path prefix of a source path with the target path.
+   */
+  private String toTargetPath(String path, String rootPath, String targetPath) {
+    if (path.equals(rootPath)) {
+      return targetPath;
+    }
+    String relativePath = rootPath.equals("/") ? path : path.substring(rootPath.length());
+    return targetPath.equals("/") ? relativePath : targetPath + relativePath;
+  }
+
+  private void add(CreateEntry entry) throws InterruptedException {
+    int dataLength = entry.data == null ? 0 : entry.data.length;
+    // Keep transactions below the request size limit of ZooKeeper
+    if (!this.currentBatch.isEmpty() && this.currentBatchBytes + dataLength > ZKPolicyDefs.Import.MAX_BATCH_BYTES) {
+      this.submit();
+    }
+    this.currentBatch.add(entry);
+    this.currentBatchBytes += dataLength;
+    if (this.currentBatch.size() >= this.batchSize) {
+      this.submit();
+    }
+  }
+
+  private void submit() throws InterruptedException {
+    this.inFlight.acquire();
+    Batch batch = new Batch(this.batchCount++, this.currentBatch);
+    this.currentBatch = new ArrayList<CreateEntry>();
+    this.currentBatchBytes = 0;
+    List<Op> ops = new ArrayList<Op>(batch.entries.size());
+    for (CreateEntry entry : batch.entries) {
+      ops.add(Op.create(entry.path, entry.data, entry.acl, CreateMode.PERSISTENT));
+    }
+    this.zk.multi(ops, new AsyncCallback.MultiCallback() {
+      @Override
+      public void processResult(int rc, String path, Object ctx, List<OpResult> opResults) {
+        if (rc == KeeperException.Code.OK.intValue()) {
+          for (CreateEntry entry : batch.entries) {
+            entry.created = true;
+          }
+          ZKImport.this.createdCount.addAndGet(batch.entries.size());
+        } else {
+          ZKImport.this.failedBatches.add(batch);
+        }
+        ZKImport.this.inFlight.release();
+      }
+    }, null);
+  }
+
+  /**
+   * Submit the pending znodes and wait until every submitted transaction is processed.
+   */
+  private void flush() throws InterruptedException {
+    if (!this.currentBatch.isEmpty()) {
+      this.submit();
+    }
+    this.inFlight.acquire(this.maxBatchesInFlight);
+    this.inFlight.release(this.maxBatchesInFlight);
+  }
+
+  /**
+   * Create the znodes of the failed transactions one by one, in their original order so that
+   * parents are still created before their children.
+   */
+  private void retryFailedBatches() throws InterruptedException {
+    if (this.failedBatches.isEmpty()) {
+      return;
+    }
+    PriorityQueue<Batch> batches = new PriorityQueue<Batch>((a, b) -> Long.compare(a.sequence, b.sequence));
+    batches.addAll(this.failedBatches);
+    this.failedBatches.clear();
+    logger.info("Creating the znodes of {} failed transactions one by one", batches.size());
+
+    int maxOpsInFlight = this.batchSize * this.maxBatchesInFlight;
+    Semaphore opsInFlight = new Semaphore(maxOpsInFlight);
+    ConcurrentLinkedQueue<OpResultEntry> results = new ConcurrentLinkedQueue<OpResultEntry>();
+    while (!batches.isEmpty()) {
+      for (CreateEntry entry : batches.poll().entries) {
+        opsInFlight.acquire();
+        this.zk.create(entry.path, entry.data, entry.acl, CreateMode.PERSISTENT, new AsyncCallback.StringCallback() {
+          @Override
+          public void processResult(int rc, String path, Object ctx, String name) {
+            entry.created = rc == KeeperException.Code.OK.intValue();
+            results.add(new OpResultEntry(path, rc));
+            opsInFlight.release();
+          }
+        }, null);
+      }
+    }
+    opsInFlight.acquire(maxOpsInFlight);
+    opsInFlight.release(maxOpsInFlight);
+
+    for (OpResultEntry result : results) {
+      if (result.rc == KeeperException.Code.OK.intValue()) {
+        this.createdCount.incrementAndGet();
+      } else if (result.rc == KeeperException.Code.NODEEXISTS.intValue()) {
+        this.existingCount++;
+      } else {
+        System.out.println("WARNING: Failed to import " + result.path + ": " + KeeperException.Code.get(result.rc));
+        this.failedCount++;
+      }
+    }
+  }
+
+  /**
+   * Set the exported ACL of the created znodes with children, in post-order, including the
+   * parents whose subtree was not fully imported.
+   */
+  private void setParentACLs() throws InterruptedException {
+    // Transactions still in flight if the import failed may create more parents
+    this.inFlight.acquireUninterruptibly(this.maxBatchesInFlight);
+    this.inFlight.release(this.maxBatchesInFlight);
+    while (!this.openParents.isEmpty()) {
+      this.parentEntries.add(this.openParents.pop());
+    }
+
+    int maxOpsInFlight = this.batchSize * this.maxBatchesInFlight;
+    Semaphore opsInFlight = new Semaphore(maxOpsInFlight);
+    ConcurrentLinkedQueue<OpResultEntry> results = new ConcurrentLinkedQueue<OpResultEntry>();
+    for (CreateEntry entry : this.parentEntries) {
+      if (!entry.created || entry.finalACL == null) {
+        continue;
+      }
+      opsInFlight.acquire();
+      // Version 0 as the ACL of the created znode is not expected to change in between
+      this.zk.setACL(entry.path, entry.finalACL, 0, new AsyncCallback.StatCallback() {
+        @Override
+        public void processResult(int rc, String path, Object ctx, Stat stat) {
+          results.add(new OpResultEntry(path, rc));
+          opsInFlight.release();
+        }
+      }, null);
+    }
+    opsInFlight.acquire(maxOpsInFlight);
+    opsInFlight.release(maxOpsInFlight);
+    this.parentEntries.clear();
+
+    for (OpResultEntry result : results) {
+      if (result.rc != KeeperException.Code.OK.intValue()) {
+        System.out.println("WARNING: Failed to set the exported ACL of " + result.path
+            + ", only the importer is granted CREATE and ADMIN: " + KeeperException.Code.get(result.rc));
+        this.failedCount++;
+      }
+    }
+  }
+
+  private static class Batch {
+    private long sequence;
+    private List<CreateEntry> entries;
+
+    Batch(long sequence, List<CreateEntry> entries) {
+      this.sequence = sequence;
+      this.entries = entries;
+    }
+  }
+
+  private static class CreateEntry {
+    private String path;
+    private byte[] data;
+    private List<ACL> acl;
+    // Exported ACL set after the subtree is created, null if created with it
+    private List<ACL> finalACL;
+    private volatile boolean created;
+
+    CreateEntry(String path, byte[] data, List<ACL> acl, List<ACL> finalACL) {
+      this.path = path;
+      this.data = data;
+      this.acl = acl;
+      this.finalACL = finalACL;
+    }
+  }
+
+  private static class OpResultEntry {
+    private String path;
+    private int rc;
+
+    OpResultEntry(String path, int rc) {
+      this.path = path;
+      this.rc = rc;
+    }
+  }
+}
@@ -0,0 +1,60 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.io.File;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.ParentCommand;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import ch.cern.ZKPolicyDefs.Cli.Import;
+
+@Command(name = "import", aliases = { "i" }, description = Import.DESCRIPTION, mixinStandardHelpOptions = true)
+public class ZKImportCli implements Runnable {
+  private static Logger logger = LogManager.getLogger(ZKImportCli.class);
+
+  @ParentCommand
+  private ZKPolicyCli parent;
+
+  @Option(names = { "-i", "--input" }, required = true, description = Import.INPUT_DESCRIPTION)
+  File inputFile;
+
+  @Option(names = { "-p", "--target-path" }, description = Import.TARGET_PATH_DESCRIPTION)
+  String targetPath;
+
+  @Option(names = { "-b", "--batch-size" }, description = Import.BATCH_SIZE_DESCRIPTION)
+  int batchSize = ZKPolicyDefs.Import.DEFAULT_BATCH_SIZE;
+
+  @Option(names = { "-m", "--max-in-flight" }, description = Import.MAX_IN_FLIGHT_DESCRIPTION)
+  int maxInFlight = ZKPolicyDefs.Import.DEFAULT_MAX_BATCHES_IN_FLIGHT;
+
+  @Override
+  public void run() {
+    ZKConfig config = null;
+    try {
+      config = new ZKConfig(parent.configFile);
+    } catch (Exception e) {
+      System.out.println(e.toString());
+    }
+    if (config != null) {
+      try (ZKExportFileSource source = new ZKExportFileSource(config, this.inputFile);
+          ZKClient zk = new ZKClient(config)) {
+        ZKImport zkImport = new ZKImport(zk, this.batchSize, this.maxInFlight);
+        zkImport.importTree(source, source.getRootPath(), this.targetPath);
+        System.out.println("Created " + zkImport.getCreatedCount() + " znodes, " + zkImport.getExistingCount()
+            + " already existing, " + zkImport.getEphemeralCount() + " ephemeral skipped, " + zkImport.getFailedCount()
+            + " failed");
+      } catch (Exception e) {
+        System.out.println(e.toString());
+        logger.error("Exception occurred!", e);
+      }
+    }
+  }
+}
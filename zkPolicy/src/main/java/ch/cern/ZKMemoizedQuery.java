@@ -0,0 +1,79 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.zookeeper.data.ACL;
+
+/**
+ * Compiled query whose results are memoised per distinct ACL list.
+ *
+ * <p>Only used for queries that depend on nothing but the znode and parent ACL lists,
+ * regardless of the order of their entries. The result for a pair of lists interned by the
+ * {@link ZKACLDictionary} is computed once and looked up by their canonical IDs for every
+ * other znode. Lists that are not interned are passed to the wrapped query.</p>
+ */
+public class ZKMemoizedQuery implements ZKCompiledQuery {
+  // Marks the missing parent ACL list of the evaluations without parent
+  private static final int NO_PARENT = -1;
+
+  private ZKCompiledQuery query;
+  private ZKACLDictionary dictionary;
+  private Map<Long, Boolean> results = new ConcurrentHashMap<Long, Boolean>();
+
+  /**
+   * Memoise the results of a compiled query.
+   *
+   * @param query      Compiled query depending only on the ACL lists
+   * @param dictionary Dictionary interning the evaluated ACL lists
+   */
+  public ZKMemoizedQuery(ZKCompiledQuery query, ZKACLDictionary dictionary) {
+    this.query = query;
+    this.dictionary = dictionary;
+  }
+
+  @Override
+  public boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKTreeSource zk) {
+    int aclId = this.dictionary.getCanonicalId(aclList);
+    int parentAclId = parentAclList == null ? NO_PARENT : this.dictionary.getCanonicalId(parentAclList);
+    if (aclId < 0 || parentAclList != null && parentAclId < 0) {
+      return this.query.query(aclList, parentAclList, path, zk);
+    }
+    Long key = ((long) aclId << 32) | (parentAclId & 0xffffffffL);
+    Boolean result = this.results.get(key);
+    if (result == null) {
+      result = this.query.query(aclList, parentAclList, path, zk);
+      if (this.results.size() < ZKPolicyDefs.ACLDictionary.MAX_MEMOIZED_RESULTS) {
+        this.results.put(key, result);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public boolean mayMatchSubtree(String path) {
+    return this.query.mayMatchSubtree(path);
+  }
+
+  @Override
+  public void logStatistics() {
+    this.query.logStatistics();
+  }
+
+  /**
+   * Get the number of memoised results.
+   *
+   * @return Number of distinct evaluated ACL lists or pairs of lists
+   */
+  public int size() {
+    return this.results.size();
+  }
+}
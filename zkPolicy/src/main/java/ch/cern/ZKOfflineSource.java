@@ -0,0 +1,176 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.common.PathUtils;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Base class of the sources serving the znode tree from a local copy, without connection
+ * to a ZooKeeper server.
+ *
+ * <p>Implementations provide synchronous lookups of a znode. Asynchronous requests are
+ * executed on a dedicated thread, like the event thread of the ZooKeeper client, so that
+ * callbacks never run in the thread that sent the request.</p>
+ */
+public abstract class ZKOfflineSource implements ZKTreeSource {
+  private ZKConfig zkpConfig;
+  private ExecutorService eventThread;
+
+  protected ZKOfflineSource(ZKConfig config) {
+    this.zkpConfig = config;
+    this.eventThread = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "zkpolicy-offline-source");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Use the local copy as baseline of a traversal, to skip the requests for unchanged data and
+   * children.
+   *
+   * @return Baseline view of the local copy
+   */
+  public ZKTraversal.Baseline asBaseline() {
+    return new ZKTraversal.Baseline() {
+      @Override
+      public Stat getStat(String path) {
+        try {
+          return ZKOfflineSource.this.getStat(path);
+        } catch (KeeperException e) {
+          return null;
+        }
+      }
+
+      @Override
+      public List<String> getChildren(String path) {
+        try {
+          return ZKOfflineSource.this.getChildren(path, null);
+        } catch (KeeperException e) {
+          return null;
+        }
+      }
+    };
+  }
+
+  @Override
+  public ZKConfig getZKPConfig() {
+    return this.zkpConfig;
+  }
+
+  @Override
+  public Stat exists(String path, Watcher watcher) throws KeeperException, InterruptedException {
+    PathUtils.validatePath(path);
+    try {
+      return this.getStat(path);
+    } catch (KeeperException.NoNodeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Get the stat of a znode.
+   *
+   * @param path Znode path
+   * @return Znode Stat
+   * @throws KeeperException NoNodeException if the znode does not exist
+   */
+  protected abstract Stat getStat(String path) throws KeeperException;
+
+  /**
+   * Get the children of a znode.
+   *
+   * @param path Znode path
+   * @param stat Stat to be filled in with the znode stat
+   * @return List of children names
+   * @throws KeeperException
+   */
+  protected abstract List<String> getChildren(String path, Stat stat) throws KeeperException;
+
+  @Override
+  public void getChildren(String path, boolean watch, AsyncCallback.Children2Callback cb, Object ctx) {
+    this.eventThread.execute(() -> {
+      Stat stat = new Stat();
+      try {
+        List<String> children = this.getChildren(path, stat);
+        cb.processResult(KeeperException.Code.OK.intValue(), path, ctx, children, stat);
+      } catch (KeeperException e) {
+        cb.processResult(e.code().intValue(), path, ctx, null, null);
+      }
+    });
+  }
+
+  /**
+   * Get the ACL of a znode.
+   *
+   * @param path Znode path
+   * @param stat Stat to be filled in with the znode stat
+   * @return ACL list
+   * @throws KeeperException
+   */
+  protected abstract List<ACL> getACL(String path, Stat stat) throws KeeperException;
+
+  @Override
+  public void getACL(String path, Stat stat, AsyncCallback.ACLCallback cb, Object ctx) {
+    this.eventThread.execute(() -> {
+      Stat aclStat = stat == null ? new Stat() : stat;
+      try {
+        List<ACL> acl = this.getACL(path, aclStat);
+        cb.processResult(KeeperException.Code.OK.intValue(), path, ctx, acl, aclStat);
+      } catch (KeeperException e) {
+        cb.processResult(e.code().intValue(), path, ctx, null, null);
+      }
+    });
+  }
+
+  /**
+   * Get the data of a znode.
+   *
+   * @param path Znode path
+   * @param stat Stat to be filled in with the znode stat
+   * @return Znode data
+   * @throws KeeperException
+   */
+  protected abstract byte[] getData(String path, Stat stat) throws KeeperException;
+
+  @Override
+  public void getData(String path, boolean watch, AsyncCallback.DataCallback cb, Object ctx) {
+    this.eventThread.execute(() -> {
+      Stat stat = new Stat();
+      try {
+        byte[] data = this.getData(path, stat);
+        cb.processResult(KeeperException.Code.OK.intValue(), path, ctx, data, stat);
+      } catch (KeeperException e) {
+        cb.processResult(e.code().intValue(), path, ctx, null, null);
+      }
+    });
+  }
+
+  /**
+   * Release the resources of the local copy.
+   */
+  protected void release() {
+  }
+
+  @Override
+  public void close() throws InterruptedException {
+    this.eventThread.shutdown();
+    this.eventThread.awaitTermination(1, TimeUnit.MINUTES);
+    this.release();
+  }
+}
@@ -0,0 +1,135 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Index of path patterns that matches a znode path against all patterns at once.
+ *
+ * <p>Patterns are stored in a prefix tree keyed by their literal prefix. Matching a path
+ * walks the prefix tree along the path characters, so that only patterns whose literal
+ * prefix is a prefix of the path are evaluated. Patterns that are plain literals are
+ * matched by the walk itself, without evaluating a regular expression.</p>
+ *
+ * <p>The literal prefixes also tell which subtrees can never contain a matching path, so
+ * that a traversal can skip them.</p>
+ */
+public class ZKPathPatternIndex {
+  private List<Pattern> patterns;
+  private PrefixNode root = new PrefixNode();
+
+  /**
+   * Build the index of a list of compiled path patterns.
+   *
+   * @param patterns Path patterns, identified by their position in the list
+   */
+  public ZKPathPatternIndex(List<Pattern> patterns) {
+    this.patterns = patterns;
+    for (int i = 0; i < patterns.size(); i++) {
+      String regex = patterns.get(i).pattern();
+      // Flags such as CASE_INSENSITIVE change the meaning of the literal characters
+      boolean plain = patterns.get(i).flags() == 0;
+      boolean literal = plain && ZKPattern.isLiteral(regex);
+      String prefix = plain ? ZKPattern.literalPrefix(regex) : "";
+      PrefixNode node = this.root;
+      for (char ch : prefix.toCharArray()) {
+        PrefixNode next = node.children.get(ch);
+        if (next == null) {
+          next = new PrefixNode();
+          node.children.put(ch, next);
+        }
+        node = next;
+      }
+      if (literal) {
+        node.literalPatterns.add(i);
+      } else {
+        node.regexPatterns.add(i);
+      }
+    }
+  }
+
+  /**
+   * Get the number of indexed patterns.
+   *
+   * @return Number of patterns
+   */
+  public int size() {
+    return this.patterns.size();
+  }
+
+  /**
+   * Match a path against all indexed patterns.
+   *
+   * @param path Znode path
+   * @return Set of the positions of the patterns fully matching the path
+   */
+  public BitSet match(String path) {
+    BitSet matches = new BitSet(this.patterns.size());
+    PrefixNode node = this.root;
+    int depth = 0;
+    while (true) {
+      for (int index : node.regexPatterns) {
+        if (this.patterns.get(index).matcher(path).matches()) {
+          matches.set(index);
+        }
+      }
+      if (depth == path.length()) {
+        for (int index : node.literalPatterns) {
+          matches.set(index);
+        }
+        break;
+      }
+      node = node.children.get(path.charAt(depth++));
+      if (node == null) {
+        break;
+      }
+    }
+    return matches;
+  }
+
+  /**
+   * Check whether any indexed pattern may match a path or the path of one of its
+   * descendants.
+   *
+   * @param path Znode path
+   * @return False if no pattern can match a path of the subtree
+   */
+  public boolean mayMatchSubtree(String path) {
+    PrefixNode node = this.root;
+    for (int depth = 0; depth < path.length(); depth++) {
+      if (!node.regexPatterns.isEmpty()) {
+        // The literal prefix of a regex is a prefix of the path
+        return true;
+      }
+      node = node.children.get(path.charAt(depth));
+      if (node == null) {
+        return false;
+      }
+    }
+    if (!node.regexPatterns.isEmpty() || !node.literalPatterns.isEmpty()) {
+      return true;
+    }
+    // Descendant paths continue with a separator, except for the root znode
+    if (path.equals("/")) {
+      return !node.children.isEmpty();
+    }
+    return node.children.containsKey('/');
+  }
+
+  private static class PrefixNode {
+    private HashMap<Character, PrefixNode> children = new HashMap<Character, PrefixNode>();
+    private List<Integer> regexPatterns = new ArrayList<Integer>();
+    private List<Integer> literalPatterns = new ArrayList<Integer>();
+  }
+}
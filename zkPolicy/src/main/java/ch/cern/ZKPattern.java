@@ -13,6 +13,7 @@ import java.util.List;
 import java.util.regex.Pattern;
 
 public class ZKPattern {
+  private static final String REGEX_METACHARACTERS = "\\^$.|?*+()[]{}";
 
   /**
    * Create a list of Pattern objects from a list of glob expression strings.
@@ -47,6 +48,80 @@ public class ZKPattern {
     return queryPatternList;
   }
 
+  /**
+   * Get the literal prefix that every string matching a regular expression starts with.
+   * The prefix is conservative: constructs that are not plain or escaped characters end it.
+   *
+   * @param regex Regular expression string
+   * @return Literal prefix, empty if the expression does not start with a literal
+   */
+  public static String literalPrefix(String regex) {
+    StringBuilder prefix = new StringBuilder();
+    scanLiteralPrefix(regex, prefix);
+    return prefix.toString();
+  }
+
+  /**
+   * Check whether a regular expression only matches a single literal string.
+   *
+   * @param regex Regular expression string
+   * @return True if the expression consists of plain or escaped characters only
+   */
+  public static boolean isLiteral(String regex) {
+    return scanLiteralPrefix(regex, new StringBuilder());
+  }
+
+  private static boolean scanLiteralPrefix(String regex, StringBuilder prefix) {
+    if (hasTopLevelAlternation(regex)) {
+      return false;
+    }
+    // Pattern.matches is anchored, so a leading ^ does not change the matched strings
+    int i = regex.startsWith("^") ? 1 : 0;
+    int lengthBeforeLast = 0;
+    while (i < regex.length()) {
+      char ch = regex.charAt(i);
+      char literal;
+      if (ch == '\\' && i + 1 < regex.length() && !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+        literal = regex.charAt(i + 1);
+        i += 2;
+      } else if (REGEX_METACHARACTERS.indexOf(ch) == -1) {
+        literal = ch;
+        i++;
+      } else {
+        if (ch == '?' || ch == '*' || ch == '{') {
+          // The quantifier makes the last literal character optional
+          prefix.setLength(lengthBeforeLast);
+        }
+        return false;
+      }
+      lengthBeforeLast = prefix.length();
+      prefix.append(literal);
+    }
+    return true;
+  }
+
+  private static boolean hasTopLevelAlternation(String regex) {
+    int depth = 0;
+    boolean inClass = false;
+    for (int i = 0; i < regex.length(); i++) {
+      char ch = regex.charAt(i);
+      if (ch == '\\') {
+        i++;
+      } else if (inClass) {
+        inClass = ch != ']';
+      } else if (ch == '[') {
+        inClass = true;
+      } else if (ch == '(') {
+        depth++;
+      } else if (ch == ')') {
+        depth--;
+      } else if (ch == '|' && depth == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   private static String globToRegex(String pattern) {
     StringBuilder sb = new StringBuilder(pattern.length());
     int inGroup = 0;
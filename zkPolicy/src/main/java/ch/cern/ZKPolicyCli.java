@@ -10,6 +10,7 @@ package ch.cern;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 import java.util.Properties;
 import lombok.NoArgsConstructor;
 import picocli.CommandLine;
@@ -25,7 +26,7 @@ import ch.cern.ZKPolicyDefs.Cli.ZkPolicy;
 
 @Command(name = "zkpolicy", description = ZkPolicy.DESCRIPTION, versionProvider = ZKPolicyCli.PropertiesVersionProvider.class, subcommands = {
     ZKQueryCli.class, ZKExportCli.class, ZKTreeCli.class, ZKEnforceCli.class, ZKAuditCli.class, ZKCheckCli.class,
-    ZKRollbackCli.class, ZKPurgeRollbackCli.class, HelpCommand.class }, mixinStandardHelpOptions = true)
+    ZKRollbackCli.class, ZKPurgeRollbackCli.class, ZKImportCli.class, ZKWatchCli.class, HelpCommand.class }, mixinStandardHelpOptions = true)
 /**
  * Class that handles CLI arguments for the tool.
  */
@@ -39,6 +40,25 @@ public class ZKPolicyCli implements Runnable {
       "--jaas" }, required = false, description = ZkPolicy.JAAS_FILE_DESCRIPTION, scope = ScopeType.INHERIT)
   public File jaasFile;
 
+  @Option(names = { "--snapshot-dir" }, required = false, description = ZkPolicy.SNAPSHOT_DIR_DESCRIPTION,
+      scope = ScopeType.INHERIT)
+  public File snapshotDir;
+
+  @Option(names = { "--txn-log-dir" }, required = false, description = ZkPolicy.TXN_LOG_DIR_DESCRIPTION,
+      scope = ScopeType.INHERIT)
+  public File txnLogDir;
+
+  @Option(names = { "--zxid" }, required = false, description = ZkPolicy.ZXID_DESCRIPTION, scope = ScopeType.INHERIT)
+  public String zxid;
+
+  @Option(names = { "--export-file" }, required = false, description = ZkPolicy.EXPORT_FILE_DESCRIPTION,
+      scope = ScopeType.INHERIT)
+  public File exportFile;
+
+  @Option(names = { "--delta-file" }, required = false, arity = "1..*", description = ZkPolicy.DELTA_FILE_DESCRIPTION,
+      scope = ScopeType.INHERIT)
+  public List<File> deltaFiles;
+
   @Spec
   CommandSpec spec;
 
@@ -60,6 +80,35 @@ public class ZKPolicyCli implements Runnable {
     }
   }
 
+  /**
+   * Open the source of the znode tree: the offline snapshot if a snapshot directory was
+   * passed, the export file with its delta files merged onto it if one was passed, a
+   * ZooKeeper client or a pool of sessions connected to the configured servers otherwise.
+   *
+   * @param config Configuration instance
+   * @return Source of the znode tree, to be closed by the caller
+   * @throws IOException
+   */
+  public ZKTreeSource openTreeSource(ZKConfig config) throws IOException {
+    if (this.snapshotDir != null && this.exportFile != null) {
+      throw new IllegalArgumentException("Only one of --snapshot-dir and --export-file can be used");
+    }
+    if (this.deltaFiles != null && this.exportFile == null) {
+      throw new IllegalArgumentException("--delta-file can only be used with --export-file");
+    }
+    if (this.exportFile != null) {
+      return ZKDeltaSource.open(config, this.exportFile, this.deltaFiles);
+    }
+    if (this.snapshotDir == null && config.getSessionPoolSize() > 1) {
+      return new ZKClientPool(config, config.getSessionPoolSize());
+    }
+    if (this.snapshotDir == null) {
+      return new ZKReconnectingSource(config);
+    }
+    long maxZxid = this.zxid == null ? Long.MAX_VALUE : Long.decode(this.zxid);
+    return new ZKSnapshotSource(config, this.snapshotDir, this.txnLogDir, maxZxid);
+  }
+
   static class PropertiesVersionProvider implements IVersionProvider {
     public String[] getVersion() throws Exception {
       final Properties properties = new Properties();
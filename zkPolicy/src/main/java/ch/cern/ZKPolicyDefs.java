@@ -18,7 +18,7 @@ import lombok.Getter;
 public class ZKPolicyDefs {
 
   enum ExportFormats {
-    json, yaml
+    json, yaml, binary
   }
 
   enum CheckResults {
@@ -74,6 +74,16 @@ public class ZKPolicyDefs {
       static final String CONFIG_DESCRIPTION = "YAML configuration file to use (default: ${DEFAULT-VALUE})";
       static final String CONFIG_DEFAULT = "/opt/zkpolicy/conf/config.yml";
       static final String JAAS_FILE_DESCRIPTION = "JAAS file to be used during ZooKeeper authentication";
+      static final String SNAPSHOT_DIR_DESCRIPTION = "Run offline on the latest snapshot of a ZooKeeper dataDir instead of "
+          + "connecting to the servers (query, tree, check, audit and export)";
+      static final String TXN_LOG_DIR_DESCRIPTION = "Transaction log directory replayed on the snapshot "
+          + "(default: snapshot directory)";
+      static final String ZXID_DESCRIPTION = "Replay transactions up to this zxid, decimal or 0x prefixed hexadecimal "
+          + "(default: all)";
+      static final String EXPORT_FILE_DESCRIPTION = "Run offline on a file written by the export command instead of "
+          + "connecting to the servers (query, tree, check, audit and export)";
+      static final String DELTA_FILE_DESCRIPTION = "Delta files written by incremental exports, merged in order onto "
+          + "the export file";
     }
 
     static class Audit {
@@ -102,8 +112,14 @@ public class ZKPolicyDefs {
       static final String ARGS_DESCRIPTION = "Query arguments";
       static final String APPEND_DESCRIPTION = "Append policy ACLs to matching znode's ACL (default: false)";
       static final String DRY_RUN_DESCRIPTION = "Execute enforce in dry-run (show affected nodes without applying changes)";
+      static final String COMPARE_AND_SET_DESCRIPTION = "Set ACLs only if unchanged since read, re-evaluating the query "
+          + "for concurrently modified znodes (default: false)";
       static final String ROLLBACK_EXPORT_DESCRIPTION = "File to save pre-enforce state of altered znodes for rollback "
           + "(default: /opt/zkpolicy/rollback/ROLLBACK_STATE_<DATETIME>.yml)";
+      static final String RESUME_DESCRIPTION = "Resume an interrupted enforcement from the checkpoint saved next to its "
+          + "rollback file (default: false)";
+      static final String RESUME_WITHOUT_ROLLBACK_MESSAGE = "The rollback file of the interrupted enforcement must be "
+          + "passed with --rollback-export to resume it";
       static final String SERVICE_POLICY_DESCRIPTION = "Enforce default policy for a specific service. Available services: ${COMPLETION-CANDIDATES}";
       static final String SERVICE_POLICIES_DIR_DESCRIPTION = "Directory for service policies";
       static final String SERVICE_POLICIES_DIR_DEFAULT = "/opt/zkpolicy/conf/policies/";
@@ -113,11 +129,24 @@ public class ZKPolicyDefs {
       static final String DESCRIPTION = "Export the znode tree";
       static final String TYPE_DESCRIPTION = "Output file format ${COMPLETION-CANDIDATES} (default: json)";
       static final String COMPACT_DESCRIPTION = "Minified export (default: false)";
+      static final String BASE64_DATA_DESCRIPTION = "Write znode data as base64 in json and yaml exports (default: false)";
+      static final String BASELINE_DESCRIPTION = "Write only the changes since a previous export, given as the full "
+          + "export file followed by the delta files of later incremental exports (json and yaml only)";
+      static final String GZIP_DESCRIPTION = "Compress binary exports with gzip (default: false)";
       static final String OUTPUT_DESCRIPTION = "Output file destination";
       static final String OUTPUT_DEFAULT = "./zkpolicy_export.out";
       static final String ROOT_PATH_DESCRIPTION = "Root path for exported subtree";
     }
 
+    static class Import {
+      static final String DESCRIPTION = "Recreate a znode subtree from an export file";
+      static final String INPUT_DESCRIPTION = "Export file to be imported (json, yaml or binary)";
+      static final String TARGET_PATH_DESCRIPTION = "Path of the imported subtree root (default: path of the exported root)";
+      static final String BATCH_SIZE_DESCRIPTION = "Number of znodes created per multi transaction (default: ${DEFAULT-VALUE})";
+      static final String MAX_IN_FLIGHT_DESCRIPTION = "Number of multi transactions sent without waiting for their result "
+          + "(default: ${DEFAULT-VALUE})";
+    }
+
     static class Query {
       static final String DESCRIPTION = "Query the znode tree";
       static final String QUERY_NAME_DESCRIPTION = "Query to be executed: ${COMPLETION-CANDIDATES}";
@@ -133,19 +162,120 @@ public class ZKPolicyDefs {
       static final String ROOT_PATH_DESCRIPTION = "Root path of requested subtree";
     }
 
+    static class Watch {
+      static final String DESCRIPTION = "Continuously evaluate the queries and checks of an audit configuration";
+      static final String INPUT_DESCRIPTION = "Audit configuration file with the queries and checks to evaluate "
+          + "(default: ${DEFAULT-VALUE})";
+      static final String SWEEP_INTERVAL_DESCRIPTION = "Seconds between two reads of the ACLs of all watched znodes, "
+          + "detecting ACL changes that trigger no watch event, 0 to disable (default: ${DEFAULT-VALUE})";
+      static final String POLICIES_DESCRIPTION = "File with policy definitions enforced on created znodes and on znodes "
+          + "whose ACL changed";
+      static final String ROLLBACK_EXPORT_DESCRIPTION = "File to save pre-enforce state of remediated znodes for rollback "
+          + "(default: /opt/zkpolicy/rollback/ROLLBACK_STATE_<DATETIME>.yml)";
+      static final String MAX_WRITES_DESCRIPTION = "Maximum number of setACL requests per second sent by remediation "
+          + "(default: ${DEFAULT-VALUE})";
+    }
+
     static class Rollback {
       static final String DESCRIPTION = "Rollback ACLs to pre enforce state";
       static final String INPUT_STATE_DESCRIPTION = "File with ZooKeeper tree state before enforcing";
+      static final String MAX_IN_FLIGHT_DESCRIPTION = "Maximum number of setACL requests sent without waiting for"
+          + " their result (default: 1000)";
+      static final String VERSION_CHECK_DESCRIPTION = "Only restore the ACL of znodes not modified since the enforcement";
+      static final String REPORT_DESCRIPTION = "File the result of the rollback of each znode is written to";
     }
 
     static class PurgeRollback {
       static final String DESCRIPTION = "Purge rollback snapshots, retaining a user defined number";
       static final String RETAIN_CNT_DESCRIPTION = "Number of rollback snapshots to retain after purging";
+      static final String MAX_AGE_DESCRIPTION = "Purge rollback snapshots older than the passed number of days";
+      static final String MAX_SIZE_DESCRIPTION = "Purge the oldest rollback snapshots until their total size is at most"
+          + " the passed number of megabytes";
+      static final String COMPACT_DESCRIPTION = "Compact the retained rollback snapshots, keeping the first entry of each znode";
+      static final String NO_ACTION_MESSAGE = "Nothing to do, pass at least one of --retain-count, --max-age,"
+          + " --max-size or --compact";
       static final String ROLLBACK_DIR_DESCRIPTION = "Rollback snapshots directory (default: ${DEFAULT-VALUE})";
       static final String ROLLBACK_DIR_DEFAULT = "/opt/zkpolicy/rollback";
     }
   }
 
+  static class Traversal {
+    // Number of znodes with outstanding asynchronous read requests
+    static final int DEFAULT_MAX_IN_FLIGHT = 64;
+    // Number of fetched but not yet visited znodes allowed per in-flight slot
+    static final int PREFETCH_FACTOR = 16;
+    // Number of ZooKeeper sessions reading the tree in parallel, a single session by default
+    static final int DEFAULT_SESSION_POOL_SIZE = 1;
+    // Excess of outstanding znodes over the least loaded session above which a subtree moves to it
+    static final int SESSION_STEAL_THRESHOLD = 16;
+    // Number of threads walking sibling subtrees of query and check in parallel, sequential by default
+    static final int DEFAULT_THREADS = 1;
+    // Number of threads evaluating the queries of find walks, evaluated by the walking thread by default
+    static final int DEFAULT_EVALUATION_THREADS = 1;
+    // Number of znodes evaluated together by an evaluation thread
+    static final int EVALUATION_BATCH_SIZE = 256;
+    // Number of znode batches per evaluation thread queued before the walk waits for the oldest one
+    static final int EVALUATION_QUEUE_FACTOR = 4;
+  }
+
+  static class ACLDictionary {
+    // Number of distinct ACL lists interned, later lists being evaluated without memoisation
+    static final int MAX_INTERNED_LISTS = 100000;
+    // Number of results memoised per compiled query
+    static final int MAX_MEMOIZED_RESULTS = 100000;
+    // Number of (query ACL, znode ACL entry) satisfaction results cached per compiled query
+    static final int MAX_SATISFY_RESULTS = 100000;
+  }
+
+  static class Import {
+    // Number of znodes created in a single multi transaction
+    static final int DEFAULT_BATCH_SIZE = 500;
+    // Number of multi transactions submitted without waiting for their result
+    static final int DEFAULT_MAX_BATCHES_IN_FLIGHT = 16;
+    // Data size of a multi transaction, below the default 1 MB jute.maxbuffer request limit
+    static final int MAX_BATCH_BYTES = 512 * 1024;
+  }
+
+  static class Watch {
+    // Interval between two reads of the ACLs of the watched znodes, as setACL triggers no watch
+    static final long DEFAULT_SWEEP_INTERVAL_MS = 60 * 1000L;
+    // Number of queued watch events whose znodes are read in parallel
+    static final int MAX_EVENT_BATCH = 1000;
+    // Number of znodes whose ACL results are held in memory at once during a sweep
+    static final int SWEEP_CHUNK_SIZE = 10000;
+    // Sustained rate of remediation setACL requests, protecting the quorum from write storms
+    static final String DEFAULT_MAX_WRITES_PER_SECOND = "100";
+  }
+
+  static class Enforcement {
+    // Number of asynchronous setACL operations grouped in a single batch
+    static final int DEFAULT_BATCH_SIZE = 100;
+    // Number of batches submitted without waiting for their result
+    static final int MAX_BATCHES_IN_FLIGHT = 4;
+    // Number of re-read and re-evaluate attempts of compare-and-set updates failing with BadVersion
+    static final int MAX_CAS_ATTEMPTS = 5;
+    // Number of traversed znodes between two checkpoints of a resumable enforcement
+    static final int CHECKPOINT_INTERVAL = 10000;
+    // Maximum time between two checkpoints of a resumable enforcement
+    static final long CHECKPOINT_INTERVAL_MS = 10 * 1000L;
+  }
+
+  static class Session {
+    // Delay before the first retry of a request failed by a connection loss or session expiration
+    static final long BASE_RETRY_DELAY_MS = 100L;
+    // Maximum delay between two retries of a request, the delay doubling at each retry
+    static final long MAX_RETRY_DELAY_MS = 10 * 1000L;
+    // Number of retries of a request before its failure is reported
+    static final int MAX_RETRIES = 12;
+  }
+
+  static class Rollback {
+    // Number of setACL requests of a rollback sent without waiting for their result
+    static final int MAX_IN_FLIGHT = 1000;
+    // Number of rolled back znodes between two progress reports
+    static final long PROGRESS_INTERVAL = 10000L;
+  }
+
   static class Queries {
     static final String EXACT_ACL_DESCRIPTION = "Match znodes with ACL equal to the passed ACL argument";
     static final String NO_ACL_DESCRIPTION = "Match znodes with no access control restrictions (ACL equals [world:anyone:cdrwa])";
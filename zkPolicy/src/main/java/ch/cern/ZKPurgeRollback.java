@@ -11,7 +11,16 @@ package ch.cern;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import lombok.AllArgsConstructor;
@@ -23,6 +32,9 @@ import lombok.AccessLevel;
 
 /**
  * Purge rollback snapshots.
+ *
+ * <p>The purge by age or size and the compaction skip the rollback journals that are still open
+ * by a running enforce or watch, which hold the lock of their file.</p>
  */
 @Getter
 @Setter
@@ -48,11 +60,7 @@ public class ZKPurgeRollback {
       Integer cnt = 0;
       for (File rollbackFile : files) {
         if (totalSnapshotNum - cnt > retainCount) {
-          logger.info("Purging: " + rollbackFile.getPath());
-          if (!rollbackFile.delete()) {
-            logger.error("Failed to delete " + rollbackFile.getPath());
-            throw new IOException("Failed to delete " + rollbackFile.getPath());
-          }
+          deleteUnlocked(rollbackFile);
         } else {
           break;
         }
@@ -61,6 +69,154 @@ public class ZKPurgeRollback {
     }
   }
 
+  /**
+   * Purge rollback snapshots last modified more than maxAgeMillis ago.
+   *
+   * @param maxAgeMillis Maximum age of the retained snapshots in milliseconds
+   * @throws IOException
+   */
+  public void purgeRollbackByAge(long maxAgeMillis) throws IOException {
+    final File[] files = rollbackDir.listFiles(new RollbackFilenameFilter());
+    if (files == null) {
+      return;
+    }
+    long oldestRetained = System.currentTimeMillis() - maxAgeMillis;
+    for (File rollbackFile : files) {
+      if (rollbackFile.lastModified() < oldestRetained) {
+        deleteUnlocked(rollbackFile);
+      }
+    }
+  }
+
+  /**
+   * Purge the oldest rollback snapshots until their total size is at most maxBytes. The
+   * most recent snapshot is always retained.
+   *
+   * @param maxBytes Maximum total size of the retained snapshots in bytes
+   * @throws IOException
+   */
+  public void purgeRollbackBySize(long maxBytes) throws IOException {
+    final File[] files = rollbackDir.listFiles(new RollbackFilenameFilter());
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files, Comparator.comparingLong(File::lastModified).thenComparing(File::getName));
+    long totalBytes = 0;
+    for (File rollbackFile : files) {
+      totalBytes += rollbackFile.length();
+    }
+    for (int i = 0; i < files.length - 1 && totalBytes > maxBytes; i++) {
+      long length = files[i].length();
+      if (deleteUnlocked(files[i])) {
+        totalBytes -= length;
+      }
+    }
+  }
+
+  /**
+   * Compact all rollback snapshots of the rollback directory.
+   *
+   * @return Number of removed entries
+   * @throws IOException
+   */
+  public long compactRollback() throws IOException {
+    final File[] files = rollbackDir.listFiles(new RollbackFilenameFilter());
+    long removed = 0;
+    if (files != null) {
+      for (File rollbackFile : files) {
+        removed += compact(rollbackFile);
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * Compact a rollback journal, keeping only the first entry of each znode, which is the one
+   * restored by a rollback, with the ACL version of its last entry, which is the one checked by
+   * a rollback. The compacted journal replaces the original file once complete. A journal still
+   * open by a running enforcement is skipped. The path and last ACL version of each distinct
+   * znode of the journal are held in memory.
+   *
+   * @param stateFile Rollback state file or journal
+   * @return Number of removed entries
+   * @throws IOException
+   */
+  public static long compact(File stateFile) throws IOException {
+    // The file is locked until it is replaced, so that no journal appends to it meanwhile
+    try (FileChannel channel = FileChannel.open(stateFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      if (ZKRollbackJournal.tryLock(channel) == null) {
+        logger.warn("Skipping " + stateFile.getPath() + ", still open by a running enforcement");
+        return 0;
+      }
+      return compact(stateFile, channel);
+    }
+  }
+
+  private static long compact(File stateFile, FileChannel channel) throws IOException {
+    File compactFile = new File(stateFile.getPath() + ".compact");
+    Files.deleteIfExists(compactFile.toPath());
+    Map<String, Integer> lastAversions = new HashMap<String, Integer>();
+    try (ZKRollbackJournal.Reader reader = new ZKRollbackJournal.Reader(stateFile, channel)) {
+      ZKRollbackElement element = reader.next();
+      while (element != null) {
+        lastAversions.put(element.getPath(), element.getAversion());
+        element = reader.next();
+      }
+    }
+    Set<String> paths = new HashSet<String>();
+    long removed = 0;
+    try (ZKRollbackJournal.Reader reader = new ZKRollbackJournal.Reader(stateFile, channel);
+        ZKRollbackJournal journal = new ZKRollbackJournal(compactFile)) {
+      ZKRollbackElement element = reader.next();
+      while (element != null) {
+        if (paths.add(element.getPath())) {
+          element.setAversion(lastAversions.remove(element.getPath()));
+          journal.append(element);
+        } else {
+          removed++;
+        }
+        element = reader.next();
+      }
+    } catch (IOException e) {
+      Files.deleteIfExists(compactFile.toPath());
+      throw e;
+    }
+    // Keep the modification time, used to purge by age
+    if (!compactFile.setLastModified(stateFile.lastModified())) {
+      logger.warn("Failed to keep the modification time of " + stateFile.getPath());
+    }
+    Files.move(compactFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    logger.info("Compacted " + stateFile.getPath() + ": removed " + removed + " entries");
+    return removed;
+  }
+
+  /**
+   * Delete a rollback file unless it is still open by a running enforcement.
+   *
+   * @param rollbackFile Rollback state file
+   * @return False if the file was skipped
+   * @throws IOException
+   */
+  private static boolean deleteUnlocked(File rollbackFile) throws IOException {
+    try (FileChannel channel = FileChannel.open(rollbackFile.toPath(), StandardOpenOption.WRITE)) {
+      if (ZKRollbackJournal.tryLock(channel) == null) {
+        logger.warn("Skipping " + rollbackFile.getPath() + ", still open by a running enforcement");
+        return false;
+      }
+      delete(rollbackFile);
+      return true;
+    }
+  }
+
+  private static void delete(File rollbackFile) throws IOException {
+    logger.info("Purging: " + rollbackFile.getPath());
+    if (!rollbackFile.delete()) {
+      logger.error("Failed to delete " + rollbackFile.getPath());
+      throw new IOException("Failed to delete " + rollbackFile.getPath());
+    }
+  }
+
   static class RollbackFilenameFilter implements FilenameFilter {
     @Override
     public boolean accept(final File dir, final String name) {
@@ -12,6 +12,7 @@ import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import ch.cern.ZKPolicyDefs.Cli.PurgeRollback;
@@ -21,18 +22,42 @@ import ch.cern.ZKPolicyDefs.Cli.PurgeRollback;
 public class ZKPurgeRollbackCli implements Runnable {
   private static Logger logger = LogManager.getLogger(ZKPurgeRollbackCli.class);
 
-  @Option(names = { "-r", "--retain-count" }, required = true, description = PurgeRollback.RETAIN_CNT_DESCRIPTION)
+  @Option(names = { "-r", "--retain-count" }, required = false, description = PurgeRollback.RETAIN_CNT_DESCRIPTION)
   Integer retainCount;
 
+  @Option(names = { "--max-age" }, required = false, description = PurgeRollback.MAX_AGE_DESCRIPTION)
+  Long maxAgeDays;
+
+  @Option(names = { "--max-size" }, required = false, description = PurgeRollback.MAX_SIZE_DESCRIPTION)
+  Long maxSizeMegabytes;
+
+  @Option(names = { "--compact" }, required = false, description = PurgeRollback.COMPACT_DESCRIPTION)
+  boolean compact;
+
   @Option(names = { "-d",
       "--rollback-dir" }, required = false, defaultValue = PurgeRollback.ROLLBACK_DIR_DEFAULT, description = PurgeRollback.ROLLBACK_DIR_DESCRIPTION)
   File rollbackDir;
 
   @Override
   public void run() {
+    if (this.retainCount == null && this.maxAgeDays == null && this.maxSizeMegabytes == null && !this.compact) {
+      System.out.println(PurgeRollback.NO_ACTION_MESSAGE);
+      return;
+    }
     ZKPurgeRollback zkPurge = new ZKPurgeRollback(rollbackDir);
     try {
-      zkPurge.purgeRollback(this.retainCount);
+      if (this.retainCount != null) {
+        zkPurge.purgeRollback(this.retainCount);
+      }
+      if (this.maxAgeDays != null) {
+        zkPurge.purgeRollbackByAge(TimeUnit.DAYS.toMillis(this.maxAgeDays));
+      }
+      if (this.compact) {
+        zkPurge.compactRollback();
+      }
+      if (this.maxSizeMegabytes != null) {
+        zkPurge.purgeRollbackBySize(this.maxSizeMegabytes * 1024 * 1024);
+      }
     } catch (IOException e) {
       System.out.println(e.toString());
       logger.error("Exception occurred!", e);
@@ -16,5 +16,26 @@ import org.apache.zookeeper.data.ACL;
  */
 public interface ZKQuery {
   String getDescription();
-  boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKClient zk, List<String> queryOptions);
+  boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKTreeSource zk, List<String> queryOptions);
+
+  /**
+   * Bind the query to its arguments. Arguments are parsed once, so that the returned query
+   * can be executed on every znode of a traversal without parsing them again.
+   *
+   * @param queryOptions Query arguments
+   * @return Query bound to the arguments
+   */
+  default ZKCompiledQuery compile(List<String> queryOptions) {
+    return (aclList, parentAclList, path, zk) -> this.query(aclList, parentAclList, path, zk, queryOptions);
+  }
+
+  /**
+   * Tell whether the query result depends only on the entries of the znode and parent ACL
+   * lists, regardless of their order, so that it can be memoised per distinct ACL list.
+   *
+   * @return True if the result does not depend on the path, the ZooKeeper client or the order of the ACL entries
+   */
+  default boolean dependsOnACLOnly() {
+    return false;
+  }
 }
\ No newline at end of file
@@ -84,7 +84,7 @@ public class ZKQueryCli implements Runnable {
 
     ZKConfig config = new ZKConfig(parent.configFile);
 
-    try (ZKClient zk = new ZKClient(config)) {
+    try (ZKTreeSource zk = parent.openTreeSource(config)) {
       zktree = new ZKTree(zk);
       StringBuffer outputBuf = new StringBuffer();
       ZKDefaultQuery zkDefaultQuery = new ZKDefaultQuery();
@@ -30,6 +30,20 @@ public class ZKQueryElement {
   private List<String> args;
   private ZKQuery query;
 
+  /**
+   * Bind the query to the arguments of this element. Results of queries depending only on
+   * the ACL lists are memoised per distinct ACL list.
+   *
+   * @return Query ready to be executed on each znode
+   */
+  public ZKCompiledQuery compile() {
+    ZKCompiledQuery compiled = this.query.compile(this.args);
+    if (this.query.dependsOnACLOnly()) {
+      return new ZKMemoizedQuery(compiled, ZKACLDictionary.getDefault());
+    }
+    return compiled;
+  }
+
   /**
    * Generate a human readable description of the query.
    * 
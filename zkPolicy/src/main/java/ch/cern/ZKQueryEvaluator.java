@@ -0,0 +1,188 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.zookeeper.data.ACL;
+
+/**
+ * Evaluation stage of the queries of a find walk, decoupled from fetching the znodes.
+ *
+ * <p>The walk passes the fetched znodes in pre-order. They are grouped in batches of
+ * {@link ZKPolicyDefs.Traversal#EVALUATION_BATCH_SIZE} znodes evaluated by a pool of
+ * threads, every query being evaluated on each znode of a batch. At most
+ * {@link ZKPolicyDefs.Traversal#EVALUATION_QUEUE_FACTOR} batches per thread are queued; the
+ * walk then waits for the oldest batch, whose matching paths are appended to the query
+ * outputs. Batches are appended in the order they were queued, so the outputs are in the
+ * same path order as with the evaluation on the walking thread.</p>
+ */
+public class ZKQueryEvaluator implements AutoCloseable {
+  private List<ZKCompiledQuery> queries;
+  private List<List<String>> outputs;
+  private ZKTreeSource zk;
+  private ExecutorService executor = null;
+  private int maxPendingBatches;
+  private Deque<Future<List<List<String>>>> pendingBatches = new ArrayDeque<Future<List<List<String>>>>();
+  // Znode paths of the current batch, or output lines for znodes without ACL
+  private List<String> batchPaths;
+  private List<List<ACL>> batchACLs;
+
+  /**
+   * Create an evaluation stage.
+   *
+   * @param queries Compiled queries
+   * @param outputs Output buffer of each query, in the order of the queries
+   * @param zk      Source of the evaluated znodes, passed to the queries
+   * @param threads Number of evaluating threads, 1 or less to evaluate on the walking thread
+   */
+  public ZKQueryEvaluator(List<ZKCompiledQuery> queries, List<List<String>> outputs, ZKTreeSource zk, int threads) {
+    this.queries = queries;
+    this.outputs = outputs;
+    this.zk = zk;
+    if (threads > 1) {
+      AtomicInteger threadCount = new AtomicInteger();
+      this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+        Thread thread = new Thread(runnable, "zkpolicy-evaluator-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+      this.maxPendingBatches = threads * ZKPolicyDefs.Traversal.EVALUATION_QUEUE_FACTOR;
+      this.newBatch();
+    }
+  }
+
+  /**
+   * Evaluate the queries on a znode.
+   *
+   * @param path Znode path
+   * @param acl  Znode ACL
+   * @throws InterruptedException
+   */
+  public void evaluate(String path, List<ACL> acl) throws InterruptedException {
+    if (this.executor == null) {
+      for (int i = 0; i < this.queries.size(); i++) {
+        if (this.queries.get(i).query(acl, null, path, this.zk)) {
+          this.outputs.get(i).add(path);
+        }
+      }
+      return;
+    }
+    this.batchPaths.add(path);
+    this.batchACLs.add(acl);
+    if (this.batchPaths.size() >= ZKPolicyDefs.Traversal.EVALUATION_BATCH_SIZE) {
+      this.submitBatch();
+    }
+  }
+
+  /**
+   * Append a line to the output of every query, after the znodes evaluated so far.
+   *
+   * @param line Output line
+   * @throws InterruptedException
+   */
+  public void append(String line) throws InterruptedException {
+    if (this.executor == null) {
+      for (List<String> output : this.outputs) {
+        output.add(line);
+      }
+      return;
+    }
+    this.batchPaths.add(line);
+    this.batchACLs.add(null);
+  }
+
+  /**
+   * Wait for the evaluation of all znodes and append the last results to the query outputs.
+   *
+   * @throws InterruptedException
+   */
+  public void finish() throws InterruptedException {
+    if (this.executor == null) {
+      return;
+    }
+    this.submitBatch();
+    while (!this.pendingBatches.isEmpty()) {
+      this.appendOldestBatch();
+    }
+  }
+
+  @Override
+  public void close() {
+    if (this.executor != null) {
+      this.executor.shutdownNow();
+    }
+  }
+
+  private void newBatch() {
+    this.batchPaths = new ArrayList<String>(ZKPolicyDefs.Traversal.EVALUATION_BATCH_SIZE);
+    this.batchACLs = new ArrayList<List<ACL>>(ZKPolicyDefs.Traversal.EVALUATION_BATCH_SIZE);
+  }
+
+  private void submitBatch() throws InterruptedException {
+    if (this.batchPaths.isEmpty()) {
+      return;
+    }
+    List<String> paths = this.batchPaths;
+    List<List<ACL>> acls = this.batchACLs;
+    this.newBatch();
+    this.pendingBatches.add(this.executor.submit(() -> this.evaluateBatch(paths, acls)));
+    if (this.pendingBatches.size() > this.maxPendingBatches) {
+      this.appendOldestBatch();
+    }
+  }
+
+  /**
+   * Evaluate the queries on the znodes of a batch.
+   *
+   * @return Lines to append to the output of each query
+   */
+  private List<List<String>> evaluateBatch(List<String> paths, List<List<ACL>> acls) {
+    List<List<String>> results = new ArrayList<List<String>>(this.queries.size());
+    for (int i = 0; i < this.queries.size(); i++) {
+      results.add(new ArrayList<String>());
+    }
+    for (int j = 0; j < paths.size(); j++) {
+      String path = paths.get(j);
+      List<ACL> acl = acls.get(j);
+      for (int i = 0; i < this.queries.size(); i++) {
+        if (acl == null || this.queries.get(i).query(acl, null, path, this.zk)) {
+          results.get(i).add(path);
+        }
+      }
+    }
+    return results;
+  }
+
+  private void appendOldestBatch() throws InterruptedException {
+    List<List<String>> results;
+    try {
+      results = this.pendingBatches.remove().get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+    for (int i = 0; i < results.size(); i++) {
+      this.outputs.get(i).addAll(results.get(i));
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the rate of write requests sent to ZooKeeper.
+ *
+ * <p>The bucket holds up to one second of permits, refilled continuously at the configured
+ * rate, so that short bursts are sent at once while the sustained rate stays bounded.</p>
+ */
+public class ZKRateLimiter {
+  private double permitsPerSecond;
+  private double capacity;
+  private double tokens;
+  private long lastRefill;
+  private long throttledCount = 0;
+
+  /**
+   * Create a full token bucket.
+   *
+   * @param permitsPerSecond Sustained number of permits per second
+   */
+  public ZKRateLimiter(double permitsPerSecond) {
+    if (permitsPerSecond <= 0) {
+      throw new IllegalArgumentException("The rate must be positive: " + permitsPerSecond);
+    }
+    this.permitsPerSecond = permitsPerSecond;
+    this.capacity = Math.max(1, permitsPerSecond);
+    this.tokens = this.capacity;
+    this.lastRefill = System.nanoTime();
+  }
+
+  /**
+   * Get the number of permits that had to wait for the bucket to be refilled.
+   *
+   * @return Number of throttled permits
+   */
+  public long getThrottledCount() {
+    return this.throttledCount;
+  }
+
+  /**
+   * Take a permit, waiting until one is available.
+   *
+   * @throws InterruptedException
+   */
+  public void acquire() throws InterruptedException {
+    this.refill();
+    if (this.tokens < 1) {
+      this.throttledCount++;
+      while (this.tokens < 1) {
+        long waitNanos = (long) Math.ceil((1 - this.tokens) / this.permitsPerSecond * TimeUnit.SECONDS.toNanos(1));
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+        this.refill();
+      }
+    }
+    this.tokens -= 1;
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    double elapsedSeconds = (now - this.lastRefill) / (double) TimeUnit.SECONDS.toNanos(1);
+    this.tokens = Math.min(this.capacity, this.tokens + elapsedSeconds * this.permitsPerSecond);
+    this.lastRefill = now;
+  }
+}
@@ -0,0 +1,267 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Live tree source surviving connection losses and session expirations.
+ *
+ * <p>Requests failing with ConnectionLoss or OperationTimeout are sent again with an exponential
+ * backoff, while the ZooKeeper client reconnects by itself. Requests failing with SessionExpired
+ * first open a new session with a new client, which like any ZooKeeper client tries the configured
+ * servers in turn until one accepts the connection. A request is failed after
+ * {@link ZKPolicyDefs.Session#MAX_RETRIES} retries. Retries are sent from a dedicated thread,
+ * never from the event thread of the client.</p>
+ */
+public class ZKReconnectingSource implements ZKTreeSource {
+  private static Logger logger = LogManager.getLogger(ZKReconnectingSource.class);
+
+  private ZKConfig config;
+  private volatile ZKClient client;
+  private int sessionCount = 1;
+  private long retryCount = 0;
+  private volatile boolean closed = false;
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Connect to the configured servers.
+   *
+   * @param config Configuration instance
+   * @throws IOException
+   */
+  public ZKReconnectingSource(ZKConfig config) throws IOException {
+    this(config, new ZKClient(config));
+  }
+
+  /**
+   * Use an open client, replaced by a new client if its session expires.
+   *
+   * @param config Configuration instance used to open new sessions
+   * @param client Connected ZooKeeper client
+   */
+  public ZKReconnectingSource(ZKConfig config, ZKClient client) {
+    this.config = config;
+    this.client = client;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "zkpolicy-reconnect");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  @Override
+  public ZKConfig getZKPConfig() {
+    return this.config;
+  }
+
+  @Override
+  public ZKClient getClient() {
+    return this.client;
+  }
+
+  /**
+   * Get the number of sessions opened, including the first one.
+   *
+   * @return Number of sessions
+   */
+  public synchronized int getSessionCount() {
+    return this.sessionCount;
+  }
+
+  /**
+   * Get the number of requests sent again after a connection loss or session expiration.
+   *
+   * @return Number of retried requests
+   */
+  public synchronized long getRetryCount() {
+    return this.retryCount;
+  }
+
+  @Override
+  public Stat exists(String path, Watcher watcher) throws KeeperException, InterruptedException {
+    for (int attempt = 0;; attempt++) {
+      ZKClient current = this.client;
+      try {
+        return current.exists(path, watcher);
+      } catch (KeeperException e) {
+        if (!this.isRecoverable(e.code().intValue(), attempt)) {
+          throw e;
+        }
+        this.countRetry();
+        Thread.sleep(backoff(attempt));
+        if (e.code() == KeeperException.Code.SESSIONEXPIRED || !current.getState().isAlive()) {
+          this.renewSession(current);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void sync(String path, AsyncCallback.VoidCallback cb, Object ctx) {
+    this.client.sync(path, cb, ctx);
+  }
+
+  @Override
+  public void getChildren(String path, boolean watch, AsyncCallback.Children2Callback cb, Object ctx) {
+    this.getChildren(path, watch, cb, ctx, 0);
+  }
+
+  private void getChildren(String path, boolean watch, AsyncCallback.Children2Callback cb, Object ctx, int attempt) {
+    ZKClient current = this.client;
+    current.getChildren(path, watch, new AsyncCallback.Children2Callback() {
+      @Override
+      public void processResult(int rc, String path, Object ctx, List<String> children, Stat stat) {
+        if (!ZKReconnectingSource.this.retry(rc, current, attempt,
+            () -> ZKReconnectingSource.this.getChildren(path, watch, cb, ctx, attempt + 1))) {
+          cb.processResult(rc, path, ctx, children, stat);
+        }
+      }
+    }, ctx);
+  }
+
+  @Override
+  public void getACL(String path, Stat stat, AsyncCallback.ACLCallback cb, Object ctx) {
+    this.getACL(path, stat, cb, ctx, 0);
+  }
+
+  private void getACL(String path, Stat stat, AsyncCallback.ACLCallback cb, Object ctx, int attempt) {
+    ZKClient current = this.client;
+    current.getACL(path, stat, new AsyncCallback.ACLCallback() {
+      @Override
+      public void processResult(int rc, String path, Object ctx, List<ACL> acl, Stat resultStat) {
+        if (!ZKReconnectingSource.this.retry(rc, current, attempt,
+            () -> ZKReconnectingSource.this.getACL(path, stat, cb, ctx, attempt + 1))) {
+          cb.processResult(rc, path, ctx, acl, resultStat);
+        }
+      }
+    }, ctx);
+  }
+
+  @Override
+  public void getData(String path, boolean watch, AsyncCallback.DataCallback cb, Object ctx) {
+    this.getData(path, watch, cb, ctx, 0);
+  }
+
+  private void getData(String path, boolean watch, AsyncCallback.DataCallback cb, Object ctx, int attempt) {
+    ZKClient current = this.client;
+    current.getData(path, watch, new AsyncCallback.DataCallback() {
+      @Override
+      public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+        if (!ZKReconnectingSource.this.retry(rc, current, attempt,
+            () -> ZKReconnectingSource.this.getData(path, watch, cb, ctx, attempt + 1))) {
+          cb.processResult(rc, path, ctx, data, stat);
+        }
+      }
+    }, ctx);
+  }
+
+  @Override
+  public void close() throws InterruptedException {
+    this.closed = true;
+    this.scheduler.shutdownNow();
+    this.client.close();
+  }
+
+  @Override
+  public String toString() {
+    return this.client.toString();
+  }
+
+  private boolean isRecoverable(int rc, int attempt) {
+    if (this.closed || attempt >= ZKPolicyDefs.Session.MAX_RETRIES) {
+      return false;
+    }
+    KeeperException.Code code = KeeperException.Code.get(rc);
+    return code == KeeperException.Code.CONNECTIONLOSS || code == KeeperException.Code.OPERATIONTIMEOUT
+        || code == KeeperException.Code.SESSIONEXPIRED;
+  }
+
+  /**
+   * Schedule a failed request to be sent again if its failure is recoverable.
+   *
+   * @param rc      Result code of the request
+   * @param client  Client the request was sent with
+   * @param attempt Number of retries of the request so far
+   * @param resend  Sends the request again with the current client
+   * @return False if the failure must be passed to the callback
+   */
+  private boolean retry(int rc, ZKClient client, int attempt, Runnable resend) {
+    if (!this.isRecoverable(rc, attempt)) {
+      return false;
+    }
+    this.countRetry();
+    boolean expired = rc == KeeperException.Code.SESSIONEXPIRED.intValue();
+    try {
+      this.scheduler.schedule(() -> {
+        // Requests sent after the expiration fail with ConnectionLoss
+        if (expired || !client.getState().isAlive()) {
+          this.renewSession(client);
+        }
+        resend.run();
+      }, backoff(attempt), TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // The source was closed meanwhile
+      return false;
+    }
+    return true;
+  }
+
+  private synchronized void countRetry() {
+    this.retryCount++;
+  }
+
+  /**
+   * Replace an expired client by a client with a new session, unless another request already
+   * did. A failure to connect is logged, the requests then fail again and are retried later.
+   *
+   * @param expired Client whose session expired
+   */
+  private synchronized void renewSession(ZKClient expired) {
+    if (this.closed || this.client != expired) {
+      return;
+    }
+    logger.warn("Session expired, opening a new session to {}", this.config.getZkServers());
+    try {
+      expired.close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    try {
+      this.client = new ZKClient(this.config);
+      this.sessionCount++;
+    } catch (IOException | IllegalStateException e) {
+      logger.error("Failed to open a new session to " + this.config.getZkServers(), e);
+    }
+  }
+
+  /**
+   * Get the delay before a retry.
+   *
+   * @param attempt Number of retries so far
+   * @return Delay in milliseconds
+   */
+  static long backoff(int attempt) {
+    long delay = ZKPolicyDefs.Session.BASE_RETRY_DELAY_MS << Math.min(attempt, 20);
+    return Math.min(delay, ZKPolicyDefs.Session.MAX_RETRY_DELAY_MS);
+  }
+}
@@ -0,0 +1,305 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Restores the pre-enforce ACLs of a rollback state.
+ *
+ * <p>Elements are restored with a pipeline of asynchronous setACL requests, keeping a bounded
+ * number of requests in flight. Requests that failed because of a connection problem are
+ * retried one by one. When a znode has several elements, as after successive enforcements
+ * journaled to the same file, its first element is restored.</p>
+ *
+ * <p>With version checking, an ACL is only restored if it was not modified after the last
+ * enforcement, whose ACL version is recorded by the last element of the znode. Znodes modified
+ * since are reported and left untouched. Elements written without ACL version are restored
+ * unconditionally.</p>
+ *
+ * <p>A rollback state file is read one element at a time, but the paths of the restored znodes
+ * are kept to skip their later elements, and with version checking the last ACL version of
+ * every znode is kept as well. The memory used therefore grows with the number of distinct
+ * znodes of the file, not with its number of elements, so that the elements appended by
+ * successive enforcements of the same znodes cost no memory.</p>
+ */
+public class ZKRollback {
+  private static Logger logger = LogManager.getLogger(ZKRollback.class);
+  static final String RESTORED = "RESTORED";
+  static final String MODIFIED = "SKIPPED (modified since enforce)";
+
+  private ZKClient zk;
+  private int maxInFlight;
+  private Semaphore inFlight;
+  private boolean versionCheck = false;
+  private Consumer<String> report = null;
+  private Consumer<String> progress = null;
+  private ConcurrentLinkedQueue<Restore> results = new ConcurrentLinkedQueue<Restore>();
+  private Set<String> restoredPaths;
+  private Map<String, Integer> lastAversions;
+  private long restoredCount = 0;
+  private long skippedCount = 0;
+  private long failedCount = 0;
+
+  /**
+   * Create a rollback sending at most maxInFlight setACL requests without waiting for their
+   * result.
+   *
+   * @param zk          ZooKeeper client used for the setACL requests
+   * @param maxInFlight Maximum number of pending setACL requests
+   */
+  public ZKRollback(ZKClient zk, int maxInFlight) {
+    if (maxInFlight < 1) {
+      maxInFlight = ZKPolicyDefs.Rollback.MAX_IN_FLIGHT;
+    }
+    this.zk = zk;
+    this.maxInFlight = maxInFlight;
+    this.inFlight = new Semaphore(maxInFlight);
+  }
+
+  /**
+   * Only restore the ACLs not modified since the enforcement.
+   *
+   * @param versionCheck True to check the ACL version of the znodes
+   */
+  public void setVersionCheck(boolean versionCheck) {
+    this.versionCheck = versionCheck;
+  }
+
+  /**
+   * Set the consumer of the result of each restored element. Without report, the elements
+   * that could not be restored are printed as warnings.
+   *
+   * @param report Consumer of "path : result" lines
+   */
+  public void setReport(Consumer<String> report) {
+    this.report = report;
+  }
+
+  /**
+   * Set the consumer of the progress lines, emitted every
+   * {@link ZKPolicyDefs.Rollback#PROGRESS_INTERVAL} elements.
+   *
+   * @param progress Consumer of progress lines
+   */
+  public void setProgress(Consumer<String> progress) {
+    this.progress = progress;
+  }
+
+  /**
+   * Get the number of znodes whose ACL was restored.
+   *
+   * @return Number of restored znodes
+   */
+  public long getRestoredCount() {
+    return this.restoredCount;
+  }
+
+  /**
+   * Get the number of znodes left untouched because they were modified since the enforcement.
+   *
+   * @return Number of skipped znodes
+   */
+  public long getSkippedCount() {
+    return this.skippedCount;
+  }
+
+  /**
+   * Get the number of znodes whose ACL could not be restored.
+   *
+   * @return Number of failed znodes
+   */
+  public long getFailedCount() {
+    return this.failedCount;
+  }
+
+  /**
+   * Restore the elements of a rollback set.
+   *
+   * @param elements Rollback elements in journal order
+   * @throws InterruptedException
+   */
+  public void restore(List<ZKRollbackElement> elements) throws InterruptedException {
+    this.start();
+    if (this.versionCheck) {
+      for (ZKRollbackElement element : elements) {
+        this.lastAversions.put(element.getPath(), element.getAversion());
+      }
+    }
+    for (ZKRollbackElement element : elements) {
+      this.add(element);
+    }
+    this.finish();
+  }
+
+  /**
+   * Restore the elements of a rollback state file, reading them one at a time. With version
+   * checking the file is read twice, to find the last ACL version of each znode first. The path
+   * of each distinct znode, and with version checking its last ACL version, is held in memory.
+   *
+   * @param stateFile Rollback state file or journal
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public void restore(File stateFile) throws IOException, InterruptedException {
+    this.start();
+    if (this.versionCheck) {
+      try (ZKRollbackJournal.Reader reader = new ZKRollbackJournal.Reader(stateFile)) {
+        ZKRollbackElement element = reader.next();
+        while (element != null) {
+          this.lastAversions.put(element.getPath(), element.getAversion());
+          element = reader.next();
+        }
+      }
+    }
+    try (ZKRollbackJournal.Reader reader = new ZKRollbackJournal.Reader(stateFile)) {
+      ZKRollbackElement element = reader.next();
+      while (element != null) {
+        this.add(element);
+        element = reader.next();
+      }
+    } finally {
+      this.finish();
+    }
+  }
+
+  private void start() {
+    this.restoredPaths = new HashSet<String>();
+    this.lastAversions = new HashMap<String, Integer>();
+    this.restoredCount = 0;
+    this.skippedCount = 0;
+    this.failedCount = 0;
+  }
+
+  private void add(ZKRollbackElement element) throws InterruptedException {
+    if (!this.restoredPaths.add(element.getPath())) {
+      return;
+    }
+    Integer aversion = this.lastAversions.remove(element.getPath());
+    this.submit(new Restore(element.getPath(), element.getAcl(), aversion == null ? -1 : aversion));
+  }
+
+  private void submit(Restore restore) throws InterruptedException {
+    this.inFlight.acquire();
+    // Results are processed in the caller thread, retries must not block the event thread
+    this.processResults();
+    this.zk.setACL(restore.path, restore.acl, restore.aclVersion, new AsyncCallback.StatCallback() {
+      @Override
+      public void processResult(int rc, String path, Object ctx, Stat stat) {
+        restore.rc = rc;
+        ZKRollback.this.results.add(restore);
+        ZKRollback.this.inFlight.release();
+      }
+    }, null);
+  }
+
+  /**
+   * Wait for the pending requests and log the outcome of the rollback.
+   *
+   * @throws InterruptedException
+   */
+  private void finish() throws InterruptedException {
+    this.inFlight.acquire(this.maxInFlight);
+    this.inFlight.release(this.maxInFlight);
+    this.processResults();
+    logger.info("Rollback restored " + this.restoredCount + " znodes, skipped " + this.skippedCount
+        + " modified znodes, failed on " + this.failedCount + " znodes");
+  }
+
+  private void processResults() throws InterruptedException {
+    Restore restore = this.results.poll();
+    while (restore != null) {
+      KeeperException.Code code = KeeperException.Code.get(restore.rc);
+      if (code == KeeperException.Code.CONNECTIONLOSS || code == KeeperException.Code.OPERATIONTIMEOUT) {
+        code = this.retry(restore);
+      }
+      if (code == KeeperException.Code.OK) {
+        this.restoredCount++;
+        this.record(restore.path, RESTORED, false);
+      } else if (code == KeeperException.Code.BADVERSION) {
+        this.skippedCount++;
+        this.record(restore.path, MODIFIED, true);
+      } else {
+        this.failedCount++;
+        this.record(restore.path, "FAILED (" + code + ")", true);
+      }
+      restore = this.results.poll();
+    }
+  }
+
+  /**
+   * Retry a restore synchronously after a connection problem.
+   *
+   * @param restore Failed restore
+   * @return Result code of the retry
+   * @throws InterruptedException
+   */
+  private KeeperException.Code retry(Restore restore) throws InterruptedException {
+    try {
+      this.zk.setACL(restore.path, restore.acl, restore.aclVersion);
+      return KeeperException.Code.OK;
+    } catch (KeeperException.BadVersionException e) {
+      // The first attempt may have been applied before the connection was lost
+      try {
+        if (restore.acl.equals(this.zk.getACL(restore.path, null))) {
+          return KeeperException.Code.OK;
+        }
+      } catch (KeeperException readException) {
+        return readException.code();
+      }
+      return e.code();
+    } catch (KeeperException e) {
+      return e.code();
+    }
+  }
+
+  private void record(String path, String result, boolean warning) {
+    if (this.report != null) {
+      this.report.accept(path + " : " + result);
+    } else if (warning) {
+      System.out.println("WARNING: Failed to rollback " + path + ": " + result);
+    }
+    long processed = this.restoredCount + this.skippedCount + this.failedCount;
+    if (processed % ZKPolicyDefs.Rollback.PROGRESS_INTERVAL == 0) {
+      String line = "Rollback progress: " + processed + " znodes processed, " + this.restoredCount + " restored";
+      logger.info(line);
+      if (this.progress != null) {
+        this.progress.accept(line);
+      }
+    }
+  }
+
+  private static class Restore {
+    private String path;
+    private List<ACL> acl;
+    private int aclVersion;
+    private volatile int rc;
+
+    Restore(String path, List<ACL> acl, int aclVersion) {
+      this.path = path;
+      this.acl = acl;
+      this.aclVersion = aclVersion;
+    }
+  }
+}
@@ -15,6 +15,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import ch.cern.ZKPolicyDefs.Cli.Rollback;
 
 @Command(name = "rollback", aliases = {
@@ -28,6 +29,15 @@ public class ZKRollbackCli implements Runnable {
   @Option(names = { "-i", "--input" }, required = true, description = Rollback.INPUT_STATE_DESCRIPTION)
   File inputStateFile;
 
+  @Option(names = { "-w", "--max-in-flight" }, required = false, description = Rollback.MAX_IN_FLIGHT_DESCRIPTION)
+  int maxInFlight = ZKPolicyDefs.Rollback.MAX_IN_FLIGHT;
+
+  @Option(names = { "--check-version" }, required = false, description = Rollback.VERSION_CHECK_DESCRIPTION)
+  boolean versionCheck;
+
+  @Option(names = { "-o", "--report" }, required = false, description = Rollback.REPORT_DESCRIPTION)
+  File reportFile;
+
   @Override
   public void run() {
     ZKConfig config = null;
@@ -39,10 +49,18 @@ public class ZKRollbackCli implements Runnable {
     }
 
     if (config != null) {
-      try (ZKClient zk = new ZKClient(config)) {
+      try (ZKClient zk = new ZKClient(config);
+          PrintStream report = this.reportFile == null ? null : new PrintStream(this.reportFile, "UTF-8")) {
         // check here for SU permissions
-        ZKRollbackSet rollbackSet = new ZKRollbackSet(this.inputStateFile);
-        rollbackSet.enforceRollback(zk);
+        ZKRollback rollback = new ZKRollback(zk, this.maxInFlight);
+        rollback.setVersionCheck(this.versionCheck);
+        if (report != null) {
+          rollback.setReport(report::println);
+        }
+        rollback.setProgress(System.out::println);
+        rollback.restore(this.inputStateFile);
+        System.out.println("Rollback finished: " + rollback.getRestoredCount() + " restored, "
+            + rollback.getSkippedCount() + " modified since enforce, " + rollback.getFailedCount() + " failed");
       } catch (Exception e) {
         System.out.println(e.toString());
         logger.error("Exception occurred!", e);
@@ -10,6 +10,7 @@ package ch.cern;
 
 import java.util.List;
 import org.apache.zookeeper.data.ACL;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
@@ -24,8 +25,15 @@ import lombok.Setter;
 @Setter
 @NoArgsConstructor
 @AllArgsConstructor(access = AccessLevel.PROTECTED)
+@JsonInclude(JsonInclude.Include.NON_NULL)
 public class ZKRollbackElement {
 
   private String path;
   private List<ACL> acl;
+  // ACL version set by the enforcement, null in rollback state files written without it
+  private Integer aversion;
+
+  protected ZKRollbackElement(String path, List<ACL> acl) {
+    this(path, acl, null);
+  }
 }
\ No newline at end of file
@@ -0,0 +1,317 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Append-only journal of the rollback state of an enforcement.
+ *
+ * <p>The journal is a rollback state YAML file whose elements are appended one per line, in
+ * flow style, as soon as the ACL of the znode was changed. Appended entries are written to
+ * disk by {@link #sync()}, called once every operation of a batch of setACL requests is
+ * committed, and when the journal is closed. An entry cut by a crash is not valid YAML and is
+ * ignored by the {@link Reader}, which reads the entries one at a time. A journal opened
+ * again is first truncated after its last complete line, so that new entries are not appended
+ * to a cut entry.</p>
+ *
+ * <p>An open journal holds an exclusive lock on its file, so that a second journal, or the
+ * purge and compaction of the rollback directory, cannot use the file until it is closed. All
+ * the accesses of the journal go through the locked channel, as closing another channel of the
+ * file may release the lock.</p>
+ */
+public class ZKRollbackJournal implements Closeable {
+  private static Logger logger = LogManager.getLogger(ZKRollbackJournal.class);
+  static final String HEADER = "---\nelements:\n";
+
+  private File file;
+  private RandomAccessFile journalFile;
+  private FileChannel channel;
+  private BufferedOutputStream output;
+  private ObjectMapper mapper = new ObjectMapper();
+  private long entryCount = 0;
+  private long position;
+
+  /**
+   * Open a journal, appending to the file if it already holds a journal.
+   *
+   * @param file Rollback state file
+   * @throws IOException Failure to open the file, or file locked by another open journal
+   */
+  public ZKRollbackJournal(File file) throws IOException {
+    this.file = file;
+    this.journalFile = new RandomAccessFile(file, "rw");
+    try {
+      this.channel = this.journalFile.getChannel();
+      if (tryLock(this.channel) == null) {
+        throw new IOException("The rollback journal " + file + " is already open");
+      }
+      this.position = truncateTornTail(this.journalFile, file);
+      this.channel.position(this.position);
+    } catch (IOException e) {
+      this.journalFile.close();
+      throw e;
+    }
+    boolean empty = this.position == 0;
+    this.output = new BufferedOutputStream(Channels.newOutputStream(this.channel), 1 << 16);
+    if (empty) {
+      byte[] header = HEADER.getBytes(StandardCharsets.UTF_8);
+      this.output.write(header);
+      this.position += header.length;
+      this.sync();
+    }
+  }
+
+  /**
+   * Take the exclusive lock of a rollback file, held until the channel is closed.
+   *
+   * @param channel Channel of the rollback file, open for writing
+   * @return Lock, or null if the file is locked by an open journal of this or another process
+   * @throws IOException
+   */
+  static FileLock tryLock(FileChannel channel) throws IOException {
+    try {
+      return channel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Truncate a journal after its last complete line, removing the entry being written when an
+   * earlier enforcement was interrupted.
+   *
+   * @param journal Locked journal file
+   * @param file    Rollback state file
+   * @return Size of the journal, 0 if it holds no complete header
+   * @throws IOException
+   */
+  private static long truncateTornTail(RandomAccessFile journal, File file) throws IOException {
+    long length = journal.length();
+    long validLength = 0;
+    byte[] buffer = new byte[8192];
+    long end = length;
+    while (end > 0 && validLength == 0) {
+      int chunk = (int) Math.min(buffer.length, end);
+      journal.seek(end - chunk);
+      journal.readFully(buffer, 0, chunk);
+      for (int i = chunk - 1; i >= 0; i--) {
+        if (buffer[i] == '\n') {
+          validLength = end - chunk + i + 1;
+          break;
+        }
+      }
+      end -= chunk;
+    }
+    if (validLength < HEADER.getBytes(StandardCharsets.UTF_8).length) {
+      validLength = 0;
+    }
+    if (validLength < length) {
+      logger.warn("Discarding {} bytes of incomplete rollback entry at the end of {}", length - validLength, file);
+      journal.setLength(validLength);
+    }
+    return validLength;
+  }
+
+  /**
+   * Get the number of entries appended since the journal was opened.
+   *
+   * @return Number of appended entries
+   */
+  public long getEntryCount() {
+    return this.entryCount;
+  }
+
+  /**
+   * Get the size of the journal once the appended entries are written, the offset where the
+   * next entry starts.
+   *
+   * @return Journal size in bytes
+   */
+  public long getPosition() {
+    return this.position;
+  }
+
+  /**
+   * Append the pre-enforce ACL of a znode.
+   *
+   * @param element Rollback element
+   * @throws IOException
+   */
+  public void append(ZKRollbackElement element) throws IOException {
+    // JSON is valid YAML flow style, holding the whole entry on one line
+    byte[] entry = this.mapper.writeValueAsBytes(element);
+    this.output.write('-');
+    this.output.write(' ');
+    this.output.write(entry);
+    this.output.write('\n');
+    this.position += entry.length + 3;
+    this.entryCount++;
+  }
+
+  /**
+   * Write the appended entries to disk.
+   *
+   * @throws IOException
+   */
+  public void sync() throws IOException {
+    this.output.flush();
+    this.channel.force(false);
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      this.sync();
+    } finally {
+      this.output.close();
+    }
+    logger.info("Journaled {} rollback entries to {}", this.entryCount, this.file);
+  }
+
+  /**
+   * Read the paths of the entries appended to a journal after an offset, ignoring a torn last
+   * entry.
+   *
+   * @param file   Rollback journal
+   * @param offset Offset of the first entry to read, as returned by {@link #getPosition()}
+   * @return Paths of the entries
+   * @throws IOException
+   */
+  public static Set<String> readPathsFrom(File file, long offset) throws IOException {
+    Set<String> paths = new HashSet<String>();
+    ObjectMapper mapper = new ObjectMapper();
+    try (FileInputStream input = new FileInputStream(file)) {
+      input.getChannel().position(offset);
+      BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+      String line = reader.readLine();
+      while (line != null && line.startsWith("- ")) {
+        try {
+          paths.add(mapper.readValue(line.substring(2), ZKRollbackElement.class).getPath());
+        } catch (JsonProcessingException e) {
+          logger.warn("Ignoring the unreadable end of rollback journal {}: {}", file, e.getOriginalMessage());
+          break;
+        }
+        line = reader.readLine();
+      }
+    }
+    return paths;
+  }
+
+  /**
+   * Read the elements of a rollback state file one at a time, either a journal or a file
+   * written at once by {@link ZKRollbackSet#exportToYAML()}.
+   */
+  public static class Reader implements Closeable {
+    private File file;
+    private ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
+    private JsonParser parser;
+    private boolean done = false;
+
+    /**
+     * Open a rollback state file and move to its first element.
+     *
+     * @param file Rollback state file
+     * @throws IOException
+     */
+    public Reader(File file) throws IOException {
+      this.file = file;
+      this.parser = this.mapper.getFactory().createParser(file);
+      this.start();
+    }
+
+    /**
+     * Read a rollback state file from its start through an open channel, such as the locked
+     * channel of the file, left open when the reader is closed.
+     *
+     * @param file    Rollback state file
+     * @param channel Channel of the file
+     * @throws IOException
+     */
+    Reader(File file, FileChannel channel) throws IOException {
+      this.file = file;
+      this.parser = this.mapper.getFactory().createParser(Channels.newInputStream(channel.position(0)));
+      this.parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+      this.start();
+    }
+
+    private void start() throws IOException {
+      try {
+        if (this.parser.nextToken() != JsonToken.START_OBJECT) {
+          throw new IOException(this.file + " is not a rollback state file");
+        }
+        while (this.parser.nextToken() == JsonToken.FIELD_NAME) {
+          JsonToken value = this.parser.nextToken();
+          if (this.parser.getCurrentName().equals("elements") && value == JsonToken.START_ARRAY) {
+            return;
+          }
+          this.parser.skipChildren();
+        }
+        this.done = true;
+      } catch (IOException e) {
+        this.parser.close();
+        throw e;
+      }
+    }
+
+    /**
+     * Read the next element.
+     *
+     * @return Rollback element or null at the end of the file
+     * @throws IOException
+     */
+    public ZKRollbackElement next() throws IOException {
+      if (this.done) {
+        return null;
+      }
+      try {
+        if (this.parser.nextToken() != JsonToken.START_OBJECT) {
+          this.done = true;
+          return null;
+        }
+        ZKRollbackElement element = this.mapper.readValue(this.parser, ZKRollbackElement.class);
+        if (element.getPath() == null || element.getAcl() == null) {
+          throw new IOException("Incomplete rollback entry for " + element.getPath() + " in " + this.file);
+        }
+        return element;
+      } catch (JsonProcessingException e) {
+        // Only the entry being written when the enforcement was interrupted can be cut
+        logger.warn("Ignoring the unreadable end of rollback state file {}: {}", this.file, e.getOriginalMessage());
+        this.done = true;
+        return null;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.parser.close();
+    }
+  }
+}
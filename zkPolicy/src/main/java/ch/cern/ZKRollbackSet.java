@@ -25,7 +25,8 @@ import lombok.AccessLevel;
 
 /**
  * Class that stores information for rollback to previous state after enforcing.
- * 
+ *
+ * <p>Elements are kept in memory, or appended to a {@link ZKRollbackJournal} if one is set.</p>
  */
 @Getter
 @Setter
@@ -38,16 +39,65 @@ public class ZKRollbackSet {
   // to indicate member fields to be ignored from code generation.
   @SuppressWarnings("checkstyle:membername")
   private File $outputFile;
+  @SuppressWarnings("checkstyle:membername")
+  private ZKRollbackJournal $journal;
 
+  /**
+   * Load the elements of a rollback state file in memory.
+   *
+   * @param policyConfigFile Rollback state file
+   * @throws JsonParseException
+   * @throws JsonMappingException
+   * @throws IOException
+   */
   public ZKRollbackSet(File policyConfigFile) throws JsonParseException, JsonMappingException, IOException {
-    ObjectMapper om = new ObjectMapper(new YAMLFactory());
-    om.readerForUpdating(this).readValue(policyConfigFile);
+    try (ZKRollbackJournal.Reader reader = new ZKRollbackJournal.Reader(policyConfigFile)) {
+      ZKRollbackElement element = reader.next();
+      while (element != null) {
+        this.elements.add(element);
+        element = reader.next();
+      }
+    }
   }
 
   public void setOutputFile(File rollbackStateFile) {
     this.$outputFile = rollbackStateFile;
   }
 
+  /**
+   * Append elements to a journal instead of keeping them in memory.
+   *
+   * @param journal Rollback journal, null to keep elements in memory
+   */
+  public void setJournal(ZKRollbackJournal journal) {
+    this.$journal = journal;
+  }
+
+  /**
+   * Record the pre-enforce ACL of a znode whose ACL was changed.
+   *
+   * @param element Rollback element
+   * @throws IOException Failure to append to the journal
+   */
+  public void add(ZKRollbackElement element) throws IOException {
+    if (this.$journal != null) {
+      this.$journal.append(element);
+    } else {
+      this.elements.add(element);
+    }
+  }
+
+  /**
+   * Write the elements appended to the journal to disk.
+   *
+   * @throws IOException Failure to sync the journal
+   */
+  public void sync() throws IOException {
+    if (this.$journal != null) {
+      this.$journal.sync();
+    }
+  }
+
   /**
    * Export RollbackSet to YAML file.
    */
@@ -61,19 +111,29 @@ public class ZKRollbackSet {
   }
 
   /**
-   * Rollback to pre enforce state.
+   * Rollback to pre enforce state. If a znode has several elements, as after successive
+   * enforcements journaled to the same file, its first element is restored.
    * 
    * @param zk ZooKeeper client for setACL
    * @throws KeeperException
    * @throws InterruptedException
    */
   public void enforceRollback(ZKClient zk) throws KeeperException, InterruptedException {
-    for (ZKRollbackElement zkRollbackElement : elements) {
-      try {
-        zk.setACL(zkRollbackElement.getPath(), zkRollbackElement.getAcl(), -1);
-      } catch (KeeperException.NoNodeException e) {
-        System.out.println(e.toString());
-      }
-    }
+    new ZKRollback(zk, ZKPolicyDefs.Rollback.MAX_IN_FLIGHT).restore(this.elements);
+  }
+
+  /**
+   * Rollback to the pre enforce state stored in a rollback state file, reading its elements
+   * one at a time.
+   *
+   * @param zk        ZooKeeper client for setACL
+   * @param stateFile Rollback state file or journal
+   * @throws IOException
+   * @throws KeeperException
+   * @throws InterruptedException
+   */
+  public static void enforceRollback(ZKClient zk, File stateFile)
+      throws IOException, KeeperException, InterruptedException {
+    new ZKRollback(zk, ZKPolicyDefs.Rollback.MAX_IN_FLIGHT).restore(stateFile);
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,198 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CheckedInputStream;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.apache.zookeeper.server.persistence.FileTxnLog;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.server.persistence.SnapStream;
+import org.apache.zookeeper.server.persistence.TxnLog;
+import org.apache.zookeeper.server.persistence.Util;
+import org.apache.zookeeper.txn.TxnHeader;
+
+/**
+ * Offline source of the znode tree, loaded from the snapshot and transaction log files of a
+ * ZooKeeper server.
+ *
+ * <p>The most recent valid snapshot is loaded into an in-memory DataTree and the transaction
+ * logs are replayed on top of it, optionally up to a given zxid. No connection to a
+ * ZooKeeper server is needed and every znode is readable.</p>
+ */
+public class ZKSnapshotSource extends ZKOfflineSource {
+  private static Logger logger = LogManager.getLogger(ZKSnapshotSource.class);
+
+  private DataTree dataTree = new DataTree();
+  private File snapshotFile;
+
+  /**
+   * Load the znode tree from the latest snapshot, replaying all transaction logs.
+   *
+   * @param config      Configuration instance
+   * @param snapshotDir ZooKeeper dataDir or its version-2 subdirectory holding snapshots
+   * @param txnLogDir   Directory holding the transaction logs, null if same as snapshotDir
+   * @throws IOException
+   */
+  public ZKSnapshotSource(ZKConfig config, File snapshotDir, File txnLogDir) throws IOException {
+    this(config, snapshotDir, txnLogDir, Long.MAX_VALUE);
+  }
+
+  /**
+   * Load the znode tree as it was at a given zxid, from the latest snapshot taken before
+   * it and the transaction logs up to it.
+   *
+   * @param config      Configuration instance
+   * @param snapshotDir ZooKeeper dataDir or its version-2 subdirectory holding snapshots
+   * @param txnLogDir   Directory holding the transaction logs, null if same as snapshotDir
+   * @param maxZxid     Last transaction to be replayed
+   * @throws IOException
+   */
+  public ZKSnapshotSource(ZKConfig config, File snapshotDir, File txnLogDir, long maxZxid) throws IOException {
+    super(config);
+    File snapDir = resolveVersionDir(snapshotDir);
+    File logDir = txnLogDir == null ? snapDir : resolveVersionDir(txnLogDir);
+
+    this.snapshotFile = findSnapshot(snapDir, maxZxid);
+    this.loadSnapshot();
+    long snapshotZxid = this.dataTree.lastProcessedZxid;
+    long replayed = this.replayTxnLogs(logDir, maxZxid);
+    logger.info("Loaded snapshot {} (zxid 0x{}) and replayed {} transactions up to zxid 0x{}",
+        this.snapshotFile, Long.toHexString(snapshotZxid), replayed,
+        Long.toHexString(this.dataTree.lastProcessedZxid));
+  }
+
+  /**
+   * Get the snapshot file the tree was loaded from.
+   *
+   * @return Snapshot file
+   */
+  public File getSnapshotFile() {
+    return this.snapshotFile;
+  }
+
+  /**
+   * Get the zxid of the last transaction applied to the tree.
+   *
+   * @return Last processed zxid
+   */
+  public long getLastZxid() {
+    return this.dataTree.lastProcessedZxid;
+  }
+
+  /**
+   * Get the number of znodes of the loaded tree.
+   *
+   * @return Number of znodes
+   */
+  public int getNodeCount() {
+    return this.dataTree.getNodeCount();
+  }
+
+  @Override
+  protected Stat getStat(String path) throws KeeperException {
+    return this.dataTree.statNode(path, null);
+  }
+
+  @Override
+  protected List<String> getChildren(String path, Stat stat) throws KeeperException {
+    return this.dataTree.getChildren(path, stat, null);
+  }
+
+  @Override
+  protected List<ACL> getACL(String path, Stat stat) throws KeeperException {
+    return new ArrayList<ACL>(this.dataTree.getACL(path, stat));
+  }
+
+  @Override
+  protected byte[] getData(String path, Stat stat) throws KeeperException {
+    return this.dataTree.getData(path, stat, null);
+  }
+
+  @Override
+  public String toString() {
+    return this.snapshotFile + " (zxid 0x" + Long.toHexString(this.getLastZxid()) + ")";
+  }
+
+  /**
+   * Use the version-2 subdirectory of a ZooKeeper dataDir if present.
+   */
+  private static File resolveVersionDir(File dir) {
+    File versionDir = new File(dir, FileTxnSnapLog.version + FileTxnSnapLog.VERSION);
+    return versionDir.isDirectory() ? versionDir : dir;
+  }
+
+  /**
+   * Find the latest valid snapshot taken at or before maxZxid.
+   */
+  private static File findSnapshot(File snapDir, long maxZxid) throws IOException {
+    File[] files = snapDir.listFiles();
+    if (files == null) {
+      throw new IOException("Snapshot directory " + snapDir + " cannot be read");
+    }
+    for (File file : Util.sortDataDir(files, FileSnap.SNAPSHOT_FILE_PREFIX, false)) {
+      long zxid = Util.getZxidFromName(file.getName(), FileSnap.SNAPSHOT_FILE_PREFIX);
+      if (zxid <= maxZxid && SnapStream.isValidSnapshot(file)) {
+        return file;
+      }
+    }
+    throw new IOException("No valid snapshot found in " + snapDir + " up to zxid 0x" + Long.toHexString(maxZxid));
+  }
+
+  private void loadSnapshot() throws IOException {
+    Map<Long, Integer> sessions = new HashMap<Long, Integer>();
+    try (CheckedInputStream snapIS = SnapStream.getInputStream(this.snapshotFile)) {
+      new FileSnap(this.snapshotFile.getParentFile()).deserialize(this.dataTree, sessions,
+          BinaryInputArchive.getArchive(snapIS));
+    }
+    this.dataTree.lastProcessedZxid = Util.getZxidFromName(this.snapshotFile.getName(),
+        FileSnap.SNAPSHOT_FILE_PREFIX);
+  }
+
+  /**
+   * Apply the logged transactions following the snapshot, up to maxZxid.
+   *
+   * @return Number of transactions applied
+   */
+  private long replayTxnLogs(File logDir, long maxZxid) throws IOException {
+    long replayed = 0;
+    TxnLog.TxnIterator iterator = new FileTxnLog(logDir).read(this.dataTree.lastProcessedZxid + 1);
+    try {
+      while (iterator.getHeader() != null) {
+        TxnHeader header = iterator.getHeader();
+        if (header.getZxid() > maxZxid) {
+          break;
+        }
+        if (header.getZxid() > this.dataTree.lastProcessedZxid) {
+          // The snapshot is fuzzy, transactions are idempotent when replayed in order
+          this.dataTree.processTxn(header, iterator.getTxn());
+          replayed++;
+        }
+        if (!iterator.next()) {
+          break;
+        }
+      }
+    } finally {
+      iterator.close();
+    }
+    return replayed;
+  }
+}
@@ -0,0 +1,170 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * Executor walking the sibling subtrees of a {@link ZKTraversal} on a bounded pool of threads,
+ * keeping the recursive style of the sequential walk.
+ *
+ * <p>A child subtree is handed to an idle thread if there is one and walked by the calling
+ * thread otherwise, so a thread never waits for a subtree that is not being walked. The
+ * requests of all threads share the in-flight window of the traversal. Each subtree walked
+ * after a subtree handed to another thread writes to its own output buffers, appended to the
+ * output of its parent in sorted order once the preceding siblings are done, so the output is
+ * the same as the output of the sequential walk.</p>
+ */
+public class ZKSubtreeExecutor implements AutoCloseable {
+  private ExecutorService executor = null;
+  private Semaphore idleThreads;
+
+  /**
+   * Walk of a child subtree.
+   */
+  @FunctionalInterface
+  public interface SubtreeWalk {
+    /**
+     * Walk the subtree of a child znode.
+     *
+     * @param child  Child znode
+     * @param isLast True for the last child of its parent
+     * @param output Output buffers the subtree writes to
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    void walk(ZKTraversalNode child, boolean isLast, Hashtable<Integer, List<String>> output)
+        throws KeeperException, InterruptedException;
+  }
+
+  /**
+   * Create an executor walking subtrees on a pool of threads. Subtrees still being walked
+   * after a failure are stopped when the executor is closed.
+   *
+   * @param threads Number of threads walking subtrees in parallel, 1 or less for the
+   *                sequential walk
+   */
+  public ZKSubtreeExecutor(int threads) {
+    if (threads > 1) {
+      AtomicInteger threadCount = new AtomicInteger();
+      this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+        Thread thread = new Thread(runnable, "zkpolicy-subtree-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    this.idleThreads = new Semaphore(Math.max(threads, 0));
+  }
+
+  /**
+   * Create an executor with the number of threads defined in the source configuration.
+   *
+   * @param zk Source of the traversed tree
+   * @return Subtree executor
+   */
+  public static ZKSubtreeExecutor create(ZKTreeSource zk) {
+    if (zk.getZKPConfig() == null) {
+      return new ZKSubtreeExecutor(ZKPolicyDefs.Traversal.DEFAULT_THREADS);
+    }
+    return new ZKSubtreeExecutor(zk.getZKPConfig().getTraversalThreads());
+  }
+
+  /**
+   * Walk the subtrees of the children of a znode and append their output to the output of the
+   * znode in the order of the children.
+   *
+   * @param children Sorted child znodes
+   * @param output   Output buffers of the parent znode
+   * @param walk     Walk of a child subtree
+   * @throws KeeperException
+   * @throws InterruptedException
+   */
+  public void walkChildren(List<ZKTraversalNode> children, Hashtable<Integer, List<String>> output, SubtreeWalk walk)
+      throws KeeperException, InterruptedException {
+    if (this.executor == null || children.size() < 2) {
+      for (int i = 0; i < children.size(); i++) {
+        walk.walk(children.get(i), i == children.size() - 1, output);
+      }
+      return;
+    }
+
+    // Output of the children walked after the first child handed to another thread
+    List<Future<Hashtable<Integer, List<String>>>> results = new ArrayList<Future<Hashtable<Integer, List<String>>>>();
+    try {
+      for (int i = 0; i < children.size(); i++) {
+        ZKTraversalNode child = children.get(i);
+        boolean isLast = i == children.size() - 1;
+        if (results.isEmpty() && (isLast || !this.idleThreads.tryAcquire())) {
+          walk.walk(child, isLast, output);
+          continue;
+        }
+        Hashtable<Integer, List<String>> childOutput = emptyCopy(output);
+        if (!results.isEmpty() && (isLast || !this.idleThreads.tryAcquire())) {
+          walk.walk(child, isLast, childOutput);
+          results.add(CompletableFuture.completedFuture(childOutput));
+          continue;
+        }
+        results.add(this.executor.submit(() -> {
+          try {
+            walk.walk(child, isLast, childOutput);
+            return childOutput;
+          } finally {
+            this.idleThreads.release();
+          }
+        }));
+      }
+      for (Future<Hashtable<Integer, List<String>>> result : results) {
+        for (Map.Entry<Integer, List<String>> entry : result.get().entrySet()) {
+          output.get(entry.getKey()).addAll(entry.getValue());
+        }
+      }
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof KeeperException) {
+        throw (KeeperException) cause;
+      }
+      if (cause instanceof InterruptedException) {
+        throw (InterruptedException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  @Override
+  public void close() {
+    if (this.executor != null) {
+      this.executor.shutdownNow();
+    }
+  }
+
+  private static Hashtable<Integer, List<String>> emptyCopy(Hashtable<Integer, List<String>> output) {
+    Hashtable<Integer, List<String>> copy = new Hashtable<Integer, List<String>>();
+    for (Integer key : output.keySet()) {
+      copy.put(key, new ArrayList<String>());
+    }
+    return copy;
+  }
+}
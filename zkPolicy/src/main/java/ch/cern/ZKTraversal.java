@@ -0,0 +1,350 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Pipelined traversal engine for the znode tree.
+ *
+ * <p>Znodes are fetched with the asynchronous ZooKeeper API (getChildren, getACL and
+ * optionally getData) keeping up to a configurable number of znodes in flight. Children
+ * of a fetched znode are prefetched in sorted depth-first order, so that a caller walking
+ * the tree recursively in sorted pre-order rarely has to wait for a server round trip.</p>
+ *
+ * <p>A subtree filter can be set to skip the subtrees that cannot contain any relevant znode.
+ * Skipped znodes are neither fetched nor returned as child nodes, so a missing READ permission
+ * on a skipped subtree is not reported.</p>
+ *
+ * <p>With a baseline, a previously read state of the tree, the ACL and stat of each znode are
+ * read first. Data is only requested if the mzxid changed and children only if the pzxid or
+ * cversion changed, the baseline children being used otherwise. ZooKeeper stats do not
+ * aggregate changes of a subtree, so every znode is still visited.</p>
+ *
+ * <p>Over a {@link ZKClientPool}, the in-flight window holds maxInFlight znodes for each session
+ * and is shared by the sessions. Each znode is requested through the session of its parent,
+ * unless that session has more outstanding znodes than the least loaded session by
+ * {@link ZKPolicyDefs.Traversal#SESSION_STEAL_THRESHOLD}, in which case the znode and the subtree
+ * below it move to the least loaded session, after a sync of that session on the znode path.
+ * The sessions thus each keep about maxInFlight znodes in flight.</p>
+ */
+public class ZKTraversal implements AutoCloseable {
+  private List<ZKTreeSource> sessions;
+  private boolean fetchData;
+  private Semaphore inFlight;
+  private int maxBuffered;
+  private Predicate<String> subtreeFilter = null;
+  private AtomicLong prunedCount = new AtomicLong();
+  private Baseline baseline = null;
+  private AtomicLong unchangedDataCount = new AtomicLong();
+  private AtomicLong unchangedChildrenCount = new AtomicLong();
+
+  // Guarded by this
+  private Deque<ZKTraversalNode> pending = new ArrayDeque<ZKTraversalNode>();
+  private int buffered = 0;
+  private boolean closed = false;
+  private int[] sessionLoad;
+  private long[] sessionZnodeCount;
+
+  /**
+   * Previously read state of the znode tree.
+   */
+  public interface Baseline {
+    /**
+     * Get the stat of a znode in the baseline.
+     *
+     * @param path Znode path
+     * @return Znode stat or null if the znode is not part of the baseline
+     */
+    Stat getStat(String path);
+
+    /**
+     * Get the children names of a znode in the baseline.
+     *
+     * @param path Znode path
+     * @return Children names or null if not known
+     */
+    List<String> getChildren(String path);
+  }
+
+  /**
+   * Create a traversal fetching children and ACL of each znode.
+   *
+   * @param zk ZooKeeper client or offline source used for the asynchronous requests
+   */
+  public ZKTraversal(ZKTreeSource zk) {
+    this(zk, false);
+  }
+
+  /**
+   * Create a traversal with the in-flight window defined in the client configuration.
+   *
+   * @param zk        ZooKeeper client or offline source used for the asynchronous requests
+   * @param fetchData Fetch the data of each znode along with children and ACL
+   */
+  public ZKTraversal(ZKTreeSource zk, boolean fetchData) {
+    this(zk, fetchData, getConfiguredMaxInFlight(zk));
+  }
+
+  /**
+   * Create a traversal with explicit in-flight window.
+   *
+   * @param zk          ZooKeeper client or offline source used for the asynchronous requests
+   * @param fetchData   Fetch the data of each znode along with children and ACL
+   * @param maxInFlight Number of znodes with outstanding requests per session, the window being
+   *                    shared by the sessions
+   */
+  public ZKTraversal(ZKTreeSource zk, boolean fetchData, int maxInFlight) {
+    if (maxInFlight < 1) {
+      maxInFlight = ZKPolicyDefs.Traversal.DEFAULT_MAX_IN_FLIGHT;
+    }
+    this.sessions = zk.getSessions();
+    this.sessionLoad = new int[this.sessions.size()];
+    this.sessionZnodeCount = new long[this.sessions.size()];
+    int window = maxInFlight * this.sessions.size();
+    this.fetchData = fetchData;
+    this.inFlight = new Semaphore(window);
+    this.maxBuffered = window * ZKPolicyDefs.Traversal.PREFETCH_FACTOR;
+  }
+
+  private static int getConfiguredMaxInFlight(ZKTreeSource zk) {
+    if (zk.getZKPConfig() == null) {
+      return ZKPolicyDefs.Traversal.DEFAULT_MAX_IN_FLIGHT;
+    }
+    return zk.getZKPConfig().getMaxInFlight();
+  }
+
+  /**
+   * Set the filter deciding which subtrees are traversed. A child znode and its subtree are
+   * skipped if the filter returns false for the child path.
+   *
+   * @param subtreeFilter Predicate on the path of child znodes
+   */
+  public void setSubtreeFilter(Predicate<String> subtreeFilter) {
+    this.subtreeFilter = subtreeFilter;
+  }
+
+  /**
+   * Get the number of child znodes skipped by the subtree filter, each one with its whole
+   * subtree.
+   *
+   * @return Number of pruned subtrees
+   */
+  public long getPrunedCount() {
+    return this.prunedCount.get();
+  }
+
+  /**
+   * Set the baseline used to skip the requests for data and children that did not change.
+   *
+   * @param baseline Previously read state of the znode tree
+   */
+  public void setBaseline(Baseline baseline) {
+    this.baseline = baseline;
+  }
+
+  /**
+   * Get the number of znodes whose data was not fetched because it did not change since the
+   * baseline.
+   *
+   * @return Number of unchanged data
+   */
+  public long getUnchangedDataCount() {
+    return this.unchangedDataCount.get();
+  }
+
+  /**
+   * Get the number of znodes whose children were not fetched because the child set did not
+   * change since the baseline.
+   *
+   * @return Number of unchanged child sets
+   */
+  public long getUnchangedChildrenCount() {
+    return this.unchangedChildrenCount.get();
+  }
+
+  Baseline getBaseline() {
+    return this.baseline;
+  }
+
+  void skipped(boolean data, boolean children) {
+    if (data) {
+      this.unchangedDataCount.incrementAndGet();
+    }
+    if (children) {
+      this.unchangedChildrenCount.incrementAndGet();
+    }
+  }
+
+  /**
+   * Check whether the subtree of a child znode must be traversed.
+   *
+   * @param path Child znode path
+   * @return False if the subtree is pruned
+   */
+  boolean accept(String path) {
+    if (this.subtreeFilter == null || this.subtreeFilter.test(path)) {
+      return true;
+    }
+    this.prunedCount.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Get the number of znodes requested through a session of the traversed source.
+   *
+   * @param session Index of the session in the session list of the source
+   * @return Number of requested znodes
+   */
+  public synchronized long getSessionZnodeCount(int session) {
+    return this.sessionZnodeCount[session];
+  }
+
+  ZKTreeSource getSession(int session) {
+    return this.sessions.get(session);
+  }
+
+  /**
+   * Select the session of a znode about to be requested and count it as outstanding on it.
+   *
+   * @param inherited Session of the parent znode
+   * @return Session of the znode, passed on to its children
+   */
+  synchronized int selectSession(int inherited) {
+    int selected = inherited;
+    for (int i = 0; i < this.sessionLoad.length; i++) {
+      if (this.sessionLoad[i] < this.sessionLoad[selected]) {
+        selected = i;
+      }
+    }
+    if (this.sessionLoad[inherited] - this.sessionLoad[selected] <= ZKPolicyDefs.Traversal.SESSION_STEAL_THRESHOLD) {
+      selected = inherited;
+    }
+    this.sessionLoad[selected]++;
+    this.sessionZnodeCount[selected]++;
+    return selected;
+  }
+
+  boolean isFetchData() {
+    return this.fetchData;
+  }
+
+  /**
+   * Start traversing the subtree under rootPath.
+   *
+   * @param rootPath Path of the subtree root
+   * @return Handle of the subtree root znode
+   */
+  public ZKTraversalNode start(String rootPath) {
+    ZKTraversalNode root = new ZKTraversalNode(this, rootPath, 0);
+    synchronized (this) {
+      this.pending.push(root);
+    }
+    this.drain();
+    return root;
+  }
+
+  /**
+   * Stop prefetching. Requests already sent are completed but their results are ignored.
+   */
+  @Override
+  public synchronized void close() {
+    this.closed = true;
+    this.pending.clear();
+  }
+
+  /**
+   * Queue children of a znode for prefetching, the first child being fetched first.
+   *
+   * @param children Sorted list of child znodes
+   */
+  void schedule(List<ZKTraversalNode> children) {
+    synchronized (this) {
+      if (this.closed) {
+        return;
+      }
+      for (int i = children.size() - 1; i >= 0; i--) {
+        this.pending.push(children.get(i));
+      }
+    }
+    this.drain();
+  }
+
+  /**
+   * Send requests for queued znodes while there is room in the in-flight window and the
+   * prefetch buffer.
+   */
+  void drain() {
+    while (true) {
+      ZKTraversalNode node;
+      synchronized (this) {
+        if (this.closed || this.pending.isEmpty() || this.buffered >= this.maxBuffered) {
+          return;
+        }
+        if (!this.inFlight.tryAcquire()) {
+          return;
+        }
+        node = this.pending.pop();
+        if (!node.markIssued()) {
+          // Already requested by the consumer
+          this.inFlight.release();
+          continue;
+        }
+        this.buffered++;
+      }
+      node.issue();
+    }
+  }
+
+  /**
+   * Send requests for a znode the consumer is waiting for, bypassing the prefetch queue.
+   *
+   * @param node Znode requested by the consumer
+   * @throws InterruptedException
+   */
+  void issueNow(ZKTraversalNode node) throws InterruptedException {
+    synchronized (this) {
+      if (!node.markIssued()) {
+        return;
+      }
+      this.buffered++;
+    }
+    this.inFlight.acquire();
+    node.issue();
+  }
+
+  /**
+   * Release the in-flight slot of a znode whose requests have all returned.
+   *
+   * @param session Session the znode was requested through
+   */
+  void completed(int session) {
+    synchronized (this) {
+      this.sessionLoad[session]--;
+    }
+    this.inFlight.release();
+    this.drain();
+  }
+
+  /**
+   * Release the prefetch buffer slot of a znode visited by the consumer.
+   */
+  void consumed() {
+    synchronized (this) {
+      this.buffered--;
+    }
+    this.drain();
+  }
+}
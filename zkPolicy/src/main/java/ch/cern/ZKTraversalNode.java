@@ -0,0 +1,359 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Handle of a znode fetched by a {@link ZKTraversal}.
+ *
+ * <p>The getters block until the asynchronous requests for the znode have returned and
+ * rethrow the KeeperException of the respective request, mirroring the behavior of the
+ * synchronous ZooKeeper API.</p>
+ */
+public class ZKTraversalNode {
+  private static final int QUEUED = 0;
+  private static final int ISSUED = 1;
+  // A failed sync is ignored, the requests that follow report the failures of the session
+  private static final AsyncCallback.VoidCallback IGNORE_SYNC_RESULT = (rc, path, ctx) -> {
+  };
+
+  private ZKTraversal traversal;
+  private String path;
+  private int session;
+  private int state = QUEUED;
+  private boolean consumed = false;
+  private AtomicInteger outstanding = new AtomicInteger();
+  private CountDownLatch done = new CountDownLatch(1);
+
+  private List<String> children;
+  private KeeperException childrenException;
+  private List<ACL> acl;
+  private KeeperException aclException;
+  private Stat aclStat;
+  private byte[] data;
+  private KeeperException dataException;
+  private Stat stat;
+  private List<ZKTraversalNode> childNodes;
+  private boolean dataUnchanged = false;
+  private boolean childrenUnchanged = false;
+
+  ZKTraversalNode(ZKTraversal traversal, String path, int session) {
+    this.traversal = traversal;
+    this.path = path;
+    this.session = session;
+  }
+
+  /**
+   * Get the full path of the znode.
+   *
+   * @return Znode path
+   */
+  public String getPath() {
+    return this.path;
+  }
+
+  /**
+   * Get the last element of the znode path.
+   *
+   * @return Znode name
+   */
+  public String getName() {
+    return this.path.substring(this.path.lastIndexOf('/') + 1);
+  }
+
+  /**
+   * Get the sorted names of the znode children.
+   *
+   * @return Sorted list of children names
+   * @throws KeeperException      Failure of the getChildren request
+   * @throws InterruptedException
+   */
+  public List<String> getChildren() throws KeeperException, InterruptedException {
+    this.await();
+    if (this.childrenException != null) {
+      throw this.childrenException;
+    }
+    return this.children;
+  }
+
+  /**
+   * Get the ACL of the znode.
+   *
+   * @return ACL list
+   * @throws KeeperException      Failure of the getACL request
+   * @throws InterruptedException
+   */
+  public List<ACL> getACL() throws KeeperException, InterruptedException {
+    this.await();
+    if (this.aclException != null) {
+      throw this.aclException;
+    }
+    return this.acl;
+  }
+
+  /**
+   * Get the ACL version of the znode at the time its ACL was read, to be used for
+   * compare-and-set updates.
+   *
+   * @return ACL version (Stat aversion) matching the ACL returned by getACL
+   * @throws KeeperException      Failure of the getACL request
+   * @throws InterruptedException
+   */
+  public int getACLVersion() throws KeeperException, InterruptedException {
+    this.getACL();
+    return this.aclStat.getAversion();
+  }
+
+  /**
+   * Check whether the data of the znode was not fetched because it did not change since the
+   * baseline of the traversal.
+   *
+   * @return True if the data is the same as in the baseline
+   * @throws InterruptedException
+   */
+  public boolean isDataUnchanged() throws InterruptedException {
+    this.await();
+    return this.dataUnchanged;
+  }
+
+  /**
+   * Check whether the children of the znode were taken from the baseline of the traversal
+   * because the child set did not change.
+   *
+   * @return True if the children are the same as in the baseline
+   * @throws InterruptedException
+   */
+  public boolean isChildrenUnchanged() throws InterruptedException {
+    this.await();
+    return this.childrenUnchanged;
+  }
+
+  /**
+   * Get the data of the znode, if the traversal fetches data.
+   *
+   * @return Znode data, null if unchanged since the baseline of the traversal
+   * @throws KeeperException      Failure of the getData request
+   * @throws InterruptedException
+   */
+  public byte[] getData() throws KeeperException, InterruptedException {
+    this.await();
+    if (this.dataException != null) {
+      throw this.dataException;
+    }
+    return this.data;
+  }
+
+  /**
+   * Get the Stat of the znode as returned by the last completed request.
+   *
+   * @return Znode Stat or null if every request failed
+   * @throws InterruptedException
+   */
+  public Stat getStat() throws InterruptedException {
+    this.await();
+    return this.stat;
+  }
+
+  /**
+   * Get the handles of the children in sorted order. Children are prefetched in the
+   * background, so this method should only be called once per znode. Children pruned by
+   * the subtree filter of the traversal are not returned.
+   *
+   * @return Sorted list of child znode handles
+   * @throws KeeperException      Failure of the getChildren request
+   * @throws InterruptedException
+   */
+  public List<ZKTraversalNode> getChildNodes() throws KeeperException, InterruptedException {
+    List<String> childNames = this.getChildren();
+    List<ZKTraversalNode> toReturn = this.childNodes;
+    this.childNodes = null;
+    if (toReturn == null) {
+      // Children of partially failed znodes are only fetched if requested
+      toReturn = this.createChildNodes(childNames);
+      this.traversal.schedule(toReturn);
+    }
+    return toReturn;
+  }
+
+  /**
+   * Mark the znode as requested.
+   *
+   * @return False if requests were already sent for this znode
+   */
+  boolean markIssued() {
+    if (this.state != QUEUED) {
+      return false;
+    }
+    this.state = ISSUED;
+    return true;
+  }
+
+  /**
+   * Send the asynchronous requests for this znode.
+   */
+  void issue() {
+    int inherited = this.session;
+    this.session = this.traversal.selectSession(inherited);
+    if (this.session != inherited) {
+      // The znode was listed through another session, whose server may be ahead of this one
+      this.traversal.getSession(this.session).sync(this.path, IGNORE_SYNC_RESULT, null);
+    }
+    if (this.traversal.getBaseline() != null) {
+      this.issueAfterACL();
+      return;
+    }
+    boolean fetchData = this.traversal.isFetchData();
+    this.outstanding.set(fetchData ? 3 : 2);
+    this.sendGetChildren();
+    this.sendGetACL(null);
+    if (fetchData) {
+      this.sendGetData();
+    }
+  }
+
+  /**
+   * Read the ACL and stat of the znode first, then only request the data and children that
+   * changed since the baseline of the traversal.
+   */
+  private void issueAfterACL() {
+    this.outstanding.set(1);
+    this.sendGetACL(stat -> {
+      if (stat == null) {
+        // The znode could not be read, report the same failure for every request
+        this.childrenException = this.aclException;
+        this.dataException = this.traversal.isFetchData() ? this.aclException : null;
+        return;
+      }
+      Stat baselineStat = this.traversal.getBaseline().getStat(this.path);
+      // A znode deleted and created again since the baseline has a different czxid
+      boolean known = baselineStat != null && baselineStat.getCzxid() == stat.getCzxid();
+      boolean fetchData = this.traversal.isFetchData();
+      this.dataUnchanged = fetchData && known && baselineStat.getMzxid() == stat.getMzxid();
+      if (known && baselineStat.getPzxid() == stat.getPzxid() && baselineStat.getCversion() == stat.getCversion()) {
+        List<String> children = this.traversal.getBaseline().getChildren(this.path);
+        if (children != null) {
+          this.children = new ArrayList<String>(children);
+          Collections.sort(this.children);
+          this.childrenUnchanged = true;
+        }
+      }
+      this.traversal.skipped(this.dataUnchanged, this.childrenUnchanged);
+
+      boolean fetchChildren = !this.childrenUnchanged;
+      fetchData = fetchData && !this.dataUnchanged;
+      this.outstanding.addAndGet((fetchChildren ? 1 : 0) + (fetchData ? 1 : 0));
+      if (fetchChildren) {
+        this.sendGetChildren();
+      }
+      if (fetchData) {
+        this.sendGetData();
+      }
+    });
+  }
+
+  private void sendGetChildren() {
+    this.traversal.getSession(this.session).getChildren(this.path, false, new AsyncCallback.Children2Callback() {
+      @Override
+      public void processResult(int rc, String path, Object ctx, List<String> children, Stat stat) {
+        if (rc == KeeperException.Code.OK.intValue()) {
+          Collections.sort(children);
+          ZKTraversalNode.this.children = children;
+        } else {
+          ZKTraversalNode.this.childrenException = KeeperException.create(KeeperException.Code.get(rc), path);
+        }
+        ZKTraversalNode.this.requestCompleted(stat);
+      }
+    }, null);
+  }
+
+  /**
+   * Send the getACL request.
+   *
+   * @param onResult Called with the returned stat, null on failure, before the request is completed
+   */
+  private void sendGetACL(Consumer<Stat> onResult) {
+    this.traversal.getSession(this.session).getACL(this.path, null, new AsyncCallback.ACLCallback() {
+      @Override
+      public void processResult(int rc, String path, Object ctx, List<ACL> acl, Stat stat) {
+        if (rc == KeeperException.Code.OK.intValue()) {
+          ZKTraversalNode.this.acl = ZKACLDictionary.getDefault().intern(acl);
+          ZKTraversalNode.this.aclStat = stat;
+        } else {
+          ZKTraversalNode.this.aclException = KeeperException.create(KeeperException.Code.get(rc), path);
+        }
+        if (onResult != null) {
+          onResult.accept(rc == KeeperException.Code.OK.intValue() ? stat : null);
+        }
+        ZKTraversalNode.this.requestCompleted(stat);
+      }
+    }, null);
+  }
+
+  private void sendGetData() {
+    this.traversal.getSession(this.session).getData(this.path, false, new AsyncCallback.DataCallback() {
+      @Override
+      public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+        if (rc == KeeperException.Code.OK.intValue()) {
+          ZKTraversalNode.this.data = data;
+        } else {
+          ZKTraversalNode.this.dataException = KeeperException.create(KeeperException.Code.get(rc), path);
+        }
+        ZKTraversalNode.this.requestCompleted(stat);
+      }
+    }, null);
+  }
+
+  private void requestCompleted(Stat stat) {
+    if (stat != null) {
+      this.stat = stat;
+    }
+    if (this.outstanding.decrementAndGet() > 0) {
+      return;
+    }
+    // Prefetch children only if the znode was fully readable
+    if (this.children != null && this.aclException == null && this.dataException == null) {
+      this.childNodes = this.createChildNodes(this.children);
+      this.traversal.schedule(this.childNodes);
+    }
+    this.done.countDown();
+    this.traversal.completed(this.session);
+  }
+
+  private List<ZKTraversalNode> createChildNodes(List<String> childNames) {
+    String prefix = this.path.equals("/") ? "" : this.path;
+    List<ZKTraversalNode> toReturn = new ArrayList<ZKTraversalNode>(childNames.size());
+    for (String child : childNames) {
+      String childPath = prefix + "/" + child;
+      if (this.traversal.accept(childPath)) {
+        toReturn.add(new ZKTraversalNode(this.traversal, childPath, this.session));
+      }
+    }
+    return toReturn;
+  }
+
+  private void await() throws InterruptedException {
+    if (this.consumed) {
+      return;
+    }
+    this.traversal.issueNow(this);
+    this.done.await();
+    this.consumed = true;
+    this.traversal.consumed();
+  }
+}
@@ -12,10 +12,10 @@ package ch.cern;
 
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.KeeperException.NoAuthException;
 import org.apache.zookeeper.data.ACL;
@@ -24,7 +24,8 @@ import org.apache.zookeeper.data.ACL;
  * Class that handles operations on the ZNode tree structure.
  */
 public class ZKTree {
-  private ZKClient zk = null;
+  private ZKTreeSource zk = null;
+  private static Logger logger = LogManager.getLogger(ZKTree.class);
 
   private String resetColor;
   private String matchColor;
@@ -33,9 +34,9 @@ public class ZKTree {
   /**
    * Create a ZKTree instance for traversal and query execution.
    * 
-   * @param zk A ZooKeeper instance that provides access to the ZNode tree
+   * @param zk A ZooKeeper client or offline source that provides access to the ZNode tree
    */
-  public ZKTree(ZKClient zk) {
+  public ZKTree(ZKTreeSource zk) {
     this.zk = zk;
     this.resetColor = ZKPolicyDefs.Colors.valueOf("RESET").getANSIValue();
     this.matchColor = ZKPolicyDefs.Colors.valueOf(zk.getZKPConfig().getMatchColor()).getANSIValue();
@@ -81,8 +82,11 @@ public class ZKTree {
         continue;
       }
       if (zkQueryElement.getName().equals("parentYesChildNo")) {
-        this.queryTreeIntParentYesChildNo(zkQueryElement.getRootPath(), "", "", null, true, false, false, queriesOutput,
-            zkQueryElement);
+        try (ZKTraversal traversal = new ZKTraversal(this.zk);
+            ZKSubtreeExecutor executor = ZKSubtreeExecutor.create(this.zk)) {
+          this.queryTreeIntParentYesChildNo(traversal.start(zkQueryElement.getRootPath()), "", "", null, true, false,
+              false, queriesOutput, zkQueryElement, zkQueryElement.compile(), executor);
+        }
         parentYesChildNoQueries.add(zkQueryElement);
       }
 
@@ -97,39 +101,41 @@ public class ZKTree {
     }
 
     if (queryElements.size() > 0) {
-      this.queryTreeIntPreOrder(rootPath, "", "", queryElements, true, false, false, queriesOutput);
+      List<ZKCompiledQuery> compiledQueries = compileQueries(queryElements);
+      try (ZKTraversal traversal = new ZKTraversal(this.zk);
+          ZKSubtreeExecutor executor = ZKSubtreeExecutor.create(this.zk)) {
+        this.queryTreeIntPreOrder(traversal.start(rootPath), "", "", queryElements, compiledQueries, true, false, false,
+            queriesOutput, executor);
+      }
+      compiledQueries.forEach(ZKCompiledQuery::logStatistics);
     }
   }
 
   /**
    * Recursive function that parses the full ZNode tree and executes queries on each step.
-   * 
-   * @throws IllegalAccessException
-   * @throws IllegalArgumentException
-   * @throws SecurityException
-   * @throws NoSuchFieldException
    */
-  private void queryTreeIntPreOrder(String path, String indent, String name, List<ZKQueryElement> queryElements,
-      boolean isQueryRoot, boolean isLast, boolean isParentLast, Hashtable<Integer, List<String>> queriesOutput)
-      throws KeeperException, InterruptedException, NoSuchFieldException, SecurityException, IllegalArgumentException,
-      IllegalAccessException {
-    List<String> children = null;
+  private void queryTreeIntPreOrder(ZKTraversalNode node, String indent, String name,
+      List<ZKQueryElement> queryElements, List<ZKCompiledQuery> compiledQueries, boolean isQueryRoot, boolean isLast,
+      boolean isParentLast,
+      Hashtable<Integer, List<String>> queriesOutput, ZKSubtreeExecutor executor)
+      throws KeeperException, InterruptedException {
+    String path = node.getPath();
+    List<ZKTraversalNode> children = null;
     try {
-      children = this.zk.getChildren(path, null);
+      children = node.getChildNodes();
     } catch (NoAuthException e) {
       return;
     }
 
-    List<ACL> znodeACLList = this.zk.getACL(path, null);
+    List<ACL> znodeACLList = node.getACL();
 
     Boolean isQueryRootSentinel = true;
     // After we got the ACL, execute all the queries
-    for (ZKQueryElement zkQueryElement : queryElements) {
+    for (int i = 0; i < queryElements.size(); i++) {
       isQueryRootSentinel = false;
       String znodePrintColor = "";
-      ZKQuery query = zkQueryElement.getQuery();
 
-      if (query.query(znodeACLList, null, path, this.zk, zkQueryElement.getArgs())) {
+      if (compiledQueries.get(i).query(znodeACLList, null, path, this.zk)) {
         znodePrintColor = this.matchColor;
       } else {
         znodePrintColor = this.misMatchColor;
@@ -154,59 +160,46 @@ public class ZKTree {
         }
 
       }
-      queriesOutput.get(zkQueryElement.hashCode()).add(indent + znodePrintColor + "/" + name + this.resetColor);
+      queriesOutput.get(queryElements.get(i).hashCode()).add(indent + znodePrintColor + "/" + name + this.resetColor);
 
     }
 
-    if (path.equals("/")) {
-      path = "";
-    }
-    Collections.sort(children);
-
-    Iterator<String> iterator = children.iterator();
-    while (iterator.hasNext()) {
-      String child = iterator.next();
-      this.queryTreeIntPreOrder(path + "/" + child, indent, child, queryElements, isQueryRootSentinel,
-          !iterator.hasNext(), isLast, queriesOutput);
-    }
+    String childIndent = indent;
+    boolean isChildQueryRoot = isQueryRootSentinel;
+    executor.walkChildren(children, queriesOutput, (child, isLastChild, output) -> this.queryTreeIntPreOrder(child,
+        childIndent, child.getName(), queryElements, compiledQueries, isChildQueryRoot, isLastChild, isLast, output,
+        executor));
   }
 
   /**
    * Recursive function that constructs the full ZNode tree while passing parent
    * ACL to child queries.
-   * 
-   * @throws IllegalAccessException
-   * @throws IllegalArgumentException
-   * @throws SecurityException
-   * @throws NoSuchFieldException
    */
-  private void queryTreeIntParentYesChildNo(String path, String indent, String name, List<ACL> parentACLList,
-      boolean isQueryRoot, boolean isLast, boolean isParentLast, Hashtable<Integer, List<String>> queriesOutput,
-      ZKQueryElement queryElement) throws KeeperException, InterruptedException, NoSuchFieldException,
-      SecurityException, IllegalArgumentException, IllegalAccessException {
-    List<String> children = null;
+  private void queryTreeIntParentYesChildNo(ZKTraversalNode node, String indent, String name,
+      List<ACL> parentACLList, boolean isQueryRoot, boolean isLast, boolean isParentLast,
+      Hashtable<Integer, List<String>> queriesOutput, ZKQueryElement queryElement, ZKCompiledQuery query,
+      ZKSubtreeExecutor executor) throws KeeperException, InterruptedException {
+    String path = node.getPath();
+    List<ZKTraversalNode> children = null;
 
     try {
-      children = this.zk.getChildren(path, null);
+      children = node.getChildNodes();
     } catch (NoAuthException e) {
       return;
     }
 
     String znodePrintColor = "";
 
-    List<ACL> znodeACLList = this.zk.getACL(path, null);
+    List<ACL> znodeACLList = node.getACL();
 
-    ZKQuery query = queryElement.getQuery();
-
-    if (parentACLList == null || query.query(znodeACLList, parentACLList, path, this.zk, null)) {
+    if (parentACLList == null || query.query(znodeACLList, parentACLList, path, this.zk)) {
       znodePrintColor = this.matchColor;
     } else {
       znodePrintColor = this.misMatchColor;
     }
-    parentACLList = this.zk.getACL(path, null);
 
     if (path.equals("/")) {
-      path = "";
+      name = "";
     } else if (isQueryRoot) {
       name = path.substring(1, path.length());
     } else {
@@ -227,14 +220,10 @@ public class ZKTree {
     }
     queriesOutput.get(queryElement.hashCode()).add(indent + this.resetColor + "/" + name);
 
-    Collections.sort(children);
-
-    Iterator<String> iterator = children.iterator();
-    while (iterator.hasNext()) {
-      String child = iterator.next();
-      this.queryTreeIntParentYesChildNo(path + "/" + child, indent, child, parentACLList, false, !iterator.hasNext(),
-          isLast, queriesOutput, queryElement);
-    }
+    String childIndent = indent;
+    executor.walkChildren(children, queriesOutput, (child, isLastChild, output) -> this.queryTreeIntParentYesChildNo(
+        child, childIndent, child.getName(), znodeACLList, false, isLastChild, isLast, output, queryElement, query,
+        executor));
   }
 
   /**
@@ -277,7 +266,11 @@ public class ZKTree {
       }
 
       if (zkQueryElement.getName().equals("parentYesChildNo")) {
-        this.queryFindIntParentYesChildNo(zkQueryElement.getRootPath(), null, queriesOutput, zkQueryElement);
+        try (ZKTraversal traversal = new ZKTraversal(this.zk);
+            ZKSubtreeExecutor executor = ZKSubtreeExecutor.create(this.zk)) {
+          this.queryFindIntParentYesChildNo(traversal.start(zkQueryElement.getRootPath()), null, queriesOutput,
+              zkQueryElement, zkQueryElement.compile(), executor);
+        }
         parentYesChildNoQueries.add(zkQueryElement);
       }
     }
@@ -291,7 +284,29 @@ public class ZKTree {
     }
 
     if (queryElements.size() > 0) {
-      this.queryFindIntPreOrder(rootPath, queryElements, queriesOutput);
+      List<ZKCompiledQuery> compiledQueries = compileQueries(queryElements);
+      try (ZKTraversal traversal = new ZKTraversal(this.zk)) {
+        // Find only lists matching znodes, so subtrees no query can match are skipped
+        traversal.setSubtreeFilter(childPath -> mayAnyMatchSubtree(compiledQueries, childPath));
+        int evaluationThreads = this.zk.getZKPConfig().getEvaluationThreads();
+        if (evaluationThreads > 1) {
+          List<List<String>> outputs = new ArrayList<List<String>>(queryElements.size());
+          for (ZKQueryElement queryElement : queryElements) {
+            outputs.add(queriesOutput.get(queryElement.hashCode()));
+          }
+          try (ZKQueryEvaluator evaluator = new ZKQueryEvaluator(compiledQueries, outputs, this.zk, evaluationThreads)) {
+            this.queryFindIntEvaluated(traversal.start(rootPath), evaluator);
+            evaluator.finish();
+          }
+        } else {
+          try (ZKSubtreeExecutor executor = ZKSubtreeExecutor.create(this.zk)) {
+            this.queryFindIntPreOrder(traversal.start(rootPath), queryElements, compiledQueries, queriesOutput,
+                executor);
+          }
+        }
+        logger.info("Find pruned " + traversal.getPrunedCount() + " subtrees that cannot match");
+      }
+      compiledQueries.forEach(ZKCompiledQuery::logStatistics);
     }
   }
 
@@ -299,21 +314,23 @@ public class ZKTree {
    * Recursive function that constructs the full ZNode tree, executes queries
    *  and outputs lines matching each one of them.
    * 
-   * @param queryElements List of queries to be executed on each node
-   * @param queriesOutput Output buffers for each query
-   * @throws IllegalAccessException
-   * @throws IllegalArgumentException
-   * @throws SecurityException
-   * @throws NoSuchFieldException
+   * @param node            Traversal handle of the current znode
+   * @param queryElements   List of queries to be executed on each node
+   * @param compiledQueries Compiled queries, in the order of queryElements
+   * @param queriesOutput   Output buffers for each query
+   * @param executor        Executor walking the child subtrees
+   * @throws KeeperException
+   * @throws InterruptedException
    */
-  private void queryFindIntPreOrder(String path, List<ZKQueryElement> queryElements,
-      Hashtable<Integer, List<String>> queriesOutput) throws KeeperException, InterruptedException,
-      NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
+  private void queryFindIntPreOrder(ZKTraversalNode node, List<ZKQueryElement> queryElements,
+      List<ZKCompiledQuery> compiledQueries, Hashtable<Integer, List<String>> queriesOutput, ZKSubtreeExecutor executor)
+      throws KeeperException, InterruptedException {
 
-    List<String> children = null;
+    String path = node.getPath();
+    List<ZKTraversalNode> children = null;
 
     try {
-      children = this.zk.getChildren(path, null);
+      children = node.getChildNodes();
     } catch (NoAuthException e) {
       for (ZKQueryElement zkQueryElement : queryElements) {
         queriesOutput.get(zkQueryElement.hashCode())
@@ -321,64 +338,100 @@ public class ZKTree {
       }
       return;
     }
-    List<ACL> znodeACLList = this.zk.getACL(path, null);
+    List<ACL> znodeACLList = node.getACL();
 
-    for (ZKQueryElement zkQueryElement : queryElements) {
-      ZKQuery query = zkQueryElement.getQuery();
-
-      if (query.query(znodeACLList, null, path, this.zk, zkQueryElement.getArgs())) {
-        queriesOutput.get(zkQueryElement.hashCode()).add(path);
+    for (int i = 0; i < queryElements.size(); i++) {
+      if (compiledQueries.get(i).query(znodeACLList, null, path, this.zk)) {
+        queriesOutput.get(queryElements.get(i).hashCode()).add(path);
       }
     }
 
-    if (path.equals("/")) {
-      path = "";
+    executor.walkChildren(children, queriesOutput,
+        (child, isLast, output) -> this.queryFindIntPreOrder(child, queryElements, compiledQueries, output, executor));
+  }
+
+  /**
+   * Recursive function that walks the ZNode tree and passes each znode to the evaluation stage
+   * of the queries.
+   *
+   * @param node      Traversal handle of the current znode
+   * @param evaluator Evaluation stage of the queries
+   * @throws KeeperException
+   * @throws InterruptedException
+   */
+  private void queryFindIntEvaluated(ZKTraversalNode node, ZKQueryEvaluator evaluator)
+      throws KeeperException, InterruptedException {
+    String path = node.getPath();
+    List<ZKTraversalNode> children = null;
+
+    try {
+      children = node.getChildNodes();
+    } catch (NoAuthException e) {
+      evaluator.append("WARNING: No READ permission for " + path + ", skipping subtree");
+      return;
     }
+    evaluator.evaluate(path, node.getACL());
 
-    Collections.sort(children);
-    for (String child : children) {
-      this.queryFindIntPreOrder(path + "/" + child, queryElements, queriesOutput);
+    for (ZKTraversalNode child : children) {
+      this.queryFindIntEvaluated(child, evaluator);
     }
   }
 
   /**
    * Recursive function that constructs the full ZNode tree, passing parent ACL to
    * children queries.
-   * 
-   * @throws IllegalAccessException
-   * @throws IllegalArgumentException
-   * @throws SecurityException
-   * @throws NoSuchFieldException
    */
-  private void queryFindIntParentYesChildNo(String path, List<ACL> parentACLList,
-      Hashtable<Integer, List<String>> queriesOutput, ZKQueryElement queryElement) throws KeeperException,
-      InterruptedException, NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
+  private void queryFindIntParentYesChildNo(ZKTraversalNode node, List<ACL> parentACLList,
+      Hashtable<Integer, List<String>> queriesOutput, ZKQueryElement queryElement, ZKCompiledQuery query,
+      ZKSubtreeExecutor executor) throws KeeperException, InterruptedException {
 
-    List<String> children = null;
+    String path = node.getPath();
+    List<ZKTraversalNode> children = null;
 
     try {
-      children = this.zk.getChildren(path, null);
+      children = node.getChildNodes();
     } catch (NoAuthException e) {
       queriesOutput.get(queryElement.hashCode()).add("WARNING: No READ permission for " + path + ", skipping subtree");
       return;
     }
-    List<ACL> znodeACLList = this.zk.getACL(path, null);
+    List<ACL> znodeACLList = node.getACL();
 
-    ZKQuery query = queryElement.getQuery();
-
-    if (parentACLList != null && !query.query(znodeACLList, parentACLList, path, this.zk, null)) {
+    if (parentACLList != null && !query.query(znodeACLList, parentACLList, path, this.zk)) {
       queriesOutput.get(queryElement.hashCode()).add(path);
     }
-    parentACLList = this.zk.getACL(path, null);
 
-    if (path.equals("/")) {
-      path = "";
+    executor.walkChildren(children, queriesOutput, (child, isLast, output) -> this.queryFindIntParentYesChildNo(child,
+        znodeACLList, output, queryElement, query, executor));
+  }
+
+  /**
+   * Check whether any of the compiled queries may match a znode of a subtree.
+   *
+   * @param compiledQueries Compiled queries
+   * @param path            Subtree root path
+   * @return False if no query can match a znode of the subtree
+   */
+  private static boolean mayAnyMatchSubtree(List<ZKCompiledQuery> compiledQueries, String path) {
+    for (ZKCompiledQuery compiledQuery : compiledQueries) {
+      if (compiledQuery.mayMatchSubtree(path)) {
+        return true;
+      }
     }
+    return false;
+  }
 
-    Collections.sort(children);
-    for (String child : children) {
-      this.queryFindIntParentYesChildNo(path + "/" + child, parentACLList, queriesOutput, queryElement);
+  /**
+   * Compile the queries of a list of query elements.
+   *
+   * @param queryElements Query elements with their query set
+   * @return Compiled queries in the order of queryElements
+   */
+  private static List<ZKCompiledQuery> compileQueries(List<ZKQueryElement> queryElements) {
+    List<ZKCompiledQuery> compiledQueries = new ArrayList<ZKCompiledQuery>(queryElements.size());
+    for (ZKQueryElement queryElement : queryElements) {
+      compiledQueries.add(queryElement.compile());
     }
+    return compiledQueries;
   }
 
   /**
@@ -54,7 +54,7 @@ public class ZKTreeCli implements Runnable {
     }
 
     if (config != null) {
-      try (ZKClient zk = new ZKClient(config)) {
+      try (ZKTreeSource zk = parent.openTreeSource(config)) {
         zktree = new ZKTree(zk);
         zktree.queryTree(queryElement.getRootPath(), queriesList, queriesOutput);
       } catch (Exception e) {
@@ -69,7 +69,7 @@ public class ZKTreeCli implements Runnable {
     public String getDescription(){
       return "Query matching every node of a subtree";
     }
-    public boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKClient zk, List<String> queryACLs) {
+    public boolean query(List<ACL> aclList, List<ACL> parentAclList, String path, ZKTreeSource zk, List<String> queryACLs) {
       return true;
     }
   }
@@ -0,0 +1,107 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.util.Collections;
+import java.util.List;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Read-only source of the znode tree used by queries, checks, audits and exports.
+ *
+ * <p>The methods follow the signatures of the ZooKeeper client API, so that {@link ZKClient}
+ * is the live implementation. Offline implementations serve the same requests from a local
+ * copy of the tree, invoking the callbacks asynchronously like the ZooKeeper event thread.</p>
+ */
+public interface ZKTreeSource extends AutoCloseable {
+  /**
+   * Get config instance for ZooKeeper Policy Auditing Tool.
+   *
+   * @return ZooKeeper Policy Auditing Tool Configuration instance
+   */
+  ZKConfig getZKPConfig();
+
+  /**
+   * Return the stat of the znode of the given path.
+   *
+   * @param path    Znode path
+   * @param watcher Watcher, ignored by offline sources
+   * @return Znode Stat or null if the znode does not exist
+   * @throws KeeperException
+   * @throws InterruptedException
+   */
+  Stat exists(String path, Watcher watcher) throws KeeperException, InterruptedException;
+
+  /**
+   * Get the children and stat of a znode asynchronously.
+   *
+   * @param path  Znode path
+   * @param watch Leave a watch on the znode, ignored by offline sources
+   * @param cb    Callback receiving the result
+   * @param ctx   Context passed to the callback
+   */
+  void getChildren(String path, boolean watch, AsyncCallback.Children2Callback cb, Object ctx);
+
+  /**
+   * Get the ACL and stat of a znode asynchronously.
+   *
+   * @param path Znode path
+   * @param stat Stat of the znode, filled in by the ZooKeeper client
+   * @param cb   Callback receiving the result
+   * @param ctx  Context passed to the callback
+   */
+  void getACL(String path, Stat stat, AsyncCallback.ACLCallback cb, Object ctx);
+
+  /**
+   * Get the data and stat of a znode asynchronously.
+   *
+   * @param path  Znode path
+   * @param watch Leave a watch on the znode, ignored by offline sources
+   * @param cb    Callback receiving the result
+   * @param ctx   Context passed to the callback
+   */
+  void getData(String path, boolean watch, AsyncCallback.DataCallback cb, Object ctx);
+
+  /**
+   * Bring the server of the source up to date with the leader asynchronously. Requests sent
+   * afterwards are served once the server is up to date.
+   *
+   * @param path Znode path
+   * @param cb   Callback receiving the result
+   * @param ctx  Context passed to the callback
+   */
+  default void sync(String path, AsyncCallback.VoidCallback cb, Object ctx) {
+    // Offline sources are always up to date
+    cb.processResult(KeeperException.Code.OK.intValue(), path, ctx);
+  }
+
+  /**
+   * Get the ZooKeeper client currently backing the source.
+   *
+   * @return ZooKeeper client or null for offline sources
+   */
+  default ZKClient getClient() {
+    return null;
+  }
+
+  /**
+   * Get the sessions a traversal can spread its requests over.
+   *
+   * @return Sources of the sessions, only this source unless it is a session pool
+   */
+  default List<ZKTreeSource> getSessions() {
+    return Collections.singletonList(this);
+  }
+
+  @Override
+  void close() throws InterruptedException;
+}
@@ -0,0 +1,785 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.zookeeper.AddWatchMode;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.NoAuthException;
+import org.apache.zookeeper.KeeperException.NoNodeException;
+import org.apache.zookeeper.KeeperException.SessionExpiredException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.WatcherType;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Continuous evaluation of the queries and checks of an audit configuration.
+ *
+ * <p>The subtrees under the query and check root paths are scanned once into an in-memory
+ * model of the znode ACLs. Persistent recursive watches are then set on the root paths and
+ * only the created znodes are read and evaluated again. Every change of the result of a
+ * query or check on a znode is written to the output as soon as it is detected.</p>
+ *
+ * <p>ZooKeeper does not trigger watches on setACL, so ACL changes of existing znodes are
+ * detected by a periodic sweep that reads the ACL of every known znode again, pipelined and
+ * without listing children, and evaluates the znodes whose ACL version changed. The model is
+ * rebuilt after a disconnection, as watch events may have been missed. When the session
+ * expires, a new session is opened with the configuration of the client, the watches are set
+ * again and the model is rebuilt.</p>
+ *
+ * <p>With remediation enabled, the ACL of created znodes and of znodes whose ACL changed is
+ * corrected according to enforce policies. The setACL requests go through a rate limiter and
+ * are sent in compare-and-set batches, and the previous ACLs are recorded in the rollback set.</p>
+ */
+public class ZKWatch implements Watcher {
+  private static Logger logger = LogManager.getLogger(ZKWatch.class);
+
+  private ZKClient zk;
+  private Consumer<String> output;
+  private List<Rule> rules = new ArrayList<Rule>();
+  private List<String> watchedRoots = new ArrayList<String>();
+  private boolean parentRules = false;
+  private List<Remediation> remediations = new ArrayList<Remediation>();
+  private ZKRollbackSet rollbackSet;
+  private ZKRollbackJournal journal;
+  private ZKEnforceBatcher batcher;
+  private ZKRateLimiter rateLimiter;
+  private Map<String, List<ACL>> pendingRemediations = new LinkedHashMap<String, List<ACL>>();
+  private Map<String, WatchedNode> nodes = new HashMap<String, WatchedNode>();
+  private Map<String, String[]> violations = new HashMap<String, String[]>();
+  private LinkedBlockingQueue<WatchedEvent> events = new LinkedBlockingQueue<WatchedEvent>();
+  private boolean resyncNeeded = false;
+  // Number of sessions opened by the watcher after the session of the client it was created with expired
+  private int renewedSessions = 0;
+  private volatile boolean closed = false;
+  /**
+   * Interval in milliseconds between two sweeps of the ACLs of the known znodes, 0 to disable them.
+   */
+  @Getter
+  @Setter
+  private long sweepInterval = ZKPolicyDefs.Watch.DEFAULT_SWEEP_INTERVAL_MS;
+
+  /**
+   * Create a watcher evaluating the queries and checks of an audit configuration.
+   *
+   * @param zk      ZooKeeper client
+   * @param queries Queries to be evaluated, may be null
+   * @param checks  Checks to be evaluated, may be null
+   * @param output  Receiver of the result changes, called from the thread running the watcher
+   * @throws NoSuchFieldException
+   * @throws SecurityException
+   * @throws IllegalArgumentException
+   * @throws IllegalAccessException
+   */
+  public ZKWatch(ZKClient zk, List<ZKQueryElement> queries, List<ZKCheckElement> checks, Consumer<String> output)
+      throws NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
+    this.zk = zk;
+    this.output = output;
+    ZKDefaultQuery defaultQueries = new ZKDefaultQuery();
+    if (queries != null) {
+      for (ZKQueryElement queryElement : queries) {
+        queryElement.setQuery(defaultQueries.getValueOf(queryElement.getName()));
+        this.rules.add(new QueryRule(queryElement));
+      }
+    }
+    if (checks != null) {
+      for (ZKCheckElement checkElement : checks) {
+        this.rules.add(new CheckRule(checkElement, defaultQueries));
+      }
+    }
+    for (Rule rule : this.rules) {
+      this.parentRules |= rule.usesParentACL();
+    }
+  }
+
+  /**
+   * Correct the ACL of created znodes and of znodes whose ACL changed according to enforce
+   * policies. Must be called before {@link #start()}.
+   *
+   * @param policies           Policies applied in order, as by successive enforce executions
+   * @param rollbackStateFile  Rollback journal the pre-remediation ACLs are appended to, required so
+   *                           that the rollback state of a long running watch is not held in memory
+   * @param maxWritesPerSecond Maximum sustained rate of setACL requests
+   * @throws IOException                Failure to open the rollback journal
+   * @throws NoSuchFieldException
+   * @throws SecurityException
+   * @throws IllegalArgumentException
+   * @throws IllegalAccessException
+   */
+  public void setRemediation(List<ZKEnforcePolicyElement> policies, File rollbackStateFile, double maxWritesPerSecond)
+      throws IOException, NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
+    if (rollbackStateFile == null) {
+      throw new IllegalArgumentException("A rollback file is required for remediation");
+    }
+    ZKDefaultQuery defaultQueries = new ZKDefaultQuery();
+    for (ZKEnforcePolicyElement policy : policies) {
+      this.remediations.add(new Remediation(policy, defaultQueries));
+    }
+    this.rollbackSet = new ZKRollbackSet();
+    this.journal = new ZKRollbackJournal(rollbackStateFile);
+    this.rollbackSet.setJournal(this.journal);
+    int batchSize = this.zk.getZKPConfig() == null ? ZKPolicyDefs.Enforcement.DEFAULT_BATCH_SIZE
+        : this.zk.getZKPConfig().getEnforceBatchSize();
+    this.batcher = new ZKEnforceBatcher(this.zk, this.rollbackSet, batchSize);
+    // The ACL may change between the read and the write, the policies are then applied again
+    this.batcher.setReevaluator(new ZKEnforceBatcher.ACLReevaluator() {
+      @Override
+      public List<ACL> reevaluate(String path, List<ACL> currentACL) {
+        return ZKWatch.this.remediate(path, currentACL);
+      }
+    });
+    this.rateLimiter = new ZKRateLimiter(maxWritesPerSecond);
+  }
+
+  /**
+   * Get the rollback set of the remediated znodes.
+   *
+   * @return Rollback set, null if remediation is not enabled, otherwise empty as the elements are journaled
+   */
+  public ZKRollbackSet getRollbackSet() {
+    return this.rollbackSet;
+  }
+
+  /**
+   * Set the persistent recursive watches and scan the watched subtrees. The results of the
+   * initial scan are written to the output. Events received from now on are queued until
+   * {@link #run()} is called.
+   *
+   * @throws KeeperException
+   * @throws InterruptedException
+   */
+  public void start() throws KeeperException, InterruptedException {
+    Set<String> rootPaths = new HashSet<String>();
+    for (Rule rule : this.rules) {
+      rootPaths.add(rule.rootPath);
+    }
+    for (Remediation remediation : this.remediations) {
+      rootPaths.add(remediation.rootPath);
+    }
+    // Watch only the outermost root paths, the watches being recursive
+    this.watchedRoots.clear();
+    for (String rootPath : rootPaths) {
+      boolean nested = false;
+      for (String other : rootPaths) {
+        nested |= !other.equals(rootPath) && isDescendant(rootPath, other);
+      }
+      if (!nested) {
+        this.watchedRoots.add(rootPath);
+      }
+    }
+    this.watchAndScan();
+  }
+
+  private void watchAndScan() throws KeeperException, InterruptedException {
+    // Watches are set before the scan, so that no change is lost in between
+    for (String rootPath : this.watchedRoots) {
+      this.zk.addWatch(rootPath, this, AddWatchMode.PERSISTENT_RECURSIVE);
+    }
+    this.scan();
+  }
+
+  /**
+   * Process the watch events and sweep the ACLs until {@link #close()} is called.
+   *
+   * @throws KeeperException      Failure of a read request, or session expiration if the client
+   *                              has no configuration to open a new session with
+   * @throws InterruptedException
+   */
+  public void run() throws KeeperException, InterruptedException {
+    try {
+      this.processUntilClosed();
+    } finally {
+      if (this.renewedSessions > 0) {
+        this.zk.close();
+      }
+      for (String rootPath : this.watchedRoots) {
+        try {
+          this.zk.removeWatches(rootPath, this, WatcherType.Any, true);
+        } catch (KeeperException e) {
+          logger.warn("Failed to remove the watch on {}: {}", rootPath, e.getMessage());
+        }
+      }
+      if (this.journal != null) {
+        try {
+          this.journal.close();
+        } catch (IOException e) {
+          logger.error("Failed to close the rollback journal", e);
+        }
+      }
+    }
+  }
+
+  private void processUntilClosed() throws KeeperException, InterruptedException {
+    long nextSweep = System.currentTimeMillis() + this.sweepInterval;
+    while (!this.closed) {
+      long timeout = this.sweepInterval > 0 ? nextSweep - System.currentTimeMillis() : Long.MAX_VALUE;
+      WatchedEvent event = timeout > 0 ? this.events.poll(timeout, TimeUnit.MILLISECONDS) : null;
+      try {
+        if (event != null) {
+          List<WatchedEvent> batch = new ArrayList<WatchedEvent>();
+          batch.add(event);
+          this.events.drainTo(batch, ZKPolicyDefs.Watch.MAX_EVENT_BATCH - 1);
+          this.processEvents(batch);
+        }
+        if (!this.closed && this.sweepInterval > 0 && System.currentTimeMillis() >= nextSweep) {
+          this.sweep();
+          nextSweep = System.currentTimeMillis() + this.sweepInterval;
+        }
+      } catch (SessionExpiredException e) {
+        // Requests may fail before the expiration event is processed
+        this.renewSession();
+      }
+    }
+  }
+
+  /**
+   * Replace the expired client by a client with a new session, set the watches again and
+   * rebuild the model, retrying with an exponential backoff until it succeeds or the watcher
+   * is closed.
+   */
+  private void renewSession() throws KeeperException, InterruptedException {
+    ZKConfig config = this.zk.getZKPConfig();
+    if (config == null) {
+      throw KeeperException.create(KeeperException.Code.SESSIONEXPIRED);
+    }
+    for (int attempt = 0; !this.closed; attempt++) {
+      logger.warn("Session expired, opening a new session to {}", config.getZkServers());
+      if (this.renewedSessions > 0) {
+        this.zk.close();
+      }
+      try {
+        this.zk = new ZKClient(config);
+        this.renewedSessions++;
+        if (this.batcher != null) {
+          this.batcher.setClient(this.zk);
+        }
+        this.resyncNeeded = false;
+        this.watchAndScan();
+        return;
+      } catch (IOException | IllegalStateException | SessionExpiredException e) {
+        logger.error("Failed to watch " + this.watchedRoots + " with a new session", e);
+      }
+      Thread.sleep(ZKReconnectingSource.backoff(attempt));
+    }
+  }
+
+  /**
+   * Stop the watcher, making {@link #run()} return. Can be called from any thread.
+   */
+  public void close() {
+    this.closed = true;
+    this.events.add(new WatchedEvent(Event.EventType.None, Event.KeeperState.Closed, null));
+  }
+
+  /**
+   * Queue the events of the persistent watches, processed by the thread running the watcher.
+   */
+  @Override
+  public void process(WatchedEvent event) {
+    this.events.add(event);
+  }
+
+  private void processEvents(List<WatchedEvent> batch) throws KeeperException, InterruptedException {
+    Set<String> changedPaths = new LinkedHashSet<String>();
+    for (WatchedEvent event : batch) {
+      if (event.getType() == Event.EventType.NodeCreated) {
+        changedPaths.add(event.getPath());
+      }
+    }
+    // Read the created znodes in parallel, then apply the events in order
+    Map<String, FetchResult> fetched = this.fetchACLs(changedPaths);
+    for (WatchedEvent event : batch) {
+      switch (event.getType()) {
+        case NodeCreated:
+          FetchResult result = fetched.get(event.getPath());
+          // Deleted znodes are skipped, connection failures are followed by a new scan
+          if (result.rc == KeeperException.Code.OK.intValue() || result.rc == KeeperException.Code.NOAUTH.intValue()) {
+            this.update(event.getPath(), result, true);
+          }
+          break;
+        case NodeDeleted:
+          this.remove(event.getPath());
+          break;
+        case None:
+          this.processStateEvent(event);
+          break;
+        default:
+          // Data changes do not affect the evaluation of queries and checks
+          break;
+      }
+    }
+    this.flushRemediations();
+  }
+
+  private void processStateEvent(WatchedEvent event) throws KeeperException, InterruptedException {
+    switch (event.getState()) {
+      case Disconnected:
+        logger.warn("Disconnected from ZooKeeper, watch events may be missed until reconnection");
+        this.resyncNeeded = true;
+        break;
+      case SyncConnected:
+        if (this.resyncNeeded) {
+          this.resyncNeeded = false;
+          logger.info("Reconnected to ZooKeeper, scanning the watched subtrees again");
+          this.scan();
+        }
+        break;
+      case Expired:
+        // The event may come from a client already replaced after a failed request
+        if (!this.zk.getState().isAlive()) {
+          this.renewSession();
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Scan the watched subtrees into a new model and evaluate every znode, reporting only the
+   * results that differ from the previous model.
+   */
+  private void scan() throws KeeperException, InterruptedException {
+    Map<String, WatchedNode> previous = this.nodes;
+    this.nodes = new HashMap<String, WatchedNode>();
+    try (ZKTraversal traversal = new ZKTraversal(this.zk)) {
+      for (String rootPath : this.watchedRoots) {
+        try {
+          this.scanNode(traversal.start(rootPath));
+        } catch (NoNodeException e) {
+          // The subtree is tracked through its creation event
+          logger.warn("The path {} does not exist yet", rootPath);
+        }
+      }
+    }
+    for (String path : previous.keySet()) {
+      if (!this.nodes.containsKey(path)) {
+        this.report(path, null);
+      }
+    }
+    for (String path : this.nodes.keySet()) {
+      this.evaluate(path);
+    }
+    logger.info("Watching {} znodes under {}", this.nodes.size(), this.watchedRoots);
+  }
+
+  private void scanNode(ZKTraversalNode node) throws KeeperException, InterruptedException {
+    WatchedNode watchedNode = new WatchedNode();
+    List<ZKTraversalNode> children;
+    try {
+      watchedNode.acl = node.getACL();
+      watchedNode.aversion = node.getACLVersion();
+      children = node.getChildNodes();
+    } catch (NoAuthException e) {
+      children = new ArrayList<ZKTraversalNode>();
+    }
+    this.nodes.put(node.getPath(), watchedNode);
+    for (ZKTraversalNode child : children) {
+      watchedNode.children.add(child.getName());
+      this.scanNode(child);
+    }
+  }
+
+  /**
+   * Read the ACL of every known znode again and evaluate the znodes whose ACL changed.
+   */
+  private void sweep() throws KeeperException, InterruptedException {
+    List<String> paths = new ArrayList<String>(this.nodes.keySet());
+    long changed = 0;
+    for (int start = 0; start < paths.size(); start += ZKPolicyDefs.Watch.SWEEP_CHUNK_SIZE) {
+      List<String> chunk = paths.subList(start, Math.min(start + ZKPolicyDefs.Watch.SWEEP_CHUNK_SIZE, paths.size()));
+      Map<String, FetchResult> fetched = this.fetchACLs(chunk);
+      for (String path : chunk) {
+        WatchedNode node = this.nodes.get(path);
+        FetchResult result = fetched.get(path);
+        // Deleted znodes are removed through their deletion event
+        if (node != null && result.rc == KeeperException.Code.OK.intValue() && result.aversion != node.aversion) {
+          this.update(path, result, true);
+          changed++;
+        }
+      }
+      this.flushRemediations();
+    }
+    logger.debug("ACL sweep of {} znodes found {} changed ACLs", paths.size(), changed);
+  }
+
+  /**
+   * Send a getACL request for each path, keeping a bounded number of requests in flight.
+   */
+  private Map<String, FetchResult> fetchACLs(Collection<String> paths) throws KeeperException, InterruptedException {
+    Map<String, FetchResult> results = new ConcurrentHashMap<String, FetchResult>();
+    if (paths.isEmpty()) {
+      return results;
+    }
+    int maxInFlight = this.zk.getZKPConfig() == null ? ZKPolicyDefs.Traversal.DEFAULT_MAX_IN_FLIGHT
+        : this.zk.getZKPConfig().getMaxInFlight();
+    Semaphore inFlight = new Semaphore(maxInFlight);
+    for (String path : paths) {
+      inFlight.acquire();
+      this.zk.getACL(path, null, new AsyncCallback.ACLCallback() {
+        @Override
+        public void processResult(int rc, String path, Object ctx, List<ACL> acl, Stat stat) {
+          results.put(path, new FetchResult(rc, acl, stat == null ? -1 : stat.getAversion()));
+          inFlight.release();
+        }
+      }, null);
+    }
+    inFlight.acquire(maxInFlight);
+    inFlight.release(maxInFlight);
+
+    for (FetchResult result : results.values()) {
+      if (result.rc == KeeperException.Code.SESSIONEXPIRED.intValue()) {
+        throw KeeperException.create(KeeperException.Code.SESSIONEXPIRED);
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Store the ACL read for a znode and evaluate the znode, and its children for the queries
+   * comparing a znode with its parent.
+   *
+   * @param remediate Queue the correction of the ACL if it does not comply with the policies
+   */
+  private void update(String path, FetchResult result, boolean remediate) throws InterruptedException {
+    WatchedNode node = this.nodes.get(path);
+    if (node == null) {
+      node = new WatchedNode();
+      this.nodes.put(path, node);
+      WatchedNode parent = this.nodes.get(getParent(path));
+      if (parent != null) {
+        parent.children.add(path.substring(path.lastIndexOf('/') + 1));
+      }
+    }
+    if (result.rc == KeeperException.Code.OK.intValue()) {
+      node.acl = result.acl;
+      node.aversion = result.aversion;
+    } else {
+      node.acl = null;
+    }
+
+    this.evaluate(path);
+    if (this.parentRules) {
+      for (String child : node.children) {
+        this.evaluate(childPath(path, child));
+      }
+    }
+
+    if (remediate && node.acl != null && !this.remediations.isEmpty()) {
+      List<ACL> newACL = this.remediate(path, node.acl);
+      if (newACL != null && !this.pendingRemediations.containsKey(path)) {
+        this.rateLimiter.acquire();
+        this.batcher.add(path, node.acl, newACL, node.aversion);
+        this.pendingRemediations.put(path, newACL);
+      }
+    }
+  }
+
+  /**
+   * Apply the policies whose query matches a znode, in order, to its ACL.
+   *
+   * @return New ACL or null if the ACL complies with the policies
+   */
+  private List<ACL> remediate(String path, List<ACL> acl) {
+    List<ACL> newACL = acl;
+    for (Remediation remediation : this.remediations) {
+      if ((path.equals(remediation.rootPath) || isDescendant(path, remediation.rootPath))
+          && remediation.query.query(newACL, null, path, this.zk)) {
+        newACL = ZKEnforce.generateNewACL(remediation.acl, newACL, remediation.append);
+      }
+    }
+    return newACL.equals(acl) ? null : newACL;
+  }
+
+  /**
+   * Send the queued remediations, sync the rollback journal and read the remediated znodes
+   * again to update the model.
+   */
+  private void flushRemediations() throws KeeperException, InterruptedException {
+    if (this.pendingRemediations.isEmpty()) {
+      return;
+    }
+    this.batcher.flush();
+    if (this.journal != null) {
+      try {
+        this.journal.sync();
+      } catch (IOException e) {
+        throw new UncheckedIOException("Failed to sync the rollback journal", e);
+      }
+    }
+
+    Map<String, FetchResult> fetched = this.fetchACLs(this.pendingRemediations.keySet());
+    for (Map.Entry<String, List<ACL>> remediation : this.pendingRemediations.entrySet()) {
+      FetchResult result = fetched.get(remediation.getKey());
+      if (result.rc != KeeperException.Code.OK.intValue() || !this.nodes.containsKey(remediation.getKey())) {
+        continue;
+      }
+      if (result.acl.equals(remediation.getValue())) {
+        this.emit("enforce", remediation.getKey(),
+            "ENFORCED (" + ACLAugment.generateACLStringList(result.acl) + ")");
+      }
+      // The result is not remediated again, a concurrent change is caught by the next sweep
+      this.update(remediation.getKey(), result, false);
+    }
+    this.pendingRemediations.clear();
+    logger.info("Remediated {} znodes, {} failed, {} setACL requests throttled", this.batcher.getEnforcedCount(),
+        this.batcher.getFailedCount(), this.rateLimiter.getThrottledCount());
+  }
+
+  /**
+   * Remove a znode and its known descendants from the model.
+   */
+  private void remove(String path) {
+    WatchedNode node = this.nodes.remove(path);
+    if (node == null) {
+      return;
+    }
+    WatchedNode parent = this.nodes.get(getParent(path));
+    if (parent != null) {
+      parent.children.remove(path.substring(path.lastIndexOf('/') + 1));
+    }
+    for (String child : node.children) {
+      this.remove(childPath(path, child));
+    }
+    this.report(path, null);
+  }
+
+  private void evaluate(String path) {
+    WatchedNode node = this.nodes.get(path);
+    String[] results = new String[this.rules.size()];
+    for (int i = 0; i < this.rules.size(); i++) {
+      Rule rule = this.rules.get(i);
+      if (path.equals(rule.rootPath)) {
+        results[i] = rule.evaluate(path, node.acl, null);
+      } else if (isDescendant(path, rule.rootPath)) {
+        WatchedNode parent = rule.usesParentACL() ? this.nodes.get(getParent(path)) : null;
+        results[i] = rule.evaluate(path, node.acl, parent == null ? null : parent.acl);
+      }
+    }
+    this.report(path, results);
+  }
+
+  /**
+   * Write the changes between the previous and current results of a znode.
+   *
+   * @param results Output of each rule with a match or failure for the znode, null if the znode was deleted
+   */
+  private void report(String path, String[] results) {
+    String[] previous = this.violations.get(path);
+    boolean violated = false;
+    for (int i = 0; i < this.rules.size(); i++) {
+      String previousResult = previous == null ? null : previous[i];
+      String result = results == null ? null : results[i];
+      if (result != null && !result.equals(previousResult)) {
+        this.emit(this.rules.get(i).name, path, result);
+      } else if (result == null && previousResult != null) {
+        this.emit(this.rules.get(i).name, path, results == null ? "DELETED" : this.rules.get(i).getClearedResult());
+      }
+      violated |= result != null;
+    }
+    if (violated) {
+      this.violations.put(path, results);
+    } else if (previous != null) {
+      this.violations.remove(path);
+    }
+  }
+
+  private void emit(String name, String path, String result) {
+    String line = "[" + name + "] " + path + " : " + result;
+    logger.info(line);
+    this.output.accept(line);
+  }
+
+  private static String getParent(String path) {
+    int separator = path.lastIndexOf('/');
+    return separator == 0 ? "/" : path.substring(0, separator);
+  }
+
+  private static String childPath(String path, String child) {
+    return path.equals("/") ? "/" + child : path + "/" + child;
+  }
+
+  private static boolean isDescendant(String path, String ancestor) {
+    if (ancestor.equals("/")) {
+      return !path.equals("/");
+    }
+    return path.startsWith(ancestor + "/");
+  }
+
+  /**
+   * Query or check evaluated on every znode under its root path.
+   */
+  private abstract static class Rule {
+    String name;
+    String rootPath;
+
+    Rule(String name, String rootPath) {
+      this.name = name;
+      this.rootPath = rootPath;
+    }
+
+    /**
+     * Evaluate a znode.
+     *
+     * @param acl       Znode ACL, null if not readable
+     * @param parentACL Parent znode ACL, null for the root path or if not readable
+     * @return Output for a match or failure, null otherwise
+     */
+    abstract String evaluate(String path, List<ACL> acl, List<ACL> parentACL);
+
+    /**
+     * Get the output for a znode that stopped matching or failing.
+     */
+    abstract String getClearedResult();
+
+    boolean usesParentACL() {
+      return false;
+    }
+  }
+
+  /**
+   * Query rule, reporting the znodes matching the query.
+   */
+  private class QueryRule extends Rule {
+    private ZKCompiledQuery query;
+    private boolean parentYesChildNo;
+
+    QueryRule(ZKQueryElement queryElement) {
+      super(queryElement.getName(), queryElement.getRootPath());
+      this.query = queryElement.compile();
+      this.parentYesChildNo = queryElement.getName().equals("parentYesChildNo");
+    }
+
+    @Override
+    String evaluate(String path, List<ACL> acl, List<ACL> parentACL) {
+      if (acl == null) {
+        return null;
+      }
+      if (this.parentYesChildNo) {
+        return parentACL != null && !this.query.query(acl, parentACL, path, ZKWatch.this.zk) ? "MATCH" : null;
+      }
+      return this.query.query(acl, null, path, ZKWatch.this.zk) ? "MATCH" : null;
+    }
+
+    @Override
+    String getClearedResult() {
+      return "NO MATCH";
+    }
+
+    @Override
+    boolean usesParentACL() {
+      return this.parentYesChildNo;
+    }
+  }
+
+  /**
+   * Check rule, reporting the znodes matching the path pattern and failing the check.
+   */
+  private class CheckRule extends Rule {
+    private ZKCheckElement checkElement;
+    private ZKCompiledQuery checkQuery;
+
+    CheckRule(ZKCheckElement checkElement, ZKDefaultQuery defaultQueries) {
+      super(checkElement.getTitle() == null ? checkElement.getPathPattern() : checkElement.getTitle(),
+          checkElement.getRootPath());
+      this.checkElement = checkElement;
+      ZKQuery query;
+      if (Boolean.TRUE.equals(checkElement.getNegate())) {
+        query = defaultQueries.noSatisfyACL;
+      } else {
+        query = defaultQueries.exactACL;
+      }
+      this.checkQuery = query.compile(checkElement.getAcls());
+    }
+
+    @Override
+    String evaluate(String path, List<ACL> acl, List<ACL> parentACL) {
+      if (!this.checkElement.getCompiledPathPattern().matcher(path).matches()) {
+        return null;
+      }
+      if (acl == null) {
+        return "FAIL (No permission for subtree)";
+      }
+      if (this.checkQuery.query(acl, null, path, ZKWatch.this.zk)) {
+        return null;
+      }
+      return "FAIL (actual: " + ACLAugment.generateACLStringList(acl) + ")";
+    }
+
+    @Override
+    String getClearedResult() {
+      return "PASS";
+    }
+  }
+
+  /**
+   * Enforce policy applied to the znodes matching its query.
+   */
+  private static class Remediation {
+    private String rootPath;
+    private ZKCompiledQuery query;
+    private List<ACL> acl = new ArrayList<ACL>();
+    private boolean append;
+
+    Remediation(ZKEnforcePolicyElement policy, ZKDefaultQuery defaultQueries)
+        throws NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
+      ZKQueryElement queryElement = policy.getQuery();
+      this.rootPath = queryElement.getRootPath();
+      this.query = defaultQueries.getValueOf(queryElement.getName()).compile(queryElement.getArgs());
+      for (String policyACLString : policy.getAcls()) {
+        this.acl.add(new ACLAugment(policyACLString).getACL());
+      }
+      this.append = policy.isAppend();
+    }
+  }
+
+  /**
+   * Known znode of the watched subtrees.
+   */
+  private static class WatchedNode {
+    private List<ACL> acl;
+    private int aversion = -1;
+    private Set<String> children = new HashSet<String>();
+  }
+
+  private static class FetchResult {
+    private int rc;
+    private List<ACL> acl;
+    private int aversion;
+
+    FetchResult(int rc, List<ACL> acl, int aversion) {
+      this.rc = rc;
+      this.acl = acl;
+      this.aversion = aversion;
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.io.File;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.Locale;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.ParentCommand;
+import ch.cern.ZKPolicyDefs.Cli.Audit;
+import ch.cern.ZKPolicyDefs.Cli.Watch;
+
+@Command(name = "watch", aliases = { "w" }, description = Watch.DESCRIPTION, mixinStandardHelpOptions = true)
+public class ZKWatchCli implements Runnable {
+  private static Logger logger = LogManager.getLogger(ZKWatchCli.class);
+
+  @ParentCommand
+  private ZKPolicyCli parent;
+
+  @Option(names = { "-i", "--input" }, required = false, description = Watch.INPUT_DESCRIPTION,
+      defaultValue = Audit.INPUT_DEFAULT)
+  File auditConfigFile;
+
+  @Option(names = { "-s", "--sweep-interval" }, required = false, description = Watch.SWEEP_INTERVAL_DESCRIPTION,
+      defaultValue = "60")
+  long sweepInterval;
+
+  @Option(names = { "-P", "--policies" }, required = false, description = Watch.POLICIES_DESCRIPTION)
+  File policiesFile;
+
+  @Option(names = { "-r", "--rollback-export" }, required = false, description = Watch.ROLLBACK_EXPORT_DESCRIPTION)
+  File rollbackStateFile;
+
+  @Option(names = { "-w", "--max-writes-per-second" }, required = false, description = Watch.MAX_WRITES_DESCRIPTION,
+      defaultValue = ZKPolicyDefs.Watch.DEFAULT_MAX_WRITES_PER_SECOND)
+  double maxWritesPerSecond;
+
+  @Override
+  public void run() {
+    try {
+      ZKConfig config = new ZKConfig(parent.configFile);
+      try (ZKTreeSource zk = parent.openTreeSource(config)) {
+        if (zk.getClient() == null) {
+          System.out.println("The watch command requires a connection to ZooKeeper");
+          return;
+        }
+        ZKAuditSet auditSet = new ZKAuditSet(this.auditConfigFile);
+        DateFormat dateFormat = new SimpleDateFormat("dd/MM/yyyy HH:mm:ss.SSS Z", Locale.getDefault());
+        ZKWatch zkWatch = new ZKWatch(zk.getClient(), auditSet.getQueries(), auditSet.getChecks(),
+            line -> System.out.println(dateFormat.format(new Date()) + " " + line));
+        zkWatch.setSweepInterval(this.sweepInterval * 1000);
+        if (this.policiesFile != null) {
+          ZKEnforcePolicySet policySet = new ZKEnforcePolicySet(this.policiesFile);
+          // check whether rollback file is defined
+          if (this.rollbackStateFile == null) {
+            DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH:mm:ss");
+            LocalDateTime now = LocalDateTime.now();
+            this.rollbackStateFile = new File("/opt/zkpolicy/rollback/ROLLBACK_STATE_" + dtf.format(now) + ".yml");
+          }
+          zkWatch.setRemediation(policySet.getPolicies(), this.rollbackStateFile, this.maxWritesPerSecond);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(zkWatch::close));
+
+        zkWatch.start();
+        zkWatch.run();
+      }
+    } catch (Exception e) {
+      System.out.println(e.toString());
+      logger.error("Exception occurred!", e);
+    }
+  }
+}
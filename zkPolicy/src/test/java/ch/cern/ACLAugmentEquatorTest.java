@@ -8,6 +8,7 @@
 */
 package ch.cern;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -98,4 +99,41 @@ public class ACLAugmentEquatorTest {
 
     assertFalse(equator.equate(o1, o2));
   }
+
+  @Test
+  public void testCachedEquate() {
+    ACLAugmentSatisfyEquator equator = new ACLAugmentSatisfyEquator();
+    ACLAugment subnet = new ACLAugment("ip:10.0.0.0/8:cdrwa");
+    for (int i = 0; i < 10; i++) {
+      assertTrue(equator.equate(new ACLAugment("ip:10.1.2.3:r"), new ACLAugment("ip:10.0.0.0/8:cdrwa")));
+      assertFalse(equator.equate(new ACLAugment("ip:11.1.2.3:r"), subnet));
+      assertFalse(equator.equate(new ACLAugment("ip:10.1.2.3:r"), new ACLAugment("ip:10.1.2.4:r")));
+    }
+    assertEquals(3, equator.getMissCount());
+    assertEquals(27, equator.getHitCount());
+
+    // Failed comparisons are not cached
+    for (int i = 0; i < 2; i++) {
+      assertThrows(IllegalArgumentException.class, () -> {
+        equator.equate(new ACLAugment("ip:127.0.0a.0:d"), new ACLAugment("ip:127.0.0.0/24:cdra"));
+      });
+    }
+    assertEquals(5, equator.getMissCount());
+  }
+
+  @Test
+  public void testBoundedEquate() {
+    ACLAugmentSatisfyEquator equator = new ACLAugmentSatisfyEquator(1);
+    assertTrue(equator.equate(new ACLAugment("ip:10.1.2.3:r"), new ACLAugment("ip:10.0.0.0/8:cdrwa")));
+    assertTrue(equator.equate(new ACLAugment("ip:10.1.2.4:r"), new ACLAugment("ip:10.0.0.0/8:cdrwa")));
+    assertTrue(equator.equate(new ACLAugment("ip:10.1.2.4:r"), new ACLAugment("ip:10.0.0.0/8:cdrwa")));
+    assertTrue(equator.equate(new ACLAugment("ip:10.1.2.3:r"), new ACLAugment("ip:10.0.0.0/8:cdrwa")));
+    assertEquals(3, equator.getMissCount());
+    assertEquals(1, equator.getHitCount());
+
+    ACLAugmentSatisfyEquator uncached = new ACLAugmentSatisfyEquator(0);
+    assertTrue(uncached.equate(new ACLAugment("ip:10.1.2.3:r"), new ACLAugment("ip:10.0.0.0/8:cdrwa")));
+    assertTrue(uncached.equate(new ACLAugment("ip:10.1.2.3:r"), new ACLAugment("ip:10.0.0.0/8:cdrwa")));
+    assertEquals(0, uncached.getHitCount());
+  }
 }
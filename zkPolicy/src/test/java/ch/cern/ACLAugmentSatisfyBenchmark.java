@@ -0,0 +1,86 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.collections4.IterableUtils;
+import org.apache.zookeeper.data.ACL;
+
+/**
+ * Benchmark of the ip scheme satisfaction test of satisfyACL, with and without the cache of
+ * {@link ACLAugmentSatisfyEquator}, on the ACL entries of a synthetic znode tree.
+ *
+ * <p>Not executed as part of the test suite. Run with:
+ * {@code java -cp <test classpath> ch.cern.ACLAugmentSatisfyBenchmark [znodes]}</p>
+ */
+public class ACLAugmentSatisfyBenchmark {
+  private static final int DEFAULT_ZNODES = 1000000;
+
+  private List<List<ACLAugment>> acls;
+  private List<ACLAugment> queryACLs;
+
+  /**
+   * Generate the ACL entries of a synthetic tree with the requested number of znodes.
+   *
+   * @param znodes Number of znodes
+   */
+  ACLAugmentSatisfyBenchmark(int znodes) {
+    List<List<ACL>> aclVariants = new ArrayList<List<ACL>>();
+    aclVariants.add(ZKBenchmark.aclList("ip:10.0.0.0/8:cdrwa", "sasl:zookeeper:cdrwa"));
+    aclVariants.add(ZKBenchmark.aclList("ip:192.168.0.0/16:r", "ip:10.1.0.0/16:cdrwa"));
+    aclVariants.add(ZKBenchmark.aclList("ip:127.0.0.1:cdrwa", "ip:10.1.2.3:r"));
+    aclVariants.add(ZKBenchmark.aclList("sasl:hbase:cdrwa", "ip:2001:db8::/32:r"));
+
+    // Every znode gets its own ACL instances, as read from ZooKeeper
+    this.acls = new ArrayList<List<ACLAugment>>(znodes);
+    for (int i = 0; i < znodes; i++) {
+      List<ACLAugment> znodeACLs = new ArrayList<ACLAugment>();
+      for (ACL acl : aclVariants.get(i % aclVariants.size())) {
+        znodeACLs.add(new ACLAugment(new ACL(acl.getPerms(), acl.getId())));
+      }
+      this.acls.add(znodeACLs);
+    }
+    this.queryACLs = new ArrayList<ACLAugment>();
+    for (String queryACL : Arrays.asList("ip:10.1.2.3:r", "ip:192.168.4.5:r")) {
+      this.queryACLs.add(new ACLAugment(queryACL));
+    }
+  }
+
+  private long run(ACLAugmentSatisfyEquator equator) {
+    long matches = 0;
+    for (List<ACLAugment> znodeACLs : this.acls) {
+      for (ACLAugment queryACL : this.queryACLs) {
+        if (IterableUtils.contains(znodeACLs, queryACL, equator)) {
+          matches++;
+        }
+      }
+    }
+    return matches;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int znodes = ZKBenchmark.intArgument(args, 0, DEFAULT_ZNODES);
+    ACLAugmentSatisfyBenchmark benchmark = new ACLAugmentSatisfyBenchmark(znodes);
+    System.out.println("Synthetic tree with " + znodes + " znodes");
+
+    List<ACLAugmentSatisfyEquator> cachedEquators = new ArrayList<ACLAugmentSatisfyEquator>();
+    long matches = ZKBenchmark.compare("ip satisfy", "uncached", () -> benchmark.run(new ACLAugmentSatisfyEquator(0)),
+        "cached", () -> {
+          ACLAugmentSatisfyEquator equator = new ACLAugmentSatisfyEquator();
+          cachedEquators.add(equator);
+          return benchmark.run(equator);
+        });
+    // Statistics of the timed run
+    ACLAugmentSatisfyEquator equator = cachedEquators.get(cachedEquators.size() - 1);
+    System.out.println(String.format("matches: %d  cache hits: %d  misses: %d", matches, equator.getHitCount(),
+        equator.getMissCount()));
+  }
+}
@@ -0,0 +1,131 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.data.ACL;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class ZKACLDictionaryTest {
+
+  private static List<ACL> aclList(String... aclStrings) {
+    List<ACL> aclList = new ArrayList<ACL>();
+    for (String aclString : aclStrings) {
+      aclList.add(new ACLAugment(aclString).getACL());
+    }
+    return aclList;
+  }
+
+  @Test
+  public void testIntern() {
+    ZKACLDictionary dictionary = new ZKACLDictionary(10);
+    List<ACL> interned = dictionary.intern(aclList("sasl:kafka:cdrwa", "world:anyone:r"));
+    assertSame(interned, dictionary.intern(aclList("sasl:kafka:cdrwa", "world:anyone:r")));
+    assertEquals(aclList("sasl:kafka:cdrwa", "world:anyone:r"), interned);
+    assertEquals(aclList("sasl:kafka:cdrwa", "world:anyone:r").hashCode(), interned.hashCode());
+    assertEquals(1, dictionary.size());
+    assertThrows(UnsupportedOperationException.class, () -> interned.add(new ACLAugment("world:anyone:r").getACL()));
+    assertEquals(null, dictionary.intern(null));
+  }
+
+  @Test
+  public void testCanonicalId() {
+    ZKACLDictionary dictionary = new ZKACLDictionary(10);
+    List<ACL> interned = dictionary.intern(aclList("sasl:kafka:cdrwa", "world:anyone:r"));
+    List<ACL> permuted = dictionary.intern(aclList("world:anyone:r", "sasl:kafka:cdrwa"));
+    List<ACL> other = dictionary.intern(aclList("world:anyone:r"));
+
+    // The order of the entries is kept, only the canonical form is shared
+    assertNotEquals(interned, permuted);
+    assertNotEquals(dictionary.getId(interned), dictionary.getId(permuted));
+    assertEquals(dictionary.getCanonicalId(interned), dictionary.getCanonicalId(permuted));
+    assertNotEquals(dictionary.getCanonicalId(interned), dictionary.getCanonicalId(other));
+    assertEquals(-1, dictionary.getCanonicalId(aclList("world:anyone:r")));
+    assertEquals(-1, new ZKACLDictionary(10).getCanonicalId(other));
+  }
+
+  @Test
+  public void testMaxLists() {
+    ZKACLDictionary dictionary = new ZKACLDictionary(1);
+    List<ACL> first = dictionary.intern(aclList("world:anyone:r"));
+    List<ACL> second = aclList("world:anyone:cdrwa");
+    assertSame(second, dictionary.intern(second));
+    assertSame(first, dictionary.intern(aclList("world:anyone:r")));
+    assertEquals(1, dictionary.size());
+  }
+
+  @Test
+  public void testMemoizedQuery() throws Exception {
+    ZKACLDictionary dictionary = new ZKACLDictionary(10);
+    ZKDefaultQuery defaultQuery = new ZKDefaultQuery();
+    ZKQueryElement queryElement = new ZKQueryElement("exactACL", "/", Arrays.asList("world:anyone:r",
+        "sasl:kafka:cdrwa"), defaultQuery.getValueOf("exactACL"));
+    ZKCompiledQuery exactACL = queryElement.getQuery().compile(queryElement.getArgs());
+    AtomicInteger evaluations = new AtomicInteger();
+    ZKMemoizedQuery memoized = new ZKMemoizedQuery((aclList, parentAclList, path, zk) -> {
+      evaluations.incrementAndGet();
+      return exactACL.query(aclList, parentAclList, path, zk);
+    }, dictionary);
+
+    for (int i = 0; i < 10; i++) {
+      assertTrue(memoized.query(dictionary.intern(aclList("sasl:kafka:cdrwa", "world:anyone:r")), null, "/a" + i, null));
+      assertTrue(memoized.query(dictionary.intern(aclList("world:anyone:r", "sasl:kafka:cdrwa")), null, "/b" + i, null));
+      assertFalse(memoized.query(dictionary.intern(aclList("world:anyone:r")), null, "/c" + i, null));
+    }
+    assertEquals(2, evaluations.get());
+    assertEquals(2, memoized.size());
+
+    // Lists that are not interned are always evaluated
+    assertTrue(memoized.query(aclList("sasl:kafka:cdrwa", "world:anyone:r"), null, "/d", null));
+    assertEquals(3, evaluations.get());
+  }
+
+  @Test
+  public void testMemoizedParentQuery() {
+    ZKACLDictionary dictionary = new ZKACLDictionary(10);
+    AtomicInteger evaluations = new AtomicInteger();
+    ZKMemoizedQuery memoized = new ZKMemoizedQuery((aclList, parentAclList, path, zk) -> {
+      evaluations.incrementAndGet();
+      return aclList.size() == parentAclList.size();
+    }, dictionary);
+    List<ACL> parent = dictionary.intern(aclList("sasl:kafka:cdrwa", "world:anyone:r"));
+    List<ACL> child = dictionary.intern(aclList("world:anyone:r"));
+
+    assertFalse(memoized.query(child, parent, "/a", null));
+    assertTrue(memoized.query(parent, parent, "/b", null));
+    assertFalse(memoized.query(child, parent, "/c", null));
+    assertTrue(memoized.query(parent, parent, "/d", null));
+    assertEquals(2, evaluations.get());
+  }
+
+  @Test
+  public void testCompileMemoizesACLQueries() throws Exception {
+    ZKDefaultQuery defaultQuery = new ZKDefaultQuery();
+    assertTrue(new ZKQueryElement("noACL", "/", null, defaultQuery.getValueOf("noACL"))
+        .compile() instanceof ZKMemoizedQuery);
+    assertTrue(new ZKQueryElement("parentYesChildNo", "/", null, defaultQuery.getValueOf("parentYesChildNo"))
+        .compile() instanceof ZKMemoizedQuery);
+    assertFalse(new ZKQueryElement("regexMatchPath", "/", Arrays.asList("/a.*"),
+        defaultQuery.getValueOf("regexMatchPath")).compile() instanceof ZKMemoizedQuery);
+  }
+}
@@ -0,0 +1,76 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Id;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class ZKACLEntryTest {
+
+  private static List<ACL> aclList(String... aclStrings) {
+    List<ACL> aclList = new ArrayList<ACL>();
+    for (String aclString : aclStrings) {
+      aclList.add(new ACLAugment(aclString).getACL());
+    }
+    return aclList;
+  }
+
+  @Test
+  public void testToACLString() {
+    assertEquals("world:anyone:cdrwa", ZKACLEntry.toACLString(new ACL(ZooDefs.Perms.ALL, new Id("world", "anyone"))));
+    assertEquals("digest:user1:passw1:cr", ZKACLEntry.toACLString(new ACLAugment("digest:user1:passw1:rc").getACL()));
+    assertEquals("ip:10.0.0.0/8:", ZKACLEntry.toACLString(new ACL(0, new Id("ip", "10.0.0.0/8"))));
+
+    ZKACLEntry entry = new ZKACLEntry(ZooDefs.Perms.READ | ZooDefs.Perms.WRITE, "sasl", "kafka");
+    assertEquals("sasl:kafka:rw", entry.toACLString());
+    assertSame(entry.toACLString(), ZKACLEntry.toACLString(entry));
+    assertEquals(new ACLAugment("sasl:kafka:rw").getStringFromACL(), entry.toACLString());
+  }
+
+  @Test
+  public void testEquality() {
+    ZKACLEntry entry = new ZKACLEntry(ZooDefs.Perms.READ, "world", "anyone");
+    ACL acl = new ACLAugment("world:anyone:r").getACL();
+    assertEquals(acl, entry);
+    assertEquals(entry, acl);
+    assertEquals(acl.hashCode(), entry.hashCode());
+  }
+
+  @Test
+  public void testImmutable() {
+    ZKACLEntry entry = new ZKACLEntry(ZooDefs.Perms.READ, "world", "anyone");
+    assertThrows(UnsupportedOperationException.class, () -> entry.setPerms(ZooDefs.Perms.ALL));
+    assertThrows(UnsupportedOperationException.class, () -> entry.setId(new Id("sasl", "kafka")));
+    assertThrows(UnsupportedOperationException.class, () -> entry.getId().setId("nobody"));
+  }
+
+  @Test
+  public void testSharedByDictionary() {
+    ZKACLDictionary dictionary = new ZKACLDictionary(10);
+    List<ACL> first = dictionary.intern(aclList("sasl:kafka:cdrwa", "world:anyone:r"));
+    List<ACL> second = dictionary.intern(aclList("world:anyone:r", "sasl:zookeeper:cdrwa"));
+    assertTrue(first.get(1) instanceof ZKACLEntry);
+    assertSame(first.get(1), second.get(0));
+    assertSame(first.get(0).getId().getScheme(), second.get(1).getId().getScheme());
+    assertEquals("sasl:kafka:cdrwa, world:anyone:r", ACLAugment.generateACLStringList(first));
+  }
+}
@@ -17,6 +17,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Hashtable;
 import java.util.List;
 import java.util.Set;
 
@@ -340,4 +341,87 @@ public class ZKAuditTest {
 
     assertEquals(expectedOutput, zkAudit.generateChecksSection());
   }
+
+  private List<ZKQueryElement> singlePassQueries() throws Exception {
+    ZKDefaultQuery zkDefaultQuery = new ZKDefaultQuery();
+    List<ZKQueryElement> queryElements = Arrays.asList(
+        new ZKQueryElement("globMatchACL", "/a", Arrays.asList("digest:*:*"), null),
+        new ZKQueryElement("parentYesChildNo", "/", null, null),
+        new ZKQueryElement("noACL", "/b/bb", null, null),
+        new ZKQueryElement("satisfyACL", "/", Arrays.asList("world:anyone:r"), null));
+    for (ZKQueryElement queryElement : queryElements) {
+      queryElement.setQuery(zkDefaultQuery.getValueOf(queryElement.getName()));
+    }
+    return queryElements;
+  }
+
+  private List<ZKCheckElement> singlePassChecks() {
+    return Arrays.asList(new ZKCheckElement("Check 1 title", "/c", ".*", false, Arrays.asList("world:anyone:cdrwa")),
+        new ZKCheckElement("Check 2 title", "/", "/b.*", false, Arrays.asList("ip:127.0.0.3:rda")));
+  }
+
+  @Test
+  public void testSinglePassAudit() throws Exception {
+    // Queries and checks executed with a single traversal
+    List<ZKQueryElement> queryElements = this.singlePassQueries();
+    List<ZKCheckElement> checkElements = this.singlePassChecks();
+    Hashtable<Integer, List<String>> queriesOutput = ZKPolicyUtils.getQueryOutputBuffer(queryElements);
+    Hashtable<Integer, List<String>> checksOutput = new Hashtable<Integer, List<String>>();
+    for (ZKCheckElement checkElement : checkElements) {
+      checksOutput.put(checkElement.hashCode(), new ArrayList<String>());
+    }
+    ZKAuditPlanner planner = new ZKAuditPlanner(this.zkClient);
+    planner.addQueries(queryElements, queriesOutput);
+    planner.addChecks(checkElements, checksOutput);
+    planner.execute();
+
+    // Each query and check executed on its own by ZKTree and ZKCheck
+    List<ZKQueryElement> baselineQueries = this.singlePassQueries();
+    ZKTree zkTree = new ZKTree(this.zkClient);
+    for (int i = 0; i < baselineQueries.size(); i++) {
+      ZKQueryElement queryElement = baselineQueries.get(i);
+      List<ZKQueryElement> singleQuery = new ArrayList<ZKQueryElement>(Arrays.asList(queryElement));
+      Hashtable<Integer, List<String>> baselineOutput = ZKPolicyUtils.getQueryOutputBuffer(singleQuery);
+      zkTree.queryFind(queryElement.getRootPath(), singleQuery, baselineOutput);
+      assertEquals(baselineOutput.get(queryElement.hashCode()), queriesOutput.get(queryElements.get(i).hashCode()),
+          queryElement.getName() + " " + queryElement.getRootPath());
+    }
+    List<ZKCheckElement> baselineChecks = this.singlePassChecks();
+    ZKCheck zkCheck = new ZKCheck(this.zkClient);
+    for (int i = 0; i < baselineChecks.size(); i++) {
+      ZKCheckElement checkElement = baselineChecks.get(i);
+      Hashtable<Integer, List<String>> baselineOutput = new Hashtable<Integer, List<String>>();
+      baselineOutput.put(checkElement.hashCode(), new ArrayList<String>());
+      zkCheck.check(checkElement.getRootPath(), new ArrayList<ZKCheckElement>(Arrays.asList(checkElement)),
+          baselineOutput);
+      assertEquals(baselineOutput.get(checkElement.hashCode()), checksOutput.get(checkElements.get(i).hashCode()),
+          checkElement.getTitle());
+      assertEquals(checkElement.$status, checkElements.get(i).$status, checkElement.getTitle());
+    }
+
+    // The subtree without READ permission is reported by both
+    assertTrue(queriesOutput.get(queryElements.get(2).hashCode())
+        .contains("WARNING: No READ permission for /b/bb, skipping subtree"));
+    assertTrue(checksOutput.get(checkElements.get(0).hashCode()).contains("/c/cc : PASS"));
+    assertTrue(checksOutput.get(checkElements.get(1).hashCode()).contains("/b/bb : FAIL (No permission for subtree)"));
+  }
+
+  @Test
+  public void testAuditPlannerVisitsUnionOfRootPaths() throws Exception {
+    ZKQueryElement outerQuery = new ZKQueryElement("noACL", "/c", null, null);
+    ZKQueryElement innerQuery = new ZKQueryElement("noACL", "/c/cc", null, null);
+    ZKDefaultQuery zkDefaultQuery = new ZKDefaultQuery();
+    outerQuery.setQuery(zkDefaultQuery.getValueOf("noACL"));
+    innerQuery.setQuery(zkDefaultQuery.getValueOf("noACL"));
+    List<ZKQueryElement> queryElements = Arrays.asList(outerQuery, innerQuery);
+    Hashtable<Integer, List<String>> queriesOutput = ZKPolicyUtils.getQueryOutputBuffer(queryElements);
+
+    ZKAuditPlanner planner = new ZKAuditPlanner(this.zkClient);
+    planner.addQueries(queryElements, queriesOutput);
+    planner.execute();
+
+    assertEquals(2, planner.getVisitedZnodes());
+    assertEquals(Arrays.asList("/c/cc"), queriesOutput.get(outerQuery.hashCode()));
+    assertEquals(Arrays.asList("/c/cc"), queriesOutput.get(innerQuery.hashCode()));
+  }
 }
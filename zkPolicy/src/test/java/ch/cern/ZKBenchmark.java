@@ -0,0 +1,96 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import org.apache.zookeeper.data.ACL;
+
+/**
+ * Harness shared by the benchmarks comparing a baseline implementation with an optimized one.
+ *
+ * <p>Benchmarks are not executed as part of the test suite, they are run by hand through their
+ * main method.</p>
+ */
+final class ZKBenchmark {
+
+  private ZKBenchmark() {
+  }
+
+  /**
+   * Single run of an implementation.
+   *
+   * @param <T> Result of the run, compared between the implementations
+   */
+  @FunctionalInterface
+  interface Run<T> {
+    T run() throws Exception;
+  }
+
+  /**
+   * Get an integer command line argument.
+   *
+   * @param args         Command line arguments
+   * @param index        Index of the argument
+   * @param defaultValue Value used when the argument is not passed
+   * @return Argument value
+   */
+  static int intArgument(String[] args, int index, int defaultValue) {
+    return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+  }
+
+  /**
+   * Parse a list of ACL strings.
+   *
+   * @param aclStrings ACL entries in scheme:id:permissions format
+   * @return ACL list
+   */
+  static List<ACL> aclList(String... aclStrings) {
+    List<ACL> aclList = new ArrayList<ACL>();
+    for (String aclString : aclStrings) {
+      aclList.add(new ACLAugment(aclString).getACL());
+    }
+    return aclList;
+  }
+
+  /**
+   * Warm up both implementations, then time one run of each, check that they return the same
+   * result and print the timings.
+   *
+   * @param name           Name of the benchmark
+   * @param baselineLabel  Label of the baseline implementation
+   * @param baseline       Baseline implementation
+   * @param optimizedLabel Label of the optimized implementation
+   * @param optimized      Optimized implementation
+   * @return Result of the runs
+   * @throws Exception
+   */
+  static <T> T compare(String name, String baselineLabel, Run<T> baseline, String optimizedLabel, Run<T> optimized)
+      throws Exception {
+    baseline.run();
+    optimized.run();
+
+    long start = System.nanoTime();
+    T baselineResult = baseline.run();
+    long baselineMillis = (System.nanoTime() - start) / 1000000;
+
+    start = System.nanoTime();
+    T optimizedResult = optimized.run();
+    long optimizedMillis = (System.nanoTime() - start) / 1000000;
+
+    if (!Objects.equals(baselineResult, optimizedResult)) {
+      throw new IllegalStateException(name + ": " + optimizedLabel + " result differs from " + baselineLabel
+          + " result");
+    }
+    System.out.println(String.format("%-16s %s: %6d ms  %s: %6d ms  speedup: %.1fx", name, baselineLabel,
+        baselineMillis, optimizedLabel, optimizedMillis, (double) baselineMillis / Math.max(optimizedMillis, 1)));
+    return baselineResult;
+  }
+}
@@ -0,0 +1,198 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.Stat;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class ZKClientPoolTest {
+  static final int POOL_SIZE = 3;
+  static final int CHILD_COUNT = 20;
+
+  TestingServer zkTestServer;
+  ZKConfig config;
+  ZKClientPool pool;
+
+  @BeforeAll
+  public void startZookeeper() throws Exception {
+    zkTestServer = new TestingServer();
+    config = new ZKConfig(zkTestServer.getConnectString(), 2000, "GREEN", "RED", "");
+    this.pool = new ZKClientPool(config, POOL_SIZE);
+
+    ZKClient zkClient = this.pool.getClient();
+    zkClient.create("/pool", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    for (int i = 0; i < CHILD_COUNT; i++) {
+      zkClient.create("/pool/c" + i, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+      for (int j = 0; j < CHILD_COUNT; j++) {
+        zkClient.create("/pool/c" + i + "/g" + j, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+      }
+    }
+  }
+
+  @AfterAll
+  public void stopZookeeper() throws IOException, InterruptedException {
+    this.pool.close();
+    this.zkTestServer.close();
+  }
+
+  private void visit(ZKTraversalNode node, List<String> paths) throws Exception {
+    paths.add(node.getPath());
+    for (ZKTraversalNode child : node.getChildNodes()) {
+      this.visit(child, paths);
+    }
+  }
+
+  @Test
+  public void testGetServers() {
+    assertEquals(Arrays.asList("h1:2181/chroot", "h2:2181/chroot"),
+        ZKClientPool.getServers("h1:2181,h2:2181/chroot"));
+    assertEquals(Arrays.asList("h1:2181"), ZKClientPool.getServers("h1:2181"));
+  }
+
+  @Test
+  public void testSessions() {
+    List<ZKTreeSource> sessions = this.pool.getSessions();
+    assertEquals(POOL_SIZE, sessions.size());
+    assertNotSame(sessions.get(0).getClient(), sessions.get(1).getClient());
+    assertTrue(sessions.get(0).getClient().getSessionId() != sessions.get(1).getClient().getSessionId());
+  }
+
+  @Test
+  public void testTraversalSpreadsSubtrees() throws Exception {
+    List<String> paths = new ArrayList<String>();
+    try (ZKTraversal traversal = new ZKTraversal(this.pool, false, 8)) {
+      this.visit(traversal.start("/pool"), paths);
+
+      long total = 0;
+      for (int i = 0; i < POOL_SIZE; i++) {
+        assertTrue(traversal.getSessionZnodeCount(i) > 0, "session " + i);
+        total += traversal.getSessionZnodeCount(i);
+      }
+      assertEquals(paths.size(), total);
+    }
+
+    assertEquals(1 + CHILD_COUNT + CHILD_COUNT * CHILD_COUNT, paths.size());
+    assertEquals("/pool", paths.get(0));
+    assertEquals("/pool/c0", paths.get(1));
+    assertEquals("/pool/c0/g0", paths.get(2));
+  }
+
+  @Test
+  public void testMovedSubtreesAreSynced() throws Exception {
+    List<RecordingSource> sessions = new ArrayList<RecordingSource>();
+    for (ZKTreeSource session : this.pool.getSessions()) {
+      sessions.add(new RecordingSource(session));
+    }
+    ZKTreeSource recordingPool = new RecordingSource(this.pool) {
+      @Override
+      public List<ZKTreeSource> getSessions() {
+        return new ArrayList<ZKTreeSource>(sessions);
+      }
+    };
+    try (ZKTraversal traversal = new ZKTraversal(recordingPool, false, 8)) {
+      this.visit(traversal.start("/pool"), new ArrayList<String>());
+    }
+
+    Map<String, Integer> readSessions = new HashMap<String, Integer>();
+    for (int i = 0; i < sessions.size(); i++) {
+      for (String request : sessions.get(i).requests) {
+        if (request.startsWith("read ")) {
+          readSessions.put(request.substring(5), i);
+        }
+      }
+    }
+    int moved = 0;
+    for (Map.Entry<String, Integer> read : readSessions.entrySet()) {
+      String path = read.getKey();
+      if (path.equals("/pool")) {
+        continue;
+      }
+      Integer parentSession = readSessions.get(path.substring(0, path.lastIndexOf('/')));
+      if (!read.getValue().equals(parentSession)) {
+        // The server of the new session is synced before the znode is read
+        List<String> requests = sessions.get(read.getValue()).requests;
+        int syncIndex = requests.indexOf("sync " + path);
+        assertTrue(syncIndex >= 0 && syncIndex < requests.indexOf("read " + path), path);
+        moved++;
+      }
+    }
+    assertTrue(moved > 0);
+  }
+
+  /**
+   * Session recording the order of its sync and getChildren requests.
+   */
+  private static class RecordingSource implements ZKTreeSource {
+    private ZKTreeSource source;
+    private List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+    RecordingSource(ZKTreeSource source) {
+      this.source = source;
+    }
+
+    @Override
+    public ZKConfig getZKPConfig() {
+      return this.source.getZKPConfig();
+    }
+
+    @Override
+    public Stat exists(String path, Watcher watcher) throws KeeperException, InterruptedException {
+      return this.source.exists(path, watcher);
+    }
+
+    @Override
+    public void sync(String path, AsyncCallback.VoidCallback cb, Object ctx) {
+      this.requests.add("sync " + path);
+      this.source.sync(path, cb, ctx);
+    }
+
+    @Override
+    public void getChildren(String path, boolean watch, AsyncCallback.Children2Callback cb, Object ctx) {
+      this.requests.add("read " + path);
+      this.source.getChildren(path, watch, cb, ctx);
+    }
+
+    @Override
+    public void getACL(String path, Stat stat, AsyncCallback.ACLCallback cb, Object ctx) {
+      this.source.getACL(path, stat, cb, ctx);
+    }
+
+    @Override
+    public void getData(String path, boolean watch, AsyncCallback.DataCallback cb, Object ctx) {
+      this.source.getData(path, watch, cb, ctx);
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,129 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.ACL;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+import org.junit.jupiter.api.io.TempDir;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class ZKDeltaSourceTest {
+  TestingServer zkTestServer;
+  ZKConfig config;
+  ZKClient zkClient;
+
+  @TempDir
+  static File testTempDir;
+
+  @BeforeAll
+  public void startZookeeper() throws Exception {
+    zkTestServer = new TestingServer();
+    config = new ZKConfig(zkTestServer.getConnectString(), 2000, "GREEN", "RED", "");
+    this.zkClient = new ZKClient(config);
+
+    List<ACL> aclList = ZooDefs.Ids.OPEN_ACL_UNSAFE;
+    zkClient.create("/d", "d".getBytes(), aclList, CreateMode.PERSISTENT);
+    zkClient.create("/d/a", "a".getBytes(), aclList, CreateMode.PERSISTENT);
+    zkClient.create("/d/b", "b".getBytes(), aclList, CreateMode.PERSISTENT);
+    zkClient.create("/d/b/x", "x".getBytes(), aclList, CreateMode.PERSISTENT);
+    zkClient.create("/d/c", "c".getBytes(), aclList, CreateMode.PERSISTENT);
+    zkClient.create("/d/c/y", "y".getBytes(), aclList, CreateMode.PERSISTENT);
+    zkClient.create("/d/same", "same".getBytes(), aclList, CreateMode.PERSISTENT);
+  }
+
+  @AfterAll
+  public void stopZookeeper() throws IOException, InterruptedException {
+    this.zkClient.close();
+    this.zkTestServer.close();
+  }
+
+  private File export(ZKTreeSource source, String name) {
+    File exportFile = new File(testTempDir, name);
+    new ZKExport(source).export("/d", ZKPolicyDefs.ExportFormats.json, false, exportFile);
+    return exportFile;
+  }
+
+  private File exportDelta(String name, File baselineFile, List<File> deltaFiles) throws Exception {
+    File deltaFile = new File(testTempDir, name);
+    try (ZKOfflineSource baseline = ZKDeltaSource.open(config, baselineFile, deltaFiles)) {
+      new ZKExport(this.zkClient).exportDelta("/d", ZKPolicyDefs.ExportFormats.json, false, deltaFile, baseline);
+    }
+    return deltaFile;
+  }
+
+  private void assertMergedMatchesLive(File baselineFile, List<File> deltaFiles, String name) throws Exception {
+    File liveExport = this.export(this.zkClient, name + "_live.json");
+    try (ZKOfflineSource merged = ZKDeltaSource.open(config, baselineFile, deltaFiles)) {
+      File mergedExport = this.export(merged, name + "_merged.json");
+      assertEquals(new String(Files.readAllBytes(liveExport.toPath()), "UTF-8"),
+          new String(Files.readAllBytes(mergedExport.toPath()), "UTF-8"));
+    }
+  }
+
+  @Test
+  public void testIncrementalExport() throws Exception {
+    File baselineFile = this.export(this.zkClient, "baseline.json");
+
+    this.zkClient.setData("/d/a", "a2".getBytes(), -1);
+    List<ACL> readWriteACL = new ArrayList<ACL>();
+    readWriteACL.add(new ACLAugment("world:anyone:crwda").getACL());
+    this.zkClient.setACL("/d/b", readWriteACL, -1);
+    this.zkClient.delete("/d/b/x", -1);
+    this.zkClient.create("/d/b/x", "x2".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    this.zkClient.delete("/d/c/y", -1);
+    this.zkClient.delete("/d/c", -1);
+    this.zkClient.create("/d/n", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    this.zkClient.create("/d/n/m", "m".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+    List<File> deltaFiles = new ArrayList<File>();
+    deltaFiles.add(this.exportDelta("delta1.json", baselineFile, deltaFiles));
+
+    JsonNode delta = new ObjectMapper().readTree(deltaFiles.get(0));
+    Map<String, JsonNode> nodes = new HashMap<String, JsonNode>();
+    for (JsonNode node : delta.get("nodes")) {
+      nodes.put(node.get("path").asText(), node);
+    }
+    assertEquals("[\"/d/c\"]", delta.get("deleted").toString());
+    assertEquals(6, nodes.size());
+    assertFalse(nodes.containsKey("/d/same"));
+    // Data is only exported when the mzxid changed
+    assertFalse(nodes.get("/d").has("data"));
+    assertFalse(nodes.get("/d/b").has("data"));
+    assertTrue(nodes.get("/d/a").has("data"));
+    assertTrue(nodes.get("/d/b/x").has("data"));
+    assertTrue(nodes.get("/d/n/m").has("data"));
+    this.assertMergedMatchesLive(baselineFile, deltaFiles, "first");
+
+    this.zkClient.delete("/d/n/m", -1);
+    this.zkClient.setData("/d/same", "changed".getBytes(), -1);
+    deltaFiles.add(this.exportDelta("delta2.json", baselineFile, deltaFiles));
+    this.assertMergedMatchesLive(baselineFile, deltaFiles, "second");
+  }
+}
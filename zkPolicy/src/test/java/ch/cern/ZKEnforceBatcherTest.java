@@ -0,0 +1,220 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Id;
+import org.apache.zookeeper.data.Stat;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class ZKEnforceBatcherTest {
+  TestingServer zkTestServer;
+  ZKConfig config;
+  ZKClient zkClient;
+  List<ACL> worldACL;
+
+  private final PrintStream originalStdOut = System.out;
+  private ByteArrayOutputStream consoleContent = new ByteArrayOutputStream();
+
+  @BeforeAll
+  public void startZookeeper() throws Exception {
+    // Choose an available port
+    zkTestServer = new TestingServer();
+    config = new ZKConfig(zkTestServer.getConnectString(), 2000, "GREEN", "RED", "");
+    this.zkClient = new ZKClient(config);
+
+    this.worldACL = new ArrayList<ACL>();
+    this.worldACL.add(new ACL(ZooDefs.Perms.ALL, new Id("world", "anyone")));
+    for (int i = 0; i < 5; i++) {
+      zkClient.create("/batch" + i, null, this.worldACL, CreateMode.PERSISTENT);
+    }
+  }
+
+  @AfterAll
+  public void stopZookeeper() throws IOException, InterruptedException {
+    this.zkClient.close();
+    this.zkTestServer.close();
+  }
+
+  @BeforeEach
+  public void beforeTest() {
+    // Redirect all System.out to consoleContent.
+    System.setOut(new PrintStream(this.consoleContent));
+  }
+
+  @AfterEach
+  public void afterTest() {
+    // Put back the standard out.
+    System.setOut(this.originalStdOut);
+
+    // Clear the consoleContent.
+    this.consoleContent = new ByteArrayOutputStream();
+  }
+
+  @Test
+  public void testBatchedEnforce() throws Exception {
+    List<ACL> newACL = new ArrayList<ACL>();
+    newACL.add(new ACLAugment("world:anyone:cdrwa").getACL());
+    newACL.add(new ACLAugment("ip:127.0.0.4:r").getACL());
+
+    ZKRollbackSet rollbackSet = new ZKRollbackSet();
+    ZKEnforceBatcher batcher = new ZKEnforceBatcher(this.zkClient, rollbackSet, 2);
+    for (int i = 0; i < 5; i++) {
+      batcher.add("/batch" + i, this.worldACL, newACL);
+      if (i == 2) {
+        // Failing operation in the middle of a batch
+        batcher.add("/batchMissing", this.worldACL, newACL);
+      }
+    }
+    batcher.flush();
+
+    assertEquals(5, batcher.getEnforcedCount());
+    assertEquals(1, batcher.getFailedCount());
+    assertEquals(5, rollbackSet.getElements().size());
+    for (ZKRollbackElement element : rollbackSet.getElements()) {
+      assertEquals(this.worldACL, element.getAcl());
+      assertEquals(newACL, this.zkClient.getACL(element.getPath(), null));
+    }
+    assertEquals("WARNING: Failed to enforce policy on /batchMissing: NONODE\n", this.consoleContent.toString());
+  }
+
+  @Test
+  public void testCompareAndSetReevaluation() throws Exception {
+    zkClient.create("/cas", null, this.worldACL, CreateMode.PERSISTENT);
+    Stat stat = new Stat();
+    List<ACL> readACL = this.zkClient.getACL("/cas", stat);
+
+    // Concurrent modification after the ACL was read
+    List<ACL> concurrentACL = new ArrayList<ACL>();
+    concurrentACL.add(new ACLAugment("world:anyone:cdrwa").getACL());
+    concurrentACL.add(new ACLAugment("ip:127.0.0.5:r").getACL());
+    this.zkClient.setACL("/cas", concurrentACL, -1);
+
+    List<ACL> policyACL = new ArrayList<ACL>();
+    policyACL.add(new ACLAugment("ip:127.0.0.4:r").getACL());
+
+    ZKRollbackSet rollbackSet = new ZKRollbackSet();
+    ZKEnforceBatcher batcher = new ZKEnforceBatcher(this.zkClient, rollbackSet, 10);
+    batcher.setReevaluator(new ZKEnforceBatcher.ACLReevaluator() {
+      @Override
+      public List<ACL> reevaluate(String path, List<ACL> currentACL) {
+        List<ACL> newACL = new ArrayList<ACL>(currentACL);
+        newACL.addAll(policyACL);
+        return newACL;
+      }
+    });
+    List<ACL> staleNewACL = new ArrayList<ACL>(readACL);
+    staleNewACL.addAll(policyACL);
+    batcher.add("/cas", readACL, staleNewACL, stat.getAversion());
+    batcher.flush();
+
+    List<ACL> expectedACL = new ArrayList<ACL>(concurrentACL);
+    expectedACL.addAll(policyACL);
+    assertEquals(expectedACL, this.zkClient.getACL("/cas", null));
+    assertEquals(1, batcher.getEnforcedCount());
+    assertEquals(concurrentACL, rollbackSet.getElements().get(0).getAcl());
+  }
+
+  @Test
+  public void testCompareAndSetNoLongerMatching() throws Exception {
+    zkClient.create("/casSkip", null, this.worldACL, CreateMode.PERSISTENT);
+    Stat stat = new Stat();
+    List<ACL> readACL = this.zkClient.getACL("/casSkip", stat);
+    this.zkClient.setACL("/casSkip", this.worldACL, -1);
+
+    List<ACL> newACL = new ArrayList<ACL>();
+    newACL.add(new ACLAugment("ip:127.0.0.4:cdrwa").getACL());
+
+    ZKRollbackSet rollbackSet = new ZKRollbackSet();
+    ZKEnforceBatcher batcher = new ZKEnforceBatcher(this.zkClient, rollbackSet, 10);
+    batcher.setReevaluator(new ZKEnforceBatcher.ACLReevaluator() {
+      @Override
+      public List<ACL> reevaluate(String path, List<ACL> currentACL) {
+        return null;
+      }
+    });
+    batcher.add("/casSkip", readACL, newACL, stat.getAversion());
+    batcher.flush();
+
+    assertEquals(this.worldACL, this.zkClient.getACL("/casSkip", null));
+    assertEquals(0, batcher.getEnforcedCount());
+    assertEquals(0, batcher.getFailedCount());
+    assertEquals(0, rollbackSet.getElements().size());
+  }
+
+  @Test
+  public void testAppliedBeforeConnectionLoss() throws Exception {
+    zkClient.create("/casLost", null, this.worldACL, CreateMode.PERSISTENT);
+    Stat stat = new Stat();
+    List<ACL> readACL = this.zkClient.getACL("/casLost", stat);
+
+    List<ACL> newACL = new ArrayList<ACL>(readACL);
+    newACL.add(new ACLAugment("ip:127.0.0.4:r").getACL());
+
+    // The update is applied but its reply is lost with the connection
+    ZKClient lossyClient = new ZKClient(config) {
+      @Override
+      public void setACL(String path, List<ACL> acl, int version, AsyncCallback.StatCallback cb, Object ctx) {
+        try {
+          super.setACL(path, acl, version);
+        } catch (KeeperException | InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+        cb.processResult(KeeperException.Code.CONNECTIONLOSS.intValue(), path, ctx, null);
+      }
+    };
+    AtomicInteger reevaluations = new AtomicInteger();
+    ZKRollbackSet rollbackSet = new ZKRollbackSet();
+    ZKEnforceBatcher batcher = new ZKEnforceBatcher(lossyClient, rollbackSet, 10);
+    batcher.setReevaluator(new ZKEnforceBatcher.ACLReevaluator() {
+      @Override
+      public List<ACL> reevaluate(String path, List<ACL> currentACL) {
+        reevaluations.incrementAndGet();
+        List<ACL> appendedACL = new ArrayList<ACL>(currentACL);
+        appendedACL.add(new ACLAugment("ip:127.0.0.4:r").getACL());
+        return appendedACL;
+      }
+    });
+    try {
+      batcher.add("/casLost", readACL, newACL, stat.getAversion());
+      batcher.flush();
+    } finally {
+      lossyClient.close();
+    }
+
+    Stat enforcedStat = new Stat();
+    assertEquals(newACL, this.zkClient.getACL("/casLost", enforcedStat));
+    assertEquals(0, reevaluations.get());
+    assertEquals(1, batcher.getEnforcedCount());
+    assertEquals(0, batcher.getFailedCount());
+    assertEquals(readACL, rollbackSet.getElements().get(0).getAcl());
+    assertEquals(enforcedStat.getAversion(), (int) rollbackSet.getElements().get(0).getAversion());
+  }
+}
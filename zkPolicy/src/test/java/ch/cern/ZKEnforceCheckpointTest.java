@@ -0,0 +1,181 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.ACL;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+import org.junit.jupiter.api.io.TempDir;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class ZKEnforceCheckpointTest {
+  TestingServer zkTestServer;
+  ZKConfig config;
+  ZKClient zkClient;
+  List<ACL> enforcedACL;
+
+  @TempDir
+  static File testTempDir;
+
+  @BeforeAll
+  public void startZookeeper() throws Exception {
+    zkTestServer = new TestingServer();
+    config = new ZKConfig(zkTestServer.getConnectString(), 2000, "GREEN", "RED", "");
+    this.zkClient = new ZKClient(config);
+
+    this.enforcedACL = new ArrayList<ACL>();
+    this.enforcedACL.add(new ACLAugment("world:anyone:crwa").getACL());
+
+    zkClient.create("/cp", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    zkClient.create("/torn", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    for (int i = 0; i < 10; i++) {
+      zkClient.create("/cp/n" + i, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+      zkClient.create("/torn/n" + i, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    }
+  }
+
+  @AfterAll
+  public void stopZookeeper() throws IOException, InterruptedException {
+    this.zkClient.close();
+    this.zkTestServer.close();
+  }
+
+  @Test
+  public void testPreOrderPosition() throws Exception {
+    File rollbackFile = new File(testTempDir, "position.yml");
+    ZKEnforceCheckpoint checkpoint = ZKEnforceCheckpoint.create(rollbackFile);
+    checkpoint.begin("policy", rollbackFile);
+    checkpoint.save("/a/b", 0);
+
+    ZKEnforceCheckpoint resumed = ZKEnforceCheckpoint.load(rollbackFile);
+    resumed.begin("policy", rollbackFile);
+    assertTrue(resumed.resumesAfterCheckpoint());
+    assertTrue(resumed.isProcessed("/"));
+    assertTrue(resumed.isProcessed("/a"));
+    assertTrue(resumed.isProcessed("/a/a/z"));
+    assertTrue(resumed.isProcessed("/a/b"));
+    assertFalse(resumed.isProcessed("/a/b/c"));
+    assertFalse(resumed.isProcessed("/a-x"));
+    assertFalse(resumed.isProcessed("/b"));
+
+    assertFalse(resumed.isSubtreeProcessed("/a"));
+    assertTrue(resumed.isSubtreeProcessed("/a/a"));
+    assertFalse(resumed.isSubtreeProcessed("/a/b"));
+    assertTrue(resumed.isSubtreeProcessed("/0"));
+    assertFalse(resumed.isSubtreeProcessed("/b"));
+  }
+
+  @Test
+  public void testOtherPolicyNotResumed() throws Exception {
+    File rollbackFile = new File(testTempDir, "other.yml");
+    ZKEnforceCheckpoint checkpoint = ZKEnforceCheckpoint.create(rollbackFile);
+    checkpoint.begin("policy", rollbackFile);
+    checkpoint.save("/a/b", 0);
+
+    ZKEnforceCheckpoint resumed = ZKEnforceCheckpoint.load(rollbackFile);
+    resumed.begin("modified policy", rollbackFile);
+    assertFalse(resumed.resumesAfterCheckpoint());
+    assertFalse(resumed.isProcessed("/a"));
+  }
+
+  @Test
+  public void testResumeEnforce() throws Exception {
+    ZKQueryElement query = new ZKQueryElement("regexMatchPath", "/cp", Arrays.asList("/cp/n.*"), null);
+    ZKEnforcePolicyElement policy = new ZKEnforcePolicyElement("resume", query, false,
+        Arrays.asList("world:anyone:crwa"));
+    File rollbackFile = new File(testTempDir, "resume.yml");
+
+    // Interrupted enforcement: n0 to n4 checkpointed, n6 journaled after the checkpoint
+    long offset;
+    try (ZKRollbackJournal journal = new ZKRollbackJournal(rollbackFile)) {
+      for (int i = 0; i < 5; i++) {
+        journal.append(new ZKRollbackElement("/cp/n" + i, ZooDefs.Ids.OPEN_ACL_UNSAFE));
+      }
+      journal.sync();
+      offset = journal.getPosition();
+      journal.append(new ZKRollbackElement("/cp/n6", ZooDefs.Ids.OPEN_ACL_UNSAFE));
+    }
+    ZKEnforceCheckpoint checkpoint = ZKEnforceCheckpoint.create(rollbackFile);
+    checkpoint.begin(ZKEnforceCheckpoint.fingerprint(policy), rollbackFile);
+    checkpoint.save("/cp/n4", offset);
+
+    ZKEnforce zkEnforce = new ZKEnforce(this.zkClient, rollbackFile);
+    zkEnforce.setCheckpoint(ZKEnforceCheckpoint.load(rollbackFile));
+    zkEnforce.enforce(policy);
+
+    for (int i = 0; i < 10; i++) {
+      List<ACL> expectedACL = i < 5 || i == 6 ? ZooDefs.Ids.OPEN_ACL_UNSAFE : this.enforcedACL;
+      assertEquals(expectedACL, zkClient.getACL("/cp/n" + i, null), "/cp/n" + i);
+    }
+    assertEquals(10, new ZKRollbackSet(rollbackFile).getElements().size());
+
+    // The completed policy is skipped when resuming again
+    ZKEnforceCheckpoint completed = ZKEnforceCheckpoint.load(rollbackFile);
+    assertEquals(Arrays.asList(ZKEnforceCheckpoint.fingerprint(policy)), completed.getCompletedPolicies());
+    assertTrue(completed.skipCompleted(ZKEnforceCheckpoint.fingerprint(policy)));
+    assertFalse(completed.skipCompleted(ZKEnforceCheckpoint.fingerprint(policy)));
+  }
+
+  @Test
+  public void testResumeAfterTornWrite() throws Exception {
+    ZKQueryElement query = new ZKQueryElement("regexMatchPath", "/torn", Arrays.asList("/torn/n.*"), null);
+    ZKEnforcePolicyElement policy = new ZKEnforcePolicyElement("torn", query, false,
+        Arrays.asList("world:anyone:crwa"));
+    File rollbackFile = new File(testTempDir, "torn.yml");
+
+    // Enforcement killed while journaling n3, after n0 to n2 were checkpointed
+    long offset;
+    try (ZKRollbackJournal journal = new ZKRollbackJournal(rollbackFile)) {
+      for (int i = 0; i < 3; i++) {
+        journal.append(new ZKRollbackElement("/torn/n" + i, ZooDefs.Ids.OPEN_ACL_UNSAFE));
+      }
+      journal.sync();
+      offset = journal.getPosition();
+    }
+    try (FileWriter writer = new FileWriter(rollbackFile, true)) {
+      writer.write("- {\"path\":\"/torn/n3\",\"acl\":[{\"perms\":");
+    }
+    ZKEnforceCheckpoint checkpoint = ZKEnforceCheckpoint.create(rollbackFile);
+    checkpoint.begin(ZKEnforceCheckpoint.fingerprint(policy), rollbackFile);
+    checkpoint.save("/torn/n2", offset);
+
+    ZKEnforce zkEnforce = new ZKEnforce(this.zkClient, rollbackFile);
+    zkEnforce.setCheckpoint(ZKEnforceCheckpoint.load(rollbackFile));
+    zkEnforce.enforce(policy);
+
+    for (int i = 0; i < 10; i++) {
+      List<ACL> expectedACL = i < 3 ? ZooDefs.Ids.OPEN_ACL_UNSAFE : this.enforcedACL;
+      assertEquals(expectedACL, zkClient.getACL("/torn/n" + i, null), "/torn/n" + i);
+    }
+    // Entries of the resumed run are readable after the removed torn entry
+    List<ZKRollbackElement> elements = new ZKRollbackSet(rollbackFile).getElements();
+    assertEquals(10, elements.size());
+    for (int i = 0; i < 10; i++) {
+      assertEquals("/torn/n" + i, elements.get(i).getPath());
+      assertEquals(ZooDefs.Ids.OPEN_ACL_UNSAFE, elements.get(i).getAcl());
+    }
+  }
+}
@@ -128,7 +128,7 @@ public class ZKEnforceTest {
 
   @Test
   public void testEnforce() throws NoSuchMethodException, KeeperException, InterruptedException, SecurityException,
-      IllegalAccessException, IllegalArgumentException, InvocationTargetException, NoSuchFieldException {
+      IllegalAccessException, IllegalArgumentException, InvocationTargetException, NoSuchFieldException, IOException {
     List<String> queryArgs = new ArrayList<String>();
     queryArgs.add("ip:127.0.0.3:.*");
     queryArgs.add("world:anyone:.*");
@@ -156,7 +156,7 @@ public class ZKEnforceTest {
   @Test
   public void testEnforceAppend()
       throws NoSuchMethodException, KeeperException, InterruptedException, SecurityException, IllegalAccessException,
-      IllegalArgumentException, InvocationTargetException, NoSuchFieldException {
+      IllegalArgumentException, InvocationTargetException, NoSuchFieldException, IOException {
     List<String> queryArgs = new ArrayList<String>();
     queryArgs.add("ip:127.0.0.4:.*");
     queryArgs.add("world:anyone:.*");
@@ -185,7 +185,7 @@ public class ZKEnforceTest {
   @Test
   public void testEnforceInvalidRootPath()
       throws NoSuchMethodException, KeeperException, InterruptedException, SecurityException, IllegalAccessException,
-      IllegalArgumentException, InvocationTargetException, NoSuchFieldException {
+      IllegalArgumentException, InvocationTargetException, NoSuchFieldException, IOException {
     List<String> queryArgs = new ArrayList<String>();
     queryArgs.add("ip:127.0.0.3:.*");
     queryArgs.add("world:anyone:.*");
@@ -0,0 +1,143 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Id;
+import org.apache.zookeeper.data.Stat;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+import org.junit.jupiter.api.io.TempDir;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class ZKExportFileSourceTest {
+  TestingServer zkTestServer;
+  ZKConfig config;
+  ZKClient zkClient;
+
+  @TempDir
+  static File testTempDir;
+
+  @BeforeAll
+  public void startZookeeper() throws Exception {
+    zkTestServer = new TestingServer();
+    config = new ZKConfig(zkTestServer.getConnectString(), 2000, "GREEN", "RED", "");
+    this.zkClient = new ZKClient(config);
+
+    ArrayList<ACL> aclList = new ArrayList<ACL>();
+    aclList.add(new ACL(ZooDefs.Perms.ALL, new Id("world", "anyone")));
+    List<ACL> createReadWriteACL = new ArrayList<ACL>();
+    createReadWriteACL.add(new ACLAugment("world:anyone:crw").getACL());
+    List<ACL> noReadACL = new ArrayList<ACL>();
+    noReadACL.add(new ACLAugment("world:anyone:w").getACL());
+
+    zkClient.create("/e", "e".getBytes(), aclList, CreateMode.PERSISTENT);
+    zkClient.create("/e/a", "a".getBytes(), createReadWriteACL, CreateMode.PERSISTENT);
+    zkClient.create("/e/a/x", null, aclList, CreateMode.PERSISTENT);
+    zkClient.create("/e/b", "b".getBytes(), aclList, CreateMode.PERSISTENT);
+    zkClient.create("/e/b/empty", new byte[0], aclList, CreateMode.PERSISTENT);
+    zkClient.create("/e/hidden", "h".getBytes(), noReadACL, CreateMode.PERSISTENT);
+    zkClient.setData("/e/b", "b2".getBytes(), -1);
+  }
+
+  @AfterAll
+  public void stopZookeeper() throws IOException, InterruptedException {
+    this.zkClient.close();
+    this.zkTestServer.close();
+  }
+
+  private List<String> find(ZKTreeSource source, String queryName, List<String> args) throws Exception {
+    ZKQueryElement queryElement = new ZKQueryElement(queryName, "/e", args,
+        new ZKDefaultQuery().getValueOf(queryName));
+    List<ZKQueryElement> queriesList = new ArrayList<ZKQueryElement>();
+    queriesList.add(queryElement);
+    Hashtable<Integer, List<String>> queriesOutput = new Hashtable<Integer, List<String>>();
+    queriesOutput.put(queryElement.hashCode(), new ArrayList<String>());
+    new ZKTree(source).queryFind("/e", queriesList, queriesOutput);
+    // Znodes that were not readable during export are not part of the offline tree
+    List<String> output = queriesOutput.get(queryElement.hashCode());
+    output.removeIf(line -> line.startsWith("WARNING"));
+    return output;
+  }
+
+  private void assertOfflineMatchesLive(ZKPolicyDefs.ExportFormats format, boolean base64Data, boolean compress)
+      throws Exception {
+    File exportFile = new File(testTempDir, "export_" + base64Data + "_" + compress + "." + format);
+    ZKExport zkExport = new ZKExport(this.zkClient);
+    zkExport.setBase64Data(base64Data);
+    zkExport.setCompress(compress);
+    zkExport.export("/e", format, false, exportFile);
+
+    List<String> args = new ArrayList<String>();
+    args.add("world:anyone:crw");
+    try (ZKExportFileSource source = new ZKExportFileSource(config, exportFile)) {
+      assertEquals("/e", source.getRootPath());
+      assertEquals(5, source.getNodeCount());
+      assertNotNull(source.exists("/e/a/x", null));
+      assertNull(source.exists("/e/missing", null));
+      assertNull(source.exists("/other", null));
+
+      List<String> offlineOutput = this.find(source, "exactACL", args);
+      assertEquals("[/e/a]", offlineOutput.toString());
+      assertEquals(this.find(this.zkClient, "exactACL", args), offlineOutput);
+      assertEquals(this.find(this.zkClient, "noACL", null), this.find(source, "noACL", null));
+
+      Stat liveStat = this.zkClient.exists("/e/b", null);
+      try (ZKTraversal traversal = new ZKTraversal(source, true)) {
+        ZKTraversalNode node = traversal.start("/e/b");
+        assertArrayEquals("b2".getBytes(), node.getData());
+        assertEquals(liveStat, node.getStat());
+      }
+      // Array data does not tell null data from empty data
+      boolean nullDataKept = base64Data || format == ZKPolicyDefs.ExportFormats.binary;
+      try (ZKTraversal traversal = new ZKTraversal(source, true)) {
+        ZKTraversalNode node = traversal.start("/e/a/x");
+        assertArrayEquals(nullDataKept ? null : new byte[0], node.getData());
+      }
+      try (ZKTraversal traversal = new ZKTraversal(source, true)) {
+        assertArrayEquals(new byte[0], traversal.start("/e/b/empty").getData());
+      }
+    }
+  }
+
+  @Test
+  public void testJSONExport() throws Exception {
+    this.assertOfflineMatchesLive(ZKPolicyDefs.ExportFormats.json, false, false);
+    this.assertOfflineMatchesLive(ZKPolicyDefs.ExportFormats.json, true, false);
+  }
+
+  @Test
+  public void testYAMLExport() throws Exception {
+    this.assertOfflineMatchesLive(ZKPolicyDefs.ExportFormats.yaml, false, false);
+    this.assertOfflineMatchesLive(ZKPolicyDefs.ExportFormats.yaml, true, false);
+  }
+
+  @Test
+  public void testBinaryExport() throws Exception {
+    this.assertOfflineMatchesLive(ZKPolicyDefs.ExportFormats.binary, false, false);
+    this.assertOfflineMatchesLive(ZKPolicyDefs.ExportFormats.binary, false, true);
+  }
+}
@@ -0,0 +1,139 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Id;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+import org.junit.jupiter.api.io.TempDir;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class ZKExportTest {
+  TestingServer zkTestServer;
+  ZKConfig config;
+  ZKClient zkClient;
+
+  @TempDir
+  static File testTempDir;
+
+  @BeforeAll
+  public void startZookeeper() throws Exception {
+    zkTestServer = new TestingServer();
+    config = new ZKConfig(zkTestServer.getConnectString(), 2000, "GREEN", "RED", "");
+    this.zkClient = new ZKClient(config);
+
+    ArrayList<ACL> aclList = new ArrayList<ACL>();
+    aclList.add(new ACL(ZooDefs.Perms.ALL, new Id("world", "anyone")));
+    List<ACL> writeACL = new ArrayList<ACL>();
+    writeACL.add(new ACL(ZooDefs.Perms.WRITE, new Id("world", "anyone")));
+
+    zkClient.create("/x", "x".getBytes(), aclList, CreateMode.PERSISTENT);
+    zkClient.create("/x/a", null, aclList, CreateMode.PERSISTENT);
+    zkClient.create("/x/a/deep", new byte[] { -1, 0, 127 }, aclList, CreateMode.PERSISTENT);
+    zkClient.create("/x/b", "b".getBytes(), writeACL, CreateMode.PERSISTENT);
+  }
+
+  @AfterAll
+  public void stopZookeeper() throws IOException, InterruptedException {
+    this.zkClient.close();
+    this.zkTestServer.close();
+  }
+
+  private void assertExportSchema(ObjectMapper mapper, ZKPolicyDefs.ExportFormats format, boolean compactMode)
+      throws Exception {
+    File exportFile = new File(testTempDir, "export_" + compactMode + "." + format);
+    new ZKExport(this.zkClient).export("/x", format, compactMode, exportFile);
+
+    ZKTreeNode root = mapper.readValue(exportFile, ZKTreeNode.class);
+    assertEquals("/x", root.getPath());
+    assertEquals(this.zkClient.exists("/x", null), root.getStat());
+    assertEquals(2, root.getChildren().size());
+
+    ZKTreeNode nodeA = root.getChildren().get(0);
+    assertEquals("/x/a", nodeA.getPath());
+    assertEquals(0, nodeA.getData().size());
+    ZKTreeNode nodeDeep = nodeA.getChildren().get(0);
+    assertEquals("/x/a/deep", nodeDeep.getPath());
+    assertArrayEquals(new Byte[] { -1, 0, 127 }, nodeDeep.getData().toArray(new Byte[0]));
+    assertEquals(0, nodeDeep.getChildren().size());
+
+    // Unreadable znodes are kept with all fields empty
+    ZKTreeNode nodeB = root.getChildren().get(1);
+    assertNull(nodeB.getPath());
+    assertNull(nodeB.getStat());
+
+    // Streamed output is identical to the serialization of the full ZKTreeNode tree
+    String expected = compactMode || format == ZKPolicyDefs.ExportFormats.yaml ? mapper.writeValueAsString(root)
+        : mapper.writerWithDefaultPrettyPrinter().writeValueAsString(root);
+    assertEquals(expected, new String(Files.readAllBytes(exportFile.toPath()), "UTF-8"));
+  }
+
+  @Test
+  public void testExportJSON() throws Exception {
+    ObjectMapper mapper = new ObjectMapper(new JsonFactory());
+    this.assertExportSchema(mapper, ZKPolicyDefs.ExportFormats.json, true);
+    this.assertExportSchema(mapper, ZKPolicyDefs.ExportFormats.json, false);
+  }
+
+  @Test
+  public void testExportBinary() throws Exception {
+    File exportFile = new File(testTempDir, "export.bin");
+    ZKExport zkExport = new ZKExport(this.zkClient);
+    zkExport.setCompress(true);
+    zkExport.export("/x", ZKPolicyDefs.ExportFormats.binary, false, exportFile);
+
+    try (ZKBinaryExport.Reader reader = new ZKBinaryExport.Reader(exportFile)) {
+      ZKBinaryExport.Node root = reader.readNode();
+      assertEquals("/x", root.getName());
+      assertArrayEquals("x".getBytes(), root.getData());
+      assertEquals(this.zkClient.exists("/x", null), root.getStat());
+      assertEquals(2, root.getChildCount());
+
+      ZKBinaryExport.Node nodeA = reader.readNode();
+      assertEquals("a", nodeA.getName());
+      assertNull(nodeA.getData());
+      // Identical ACL lists are read from the table
+      assertSame(root.getAcl(), nodeA.getAcl());
+      assertEquals(1, nodeA.getChildCount());
+
+      ZKBinaryExport.Node nodeDeep = reader.readNode();
+      assertEquals("deep", nodeDeep.getName());
+      assertArrayEquals(new byte[] { -1, 0, 127 }, nodeDeep.getData());
+      assertEquals(0, nodeDeep.getChildCount());
+
+      assertNull(reader.readNode());
+    }
+  }
+
+  @Test
+  public void testExportYAML() throws Exception {
+    this.assertExportSchema(new ObjectMapper(new YAMLFactory()), ZKPolicyDefs.ExportFormats.yaml, false);
+  }
+}
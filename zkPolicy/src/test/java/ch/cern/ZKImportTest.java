@@ -0,0 +1,185 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Id;
+import org.apache.zookeeper.data.Stat;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+import org.junit.jupiter.api.io.TempDir;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class ZKImportTest {
+  TestingServer zkTestServer;
+  ZKConfig config;
+  ZKClient zkClient;
+  List<ACL> readWriteACL;
+
+  @TempDir
+  static File testTempDir;
+
+  @BeforeAll
+  public void startZookeeper() throws Exception {
+    zkTestServer = new TestingServer();
+    config = new ZKConfig(zkTestServer.getConnectString(), 2000, "GREEN", "RED", "");
+    this.zkClient = new ZKClient(config);
+
+    ArrayList<ACL> aclList = new ArrayList<ACL>();
+    aclList.add(new ACL(ZooDefs.Perms.ALL, new Id("world", "anyone")));
+    this.readWriteACL = new ArrayList<ACL>();
+    this.readWriteACL.add(new ACLAugment("world:anyone:rw").getACL());
+
+    zkClient.create("/src", "root".getBytes(), aclList, CreateMode.PERSISTENT);
+    for (int i = 0; i < 10; i++) {
+      zkClient.create("/src/app" + i, ("app" + i).getBytes(), aclList, CreateMode.PERSISTENT);
+      for (int j = 0; j < 10; j++) {
+        zkClient.create("/src/app" + i + "/item" + j, null, aclList, CreateMode.PERSISTENT);
+      }
+    }
+    zkClient.create("/src/app0/item0/leaf", "leaf".getBytes(), this.readWriteACL, CreateMode.PERSISTENT);
+    zkClient.create("/src/session", null, aclList, CreateMode.EPHEMERAL);
+  }
+
+  @AfterAll
+  public void stopZookeeper() throws IOException, InterruptedException {
+    this.zkClient.close();
+    this.zkTestServer.close();
+  }
+
+  private File exportSource(ZKPolicyDefs.ExportFormats format) {
+    File exportFile = new File(testTempDir, "import." + format);
+    new ZKExport(this.zkClient).export("/src", format, true, exportFile);
+    return exportFile;
+  }
+
+  private void assertImported(String targetPath) throws Exception {
+    assertArrayEquals("root".getBytes(), this.zkClient.getData(targetPath, null, null));
+    assertEquals(10, this.zkClient.getChildren(targetPath, null).size());
+    assertArrayEquals("app9".getBytes(), this.zkClient.getData(targetPath + "/app9", null, null));
+    assertEquals(10, this.zkClient.getChildren(targetPath + "/app9", null).size());
+    assertArrayEquals("leaf".getBytes(), this.zkClient.getData(targetPath + "/app0/item0/leaf", null, null));
+    assertEquals(this.readWriteACL, this.zkClient.getACL(targetPath + "/app0/item0/leaf", null));
+    assertNull(this.zkClient.exists(targetPath + "/session", null));
+  }
+
+  @Test
+  public void testImportToTargetPath() throws Exception {
+    try (ZKExportFileSource source = new ZKExportFileSource(config, this.exportSource(ZKPolicyDefs.ExportFormats.json))) {
+      // Small batches keep several multi transactions in flight
+      ZKImport zkImport = new ZKImport(this.zkClient, 7, 3);
+      zkImport.importTree(source, source.getRootPath(), "/dst");
+      assertEquals(112, zkImport.getCreatedCount());
+      assertEquals(0, zkImport.getExistingCount());
+      assertEquals(1, zkImport.getEphemeralCount());
+      assertEquals(0, zkImport.getFailedCount());
+    }
+    this.assertImported("/dst");
+  }
+
+  @Test
+  public void testImportOverExistingZnodes() throws Exception {
+    this.zkClient.create("/partial", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    this.zkClient.create("/partial/app3", "other".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+    try (ZKExportFileSource source = new ZKExportFileSource(config,
+        this.exportSource(ZKPolicyDefs.ExportFormats.binary))) {
+      ZKImport zkImport = new ZKImport(this.zkClient, 20, 2);
+      zkImport.importTree(source, source.getRootPath(), "/partial");
+      assertEquals(110, zkImport.getCreatedCount());
+      assertEquals(2, zkImport.getExistingCount());
+      assertEquals(0, zkImport.getFailedCount());
+    }
+    // Existing znodes are left untouched
+    assertArrayEquals("other".getBytes(), this.zkClient.getData("/partial/app3", null, null));
+    assertEquals(10, this.zkClient.getChildren("/partial/app3", null).size());
+    assertArrayEquals("leaf".getBytes(), this.zkClient.getData("/partial/app0/item0/leaf", null, null));
+  }
+
+  private void createReadOnlySource(String path, List<ACL> readOnlyACL) throws Exception {
+    this.zkClient.create(path, "ro".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    this.zkClient.create(path + "/child", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    this.zkClient.create(path + "/child/leaf", "leaf".getBytes(), this.readWriteACL, CreateMode.PERSISTENT);
+    this.zkClient.setACL(path + "/child", readOnlyACL, -1);
+    this.zkClient.setACL(path, readOnlyACL, -1);
+  }
+
+  @Test
+  public void testImportUnderReadOnlyParent() throws Exception {
+    List<ACL> readOnlyACL = new ArrayList<ACL>();
+    readOnlyACL.add(new ACLAugment("world:anyone:r").getACL());
+    this.createReadOnlySource("/readOnly", readOnlyACL);
+
+    File exportFile = new File(testTempDir, "readOnly.json");
+    new ZKExport(this.zkClient).export("/readOnly", ZKPolicyDefs.ExportFormats.json, true, exportFile);
+    // The temporary ACL of the parents is granted to the authenticated importer
+    ZKClient importClient = new ZKClient(config);
+    importClient.addAuthInfo("digest", "importer:passw1".getBytes());
+    try (ZKExportFileSource source = new ZKExportFileSource(config, exportFile)) {
+      ZKImport zkImport = new ZKImport(importClient, 2, 2);
+      zkImport.importTree(source, source.getRootPath(), "/readOnlyCopy");
+      assertEquals(3, zkImport.getCreatedCount());
+      assertEquals(0, zkImport.getFailedCount());
+    } finally {
+      importClient.close();
+    }
+    assertEquals(readOnlyACL, this.zkClient.getACL("/readOnlyCopy", null));
+    assertEquals(readOnlyACL, this.zkClient.getACL("/readOnlyCopy/child", null));
+    assertEquals(this.readWriteACL, this.zkClient.getACL("/readOnlyCopy/child/leaf", null));
+    assertArrayEquals("leaf".getBytes(), this.zkClient.getData("/readOnlyCopy/child/leaf", null, null));
+  }
+
+  @Test
+  public void testFailedImportRestoresParentACLs() throws Exception {
+    List<ACL> readOnlyACL = new ArrayList<ACL>();
+    readOnlyACL.add(new ACLAugment("world:anyone:r").getACL());
+    this.createReadOnlySource("/failing", readOnlyACL);
+
+    File exportFile = new File(testTempDir, "failing.json");
+    new ZKExport(this.zkClient).export("/failing", ZKPolicyDefs.ExportFormats.json, true, exportFile);
+    ZKClient importClient = new ZKClient(config);
+    importClient.addAuthInfo("digest", "importer:passw1".getBytes());
+    // Source failing once the parents are created
+    try (ZKExportFileSource source = new ZKExportFileSource(config, exportFile) {
+      @Override
+      protected byte[] getData(String path, Stat stat) throws KeeperException {
+        if (path.endsWith("/leaf")) {
+          throw KeeperException.create(KeeperException.Code.SYSTEMERROR, path);
+        }
+        return super.getData(path, stat);
+      }
+    }) {
+      // Single znode transactions so that the child is created before the source fails
+      ZKImport zkImport = new ZKImport(importClient, 1, 2);
+      assertThrows(KeeperException.class, () -> zkImport.importTree(source, source.getRootPath(), "/failingCopy"));
+    } finally {
+      importClient.close();
+    }
+    assertEquals(readOnlyACL, this.zkClient.getACL("/failingCopy", null));
+    assertEquals(readOnlyACL, this.zkClient.getACL("/failingCopy/child", null));
+    assertNull(this.zkClient.exists("/failingCopy/child/leaf", null));
+  }
+}
@@ -9,9 +9,12 @@
 package ch.cern;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.regex.Pattern;
 
@@ -74,6 +77,72 @@ public class ZKPatternTest {
     }
   }
 
+  @Test
+  public void testLiteralPrefix() {
+    assertEquals("/a/b", ZKPattern.literalPrefix("/a/b"));
+    assertEquals("/a/", ZKPattern.literalPrefix("/a/.*"));
+    assertEquals("/a/", ZKPattern.literalPrefix("^/a/b?"));
+    assertEquals("/a/b", ZKPattern.literalPrefix("/a/b+"));
+    assertEquals("/a.b/", ZKPattern.literalPrefix("/a\\.b/[0-9]+"));
+    assertEquals("/a/", ZKPattern.literalPrefix("/a/(b|c)"));
+    assertEquals("", ZKPattern.literalPrefix("/a/b|/c"));
+    assertEquals("", ZKPattern.literalPrefix("\\Q/a\\E"));
+    assertEquals("", ZKPattern.literalPrefix("(?i)/a"));
+
+    assertTrue(ZKPattern.isLiteral("/a/b"));
+    assertTrue(ZKPattern.isLiteral("^/a\\.b"));
+    assertFalse(ZKPattern.isLiteral("/a/b$"));
+    assertFalse(ZKPattern.isLiteral("/a/.*"));
+  }
+
+  @Test
+  public void testPathPatternIndex() {
+    List<String> regexList = new ArrayList<String>();
+    regexList.add("/a/b");
+    regexList.add("/a/.*");
+    regexList.add("/a/b?");
+    regexList.add(".*b");
+    regexList.add("/a/b|/c");
+    regexList.add("/c");
+    regexList.add("/a/b");
+    List<Pattern> patternList = ZKPattern.createRegexPatternList(regexList);
+    ZKPathPatternIndex index = new ZKPathPatternIndex(patternList);
+    assertEquals(regexList.size(), index.size());
+
+    String[] paths = { "/", "/a", "/a/", "/a/b", "/a/bb", "/c", "/c/b", "/d" };
+    for (String path : paths) {
+      BitSet expected = new BitSet();
+      for (int i = 0; i < patternList.size(); i++) {
+        if (patternList.get(i).matcher(path).matches()) {
+          expected.set(i);
+        }
+      }
+      assertEquals(expected, index.match(path), path);
+    }
+  }
+
+  @Test
+  public void testPathPatternIndexSubtree() {
+    List<String> regexList = new ArrayList<String>();
+    regexList.add("/hbase/table/.*");
+    regexList.add("/kafka");
+    ZKPathPatternIndex index = new ZKPathPatternIndex(ZKPattern.createRegexPatternList(regexList));
+
+    assertTrue(index.mayMatchSubtree("/"));
+    assertTrue(index.mayMatchSubtree("/hbase"));
+    assertTrue(index.mayMatchSubtree("/hbase/table"));
+    assertTrue(index.mayMatchSubtree("/hbase/table/t1/region"));
+    assertTrue(index.mayMatchSubtree("/kafka"));
+    assertFalse(index.mayMatchSubtree("/hbase/meta"));
+    assertFalse(index.mayMatchSubtree("/hbase/tables"));
+    assertFalse(index.mayMatchSubtree("/kafka/brokers"));
+    assertFalse(index.mayMatchSubtree("/zookeeper"));
+
+    regexList.add("(?i)/zk.*");
+    index = new ZKPathPatternIndex(ZKPattern.createRegexPatternList(regexList));
+    assertTrue(index.mayMatchSubtree("/zookeeper"));
+  }
+
   @Test
   public void testNoArgsConstructor() {
     assertNotNull(new ZKPattern());
@@ -0,0 +1,96 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.zookeeper.data.ACL;
+
+/**
+ * Benchmark of query execution with and without compiled queries on a synthetic znode tree.
+ *
+ * <p>Not executed as part of the test suite. Run with:
+ * {@code java -cp <test classpath> ch.cern.ZKQueryBenchmark [znodes]}</p>
+ */
+public class ZKQueryBenchmark {
+  private static final int DEFAULT_ZNODES = 1000000;
+  private static final int FANOUT = 100;
+
+  private String[] paths;
+  private List<List<ACL>> acls;
+
+  /**
+   * Generate a synthetic tree with the requested number of znodes.
+   *
+   * @param znodes Number of znodes
+   */
+  ZKQueryBenchmark(int znodes) {
+    List<List<ACL>> aclVariants = new ArrayList<List<ACL>>();
+    aclVariants.add(ZKBenchmark.aclList("world:anyone:cdrwa"));
+    aclVariants.add(ZKBenchmark.aclList("world:anyone:r", "sasl:kafka:cdrwa"));
+    aclVariants.add(ZKBenchmark.aclList("sasl:hbase:cdrwa", "ip:127.0.0.1:r"));
+    aclVariants.add(ZKBenchmark.aclList("digest:user1:fmzXXlXqk3oTcBzJlNngkWBzCVI=:cdrwa", "world:anyone:r"));
+    aclVariants.add(ZKBenchmark.aclList("ip:10.0.0.0/8:cdrwa", "sasl:zookeeper:cdrwa", "world:anyone:r"));
+
+    this.paths = new String[znodes];
+    this.acls = new ArrayList<List<ACL>>(znodes);
+    this.paths[0] = "/";
+    this.acls.add(aclVariants.get(0));
+    // Breadth first numbering, the parent of znode i is znode (i - 1) / FANOUT
+    for (int i = 1; i < znodes; i++) {
+      String parent = this.paths[(i - 1) / FANOUT];
+      this.paths[i] = (parent.equals("/") ? "" : parent) + "/znode" + (i - 1) % FANOUT;
+      this.acls.add(aclVariants.get(i % aclVariants.size()));
+    }
+  }
+
+  private long runQuery(ZKQuery query, List<String> args) {
+    long matches = 0;
+    for (int i = 0; i < this.paths.length; i++) {
+      if (query.query(this.acls.get(i), null, this.paths[i], null, args)) {
+        matches++;
+      }
+    }
+    return matches;
+  }
+
+  private long runCompiledQuery(ZKQuery query, List<String> args) {
+    long matches = 0;
+    ZKCompiledQuery compiledQuery = query.compile(args);
+    for (int i = 0; i < this.paths.length; i++) {
+      if (compiledQuery.query(this.acls.get(i), null, this.paths[i], null)) {
+        matches++;
+      }
+    }
+    return matches;
+  }
+
+  private void benchmark(ZKDefaultQuery defaultQueries, String queryName, List<String> args) throws Exception {
+    ZKQuery query = defaultQueries.getValueOf(queryName);
+    ZKBenchmark.compare(queryName, "per-node parsing", () -> this.runQuery(query, args), "compiled",
+        () -> this.runCompiledQuery(query, args));
+  }
+
+  public static void main(String[] args) throws Exception {
+    int znodes = ZKBenchmark.intArgument(args, 0, DEFAULT_ZNODES);
+    ZKQueryBenchmark benchmark = new ZKQueryBenchmark(znodes);
+    ZKDefaultQuery defaultQueries = new ZKDefaultQuery();
+    System.out.println("Synthetic tree with " + znodes + " znodes");
+
+    benchmark.benchmark(defaultQueries, "exactACL", Arrays.asList("world:anyone:r", "sasl:kafka:cdrwa"));
+    benchmark.benchmark(defaultQueries, "noACL", null);
+    benchmark.benchmark(defaultQueries, "satisfyACL", Arrays.asList("ip:10.1.2.3:r", "world:anyone:r"));
+    benchmark.benchmark(defaultQueries, "noSatisfyACL", Arrays.asList("sasl:kafka:rw"));
+    benchmark.benchmark(defaultQueries, "regexMatchACL", Arrays.asList("sasl:.*:cdrwa", "world:.*:r"));
+    benchmark.benchmark(defaultQueries, "globMatchACL", Arrays.asList("sasl:*:cdrwa", "world:*:r"));
+    benchmark.benchmark(defaultQueries, "globMatchPath", Arrays.asList("/znode1*/*/znode4?"));
+    benchmark.benchmark(defaultQueries, "regexMatchPath", Arrays.asList("/znode1.*/.*/znode4[0-9]"));
+  }
+}
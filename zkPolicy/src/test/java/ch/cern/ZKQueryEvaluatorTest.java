@@ -0,0 +1,129 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.List;
+
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.ACL;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class ZKQueryEvaluatorTest {
+  static final int CHILD_COUNT = 30;
+
+  TestingServer zkTestServer;
+  ZKClient zkClient;
+  List<ACL> readOnlyACL;
+
+  @BeforeAll
+  public void startZookeeper() throws Exception {
+    zkTestServer = new TestingServer();
+    ZKConfig config = new ZKConfig(zkTestServer.getConnectString(), 2000, "GREEN", "RED", "");
+    config.setEvaluationThreads(3);
+    this.zkClient = new ZKClient(config);
+
+    this.readOnlyACL = new ArrayList<ACL>();
+    this.readOnlyACL.add(new ACLAugment("world:anyone:r").getACL());
+    zkClient.create("/ev", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    for (int i = 0; i < CHILD_COUNT; i++) {
+      zkClient.create("/ev/c" + i, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+      for (int j = 0; j < CHILD_COUNT; j++) {
+        zkClient.create("/ev/c" + i + "/g" + j, null, j % 3 == 0 ? this.readOnlyACL : ZooDefs.Ids.OPEN_ACL_UNSAFE,
+            CreateMode.PERSISTENT);
+      }
+    }
+  }
+
+  @AfterAll
+  public void stopZookeeper() throws IOException, InterruptedException {
+    this.zkClient.close();
+    this.zkTestServer.close();
+  }
+
+  private List<List<String>> evaluate(int threads, int znodes) throws Exception {
+    List<ZKCompiledQuery> queries = new ArrayList<ZKCompiledQuery>();
+    queries.add((aclList, parentAclList, path, zk) -> path.endsWith("0"));
+    queries.add((aclList, parentAclList, path, zk) -> aclList.equals(this.readOnlyACL));
+    List<List<String>> outputs = Arrays.asList(new ArrayList<String>(), new ArrayList<String>());
+    try (ZKQueryEvaluator evaluator = new ZKQueryEvaluator(queries, outputs, null, threads)) {
+      for (int i = 0; i < znodes; i++) {
+        evaluator.evaluate("/z" + i, i % 7 == 0 ? this.readOnlyACL : ZooDefs.Ids.OPEN_ACL_UNSAFE);
+        if (i % 1000 == 0) {
+          evaluator.append("line " + i);
+        }
+      }
+      evaluator.finish();
+    }
+    return outputs;
+  }
+
+  @Test
+  public void testPathOrder() throws Exception {
+    int znodes = ZKPolicyDefs.Traversal.EVALUATION_BATCH_SIZE * 50 + 7;
+    List<List<String>> sequential = this.evaluate(1, znodes);
+    assertEquals(sequential, this.evaluate(4, znodes));
+    assertEquals("/z0", sequential.get(0).get(0));
+    assertEquals("line 0", sequential.get(0).get(1));
+    assertEquals("/z10", sequential.get(0).get(2));
+    assertEquals((znodes + 6) / 7 + (znodes + 999) / 1000, sequential.get(1).size());
+  }
+
+  @Test
+  public void testQueryFind() throws Exception {
+    ZKDefaultQuery defaultQuery = new ZKDefaultQuery();
+    ZKQueryElement exactElement = new ZKQueryElement("exactACL", "/ev", Arrays.asList("world:anyone:r"),
+        defaultQuery.getValueOf("exactACL"));
+    ZKQueryElement pathElement = new ZKQueryElement("regexMatchPath", "/ev", Arrays.asList("/ev/c1/.*"),
+        defaultQuery.getValueOf("regexMatchPath"));
+    List<ZKQueryElement> queriesList = new ArrayList<ZKQueryElement>(Arrays.asList(exactElement, pathElement));
+    Hashtable<Integer, List<String>> queriesOutput = new Hashtable<Integer, List<String>>();
+    queriesOutput.put(exactElement.hashCode(), new ArrayList<String>());
+    queriesOutput.put(pathElement.hashCode(), new ArrayList<String>());
+
+    new ZKTree(this.zkClient).queryFind("/ev", queriesList, queriesOutput);
+
+    List<String> expectedExact = new ArrayList<String>();
+    List<String> expectedPath = new ArrayList<String>();
+    List<String> children = new ArrayList<String>();
+    for (int i = 0; i < CHILD_COUNT; i++) {
+      children.add("c" + i);
+    }
+    children.sort(null);
+    for (String child : children) {
+      List<String> grandChildren = new ArrayList<String>();
+      for (int j = 0; j < CHILD_COUNT; j++) {
+        grandChildren.add("g" + j);
+      }
+      grandChildren.sort(null);
+      for (String grandChild : grandChildren) {
+        if (Integer.parseInt(grandChild.substring(1)) % 3 == 0) {
+          expectedExact.add("/ev/" + child + "/" + grandChild);
+        }
+        if (child.equals("c1")) {
+          expectedPath.add("/ev/" + child + "/" + grandChild);
+        }
+      }
+    }
+    assertEquals(expectedExact, queriesOutput.get(exactElement.hashCode()));
+    assertEquals(expectedPath, queriesOutput.get(pathElement.hashCode()));
+  }
+}
@@ -0,0 +1,46 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class ZKRateLimiterTest {
+
+  @Test
+  public void testBurst() throws InterruptedException {
+    ZKRateLimiter rateLimiter = new ZKRateLimiter(50);
+    long start = System.nanoTime();
+    for (int i = 0; i < 50; i++) {
+      rateLimiter.acquire();
+    }
+    assertTrue(System.nanoTime() - start < 500_000_000L);
+    assertEquals(0, rateLimiter.getThrottledCount());
+  }
+
+  @Test
+  public void testSustainedRate() throws InterruptedException {
+    ZKRateLimiter rateLimiter = new ZKRateLimiter(50);
+    long start = System.nanoTime();
+    for (int i = 0; i < 75; i++) {
+      rateLimiter.acquire();
+    }
+    // The 25 permits beyond the initial burst take at least half a second
+    assertTrue(System.nanoTime() - start >= 450_000_000L);
+    assertTrue(rateLimiter.getThrottledCount() >= 20);
+  }
+
+  @Test
+  public void testInvalidRate() {
+    assertThrows(IllegalArgumentException.class, () -> new ZKRateLimiter(0));
+  }
+}
@@ -0,0 +1,109 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class ZKReconnectingSourceTest {
+  TestingServer zkTestServer;
+  ZKConfig config;
+  ZKReconnectingSource source;
+
+  @BeforeAll
+  public void startZookeeper() throws Exception {
+    zkTestServer = new TestingServer();
+    config = new ZKConfig(zkTestServer.getConnectString(), 2000, "GREEN", "RED", "");
+    this.source = new ZKReconnectingSource(config);
+
+    ZKClient zkClient = this.source.getClient();
+    zkClient.create("/rc", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    zkClient.create("/rc/a", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    zkClient.create("/rc/b", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+  }
+
+  @AfterAll
+  public void stopZookeeper() throws IOException, InterruptedException {
+    this.source.close();
+    this.zkTestServer.close();
+  }
+
+  private int getACL(String path) throws Exception {
+    CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+    this.source.getACL(path, null, new AsyncCallback.ACLCallback() {
+      @Override
+      public void processResult(int rc, String path, Object ctx, List<ACL> acl, Stat stat) {
+        result.complete(rc);
+      }
+    }, null);
+    return result.get(60, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testTraversal() throws Exception {
+    List<String> children = new ArrayList<String>();
+    try (ZKTraversal traversal = new ZKTraversal(this.source)) {
+      for (ZKTraversalNode child : traversal.start("/rc").getChildNodes()) {
+        children.add(child.getPath());
+      }
+    }
+    assertEquals(Arrays.asList("/rc/a", "/rc/b"), children);
+  }
+
+  @Test
+  public void testConnectionLoss() throws Exception {
+    this.zkTestServer.stop();
+    Thread restart = new Thread(() -> {
+      try {
+        Thread.sleep(1000);
+        this.zkTestServer.restart();
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    restart.start();
+    assertEquals(KeeperException.Code.OK.intValue(), this.getACL("/rc/a"));
+    restart.join();
+    assertEquals(ZooDefs.Ids.OPEN_ACL_UNSAFE, this.source.getClient().getACL("/rc/a", null));
+  }
+
+  @Test
+  public void testSessionExpiry() throws Exception {
+    ZKClient expired = this.source.getClient();
+    int sessionCount = this.source.getSessionCount();
+    expired.getTestable().injectSessionExpiration();
+
+    assertEquals(KeeperException.Code.OK.intValue(), this.getACL("/rc/b"));
+    assertNotSame(expired, this.source.getClient());
+    assertEquals(sessionCount + 1, this.source.getSessionCount());
+    assertNotNull(this.source.exists("/rc", null));
+  }
+}
@@ -0,0 +1,229 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.ACL;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+import org.junit.jupiter.api.io.TempDir;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class ZKRollbackJournalTest {
+  TestingServer zkTestServer;
+  ZKConfig config;
+  ZKClient zkClient;
+  List<ACL> readWriteACL;
+  List<ACL> adminACL;
+
+  @TempDir
+  static File testTempDir;
+
+  @BeforeAll
+  public void startZookeeper() throws Exception {
+    zkTestServer = new TestingServer();
+    config = new ZKConfig(zkTestServer.getConnectString(), 2000, "GREEN", "RED", "");
+    this.zkClient = new ZKClient(config);
+
+    this.readWriteACL = new ArrayList<ACL>();
+    this.readWriteACL.add(new ACLAugment("world:anyone:rw").getACL());
+    this.adminACL = new ArrayList<ACL>();
+    this.adminACL.add(new ACLAugment("world:anyone:rwa").getACL());
+
+    zkClient.create("/rollback", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    zkClient.create("/rollback/a", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    zkClient.create("/rollback/b", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+  }
+
+  @AfterAll
+  public void stopZookeeper() throws IOException, InterruptedException {
+    this.zkClient.close();
+    this.zkTestServer.close();
+  }
+
+  private List<ZKRollbackElement> readAll(File stateFile) throws IOException {
+    List<ZKRollbackElement> elements = new ArrayList<ZKRollbackElement>();
+    try (ZKRollbackJournal.Reader reader = new ZKRollbackJournal.Reader(stateFile)) {
+      ZKRollbackElement element = reader.next();
+      while (element != null) {
+        elements.add(element);
+        element = reader.next();
+      }
+    }
+    return elements;
+  }
+
+  @Test
+  public void testAppendAndRead() throws Exception {
+    File stateFile = new File(testTempDir, "append.yml");
+    try (ZKRollbackJournal journal = new ZKRollbackJournal(stateFile)) {
+      journal.append(new ZKRollbackElement("/rollback/a", this.readWriteACL));
+      journal.append(new ZKRollbackElement("/rollback/b", this.adminACL));
+      assertEquals(2, journal.getEntryCount());
+    }
+
+    List<ZKRollbackElement> elements = readAll(stateFile);
+    assertEquals(2, elements.size());
+    assertEquals("/rollback/a", elements.get(0).getPath());
+    assertEquals(this.readWriteACL, elements.get(0).getAcl());
+    assertEquals("/rollback/b", elements.get(1).getPath());
+    assertEquals(this.adminACL, elements.get(1).getAcl());
+  }
+
+  @Test
+  public void testAppendToExistingJournal() throws Exception {
+    File stateFile = new File(testTempDir, "existing.yml");
+    try (ZKRollbackJournal journal = new ZKRollbackJournal(stateFile)) {
+      journal.append(new ZKRollbackElement("/rollback/a", this.readWriteACL));
+    }
+    try (ZKRollbackJournal journal = new ZKRollbackJournal(stateFile)) {
+      journal.append(new ZKRollbackElement("/rollback/b", this.adminACL));
+    }
+    assertEquals(2, readAll(stateFile).size());
+  }
+
+  @Test
+  public void testTornTailIgnored() throws Exception {
+    File stateFile = new File(testTempDir, "torn.yml");
+    try (ZKRollbackJournal journal = new ZKRollbackJournal(stateFile)) {
+      journal.append(new ZKRollbackElement("/rollback/a", this.readWriteACL));
+    }
+    try (FileWriter writer = new FileWriter(stateFile, true)) {
+      writer.write("- {\"path\":\"/rollback/b\",\"acl\":[{\"perms\":");
+    }
+
+    List<ZKRollbackElement> elements = readAll(stateFile);
+    assertEquals(1, elements.size());
+    assertEquals("/rollback/a", elements.get(0).getPath());
+  }
+
+  @Test
+  public void testAppendAfterTornTail() throws Exception {
+    File stateFile = new File(testTempDir, "torn_reopened.yml");
+    try (ZKRollbackJournal journal = new ZKRollbackJournal(stateFile)) {
+      journal.append(new ZKRollbackElement("/rollback/a", this.readWriteACL));
+    }
+    long completeLength = stateFile.length();
+    try (FileWriter writer = new FileWriter(stateFile, true)) {
+      writer.write("- {\"path\":\"/rollback/b\",\"acl\":[{\"perms\":");
+    }
+    try (ZKRollbackJournal journal = new ZKRollbackJournal(stateFile)) {
+      assertEquals(completeLength, journal.getPosition());
+      journal.append(new ZKRollbackElement("/rollback/c", this.adminACL));
+      journal.append(new ZKRollbackElement("/rollback/d", this.adminACL));
+    }
+
+    List<ZKRollbackElement> elements = readAll(stateFile);
+    assertEquals(3, elements.size());
+    assertEquals("/rollback/a", elements.get(0).getPath());
+    assertEquals("/rollback/c", elements.get(1).getPath());
+    assertEquals("/rollback/d", elements.get(2).getPath());
+  }
+
+  @Test
+  public void testTornHeader() throws Exception {
+    File stateFile = new File(testTempDir, "torn_header.yml");
+    try (FileWriter writer = new FileWriter(stateFile)) {
+      writer.write("---\nelem");
+    }
+    try (ZKRollbackJournal journal = new ZKRollbackJournal(stateFile)) {
+      journal.append(new ZKRollbackElement("/rollback/a", this.adminACL));
+    }
+    assertEquals(1, readAll(stateFile).size());
+  }
+
+  @Test
+  public void testReadExportedSet() throws Exception {
+    File stateFile = new File(testTempDir, "exported.yml");
+    ZKRollbackSet rollbackSet = new ZKRollbackSet();
+    rollbackSet.add(new ZKRollbackElement("/rollback/a", this.readWriteACL));
+    rollbackSet.setOutputFile(stateFile);
+    rollbackSet.exportToYAML();
+
+    try (ZKRollbackJournal.Reader reader = new ZKRollbackJournal.Reader(stateFile)) {
+      assertEquals("/rollback/a", reader.next().getPath());
+      assertNull(reader.next());
+    }
+  }
+
+  @Test
+  public void testRollbackRestoresFirstEntry() throws Exception {
+    File stateFile = new File(testTempDir, "restore.yml");
+    try (ZKRollbackJournal journal = new ZKRollbackJournal(stateFile)) {
+      journal.append(new ZKRollbackElement("/rollback/a", this.adminACL));
+      journal.append(new ZKRollbackElement("/rollback/missing", this.adminACL));
+      journal.append(new ZKRollbackElement("/rollback/a", ZooDefs.Ids.OPEN_ACL_UNSAFE));
+    }
+
+    ZKRollbackSet.enforceRollback(this.zkClient, stateFile);
+    assertEquals(this.adminACL, zkClient.getACL("/rollback/a", null));
+    zkClient.setACL("/rollback/a", ZooDefs.Ids.OPEN_ACL_UNSAFE, -1);
+  }
+
+  @Test
+  public void testCompact() throws Exception {
+    File stateFile = new File(testTempDir, "ROLLBACK_STATE_compact.yml");
+    try (ZKRollbackJournal journal = new ZKRollbackJournal(stateFile)) {
+      journal.append(new ZKRollbackElement("/rollback/a", this.adminACL));
+      journal.append(new ZKRollbackElement("/rollback/b", this.readWriteACL));
+      journal.append(new ZKRollbackElement("/rollback/a", ZooDefs.Ids.OPEN_ACL_UNSAFE));
+    }
+
+    assertEquals(1, ZKPurgeRollback.compact(stateFile));
+    List<ZKRollbackElement> elements = readAll(stateFile);
+    assertEquals(2, elements.size());
+    assertEquals("/rollback/a", elements.get(0).getPath());
+    assertEquals(this.adminACL, elements.get(0).getAcl());
+    assertEquals("/rollback/b", elements.get(1).getPath());
+  }
+
+  @Test
+  public void testOpenJournalNotPurged() throws Exception {
+    File rollbackDir = new File(testTempDir, "purge");
+    rollbackDir.mkdir();
+    File closedFile = new File(rollbackDir, "ROLLBACK_STATE_closed.yml");
+    try (ZKRollbackJournal journal = new ZKRollbackJournal(closedFile)) {
+      journal.append(new ZKRollbackElement("/rollback/a", this.adminACL));
+    }
+    File openFile = new File(rollbackDir, "ROLLBACK_STATE_open.yml");
+    ZKPurgeRollback purgeRollback = new ZKPurgeRollback();
+    purgeRollback.setRollbackDir(rollbackDir);
+    try (ZKRollbackJournal journal = new ZKRollbackJournal(openFile)) {
+      journal.append(new ZKRollbackElement("/rollback/a", this.adminACL));
+      journal.append(new ZKRollbackElement("/rollback/a", this.readWriteACL));
+      journal.sync();
+      assertThrows(IOException.class, () -> new ZKRollbackJournal(openFile));
+
+      // The open journal is neither compacted nor purged
+      assertEquals(0, purgeRollback.compactRollback());
+      purgeRollback.purgeRollbackByAge(-60000);
+      assertFalse(closedFile.exists());
+      assertTrue(openFile.exists());
+      journal.append(new ZKRollbackElement("/rollback/b", this.adminACL));
+    }
+    assertEquals(3, readAll(openFile).size());
+  }
+}
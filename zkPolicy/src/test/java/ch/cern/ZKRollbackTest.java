@@ -0,0 +1,156 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.ACL;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+import org.junit.jupiter.api.io.TempDir;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class ZKRollbackTest {
+  static final int ZNODE_COUNT = 50;
+
+  TestingServer zkTestServer;
+  ZKConfig config;
+  ZKClient zkClient;
+  List<ACL> enforcedACL;
+  List<ACL> reenforcedACL;
+  List<String> report;
+
+  @TempDir
+  static File testTempDir;
+
+  @BeforeAll
+  public void startZookeeper() throws Exception {
+    zkTestServer = new TestingServer();
+    config = new ZKConfig(zkTestServer.getConnectString(), 2000, "GREEN", "RED", "");
+    this.zkClient = new ZKClient(config);
+
+    this.enforcedACL = new ArrayList<ACL>();
+    this.enforcedACL.add(new ACLAugment("world:anyone:crwa").getACL());
+    this.reenforcedACL = new ArrayList<ACL>();
+    this.reenforcedACL.add(new ACLAugment("world:anyone:drwa").getACL());
+  }
+
+  @AfterAll
+  public void stopZookeeper() throws IOException, InterruptedException {
+    this.zkClient.close();
+    this.zkTestServer.close();
+  }
+
+  @BeforeEach
+  public void createTree() throws Exception {
+    zkClient.create("/rb", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    for (int i = 0; i < ZNODE_COUNT; i++) {
+      zkClient.create("/rb/n" + i, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    }
+    this.report = new ArrayList<String>();
+  }
+
+  @AfterEach
+  public void deleteTree() throws Exception {
+    for (int i = 0; i < ZNODE_COUNT; i++) {
+      zkClient.delete("/rb/n" + i, -1);
+    }
+    zkClient.delete("/rb", -1);
+  }
+
+  private void enforce(ZKRollbackSet rollbackSet, List<ACL> newACL) throws Exception {
+    ZKEnforceBatcher batcher = new ZKEnforceBatcher(this.zkClient, rollbackSet, 8);
+    for (int i = 0; i < ZNODE_COUNT; i++) {
+      String path = "/rb/n" + i;
+      batcher.add(path, zkClient.getACL(path, null), newACL);
+    }
+    batcher.flush();
+  }
+
+  private ZKRollback createRollback(boolean versionCheck) {
+    ZKRollback rollback = new ZKRollback(this.zkClient, 4);
+    rollback.setVersionCheck(versionCheck);
+    rollback.setReport(this.report::add);
+    return rollback;
+  }
+
+  @Test
+  public void testRestore() throws Exception {
+    ZKRollbackSet rollbackSet = new ZKRollbackSet();
+    this.enforce(rollbackSet, this.enforcedACL);
+    assertEquals(Integer.valueOf(1), rollbackSet.getElements().get(0).getAversion());
+
+    ZKRollback rollback = this.createRollback(false);
+    rollback.restore(rollbackSet.getElements());
+    assertEquals(ZNODE_COUNT, rollback.getRestoredCount());
+    assertEquals(0, rollback.getFailedCount());
+    assertEquals(ZNODE_COUNT, this.report.size());
+    assertTrue(this.report.contains("/rb/n7 : RESTORED"));
+    for (int i = 0; i < ZNODE_COUNT; i++) {
+      assertEquals(ZooDefs.Ids.OPEN_ACL_UNSAFE, zkClient.getACL("/rb/n" + i, null));
+    }
+  }
+
+  @Test
+  public void testVersionCheckSkipsModified() throws Exception {
+    ZKRollbackSet rollbackSet = new ZKRollbackSet();
+    this.enforce(rollbackSet, this.enforcedACL);
+    zkClient.setACL("/rb/n3", this.reenforcedACL, -1);
+
+    ZKRollback rollback = this.createRollback(true);
+    rollback.restore(rollbackSet.getElements());
+    assertEquals(ZNODE_COUNT - 1, rollback.getRestoredCount());
+    assertEquals(1, rollback.getSkippedCount());
+    assertTrue(this.report.contains("/rb/n3 : " + ZKRollback.MODIFIED));
+    assertEquals(this.reenforcedACL, zkClient.getACL("/rb/n3", null));
+    assertEquals(ZooDefs.Ids.OPEN_ACL_UNSAFE, zkClient.getACL("/rb/n4", null));
+  }
+
+  @Test
+  public void testVersionCheckAfterSuccessiveEnforcements() throws Exception {
+    File stateFile = new File(testTempDir, "successive.yml");
+    ZKRollbackSet rollbackSet = new ZKRollbackSet();
+    try (ZKRollbackJournal journal = new ZKRollbackJournal(stateFile)) {
+      rollbackSet.setJournal(journal);
+      this.enforce(rollbackSet, this.enforcedACL);
+      this.enforce(rollbackSet, this.reenforcedACL);
+    }
+
+    ZKRollback rollback = this.createRollback(true);
+    rollback.restore(stateFile);
+    assertEquals(ZNODE_COUNT, rollback.getRestoredCount());
+    assertEquals(0, rollback.getSkippedCount());
+    assertEquals(ZooDefs.Ids.OPEN_ACL_UNSAFE, zkClient.getACL("/rb/n0", null));
+  }
+
+  @Test
+  public void testMissingZnode() throws Exception {
+    List<ZKRollbackElement> elements = new ArrayList<ZKRollbackElement>();
+    elements.add(new ZKRollbackElement("/rb/missing", this.enforcedACL));
+
+    ZKRollback rollback = this.createRollback(false);
+    rollback.restore(elements);
+    assertEquals(1, rollback.getFailedCount());
+    assertEquals("/rb/missing : FAILED (NONODE)", this.report.get(0));
+  }
+}
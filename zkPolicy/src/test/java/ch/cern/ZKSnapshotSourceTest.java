@@ -0,0 +1,114 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Id;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+import org.junit.jupiter.api.io.TempDir;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class ZKSnapshotSourceTest {
+  TestingServer zkTestServer;
+  ZKConfig config;
+  ZKClient zkClient;
+  long firstBatchZxid;
+
+  @TempDir
+  static File testTempDir;
+
+  @BeforeAll
+  public void startZookeeper() throws Exception {
+    // Server data directory used as snapshot and transaction log fixture
+    zkTestServer = new TestingServer(-1, testTempDir);
+    config = new ZKConfig(zkTestServer.getConnectString(), 2000, "GREEN", "RED", "");
+    this.zkClient = new ZKClient(config);
+
+    ArrayList<ACL> aclList = new ArrayList<ACL>();
+    aclList.add(new ACL(ZooDefs.Perms.ALL, new Id("world", "anyone")));
+    List<ACL> readWriteACL = new ArrayList<ACL>();
+    readWriteACL.add(new ACLAugment("world:anyone:rw").getACL());
+
+    zkClient.create("/s", "s".getBytes(), aclList, CreateMode.PERSISTENT);
+    zkClient.create("/s/a", "a".getBytes(), readWriteACL, CreateMode.PERSISTENT);
+    zkClient.create("/s/b", "b".getBytes(), aclList, CreateMode.PERSISTENT);
+    this.firstBatchZxid = zkClient.exists("/s/b", null).getCzxid();
+
+    zkClient.create("/s/c", "c".getBytes(), aclList, CreateMode.PERSISTENT);
+    zkClient.setData("/s/a", "a2".getBytes(), -1);
+  }
+
+  @AfterAll
+  public void stopZookeeper() throws IOException, InterruptedException {
+    this.zkClient.close();
+    this.zkTestServer.close();
+  }
+
+  private List<String> find(ZKTreeSource source, String queryName, List<String> args) throws Exception {
+    ZKQueryElement queryElement = new ZKQueryElement(queryName, "/s", args,
+        new ZKDefaultQuery().getValueOf(queryName));
+    List<ZKQueryElement> queriesList = new ArrayList<ZKQueryElement>();
+    queriesList.add(queryElement);
+    Hashtable<Integer, List<String>> queriesOutput = new Hashtable<Integer, List<String>>();
+    queriesOutput.put(queryElement.hashCode(), new ArrayList<String>());
+    new ZKTree(source).queryFind("/s", queriesList, queriesOutput);
+    return queriesOutput.get(queryElement.hashCode());
+  }
+
+  @Test
+  public void testOfflineQueryMatchesLive() throws Exception {
+    List<String> args = new ArrayList<String>();
+    args.add("world:anyone:rw");
+    try (ZKSnapshotSource source = new ZKSnapshotSource(config, testTempDir, null)) {
+      assertNotNull(source.exists("/s/c", null));
+      assertNull(source.exists("/s/missing", null));
+      List<String> offlineOutput = this.find(source, "exactACL", args);
+      assertEquals("[/s/a]", offlineOutput.toString());
+      assertEquals(this.find(this.zkClient, "exactACL", args), offlineOutput);
+      assertEquals(this.find(this.zkClient, "noACL", null), this.find(source, "noACL", null));
+
+      try (ZKTraversal traversal = new ZKTraversal(source, true)) {
+        ZKTraversalNode node = traversal.start("/s/a");
+        assertArrayEquals("a2".getBytes(), node.getData());
+        assertEquals(1, node.getStat().getVersion());
+      }
+    }
+  }
+
+  @Test
+  public void testReplayUpToZxid() throws Exception {
+    try (ZKSnapshotSource source = new ZKSnapshotSource(config, testTempDir, null, this.firstBatchZxid)) {
+      assertEquals(this.firstBatchZxid, source.getLastZxid());
+      assertNull(source.exists("/s/c", null));
+      assertEquals(2, source.exists("/s", null).getNumChildren());
+
+      try (ZKTraversal traversal = new ZKTraversal(source, true)) {
+        assertArrayEquals("a".getBytes(), traversal.start("/s/a").getData());
+      }
+    }
+  }
+}
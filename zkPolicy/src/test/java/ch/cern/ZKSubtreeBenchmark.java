@@ -0,0 +1,125 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.data.ACL;
+
+/**
+ * Benchmark of the sequential walk against the parallel subtree walk, running queries and
+ * checks on a synthetic znode tree served by an embedded ZooKeeper server.
+ *
+ * <p>Not executed as part of the test suite. Run with:
+ * {@code java -cp <test classpath> ch.cern.ZKSubtreeBenchmark [znodes] [threads]}</p>
+ */
+public class ZKSubtreeBenchmark {
+  private static final int DEFAULT_ZNODES = 100000;
+  private static final int FANOUT = 100;
+  private static final int MAX_PENDING_CREATES = 1000;
+
+  private ZKClient sequentialClient;
+  private ZKClient parallelClient;
+
+  ZKSubtreeBenchmark(String connectString, int threads) throws Exception {
+    ZKConfig config = new ZKConfig(connectString, 30000, "GREEN", "RED", "");
+    this.sequentialClient = new ZKClient(config);
+    ZKConfig parallelConfig = new ZKConfig(connectString, 30000, "GREEN", "RED", "");
+    parallelConfig.setTraversalThreads(threads);
+    this.parallelClient = new ZKClient(parallelConfig);
+  }
+
+  /**
+   * Create a synthetic tree under /bench with the requested number of znodes.
+   *
+   * @param znodes Number of znodes
+   */
+  private void createTree(int znodes) throws Exception {
+    List<List<ACL>> aclVariants = new ArrayList<List<ACL>>();
+    aclVariants.add(ZKBenchmark.aclList("world:anyone:cdrwa"));
+    aclVariants.add(ZKBenchmark.aclList("world:anyone:r", "sasl:kafka:cdrwa"));
+    aclVariants.add(ZKBenchmark.aclList("ip:10.0.0.0/8:cdrwa", "sasl:zookeeper:cdrwa", "world:anyone:r"));
+
+    String[] paths = new String[znodes];
+    paths[0] = "/bench";
+    Semaphore pending = new Semaphore(MAX_PENDING_CREATES);
+    this.sequentialClient.create(paths[0], null, aclVariants.get(0), CreateMode.PERSISTENT);
+    // Breadth first numbering, parents are created before their children
+    for (int i = 1; i < znodes; i++) {
+      paths[i] = paths[(i - 1) / FANOUT] + "/znode" + (i - 1) % FANOUT;
+      pending.acquire();
+      this.sequentialClient.create(paths[i], null, aclVariants.get(i % aclVariants.size()), CreateMode.PERSISTENT,
+          (rc, path, ctx, name) -> pending.release(), null);
+    }
+    pending.acquire(MAX_PENDING_CREATES);
+    pending.release(MAX_PENDING_CREATES);
+  }
+
+  private static List<List<String>> runQueries(ZKClient zk) throws Exception {
+    ZKDefaultQuery defaultQuery = new ZKDefaultQuery();
+    List<ZKQueryElement> queriesList = new ArrayList<ZKQueryElement>();
+    queriesList.add(new ZKQueryElement("exactACL", "/bench", Arrays.asList("world:anyone:r", "sasl:kafka:cdrwa"),
+        defaultQuery.getValueOf("exactACL")));
+    queriesList.add(new ZKQueryElement("satisfyACL", "/bench", Arrays.asList("ip:10.1.2.3:r"),
+        defaultQuery.getValueOf("satisfyACL")));
+    queriesList.add(new ZKQueryElement("regexMatchACL", "/bench", Arrays.asList("sasl:.*:cdrwa"),
+        defaultQuery.getValueOf("regexMatchACL")));
+    Hashtable<Integer, List<String>> queriesOutput = new Hashtable<Integer, List<String>>();
+    for (ZKQueryElement queryElement : queriesList) {
+      queriesOutput.put(queryElement.hashCode(), new ArrayList<String>());
+    }
+    List<List<String>> outputs = new ArrayList<List<String>>();
+    for (ZKQueryElement queryElement : queriesList) {
+      outputs.add(queriesOutput.get(queryElement.hashCode()));
+    }
+    new ZKTree(zk).queryFind("/bench", queriesList, queriesOutput);
+    return outputs;
+  }
+
+  private static List<List<String>> runCheck(ZKClient zk) throws Exception {
+    ZKCheckElement checkElement = new ZKCheckElement("Open", "/bench", "/bench/.*", false,
+        Arrays.asList("world:anyone:cdrwa"));
+    Hashtable<Integer, List<String>> checksOutput = new Hashtable<Integer, List<String>>();
+    checksOutput.put(checkElement.hashCode(), new ArrayList<String>());
+    List<ZKCheckElement> checksList = new ArrayList<ZKCheckElement>();
+    checksList.add(checkElement);
+    new ZKCheck(zk).check("/bench", checksList, checksOutput);
+    return new ArrayList<List<String>>(checksOutput.values());
+  }
+
+  @FunctionalInterface
+  private interface Walk {
+    List<List<String>> run(ZKClient zk) throws Exception;
+  }
+
+  private void benchmark(String name, Walk walk) throws Exception {
+    ZKBenchmark.compare(name, "sequential", () -> walk.run(this.sequentialClient), "parallel",
+        () -> walk.run(this.parallelClient));
+  }
+
+  public static void main(String[] args) throws Exception {
+    int znodes = ZKBenchmark.intArgument(args, 0, DEFAULT_ZNODES);
+    int threads = ZKBenchmark.intArgument(args, 1, Runtime.getRuntime().availableProcessors());
+    try (TestingServer zkTestServer = new TestingServer()) {
+      ZKSubtreeBenchmark benchmark = new ZKSubtreeBenchmark(zkTestServer.getConnectString(), threads);
+      benchmark.createTree(znodes);
+      System.out.println("Synthetic tree with " + znodes + " znodes, " + threads + " threads");
+
+      benchmark.benchmark("query", ZKSubtreeBenchmark::runQueries);
+      benchmark.benchmark("check", ZKSubtreeBenchmark::runCheck);
+      benchmark.sequentialClient.close();
+      benchmark.parallelClient.close();
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.List;
+
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.ACL;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class ZKSubtreeExecutorTest {
+  static final int CHILD_COUNT = 6;
+
+  TestingServer zkTestServer;
+  ZKClient sequentialClient;
+  ZKClient parallelClient;
+
+  @BeforeAll
+  public void startZookeeper() throws Exception {
+    zkTestServer = new TestingServer();
+    ZKConfig config = new ZKConfig(zkTestServer.getConnectString(), 2000, "GREEN", "RED", "");
+    this.sequentialClient = new ZKClient(config);
+    ZKConfig parallelConfig = new ZKConfig(zkTestServer.getConnectString(), 2000, "GREEN", "RED", "");
+    parallelConfig.setTraversalThreads(4);
+    this.parallelClient = new ZKClient(parallelConfig);
+
+    List<ACL> readOnlyACL = new ArrayList<ACL>();
+    readOnlyACL.add(new ACLAugment("world:anyone:r").getACL());
+    sequentialClient.create("/st", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    for (int i = 0; i < CHILD_COUNT; i++) {
+      sequentialClient.create("/st/c" + i, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+      for (int j = 0; j < CHILD_COUNT; j++) {
+        sequentialClient.create("/st/c" + i + "/g" + j, null, j % 2 == 0 ? ZooDefs.Ids.OPEN_ACL_UNSAFE : readOnlyACL,
+            CreateMode.PERSISTENT);
+      }
+    }
+  }
+
+  @AfterAll
+  public void stopZookeeper() throws IOException, InterruptedException {
+    this.sequentialClient.close();
+    this.parallelClient.close();
+    this.zkTestServer.close();
+  }
+
+  private List<List<String>> query(ZKClient zk, boolean find) throws Exception {
+    ZKDefaultQuery defaultQuery = new ZKDefaultQuery();
+    List<ZKQueryElement> queriesList = new ArrayList<ZKQueryElement>();
+    queriesList.add(new ZKQueryElement("exactACL", "/st", Arrays.asList("world:anyone:r"),
+        defaultQuery.getValueOf("exactACL")));
+    queriesList.add(new ZKQueryElement("parentYesChildNo", "/st", null, defaultQuery.getValueOf("parentYesChildNo")));
+    Hashtable<Integer, List<String>> queriesOutput = new Hashtable<Integer, List<String>>();
+    for (ZKQueryElement queryElement : queriesList) {
+      queriesOutput.put(queryElement.hashCode(), new ArrayList<String>());
+    }
+
+    // Queries are removed from the list as they are executed
+    List<ZKQueryElement> executedQueries = new ArrayList<ZKQueryElement>(queriesList);
+    ZKTree zkTree = new ZKTree(zk);
+    if (find) {
+      zkTree.queryFind("/st", queriesList, queriesOutput);
+    } else {
+      zkTree.queryTree("/st", queriesList, queriesOutput);
+    }
+    List<List<String>> outputs = new ArrayList<List<String>>();
+    for (ZKQueryElement queryElement : executedQueries) {
+      outputs.add(queriesOutput.get(queryElement.hashCode()));
+    }
+    return outputs;
+  }
+
+  private Hashtable<Integer, List<String>> check(ZKClient zk) throws Exception {
+    ZKCheckElement checkElement = new ZKCheckElement("Read only", "/st", "/st/c./g.*", false,
+        Arrays.asList("world:anyone:r"));
+    Hashtable<Integer, List<String>> checksOutput = new Hashtable<Integer, List<String>>();
+    checksOutput.put(checkElement.hashCode(), new ArrayList<String>());
+    List<ZKCheckElement> checksList = new ArrayList<ZKCheckElement>();
+    checksList.add(checkElement);
+    new ZKCheck(zk).check("/st", checksList, checksOutput);
+    assertFalse(checkElement.$status);
+    return checksOutput;
+  }
+
+  @Test
+  public void testQueryFindOrder() throws Exception {
+    List<List<String>> sequential = this.query(this.sequentialClient, true);
+    assertEquals(sequential, this.query(this.parallelClient, true));
+    List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < CHILD_COUNT; i++) {
+      for (int j = 1; j < CHILD_COUNT; j += 2) {
+        expected.add("/st/c" + i + "/g" + j);
+      }
+    }
+    assertEquals(expected, sequential.get(0));
+  }
+
+  @Test
+  public void testQueryTreeOrder() throws Exception {
+    List<List<String>> sequential = this.query(this.sequentialClient, false);
+    assertEquals(sequential, this.query(this.parallelClient, false));
+    for (List<String> lines : sequential) {
+      assertEquals(1 + CHILD_COUNT + CHILD_COUNT * CHILD_COUNT, lines.size());
+    }
+  }
+
+  @Test
+  public void testCheckOrder() throws Exception {
+    Hashtable<Integer, List<String>> sequential = this.check(this.sequentialClient);
+    assertEquals(sequential, this.check(this.parallelClient));
+    List<String> lines = sequential.values().iterator().next();
+    assertEquals(CHILD_COUNT * CHILD_COUNT, lines.size());
+    assertEquals("/st/c0/g0 : FAIL (actual: world:anyone:cdrwa)", lines.get(0));
+    assertEquals("/st/c0/g1 : PASS", lines.get(1));
+  }
+}
@@ -0,0 +1,151 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.NoAuthException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Id;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class ZKTraversalTest {
+  TestingServer zkTestServer;
+  ZKConfig config;
+  ZKClient zkClient;
+
+  @BeforeAll
+  public void startZookeeper() throws Exception {
+    // Choose an available port
+    zkTestServer = new TestingServer();
+    config = new ZKConfig(zkTestServer.getConnectString(), 2000, "GREEN", "RED", "");
+    this.zkClient = new ZKClient(config);
+
+    ArrayList<ACL> aclList = new ArrayList<ACL>();
+    aclList.add(new ACL(ZooDefs.Perms.ALL, new Id("world", "anyone")));
+
+    // Create children in non sorted order to check ordering of the traversal
+    zkClient.create("/t", "t".getBytes(), aclList, CreateMode.PERSISTENT);
+    for (String child : new String[] { "c", "a", "b" }) {
+      zkClient.create("/t/" + child, child.getBytes(), aclList, CreateMode.PERSISTENT);
+      for (int i = 9; i >= 0; i--) {
+        zkClient.create("/t/" + child + "/" + i, null, aclList, CreateMode.PERSISTENT);
+      }
+    }
+
+    // Subtree without READ permission for the client
+    List<ACL> noReadACL = new ArrayList<ACL>();
+    noReadACL.add(new ACLAugment("world:anyone:a").getACL());
+    zkClient.create("/t/b/5/locked", null, aclList, CreateMode.PERSISTENT);
+    zkClient.setACL("/t/b/5", noReadACL, -1);
+  }
+
+  @AfterAll
+  public void stopZookeeper() throws IOException, InterruptedException {
+    this.zkClient.close();
+    this.zkTestServer.close();
+  }
+
+  private void walk(ZKTraversalNode node, List<String> output) throws KeeperException, InterruptedException {
+    List<ZKTraversalNode> children;
+    try {
+      children = node.getChildNodes();
+    } catch (NoAuthException e) {
+      output.add("NoAuth " + node.getPath());
+      return;
+    }
+    output.add(node.getPath());
+    for (ZKTraversalNode child : children) {
+      this.walk(child, output);
+    }
+  }
+
+  private List<String> expectedPreOrder() {
+    List<String> expected = new ArrayList<String>();
+    expected.add("/t");
+    for (String child : new String[] { "a", "b", "c" }) {
+      expected.add("/t/" + child);
+      for (int i = 0; i < 10; i++) {
+        if (child.equals("b") && i == 5) {
+          expected.add("NoAuth /t/b/5");
+        } else {
+          expected.add("/t/" + child + "/" + i);
+        }
+      }
+    }
+    return expected;
+  }
+
+  @Test
+  public void testSortedPreOrder() throws Exception {
+    for (int maxInFlight : new int[] { 1, 2, 64 }) {
+      List<String> output = new ArrayList<String>();
+      try (ZKTraversal traversal = new ZKTraversal(this.zkClient, false, maxInFlight)) {
+        this.walk(traversal.start("/t"), output);
+      }
+      assertEquals(expectedPreOrder(), output);
+    }
+  }
+
+  @Test
+  public void testSubtreeFilter() throws Exception {
+    List<String> output = new ArrayList<String>();
+    try (ZKTraversal traversal = new ZKTraversal(this.zkClient)) {
+      traversal.setSubtreeFilter(path -> !path.startsWith("/t/b") && !path.equals("/t/c/3"));
+      this.walk(traversal.start("/t"), output);
+      assertEquals(2, traversal.getPrunedCount());
+    }
+
+    List<String> expected = new ArrayList<String>();
+    for (String path : expectedPreOrder()) {
+      if (!path.startsWith("/t/b") && !path.startsWith("NoAuth") && !path.equals("/t/c/3")) {
+        expected.add(path);
+      }
+    }
+    assertEquals(expected, output);
+  }
+
+  @Test
+  public void testFetchData() throws Exception {
+    try (ZKTraversal traversal = new ZKTraversal(this.zkClient, true)) {
+      ZKTraversalNode root = traversal.start("/t");
+      assertArrayEquals("t".getBytes(), root.getData());
+      assertEquals(3, root.getStat().getNumChildren());
+      assertEquals("/", traversal.start("/").getPath());
+
+      ZKTraversalNode first = root.getChildNodes().get(0);
+      assertEquals("a", first.getName());
+      assertArrayEquals("a".getBytes(), first.getData());
+    }
+  }
+
+  @Test
+  public void testNoNode() throws Exception {
+    try (ZKTraversal traversal = new ZKTraversal(this.zkClient)) {
+      ZKTraversalNode missing = traversal.start("/t/missing");
+      assertThrows(KeeperException.NoNodeException.class, () -> missing.getACL());
+      assertThrows(KeeperException.NoNodeException.class, () -> missing.getChildNodes());
+    }
+  }
+}
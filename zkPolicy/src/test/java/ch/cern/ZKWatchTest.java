@@ -0,0 +1,223 @@
+/*
+* Copyright © 2020, CERN
+* This software is distributed under the terms of the MIT Licence,
+* copied verbatim in the file 'LICENSE'. In applying this licence,
+* CERN does not waive the privileges and immunities
+* granted to it by virtue of its status as an Intergovernmental Organization
+* or submit itself to any jurisdiction.
+*/
+package ch.cern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.ACL;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+import org.junit.jupiter.api.io.TempDir;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class ZKWatchTest {
+  TestingServer zkTestServer;
+  ZKConfig config;
+  ZKClient zkClient;
+  List<ACL> readWriteACL;
+  LinkedBlockingQueue<String> output;
+  ZKWatch zkWatch;
+  Thread watchThread;
+
+  @TempDir
+  static File testTempDir;
+
+  @BeforeAll
+  public void startZookeeper() throws Exception {
+    zkTestServer = new TestingServer();
+    config = new ZKConfig(zkTestServer.getConnectString(), 2000, "GREEN", "RED", "");
+    this.zkClient = new ZKClient(config);
+
+    this.readWriteACL = new ArrayList<ACL>();
+    this.readWriteACL.add(new ACLAugment("world:anyone:rw").getACL());
+
+    zkClient.create("/watch", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    zkClient.create("/watch/a", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    zkClient.create("/watch/a/b", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    zkClient.create("/watch/initial", null, this.readWriteACL, CreateMode.PERSISTENT);
+  }
+
+  @AfterAll
+  public void stopZookeeper() throws IOException, InterruptedException {
+    this.zkClient.close();
+    this.zkTestServer.close();
+  }
+
+  @BeforeEach
+  public void createWatch() throws Exception {
+    List<ZKCheckElement> checks = new ArrayList<ZKCheckElement>();
+    checks.add(new ZKCheckElement("open", "/watch", "/watch/.*", false, Arrays.asList("world:anyone:cdrwa")));
+    List<ZKQueryElement> queries = new ArrayList<ZKQueryElement>();
+    queries.add(new ZKQueryElement("globMatchACL", "/watch", Arrays.asList("digest:*:*"), null));
+
+    this.output = new LinkedBlockingQueue<String>();
+    this.zkWatch = new ZKWatch(this.zkClient, queries, checks, this.output::add);
+    this.zkWatch.setSweepInterval(100);
+  }
+
+  private void startWatch() throws Exception {
+    this.zkWatch.start();
+    this.watchThread = new Thread(() -> {
+      try {
+        this.zkWatch.run();
+      } catch (Exception e) {
+        this.output.add(e.toString());
+      }
+    });
+    this.watchThread.start();
+  }
+
+  @AfterEach
+  public void stopWatch() throws Exception {
+    this.zkWatch.close();
+    if (this.watchThread != null) {
+      this.watchThread.join(5000);
+      this.watchThread = null;
+    }
+  }
+
+  private void assertOutput(String expected) throws InterruptedException {
+    assertEquals(expected, this.output.poll(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testInitialScan() throws Exception {
+    this.startWatch();
+    assertOutput("[open] /watch/initial : FAIL (actual: world:anyone:rw)");
+    assertTrue(this.output.isEmpty());
+  }
+
+  @Test
+  public void testCreateAndDelete() throws Exception {
+    this.startWatch();
+    this.output.clear();
+    zkClient.create("/watch/a/bad", null, this.readWriteACL, CreateMode.PERSISTENT);
+    assertOutput("[open] /watch/a/bad : FAIL (actual: world:anyone:rw)");
+
+    zkClient.create("/watch/a/good", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    zkClient.delete("/watch/a/bad", -1);
+    assertOutput("[open] /watch/a/bad : DELETED");
+    zkClient.delete("/watch/a/good", -1);
+  }
+
+  @Test
+  public void testQueryMatch() throws Exception {
+    this.startWatch();
+    this.output.clear();
+    List<ACL> digestACL = new ArrayList<ACL>();
+    digestACL.add(new ACLAugment("digest:user:pass:cdrwa").getACL());
+    digestACL.addAll(ZooDefs.Ids.OPEN_ACL_UNSAFE);
+    zkClient.create("/watch/digest", null, digestACL, CreateMode.PERSISTENT);
+    assertOutput("[globMatchACL] /watch/digest : MATCH");
+    assertOutput("[open] /watch/digest : FAIL (actual: digest:user:pass:cdrwa, world:anyone:cdrwa)");
+
+    zkClient.delete("/watch/digest", -1);
+    assertOutput("[globMatchACL] /watch/digest : DELETED");
+    assertOutput("[open] /watch/digest : DELETED");
+  }
+
+  @Test
+  public void testACLChangeSweep() throws Exception {
+    this.startWatch();
+    this.output.clear();
+    List<ACL> adminACL = new ArrayList<ACL>();
+    adminACL.add(new ACLAugment("world:anyone:rwa").getACL());
+    zkClient.setACL("/watch/a/b", adminACL, -1);
+    assertOutput("[open] /watch/a/b : FAIL (actual: world:anyone:rwa)");
+
+    zkClient.setACL("/watch/a/b", ZooDefs.Ids.OPEN_ACL_UNSAFE, -1);
+    assertOutput("[open] /watch/a/b : PASS");
+  }
+
+  @Test
+  public void testSessionExpiration() throws Exception {
+    ZKClient watchClient = new ZKClient(config);
+    this.zkWatch = new ZKWatch(watchClient, null, Arrays.asList(new ZKCheckElement("open", "/watch", "/watch/.*",
+        false, Arrays.asList("world:anyone:cdrwa"))), this.output::add);
+    this.zkWatch.setSweepInterval(100);
+    try {
+      this.startWatch();
+      this.output.clear();
+      watchClient.getTestable().injectSessionExpiration();
+
+      // Violations are still reported with the new session
+      zkClient.create("/watch/afterExpiration", null, this.readWriteACL, CreateMode.PERSISTENT);
+      assertOutput("[open] /watch/afterExpiration : FAIL (actual: world:anyone:rw)");
+      zkClient.delete("/watch/afterExpiration", -1);
+      assertOutput("[open] /watch/afterExpiration : DELETED");
+      zkClient.create("/watch/afterExpiration", null, this.readWriteACL, CreateMode.PERSISTENT);
+      assertOutput("[open] /watch/afterExpiration : FAIL (actual: world:anyone:rw)");
+      zkClient.delete("/watch/afterExpiration", -1);
+      assertOutput("[open] /watch/afterExpiration : DELETED");
+    } finally {
+      this.stopWatch();
+      watchClient.close();
+    }
+  }
+
+  @Test
+  public void testRemediationRequiresRollbackFile() throws Exception {
+    ZKQueryElement query = new ZKQueryElement("regexMatchPath", "/watch", Arrays.asList("/watch/app.*"), null);
+    List<ZKEnforcePolicyElement> policies = new ArrayList<ZKEnforcePolicyElement>();
+    policies.add(new ZKEnforcePolicyElement("app", query, false, Arrays.asList("world:anyone:cdrwa")));
+    assertThrows(IllegalArgumentException.class, () -> this.zkWatch.setRemediation(policies, null, 1000));
+  }
+
+  @Test
+  public void testRemediation() throws Exception {
+    ZKQueryElement query = new ZKQueryElement("regexMatchPath", "/watch", Arrays.asList("/watch/app.*"), null);
+    List<ZKEnforcePolicyElement> policies = new ArrayList<ZKEnforcePolicyElement>();
+    policies.add(new ZKEnforcePolicyElement("app", query, false, Arrays.asList("world:anyone:cdrwa")));
+    File rollbackFile = new File(testTempDir, "watch_rollback.yml");
+    this.zkWatch.setRemediation(policies, rollbackFile, 1000);
+    this.startWatch();
+    this.output.clear();
+
+    List<ACL> adminACL = new ArrayList<ACL>();
+    adminACL.add(new ACLAugment("world:anyone:rwa").getACL());
+    zkClient.create("/watch/app", null, adminACL, CreateMode.PERSISTENT);
+    assertOutput("[open] /watch/app : FAIL (actual: world:anyone:rwa)");
+    assertOutput("[enforce] /watch/app : ENFORCED (world:anyone:cdrwa)");
+    assertOutput("[open] /watch/app : PASS");
+    assertEquals(ZooDefs.Ids.OPEN_ACL_UNSAFE, zkClient.getACL("/watch/app", null));
+
+    ZKRollbackSet rollbackSet = new ZKRollbackSet(rollbackFile);
+    assertEquals(1, rollbackSet.getElements().size());
+    assertEquals("/watch/app", rollbackSet.getElements().get(0).getPath());
+    assertEquals(adminACL, rollbackSet.getElements().get(0).getAcl());
+
+    // Znodes outside of the policy query are left untouched
+    zkClient.create("/watch/other", null, this.readWriteACL, CreateMode.PERSISTENT);
+    assertOutput("[open] /watch/other : FAIL (actual: world:anyone:rw)");
+    assertNull(this.output.poll(500, TimeUnit.MILLISECONDS));
+    assertEquals(this.readWriteACL, zkClient.getACL("/watch/other", null));
+
+    zkClient.delete("/watch/app", -1);
+    zkClient.delete("/watch/other", -1);
+  }
+}